@@ -19,8 +19,8 @@ import rx.functions.Action1;
 import rxbonjour.RxBonjour;
 import rxbonjour.example.rv.RvBaseAdapter;
 import rxbonjour.example.rv.RvBaseHolder;
-import rxbonjour.model.BonjourEvent;
 import rxbonjour.model.BonjourService;
+import rxbonjour.model.ServiceSet;
 
 /**
  * @author marcel
@@ -106,19 +106,23 @@ public class MainActivity extends AppCompatActivity {
 		// Clear the adapter's items, then start a new discovery
 		adapter.clearItems();
 		nsdSubscription = RxBonjour.startDiscovery(this, input, useNsdManager)
-				.subscribe(new Action1<BonjourEvent>() {
-					@Override public void call(BonjourEvent bonjourEvent) {
-						// Depending on the type of event and the availability of the item, adjust the adapter
-						BonjourService item = bonjourEvent.getService();
-						switch (bonjourEvent.getType()) {
-							case ADDED:
-								if (!adapter.containsItem(item)) adapter.addItem(item);
-								break;
-
-							case REMOVED:
-								if (adapter.containsItem(item)) adapter.removeItem(item);
-								break;
+				.compose(RxBonjour.toServiceSet())
+				.subscribe(new Action1<ServiceSet>() {
+					private ServiceSet previous = ServiceSet.empty();
+
+					@Override public void call(ServiceSet snapshot) {
+						// Apply the changes since the previous snapshot to the adapter
+						ServiceSet.Delta delta = snapshot.getDelta();
+						for (String key : delta.getRemoved()) {
+							adapter.removeItem(previous.get(key));
 						}
+						for (String key : delta.getChanged()) {
+							adapter.replaceItem(previous.get(key), snapshot.get(key));
+						}
+						for (String key : delta.getInserted()) {
+							adapter.addItem(snapshot.get(key));
+						}
+						previous = snapshot;
 					}
 				}, new Action1<Throwable>() {
 					@Override public void call(Throwable throwable) {
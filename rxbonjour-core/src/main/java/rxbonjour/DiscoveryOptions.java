@@ -0,0 +1,395 @@
+package rxbonjour;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import rxbonjour.model.BonjourService;
+
+/**
+ * Options applied to a Bonjour service discovery, e.g. one started through {@code RxBonjour}.
+ * Instances are immutable, and created using a {@link Builder}.
+ */
+public final class DiscoveryOptions {
+
+	/** Default number of events held back for subscribers that can't keep up */
+	public static final int DEFAULT_BUFFER_SIZE = 128;
+	/** Default time for which the services of a stopped discovery are remembered, in milliseconds */
+	public static final long DEFAULT_LINGER_MILLIS = 30000L;
+
+	private static final DiscoveryOptions DEFAULTS = new Builder().build();
+
+	private final boolean mUseNsdManager;
+	private final boolean mUseNativeEngine;
+	private final boolean mLazyResolution;
+	private final Backpressure mBackpressure;
+	private final int mBufferSize;
+	private final File mPersistentCache;
+	private final long mLingerMillis;
+	private final ScanProfile mScanProfile;
+	private final boolean mAllInterfaces;
+	private final boolean mProbeReachability;
+
+	private DiscoveryOptions(boolean useNsdManager, boolean useNativeEngine, boolean lazyResolution, Backpressure backpressure, int bufferSize,
+			File persistentCache, long lingerMillis, ScanProfile scanProfile, boolean allInterfaces, boolean probeReachability) {
+		mUseNsdManager = useNsdManager;
+		mUseNativeEngine = useNativeEngine;
+		mLazyResolution = lazyResolution;
+		mBackpressure = backpressure;
+		mBufferSize = bufferSize;
+		mPersistentCache = persistentCache;
+		mLingerMillis = lingerMillis;
+		mScanProfile = scanProfile;
+		mAllInterfaces = allInterfaces;
+		mProbeReachability = probeReachability;
+	}
+
+	/**
+	 * @return The default options, using the support implementation and resolving services eagerly
+	 */
+	public static DiscoveryOptions defaults() {
+		return DEFAULTS;
+	}
+
+	/**
+	 * @return True if the NsdManager implementation is used on devices that support it, false if the support implementation is always used
+	 */
+	public boolean usesNsdManager() {
+		return mUseNsdManager;
+	}
+
+	/**
+	 * @return True if the native engine is used instead of JmDNS on devices that support it, false if the JmDNS engine is used
+	 */
+	public boolean usesNativeEngine() {
+		return mUseNativeEngine;
+	}
+
+	/**
+	 * @return True if discovered services are reported as FOUND without resolving them, false if they are resolved before being reported
+	 */
+	public boolean isLazyResolution() {
+		return mLazyResolution;
+	}
+
+	/**
+	 * @return The strategy applied to events that subscribers can't keep up with
+	 */
+	public Backpressure getBackpressure() {
+		return mBackpressure;
+	}
+
+	/**
+	 * @return The maximum number of events held back for subscribers that can't keep up
+	 */
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * @return The file in which last-known services are persisted across process restarts, or null if no persistent cache is used
+	 */
+	public File getPersistentCache() {
+		return mPersistentCache;
+	}
+
+	/**
+	 * @return The time for which the services of a discovery are remembered after its last subscriber left, in milliseconds
+	 */
+	public long getLingerMillis() {
+		return mLingerMillis;
+	}
+
+	/**
+	 * @return The profile governing how often the native engine queries the network
+	 */
+	public ScanProfile getScanProfile() {
+		return mScanProfile;
+	}
+
+	/**
+	 * @return True if services are discovered on every usable network interface, false if only the Wifi connection is used
+	 */
+	public boolean usesAllInterfaces() {
+		return mAllInterfaces;
+	}
+
+	/**
+	 * @return True if only services accepting TCP connections are reported, false if all resolved services are
+	 */
+	public boolean probesReachability() {
+		return mProbeReachability;
+	}
+
+	@Override public String toString() {
+		return "DiscoveryOptions{" +
+				"useNsdManager=" + mUseNsdManager +
+				", useNativeEngine=" + mUseNativeEngine +
+				", lazyResolution=" + mLazyResolution +
+				", backpressure=" + mBackpressure +
+				", bufferSize=" + mBufferSize +
+				", persistentCache=" + mPersistentCache +
+				", lingerMillis=" + mLingerMillis +
+				", scanProfile=" + mScanProfile +
+				", allInterfaces=" + mAllInterfaces +
+				", probeReachability=" + mProbeReachability +
+				'}';
+	}
+
+	@Override public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof DiscoveryOptions)) return false;
+
+		DiscoveryOptions that = (DiscoveryOptions) o;
+
+		if (mUseNsdManager != that.mUseNsdManager) return false;
+		if (mUseNativeEngine != that.mUseNativeEngine) return false;
+		if (mLazyResolution != that.mLazyResolution) return false;
+		if (mBufferSize != that.mBufferSize) return false;
+		if (mLingerMillis != that.mLingerMillis) return false;
+		if (mBackpressure != that.mBackpressure) return false;
+		if (mScanProfile != that.mScanProfile) return false;
+		if (mAllInterfaces != that.mAllInterfaces) return false;
+		if (mProbeReachability != that.mProbeReachability) return false;
+		return !(mPersistentCache != null ? !mPersistentCache.equals(that.mPersistentCache) : that.mPersistentCache != null);
+	}
+
+	@Override public int hashCode() {
+		int result = (mUseNsdManager ? 1 : 0);
+		result = 31 * result + (mUseNativeEngine ? 1 : 0);
+		result = 31 * result + (mLazyResolution ? 1 : 0);
+		result = 31 * result + mBackpressure.hashCode();
+		result = 31 * result + mBufferSize;
+		result = 31 * result + (mPersistentCache != null ? mPersistentCache.hashCode() : 0);
+		result = 31 * result + (int) (mLingerMillis ^ (mLingerMillis >>> 32));
+		result = 31 * result + mScanProfile.hashCode();
+		result = 31 * result + (mAllInterfaces ? 1 : 0);
+		result = 31 * result + (mProbeReachability ? 1 : 0);
+		return result;
+	}
+
+	/* Begin static */
+
+	/**
+	 * Strategy applied to events emitted faster than a subscriber requests them.
+	 * All strategies hold back at most the configured buffer size of events, so memory stays bounded regardless of network activity.
+	 * The strategies that hold back events never drop removals, which may exceed the buffer size.
+	 */
+	public enum Backpressure {
+		/**
+		 * Holds back only the latest event per service. Updates to a held back service are folded into its pending event.
+		 * Once the buffer is full, events of further services are dropped, except for removals of services the subscriber knows,
+		 * which take the place of a pending event instead. Removals of services the subscriber never saw are dropped along with their pending events
+		 */
+		LATEST_PER_SERVICE,
+		/** Holds back events in order. Once the buffer is full, the oldest held back event other than a removal is dropped */
+		BUFFER,
+		/** Drops all events emitted while the subscriber hasn't requested any */
+		DROP
+	}
+
+	/**
+	 * Profile governing how often the native engine queries the network for a type. Each type backs off on its own:
+	 * the interval between its browse queries grows after every query, and grows faster while its set of services stays the same,
+	 * so that types with stable or empty answers keep the radio idle for longer. The backoff is reset when the network changes.
+	 * Ordered from the most to the least network activity.
+	 */
+	public enum ScanProfile {
+		/** Queries every type at least once per minute, e.g. for screens showing services while the user waits for them */
+		AGGRESSIVE,
+		/** Backs off to one query per hour, doubling intervals while services come and go, and quadrupling them otherwise */
+		BALANCED,
+		/** Backs off to one query per hour like {@link #BALANCED}, but grows intervals twice as fast, for battery-powered devices */
+		LOW_POWER,
+		/**
+		 * Sends nothing at all, neither browse queries nor queries resolving or refreshing services. Only the announcements
+		 * and goodbyes that responders send on their own are reported, so that many devices can monitor a network without adding traffic.
+		 * Services are still queried for when they are resolved explicitly. Since other implementations send queries on their own,
+		 * starting a passive discovery fails with an IllegalArgumentException if the native engine can't be used
+		 */
+		PASSIVE
+	}
+
+	public static final class Builder {
+
+		private boolean mUseNsdManager;
+		private boolean mUseNativeEngine;
+		private boolean mLazyResolution;
+		private Backpressure mBackpressure = Backpressure.LATEST_PER_SERVICE;
+		private int mBufferSize = DEFAULT_BUFFER_SIZE;
+		private File mPersistentCache;
+		private long mLingerMillis = DEFAULT_LINGER_MILLIS;
+		private ScanProfile mScanProfile = ScanProfile.BALANCED;
+		private boolean mAllInterfaces;
+		private boolean mProbeReachability;
+
+		public Builder() {
+		}
+
+		/**
+		 * Constructor, starting out with the values of the provided options
+		 *
+		 * @param options Options to copy
+		 */
+		public Builder(DiscoveryOptions options) {
+			mUseNsdManager = options.mUseNsdManager;
+			mUseNativeEngine = options.mUseNativeEngine;
+			mLazyResolution = options.mLazyResolution;
+			mBackpressure = options.mBackpressure;
+			mBufferSize = options.mBufferSize;
+			mPersistentCache = options.mPersistentCache;
+			mLingerMillis = options.mLingerMillis;
+			mScanProfile = options.mScanProfile;
+			mAllInterfaces = options.mAllInterfaces;
+			mProbeReachability = options.mProbeReachability;
+		}
+
+		/**
+		 * Specifies whether or not to use the NsdManager implementation on devices running Jelly Bean and up.
+		 * Defaults to false, since NsdManager is subject to multiple deal-breaking bugs.
+		 *
+		 * @param useNsdManager True to use NsdManager on devices that support it
+		 * @return This Builder
+		 */
+		public Builder setUseNsdManager(boolean useNsdManager) {
+			mUseNsdManager = useNsdManager;
+			return this;
+		}
+
+		/**
+		 * Specifies whether or not to use the native engine instead of JmDNS for the support implementation.
+		 * The native engine speaks multicast DNS on a single event loop thread, no matter how many types and subscribers are active,
+		 * and allocates far less per packet than JmDNS. On Android, it requires Android N and up; the JmDNS engine is used on older devices.
+		 * Has no effect if the NsdManager implementation is used. Defaults to false.
+		 *
+		 * @param useNativeEngine True to use the native engine on devices that support it
+		 * @return This Builder
+		 */
+		public Builder setUseNativeEngine(boolean useNativeEngine) {
+			mUseNativeEngine = useNativeEngine;
+			return this;
+		}
+
+		/**
+		 * Specifies whether or not to defer resolving discovered services. In lazy mode, services are reported as
+		 * {@link rxbonjour.model.BonjourEvent.Type#FOUND FOUND} as soon as they are announced, carrying only their name and type,
+		 * and can be resolved on demand using {@code RxBonjour.resolve(Context, BonjourService, DiscoveryOptions)}.
+		 * Defaults to false.
+		 *
+		 * @param lazyResolution True to report services without resolving them
+		 * @return This Builder
+		 */
+		public Builder setLazyResolution(boolean lazyResolution) {
+			mLazyResolution = lazyResolution;
+			return this;
+		}
+
+		/**
+		 * Specifies the strategy applied to events that subscribers can't keep up with. Defaults to {@link Backpressure#LATEST_PER_SERVICE}.
+		 *
+		 * @param backpressure Backpressure strategy
+		 * @return This Builder
+		 */
+		public Builder setBackpressure(Backpressure backpressure) {
+			if (backpressure == null) throw new IllegalArgumentException("backpressure == null");
+			mBackpressure = backpressure;
+			return this;
+		}
+
+		/**
+		 * Specifies the maximum number of events held back for subscribers that can't keep up. Defaults to {@link #DEFAULT_BUFFER_SIZE}.
+		 *
+		 * @param bufferSize Maximum number of held back events
+		 * @return This Builder
+		 */
+		public Builder setBufferSize(int bufferSize) {
+			if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize <= 0: " + bufferSize);
+			mBufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * Specifies a file in which the last-known services are persisted, so that they can be reported right away when a discovery starts,
+		 * before any multicast answers arrive. Those services are reported as {@link rxbonjour.model.BonjourEvent.Type#CACHED CACHED},
+		 * and are either confirmed by subsequent events of the live discovery, or reported as removed if they don't show up in time.
+		 * Defaults to null, disabling the persistent cache.
+		 * 
+		 * The file should be located in the app's private storage, e.g. <pre>new File(context.getCacheDir(), "rxbonjour")</pre>
+		 *
+		 * @param persistentCache File backing the persistent cache, or null to disable it
+		 * @return This Builder
+		 */
+		public Builder setPersistentCache(File persistentCache) {
+			mPersistentCache = persistentCache;
+			return this;
+		}
+
+		/**
+		 * Specifies how long the services of a discovery are remembered after its last subscriber unsubscribed.
+		 * A subscriber starting the same discovery again within this period receives the remembered services right away
+		 * as {@link rxbonjour.model.BonjourEvent.Type#CACHED CACHED}, while they are re-verified in the background,
+		 * e.g. when an Activity stops its discovery in onPause() and restarts it in onResume().
+		 * Defaults to {@link #DEFAULT_LINGER_MILLIS}; pass 0 to forget services immediately.
+		 *
+		 * @param linger Linger period
+		 * @param unit   Time unit of the linger period
+		 * @return This Builder
+		 */
+		public Builder setLinger(long linger, TimeUnit unit) {
+			if (linger < 0) throw new IllegalArgumentException("linger < 0: " + linger);
+			mLingerMillis = unit.toMillis(linger);
+			return this;
+		}
+
+		/**
+		 * Specifies how often the network is queried for services. Since JmDNS' query timing can't be influenced,
+		 * choosing a profile other than {@link ScanProfile#BALANCED} selects the native engine on devices that support it,
+		 * and has no effect otherwise, or if the NsdManager implementation is used. The exception is {@link ScanProfile#PASSIVE},
+		 * which can't be honored without the native engine: discoveries asking for it fail to start instead. Defaults to {@link ScanProfile#BALANCED}.
+		 *
+		 * @param scanProfile Scan profile
+		 * @return This Builder
+		 */
+		public Builder setScanProfile(ScanProfile scanProfile) {
+			if (scanProfile == null) throw new IllegalArgumentException("scanProfile == null");
+			mScanProfile = scanProfile;
+			return this;
+		}
+
+		/**
+		 * Specifies whether or not to discover services on every usable network interface of the device, e.g. Ethernet and USB tethering
+		 * in addition to Wifi, over IPv4 as well as IPv6. One engine runs per interface and address family, and a service seen
+		 * on several of them is reported once, carrying the addresses learned on all of them. The native engine is used on each interface
+		 * on devices that support it, and JmDNS otherwise. Has no effect if the NsdManager implementation is used. Defaults to false,
+		 * discovering only on the device's Wifi connection over IPv4.
+		 *
+		 * @param allInterfaces True to discover on every usable network interface
+		 * @return This Builder
+		 */
+		public Builder setAllInterfaces(boolean allInterfaces) {
+			mAllInterfaces = allInterfaces;
+			return this;
+		}
+
+		/**
+		 * Specifies whether or not to report only services that accept TCP connections on their port. Stale caches on the network
+		 * keep advertising devices that are long gone; with probing enabled, each resolved service is connected to before it is reported,
+		 * and reported annotated with the round-trip time of that connection, see {@link BonjourService#getRttNanos()}.
+		 * Services that don't accept connections aren't reported, or reported as removed once they stop accepting them,
+		 * and are probed again every few seconds for as long as they are advertised.
+		 * Probes of all discoveries share a concurrency cap, and their results are remembered per host and port for a while.
+		 * Services reported as found by discoveries using lazy resolution aren't probed. Defaults to false.
+		 *
+		 * @param probeReachability True to report only services accepting TCP connections
+		 * @return This Builder
+		 */
+		public Builder setReachabilityProbing(boolean probeReachability) {
+			mProbeReachability = probeReachability;
+			return this;
+		}
+
+		public DiscoveryOptions build() {
+			return new DiscoveryOptions(mUseNsdManager, mUseNativeEngine, mLazyResolution, mBackpressure, mBufferSize, mPersistentCache, mLingerMillis,
+					mScanProfile, mAllInterfaces, mProbeReachability);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package rxbonjour.exc;
+
+import rxbonjour.model.BonjourService;
+
+/**
+ * Thrown when connecting to a service fails on all of its addresses
+ */
+public class ConnectFailed extends Exception {
+
+	public ConnectFailed(BonjourService service, Throwable cause) {
+		super("Connect failed for service " + service.getName() + " of type " + service.getType() + " on " + service.getAddresses().size() + " addresses", cause);
+	}
+}
@@ -1,17 +1,19 @@
 package rxbonjour.exc;
 
-import rxbonjour.internal.BonjourDiscovery;
-
 /**
  * Thrown when service discovery fails upon starting
  */
 public class DiscoveryFailed extends Exception {
 
-	public DiscoveryFailed(Class<? extends BonjourDiscovery> implClass, String type, int errorCode) {
+	public DiscoveryFailed(Class<?> implClass, String type, int errorCode) {
 		super(implClass.getSimpleName() + " discovery failed for type " + type + " with error code " + errorCode);
 	}
 
-	public DiscoveryFailed(Class<? extends BonjourDiscovery> implClass, String type) {
+	public DiscoveryFailed(Class<?> implClass, String type) {
 		super(implClass.getSimpleName() + " discovery failed for type " + type);
 	}
+
+	public DiscoveryFailed(Class<?> implClass, Throwable cause) {
+		super(implClass.getSimpleName() + " engine failed to start", cause);
+	}
 }
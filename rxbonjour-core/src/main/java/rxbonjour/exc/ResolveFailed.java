@@ -0,0 +1,17 @@
+package rxbonjour.exc;
+
+import rxbonjour.model.BonjourService;
+
+/**
+ * Thrown when resolving a service on demand fails
+ */
+public class ResolveFailed extends Exception {
+
+	public ResolveFailed(Class<?> implClass, BonjourService service, int errorCode) {
+		super(implClass.getSimpleName() + " resolve failed for service " + service.getName() + " of type " + service.getType() + " with error code " + errorCode);
+	}
+
+	public ResolveFailed(Class<?> implClass, BonjourService service) {
+		super(implClass.getSimpleName() + " resolve failed for service " + service.getName() + " of type " + service.getType());
+	}
+}
@@ -0,0 +1,221 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.impl.DNSIncoming;
+import javax.jmdns.impl.DNSOutgoing;
+import javax.jmdns.impl.DNSQuestion;
+import javax.jmdns.impl.DNSTaskStarter;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.ServiceInfoImpl;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
+import javax.jmdns.impl.tasks.resolver.DNSResolverTask;
+
+/**
+ * JmDNS task starter which batches service resolvers: instead of having each browsed type send its own series of PTR queries,
+ * all types whose resolvers are started within one query interval are asked for in a single query packet.
+ *
+ * Since RxBonjour never publishes anything, the starter also keeps JmDNS browse-only: the prober, announcer and renewer of the
+ * host name JmDNS is created with are never started. The host name is thus never claimed on the network, no probe or announcement
+ * packets are sent, and since the instance never reaches the announced state, it doesn't respond to queries either.
+ * All other tasks are delegated to JmDNS' default starter.
+ *
+ * JmDNS looks up task starters through a process-wide factory, so this starter is only used for instances created through
+ * {@link #createJmdns(InetAddress, String)}. All other instances of the process keep JmDNS' default starter, and publish as usual.
+ */
+public final class BatchingTaskStarter implements DNSTaskStarter {
+
+	/** Set while the current thread creates a JmDNS instance on behalf of RxBonjour */
+	private static final ThreadLocal<Boolean> CREATING = new ThreadLocal<>();
+
+	/** Default task starter, to which all tasks except service resolvers are delegated */
+	private final DNSTaskStarter delegate;
+	/** JmDNS instance the tasks are executed for */
+	private final JmDNSImpl jmdns;
+
+	/** Timer on which batched resolvers are run, created lazily */
+	private Timer timer;
+	/** Batch waiting to send its first query, to which newly requested types are added */
+	private BatchResolver pendingBatch;
+	/** Synchronization lock on the timer and pending batch */
+	private final Object batchLock = new Object();
+
+	/**
+	 * Constructor
+	 *
+	 * @param jmdns JmDNS instance the tasks are executed for
+	 */
+	public BatchingTaskStarter(JmDNSImpl jmdns) {
+		this.jmdns = jmdns;
+		this.delegate = new DNSTaskStarter.DNSTaskStarterImpl(jmdns);
+	}
+
+	/* Begin public */
+
+	/**
+	 * Creates a JmDNS instance on behalf of RxBonjour, which only browses and batches its queries.
+	 *
+	 * @param address Address to bind the instance to
+	 * @param name    Name of the instance
+	 * @return The JmDNS instance
+	 * @throws IOException In case JmDNS can't be initialized
+	 */
+	public static JmDNS createJmdns(InetAddress address, String name) throws IOException {
+		// JmDNS obtains the starter of the new instance from within its constructor, on this thread
+		CREATING.set(Boolean.TRUE);
+		try {
+			return JmDNS.create(address, name);
+		} finally {
+			CREATING.remove();
+		}
+	}
+
+	/**
+	 * Requests that the provided types be browsed for. Types requested within one query interval share a single query packet.
+	 *
+	 * @param types Fully qualified types to browse for, e.g. '_http._tcp.local.'
+	 */
+	public void startServiceResolver(Collection<String> types) {
+		synchronized (batchLock) {
+			if (pendingBatch == null) {
+				if (timer == null) timer = new Timer("RxBonjour.BatchingTaskStarter.Timer", true);
+				pendingBatch = new BatchResolver(jmdns);
+				pendingBatch.start(timer);
+			}
+			pendingBatch.types.addAll(types);
+		}
+	}
+
+	/* Begin overrides */
+
+	@Override public void startServiceResolver(String type) {
+		List<String> types = new ArrayList<>(1);
+		types.add(type);
+		startServiceResolver(types);
+	}
+
+	@Override public void cancelTimer() {
+		synchronized (batchLock) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+			pendingBatch = null;
+		}
+		delegate.cancelTimer();
+	}
+
+	@Override public void purgeTimer() {
+		synchronized (batchLock) {
+			if (timer != null) timer.purge();
+		}
+		delegate.purgeTimer();
+	}
+
+	@Override public void purgeStateTimer() {
+		delegate.purgeStateTimer();
+	}
+
+	@Override public void cancelStateTimer() {
+		delegate.cancelStateTimer();
+	}
+
+	@Override public void startProber() {
+		// Browse-only: the host name is never claimed
+	}
+
+	@Override public void startAnnouncer() {
+		// Browse-only: nothing is announced
+	}
+
+	@Override public void startRenewer() {
+		// Browse-only: nothing is announced, so nothing needs to be renewed
+	}
+
+	@Override public void startCanceler() {
+		delegate.startCanceler();
+	}
+
+	@Override public void startReaper() {
+		delegate.startReaper();
+	}
+
+	@Override public void startServiceInfoResolver(ServiceInfoImpl info) {
+		delegate.startServiceInfoResolver(info);
+	}
+
+	@Override public void startTypeResolver() {
+		delegate.startTypeResolver();
+	}
+
+	@Override public void startResponder(DNSIncoming in, InetAddress addr, int port) {
+		delegate.startResponder(in, addr, port);
+	}
+
+	/* Begin static */
+
+	/**
+	 * Class delegate installed into JmDNS' task starter factory, creating batching starters for the JmDNS instances created by RxBonjour,
+	 * and default starters for all others
+	 */
+	public static final class Delegate implements DNSTaskStarter.Factory.ClassDelegate {
+
+		@Override public DNSTaskStarter newDNSTaskStarter(JmDNSImpl jmdns) {
+			if (Boolean.TRUE.equals(CREATING.get())) {
+				return new BatchingTaskStarter(jmdns);
+			}
+			return new DNSTaskStarter.DNSTaskStarterImpl(jmdns);
+		}
+	}
+
+	/**
+	 * Resolver task asking for several types at once. Once the first query is sent, the batch is closed
+	 * and subsequently requested types are collected in a new batch.
+	 */
+	private final class BatchResolver extends DNSResolverTask {
+
+		/** Types asked for by this batch */
+		private final Set<String> types = new LinkedHashSet<>();
+
+		private BatchResolver(JmDNSImpl jmdns) {
+			super(jmdns);
+		}
+
+		@Override protected DNSOutgoing addQuestions(DNSOutgoing out) throws IOException {
+			List<String> snapshot;
+			synchronized (batchLock) {
+				// Close the batch upon sending its first query
+				if (pendingBatch == this) pendingBatch = null;
+				snapshot = new ArrayList<>(types);
+			}
+
+			DNSOutgoing newOut = out;
+			for (String type : snapshot) {
+				newOut = addQuestion(newOut, DNSQuestion.newQuestion(type, DNSRecordType.TYPE_PTR, DNSRecordClass.CLASS_IN, DNSRecordClass.NOT_UNIQUE));
+			}
+			return newOut;
+		}
+
+		@Override protected DNSOutgoing addAnswers(DNSOutgoing out) throws IOException {
+			// RxBonjour doesn't publish services, so there are no known answers of its own to add
+			return out;
+		}
+
+		@Override protected String description() {
+			return "querying service types " + types;
+		}
+
+		@Override public String getName() {
+			return "BatchResolver(" + (getDns() != null ? getDns().getName() : "") + ")";
+		}
+	}
+}
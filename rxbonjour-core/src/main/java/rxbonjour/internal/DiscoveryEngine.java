@@ -0,0 +1,43 @@
+package rxbonjour.internal;
+
+import rx.Observable;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+
+/**
+ * Platform-independent discovery engine. Platform adapters supply the network binding used whenever the engine needs to start,
+ * and take care of scheduling the returned Observables.
+ */
+public interface DiscoveryEngine {
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options.
+	 *
+	 * @param binding Network the engine binds to, if it isn't running yet
+	 * @param type    Type of service to discover, e.g. "_http._tcp"
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	Observable<BonjourEvent> start(NetworkBinding binding, String type, DiscoveryOptions options);
+
+	/**
+	 * Resolves the provided service, which was previously reported by a discovery of this engine.
+	 * The returned Observable emits the resolved service and completes, or fails with a {@link rxbonjour.exc.ResolveFailed}.
+	 *
+	 * @param binding Network the engine binds to, if it isn't running yet
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	Observable<BonjourService> resolve(NetworkBinding binding, BonjourService service);
+
+	/**
+	 * Starts the engine ahead of any discovery, so that discoveries started later attach to it.
+	 * The returned Observable emits the timing of the startup and completes, or fails with a {@link rxbonjour.exc.DiscoveryFailed}.
+	 *
+	 * @param binding Network the engine binds to, if it isn't running yet
+	 * @return An Observable for the timing of the startup
+	 */
+	Observable<EngineStartup> prewarm(NetworkBinding binding);
+}
@@ -0,0 +1,286 @@
+package rxbonjour.internal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding of multicast DNS queries and names, as used by the native engine. Responses are decoded by {@link DnsReader}.
+ * Names are represented in presentation format, e.g. 'Office Printer._http._tcp.local.', with dots and backslashes
+ * inside of labels escaped by a backslash.
+ */
+final class DnsMessage {
+
+	/** Record type of IPv4 addresses */
+	static final int TYPE_A = 1;
+	/** Record type of pointers, used to enumerate the instances of a service type */
+	static final int TYPE_PTR = 12;
+	/** Record type of text records, carrying a service's key/value attributes */
+	static final int TYPE_TXT = 16;
+	/** Record type of IPv6 addresses */
+	static final int TYPE_AAAA = 28;
+	/** Record type of service locations, carrying a service's host and port */
+	static final int TYPE_SRV = 33;
+
+	/** Internet record class */
+	private static final int CLASS_IN = 1;
+
+	/** Header flag marking a query whose known answers continue in the following packets */
+	private static final int FLAG_TRUNCATED = 0x0200;
+
+	/** Offset of the flags in the message header */
+	private static final int FLAGS_OFFSET = 2;
+	/** Offset of the question count in the message header */
+	private static final int QUESTION_COUNT_OFFSET = 4;
+	/** Offset of the answer count in the message header */
+	private static final int ANSWER_COUNT_OFFSET = 6;
+	/** Largest offset a compression pointer can refer to */
+	private static final int MAX_POINTER_OFFSET = 0x3fff;
+	/** Maximum length of an encoded name, in bytes */
+	private static final int MAX_NAME_LENGTH = 255;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private DnsMessage() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	/**
+	 * @param out Buffer holding encoded labels up to its position
+	 * @return A copy of the labels, with ASCII letters folded to lower case, as DNS names compare case-insensitively
+	 */
+	private static byte[] toLower(ByteBuffer out) {
+		byte[] bytes = new byte[out.position()];
+		for (int i = 0; i < bytes.length; i++) {
+			byte b = out.get(i);
+			bytes[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Appends a label to a name in presentation format, escaping dots and backslashes inside of it.
+	 *
+	 * @param name  Name to append to
+	 * @param label Unescaped label
+	 */
+	static void appendLabel(StringBuilder name, String label) {
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c == '.' || c == '\\') name.append('\\');
+			name.append(c);
+		}
+		name.append('.');
+	}
+
+	/**
+	 * Splits a name in presentation format into its unescaped labels.
+	 *
+	 * @param name Name in presentation format
+	 * @return The labels of the name, excluding the empty root label
+	 */
+	private static List<String> labels(String name) {
+		List<String> labels = new ArrayList<>();
+		StringBuilder label = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\' && i + 1 < name.length()) {
+				label.append(name.charAt(++i));
+
+			} else if (c == '.') {
+				labels.add(label.toString());
+				label.setLength(0);
+
+			} else {
+				label.append(c);
+			}
+		}
+		if (label.length() > 0) labels.add(label.toString());
+		return labels;
+	}
+
+	/**
+	 * Writes a name without compression at the current position of the provided buffer.
+	 *
+	 * @param out  Buffer to write to
+	 * @param name Name in presentation format
+	 */
+	private static void writeName(ByteBuffer out, String name) {
+		for (String label : labels(name)) {
+			byte[] bytes = label.getBytes(UTF_8);
+			if (bytes.length == 0 || bytes.length > 63) throw new IllegalArgumentException("Invalid label in " + name);
+			out.put((byte) bytes.length);
+			out.put(bytes);
+		}
+		out.put((byte) 0);
+	}
+
+	/* Begin public */
+
+	/**
+	 * Builds the name of a service instance from its label and type.
+	 *
+	 * @param label Unescaped instance label, e.g. 'Office Printer'
+	 * @param type  Service type, e.g. '_http._tcp.local.'
+	 * @return The name of the instance in presentation format
+	 */
+	static String instanceName(String label, String type) {
+		StringBuilder name = new StringBuilder();
+		appendLabel(name, label);
+		return name.append(type).toString();
+	}
+
+	/**
+	 * @param name Name in presentation format
+	 * @return The unescaped first label of the name, e.g. the instance label of a service instance name
+	 */
+	static String firstLabel(String name) {
+		List<String> labels = labels(name);
+		return labels.isEmpty() ? "" : labels.get(0);
+	}
+
+	/**
+	 * @param name Name in presentation format
+	 * @return The name without its first label, e.g. the type of a service instance name
+	 */
+	static String parentName(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\') {
+				i++;
+
+			} else if (c == '.') {
+				return i + 1 < name.length() ? name.substring(i + 1) : ".";
+			}
+		}
+		return ".";
+	}
+
+	/**
+	 * Encodes a name into the form matched by {@link DnsReader}: uncompressed labels, folded to lower case.
+	 *
+	 * @param name Name in presentation format
+	 * @return The encoded name
+	 */
+	static byte[] encodeName(String name) {
+		ByteBuffer out = ByteBuffer.allocate(MAX_NAME_LENGTH + 1);
+		try {
+			writeName(out, name);
+		} catch (BufferOverflowException e) {
+			throw new IllegalArgumentException("Name too long: " + name);
+		}
+		return toLower(out);
+	}
+
+	/**
+	 * Encodes a single label into the form matched by {@link DnsReader}: a length byte followed by the label, folded to lower case.
+	 *
+	 * @param label Unescaped label
+	 * @return The encoded label
+	 */
+	static byte[] encodeLabel(String label) {
+		byte[] bytes = label.getBytes(UTF_8);
+		if (bytes.length > 63) throw new IllegalArgumentException("Label too long: " + label);
+		ByteBuffer out = ByteBuffer.allocate(bytes.length + 1);
+		out.put((byte) bytes.length).put(bytes);
+		return toLower(out);
+	}
+
+	/**
+	 * Starts a new query message in the provided buffer, which is cleared first.
+	 *
+	 * @param out Buffer to write to
+	 */
+	static void beginQuery(ByteBuffer out) {
+		out.clear();
+		out.putShort((short) 0); // mDNS queries carry no ID
+		out.putShort((short) 0); // Standard query
+		out.putShort((short) 0); // Questions, counted up by addQuestion()
+		out.putShort((short) 0); // Answers
+		out.putShort((short) 0); // Authority records
+		out.putShort((short) 0); // Additional records
+	}
+
+	/**
+	 * Appends a question to the query started in the provided buffer. If the question doesn't fit, the buffer is left unchanged.
+	 *
+	 * @param out  Buffer holding a query started by {@link #beginQuery(ByteBuffer)}
+	 * @param name Name asked for, in presentation format
+	 * @param type Record type asked for
+	 * @return True if the question was added, false if the buffer is full
+	 */
+	static boolean addQuestion(ByteBuffer out, String name, int type) {
+		int position = out.position();
+		try {
+			writeName(out, name);
+			out.putShort((short) type);
+			out.putShort((short) CLASS_IN);
+		} catch (BufferOverflowException e) {
+			out.position(position);
+			return false;
+		}
+		out.putShort(QUESTION_COUNT_OFFSET, (short) (out.getShort(QUESTION_COUNT_OFFSET) + 1));
+		return true;
+	}
+
+	/**
+	 * Appends a known answer to the query started in the provided buffer, listing a PTR record already held by the querier
+	 * so that responders don't repeat it (RFC 6762, section 7.1). Known answers must be added after all questions.
+	 * If the answer doesn't fit, the buffer is left unchanged.
+	 *
+	 * @param out        Buffer holding a query started by {@link #beginQuery(ByteBuffer)}
+	 * @param type       Name of the record, i.e. the type asked for, in presentation format
+	 * @param typeOffset Offset of the type name written earlier in the same message, or -1 if it wasn't written yet
+	 * @param label      Unescaped label of the instance the record points to
+	 * @param ttlSeconds Remaining time-to-live of the record, in seconds
+	 * @return The offset of the type name within the message, to be passed to subsequent calls, or -1 if the buffer is full
+	 */
+	static int addKnownAnswer(ByteBuffer out, String type, int typeOffset, String label, long ttlSeconds) {
+		int position = out.position();
+		byte[] bytes = label.getBytes(UTF_8);
+		if (bytes.length == 0 || bytes.length > 63) throw new IllegalArgumentException("Invalid label " + label);
+		try {
+			if (typeOffset < 0) {
+				if (position > MAX_POINTER_OFFSET) throw new BufferOverflowException();
+				typeOffset = position;
+				writeName(out, type);
+			} else {
+				out.putShort((short) (0xc000 | typeOffset));
+			}
+			out.putShort((short) TYPE_PTR);
+			out.putShort((short) CLASS_IN);
+			out.putInt((int) ttlSeconds);
+			out.putShort((short) (1 + bytes.length + 2));
+			out.put((byte) bytes.length);
+			out.put(bytes);
+			out.putShort((short) (0xc000 | typeOffset));
+		} catch (BufferOverflowException e) {
+			out.position(position);
+			return -1;
+		}
+		out.putShort(ANSWER_COUNT_OFFSET, (short) (out.getShort(ANSWER_COUNT_OFFSET) + 1));
+		return typeOffset;
+	}
+
+	/**
+	 * Marks the query started in the provided buffer as truncated, announcing that more known answers follow in the next packet
+	 * (RFC 6762, section 7.2).
+	 *
+	 * @param out Buffer holding a query started by {@link #beginQuery(ByteBuffer)}
+	 */
+	static void setTruncated(ByteBuffer out) {
+		out.putShort(FLAGS_OFFSET, (short) (out.getShort(FLAGS_OFFSET) | FLAG_TRUNCATED));
+	}
+
+	/**
+	 * @param out Buffer holding a query started by {@link #beginQuery(ByteBuffer)}
+	 * @return True if neither a question nor a known answer was added to the query yet
+	 */
+	static boolean isEmptyQuery(ByteBuffer out) {
+		return out.getShort(QUESTION_COUNT_OFFSET) == 0 && out.getShort(ANSWER_COUNT_OFFSET) == 0;
+	}
+}
@@ -0,0 +1,387 @@
+package rxbonjour.internal;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import rxbonjour.model.TxtRecords;
+
+/**
+ * Flyweight reader of multicast DNS responses, used by the native engine. The reader walks the records of a message in place:
+ * names aren't decoded up-front, but exposed as offsets into the message, which are matched against pre-encoded names
+ * (see {@link DnsMessage#encodeName(String)}) following compression pointers, without materializing any Strings.
+ * Names, addresses and attributes are only decoded on demand, for records that are actually of interest.
+ *
+ * A single reader is reused for all messages; positioning it on a message and walking its records allocates nothing.
+ * Offsets are only valid until the reader is reset.
+ */
+final class DnsReader {
+
+	/** Internet record class */
+	private static final int CLASS_IN = 1;
+	/** Mask of the class field, excluding mDNS' cache-flush bit */
+	private static final int CLASS_MASK = 0x7fff;
+	/** Cache-flush bit of the class field of a record, marking it as the complete set of records of its name and type */
+	private static final int CLASS_CACHE_FLUSH = 0x8000;
+	/** Header flag marking a message as a response */
+	private static final int FLAG_RESPONSE = 0x8000;
+	/** Length of the message header, in bytes */
+	private static final int HEADER_LENGTH = 12;
+	/** Maximum number of compression pointers followed while reading a single name, protecting against pointer loops */
+	private static final int MAX_POINTERS = 32;
+	/** Maximum length of a decoded name, in characters */
+	private static final int MAX_NAME_LENGTH = 1024;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Buffer holding the current message */
+	private ByteBuffer buffer;
+	/** Position of the message header within the buffer, which compression pointers are relative to */
+	private int start;
+	/** Position at which the message ends */
+	private int limit;
+	/** Position of the next record */
+	private int position;
+	/** Number of records not read yet */
+	private int recordsLeft;
+
+	/** Offset of the current record's name */
+	private int nameOffset;
+	/** Type of the current record */
+	private int type;
+	/** Whether the current record has its cache-flush bit set */
+	private boolean cacheFlush;
+	/** Time-to-live of the current record, in seconds */
+	private long ttl;
+	/** Offset of the current record's data */
+	private int dataOffset;
+	/** Length of the current record's data, in bytes */
+	private int dataLength;
+
+	/* Begin private */
+
+	private int u8(int offset) {
+		return buffer.get(offset) & 0xff;
+	}
+
+	private int u16(int offset) {
+		return buffer.getShort(offset) & 0xffff;
+	}
+
+	private static int toLower(int b) {
+		return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+	}
+
+	/**
+	 * @param offset Offset of a name
+	 * @return The offset right after the name, or -1 if the name is malformed
+	 */
+	private int skipName(int offset) {
+		while (offset < limit) {
+			int length = u8(offset);
+			if (length == 0) return offset + 1;
+			if ((length & 0xc0) == 0xc0) return offset + 2 <= limit ? offset + 2 : -1;
+			if ((length & 0xc0) != 0) return -1;
+			offset += 1 + length;
+		}
+		return -1;
+	}
+
+	/**
+	 * Follows compression pointers until reaching the next label of a name.
+	 *
+	 * @param offset Offset of a label or pointer
+	 * @return The offset of the label's length byte, or -1 if the name is malformed
+	 */
+	private int resolve(int offset) {
+		int pointers = 0;
+		while (offset >= start && offset < limit) {
+			int length = u8(offset);
+			if ((length & 0xc0) == 0xc0) {
+				if (++pointers > MAX_POINTERS || offset + 1 >= limit) return -1;
+				offset = start + (((length & 0x3f) << 8) | u8(offset + 1));
+
+			} else if ((length & 0xc0) != 0 || offset + length >= limit) {
+				return -1;
+
+			} else {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the label at the provided offset against an encoded label, ignoring ASCII case.
+	 *
+	 * @param offset  Offset of the label's length byte, with pointers resolved
+	 * @param encoded Encoded labels
+	 * @param index   Index of the label's length byte in the encoded labels
+	 * @return True if the labels match
+	 */
+	private boolean labelMatches(int offset, byte[] encoded, int index) {
+		int length = u8(offset);
+		if (index >= encoded.length || (encoded[index] & 0xff) != length || index + length >= encoded.length) return false;
+		for (int i = 1; i <= length; i++) {
+			if (toLower(u8(offset + i)) != (encoded[index + i] & 0xff)) return false;
+		}
+		return true;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Positions the reader on the message held by the provided buffer, between its position and limit, and skips its questions.
+	 *
+	 * @param packet Buffer holding the message
+	 * @return True if the message is a well-formed response, false if it is a query or malformed
+	 */
+	boolean reset(ByteBuffer packet) {
+		buffer = packet;
+		start = packet.position();
+		limit = packet.limit();
+		recordsLeft = 0;
+		if (limit - start < HEADER_LENGTH) return false;
+		if ((u16(start + 2) & FLAG_RESPONSE) == 0) return false;
+
+		int questions = u16(start + 4);
+		int records = u16(start + 6) + u16(start + 8) + u16(start + 10);
+		position = start + HEADER_LENGTH;
+		for (int i = 0; i < questions; i++) {
+			position = skipName(position);
+			if (position < 0 || position + 4 > limit) return false;
+			position += 4;
+		}
+		recordsLeft = records;
+		return true;
+	}
+
+	/**
+	 * Advances to the next record of the Internet class. Reading stops at the first malformed record.
+	 *
+	 * @return True if the reader is positioned on a record, false if there are no more records
+	 */
+	boolean next() {
+		while (recordsLeft > 0) {
+			recordsLeft--;
+			int nameEnd = skipName(position);
+			if (nameEnd < 0 || nameEnd + 10 > limit) break;
+
+			nameOffset = position;
+			type = u16(nameEnd);
+			int recordClass = u16(nameEnd + 2);
+			ttl = buffer.getInt(nameEnd + 4) & 0xffffffffL;
+			dataLength = u16(nameEnd + 8);
+			dataOffset = nameEnd + 10;
+			position = dataOffset + dataLength;
+			if (position > limit) break;
+
+			if ((recordClass & CLASS_MASK) == CLASS_IN) {
+				cacheFlush = (recordClass & CLASS_CACHE_FLUSH) != 0;
+				return true;
+			}
+		}
+		recordsLeft = 0;
+		return false;
+	}
+
+	/**
+	 * @return The type of the current record
+	 */
+	int type() {
+		return type;
+	}
+
+	/**
+	 * @return The time-to-live of the current record, in seconds. A TTL of 0 announces that the record is gone
+	 */
+	long ttl() {
+		return ttl;
+	}
+
+	/**
+	 * @return True if the current record replaces all previously received records of its name and type
+	 */
+	boolean isCacheFlush() {
+		return cacheFlush;
+	}
+
+	/**
+	 * @return The offset of the current record's name
+	 */
+	int nameOffset() {
+		return nameOffset;
+	}
+
+	/**
+	 * @return The offset of the target name of the current PTR or SRV record, or -1 if the record is too short
+	 */
+	int targetOffset() {
+		int offset = type == DnsMessage.TYPE_SRV ? dataOffset + 6 : dataOffset;
+		return offset < dataOffset + dataLength ? offset : -1;
+	}
+
+	/**
+	 * @return The port of the current SRV record
+	 */
+	int port() {
+		return dataLength >= 6 ? u16(dataOffset + 4) : 0;
+	}
+
+	/**
+	 * @return The length of the current record's data, in bytes
+	 */
+	int dataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * @param data Data to compare with
+	 * @return True if the current record's data equals the provided data
+	 */
+	boolean dataEquals(byte[] data) {
+		if (data == null || data.length != dataLength) return false;
+		for (int i = 0; i < dataLength; i++) {
+			if (buffer.get(dataOffset + i) != data[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return A copy of the current record's data
+	 */
+	byte[] readData() {
+		byte[] data = new byte[dataLength];
+		for (int i = 0; i < dataLength; i++) {
+			data[i] = buffer.get(dataOffset + i);
+		}
+		return data;
+	}
+
+	/**
+	 * @param scope Interface on which the message was received, to which link-local IPv6 addresses are scoped, or null to leave them unscoped
+	 * @return The address of the current A or AAAA record, or null if its data has the wrong length
+	 */
+	InetAddress readAddress(NetworkInterface scope) {
+		if (dataLength != 4 && dataLength != 16) return null;
+		byte[] data = readData();
+		try {
+			// Link-local addresses (fe80::/10) are only reachable through the interface they were learned on
+			if (scope != null && dataLength == 16 && (data[0] & 0xff) == 0xfe && (data[1] & 0xc0) == 0x80) {
+				try {
+					return Inet6Address.getByAddress(null, data, scope);
+				} catch (UnknownHostException e) {
+					// The interface has no link-local address itself, so there is no scope to attach
+				}
+			}
+			return InetAddress.getByAddress(data);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compares the name at the provided offset against an encoded name, ignoring ASCII case.
+	 *
+	 * @param offset  Offset of the name
+	 * @param encoded Name encoded by {@link DnsMessage#encodeName(String)}
+	 * @return True if the names match
+	 */
+	boolean nameEquals(int offset, byte[] encoded) {
+		int index = 0;
+		while (true) {
+			offset = resolve(offset);
+			if (offset < 0 || !labelMatches(offset, encoded, index)) return false;
+			int length = u8(offset);
+			if (length == 0) return true;
+			offset += 1 + length;
+			index += 1 + length;
+		}
+	}
+
+	/**
+	 * Compares the name at the provided offset, without its first label, against an encoded name, ignoring ASCII case.
+	 *
+	 * @param offset  Offset of the name, e.g. 'Office Printer._http._tcp.local.'
+	 * @param encoded Parent name encoded by {@link DnsMessage#encodeName(String)}, e.g. '_http._tcp.local.'
+	 * @return True if the names match
+	 */
+	boolean parentEquals(int offset, byte[] encoded) {
+		offset = resolve(offset);
+		if (offset < 0) return false;
+		int length = u8(offset);
+		return length != 0 && nameEquals(offset + 1 + length, encoded);
+	}
+
+	/**
+	 * Compares the first label of the name at the provided offset against an encoded label, ignoring ASCII case.
+	 *
+	 * @param offset  Offset of the name
+	 * @param encoded Label encoded by {@link DnsMessage#encodeLabel(String)}
+	 * @return True if the labels match
+	 */
+	boolean firstLabelEquals(int offset, byte[] encoded) {
+		offset = resolve(offset);
+		return offset >= 0 && labelMatches(offset, encoded, 0);
+	}
+
+	/**
+	 * Decodes the name at the provided offset.
+	 *
+	 * @param offset Offset of the name
+	 * @return The name in presentation format, or null if it is malformed
+	 */
+	String readName(int offset) {
+		StringBuilder name = new StringBuilder();
+		while (true) {
+			offset = resolve(offset);
+			if (offset < 0 || name.length() > MAX_NAME_LENGTH) return null;
+			int length = u8(offset);
+			if (length == 0) return name.length() == 0 ? "." : name.toString();
+			DnsMessage.appendLabel(name, readLabel(offset));
+			offset += 1 + length;
+		}
+	}
+
+	/**
+	 * Decodes the first label of the name at the provided offset.
+	 *
+	 * @param offset Offset of the name
+	 * @return The unescaped label, or null if the name is malformed
+	 */
+	String readFirstLabel(int offset) {
+		offset = resolve(offset);
+		return offset >= 0 ? readLabel(offset) : null;
+	}
+
+	/**
+	 * @param offset Offset of a label's length byte, with pointers resolved
+	 * @return The unescaped label
+	 */
+	private String readLabel(int offset) {
+		int length = u8(offset);
+		byte[] label = new byte[length];
+		for (int i = 0; i < length; i++) {
+			label[i] = buffer.get(offset + 1 + i);
+		}
+		return new String(label, UTF_8);
+	}
+
+	/**
+	 * Splits the strings of the current TXT record into key/value attributes. Only keys are decoded, values are kept as raw bytes.
+	 * Attributes without a value ("key") are mapped to a null value, while attributes with an empty value ("key=") keep it,
+	 * and only the first occurrence of a key is kept, as mandated by RFC 6763. See {@link TxtRecords.Builder#putData(byte[], int, int)}.
+	 *
+	 * @return The attributes
+	 */
+	TxtRecords readTxt() {
+		byte[] data = new byte[dataLength];
+		for (int i = 0; i < dataLength; i++) {
+			data[i] = buffer.get(dataOffset + i);
+		}
+		return new TxtRecords.Builder().putData(data, 0, dataLength).build();
+	}
+}
@@ -0,0 +1,29 @@
+package rxbonjour.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+public class EngineSchedulers {
+
+	public static <T> Observable.Transformer<T, T> cleanupSchedulers() {
+		return new Observable.Transformer<T, T>() {
+			@Override public Observable<T> call(Observable<T> obs) {
+				return obs
+						.subscribeOn(Schedulers.computation())
+						.observeOn(Schedulers.computation());
+			}
+		};
+	}
+
+	public static <T> Observable.Transformer<T, T> lingerSchedulers(final long delayMillis) {
+		return new Observable.Transformer<T, T>() {
+			@Override public Observable<T> call(Observable<T> obs) {
+				return obs
+						.delaySubscription(delayMillis, TimeUnit.MILLISECONDS, Schedulers.computation())
+						.observeOn(Schedulers.computation());
+			}
+		};
+	}
+}
@@ -0,0 +1,309 @@
+package rxbonjour.internal;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+/**
+ * Makes push-based discovery sources honor the requests of their subscribers, applying the {@link DiscoveryOptions.Backpressure}
+ * strategy of a discovery to events emitted faster than they are requested. At most the configured buffer size of events is held back,
+ * except for removals: those are never dropped, since the subscriber would keep showing the removed services otherwise.
+ */
+public final class EventBackpressure {
+
+	private EventBackpressure() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin public */
+
+	/**
+	 * Returns a Transformer applying the backpressure strategy of the provided options to a stream of Bonjour events.
+	 *
+	 * @param options Options of the discovery
+	 * @return A Transformer applying the backpressure strategy
+	 */
+	public static Observable.Transformer<BonjourEvent, BonjourEvent> apply(final DiscoveryOptions options) {
+		return new Observable.Transformer<BonjourEvent, BonjourEvent>() {
+			@Override public Observable<BonjourEvent> call(Observable<BonjourEvent> events) {
+				if (options.getBackpressure() == DiscoveryOptions.Backpressure.DROP) {
+					return events.onBackpressureDrop();
+				}
+				return events.lift(new HoldBackOperator(options.getBackpressure() == DiscoveryOptions.Backpressure.LATEST_PER_SERVICE, options.getBufferSize()));
+			}
+		};
+	}
+
+	/* Begin static */
+
+	/**
+	 * Operator holding back events until they are requested, either in order or folded to the latest event per service
+	 */
+	private static final class HoldBackOperator implements Observable.Operator<BonjourEvent, BonjourEvent> {
+
+		private final boolean latestPerService;
+		private final int capacity;
+
+		private HoldBackOperator(boolean latestPerService, int capacity) {
+			this.latestPerService = latestPerService;
+			this.capacity = capacity;
+		}
+
+		@Override public Subscriber<? super BonjourEvent> call(Subscriber<? super BonjourEvent> child) {
+			final HoldBackSubscriber parent = new HoldBackSubscriber(child, latestPerService ? new LatestPending(capacity) : new BufferPending(capacity));
+			child.add(parent);
+			child.setProducer(new Producer() {
+				@Override public void request(long n) {
+					parent.requestMore(n);
+				}
+			});
+			return parent;
+		}
+	}
+
+	/**
+	 * Subscriber to the upstream source, forwarding events to the child subscriber as requested
+	 */
+	private static final class HoldBackSubscriber extends Subscriber<BonjourEvent> {
+
+		private final Subscriber<? super BonjourEvent> child;
+		private final Pending pending;
+		private final Object lock = new Object();
+
+		/** Number of events requested by the child, but not yet emitted. Guarded by the lock */
+		private long requested;
+		/** Whether or not a thread is currently emitting to the child. Guarded by the lock */
+		private boolean emitting;
+		/** Whether or not another thread attempted to emit while one was already doing so. Guarded by the lock */
+		private boolean missed;
+		/** Whether or not the upstream source terminated. Guarded by the lock */
+		private boolean done;
+		/** Error the upstream source terminated with, if any. Guarded by the lock */
+		private Throwable error;
+
+		private HoldBackSubscriber(Subscriber<? super BonjourEvent> child, Pending pending) {
+			this.child = child;
+			this.pending = pending;
+		}
+
+		/* Begin private */
+
+		private void requestMore(long n) {
+			if (n <= 0) return;
+			synchronized (lock) {
+				requested += n;
+				if (requested < 0) requested = Long.MAX_VALUE;
+			}
+			drain();
+		}
+
+		private void drain() {
+			synchronized (lock) {
+				if (emitting) {
+					missed = true;
+					return;
+				}
+				emitting = true;
+			}
+
+			for (; ; ) {
+				for (; ; ) {
+					BonjourEvent event;
+					boolean terminate = false;
+					Throwable terminalError = null;
+					synchronized (lock) {
+						if (child.isUnsubscribed()) return;
+
+						if (pending.isEmpty()) {
+							if (!done) break;
+							terminate = true;
+							terminalError = error;
+							event = null;
+
+						} else {
+							if (requested == 0) break;
+							if (requested != Long.MAX_VALUE) requested--;
+							event = pending.poll();
+						}
+					}
+
+					// Emit outside of the lock
+					if (terminate) {
+						if (terminalError != null) child.onError(terminalError);
+						else child.onCompleted();
+						return;
+					}
+					child.onNext(event);
+				}
+
+				synchronized (lock) {
+					if (!missed) {
+						emitting = false;
+						return;
+					}
+					missed = false;
+				}
+			}
+		}
+
+		/* Begin overrides */
+
+		@Override public void onNext(BonjourEvent event) {
+			synchronized (lock) {
+				pending.offer(event);
+			}
+			drain();
+		}
+
+		@Override public void onError(Throwable e) {
+			synchronized (lock) {
+				error = e;
+				done = true;
+			}
+			drain();
+		}
+
+		@Override public void onCompleted() {
+			synchronized (lock) {
+				done = true;
+			}
+			drain();
+		}
+	}
+
+	/**
+	 * Events held back for the child subscriber. Only accessed while holding the subscriber's lock
+	 */
+	private interface Pending {
+
+		void offer(BonjourEvent event);
+
+		BonjourEvent poll();
+
+		boolean isEmpty();
+	}
+
+	/**
+	 * Holds back events in order, dropping the oldest one other than a removal once full
+	 */
+	private static final class BufferPending implements Pending {
+
+		private final ArrayDeque<BonjourEvent> queue = new ArrayDeque<>();
+		private final int capacity;
+
+		private BufferPending(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override public void offer(BonjourEvent event) {
+			if (queue.size() >= capacity) {
+				for (Iterator<BonjourEvent> iterator = queue.iterator(); iterator.hasNext(); ) {
+					if (iterator.next().getType() != BonjourEvent.Type.REMOVED) {
+						iterator.remove();
+						break;
+					}
+				}
+			}
+			queue.offer(event);
+		}
+
+		@Override public BonjourEvent poll() {
+			return queue.poll();
+		}
+
+		@Override public boolean isEmpty() {
+			return queue.isEmpty();
+		}
+	}
+
+	/**
+	 * Holds back the latest event per service, in the order the services were first held back. Events of further services
+	 * are dropped once full, except for removals of services the subscriber was told about, which evict a pending event instead.
+	 * Removals of services the subscriber was never told about are dropped along with their pending events
+	 */
+	private static final class LatestPending implements Pending {
+
+		private final LinkedHashMap<String, BonjourEvent> latest = new LinkedHashMap<>();
+		/** Keys of the services the subscriber was told about, and not told were removed since */
+		private final Set<String> delivered = new HashSet<>();
+		private final int capacity;
+
+		private LatestPending(int capacity) {
+			this.capacity = capacity;
+		}
+
+		private static String key(BonjourService service) {
+			return service.getName() + "/" + service.getType();
+		}
+
+		/**
+		 * Makes room for another event, preferring to drop events of services the subscriber wasn't told about yet
+		 * over updates of services it knows. Removals are never dropped, so the capacity may be exceeded.
+		 */
+		private void evict() {
+			String victim = null;
+			for (Map.Entry<String, BonjourEvent> entry : latest.entrySet()) {
+				if (entry.getValue().getType() == BonjourEvent.Type.REMOVED) continue;
+				if (!delivered.contains(entry.getKey())) {
+					victim = entry.getKey();
+					break;
+				}
+				if (victim == null) victim = entry.getKey();
+			}
+			if (victim != null) latest.remove(victim);
+		}
+
+		@Override public void offer(BonjourEvent event) {
+			String key = key(event.getService());
+			BonjourEvent previous = latest.get(key);
+
+			if (event.getType() == BonjourEvent.Type.REMOVED) {
+				if (!delivered.contains(key)) {
+					// The subscriber never saw the service, so forget about its pending event, and don't report its removal either
+					latest.remove(key);
+					return;
+				}
+				if (previous == null && latest.size() >= capacity) evict();
+				latest.put(key, event);
+
+			} else if (previous == null) {
+				if (latest.size() < capacity) latest.put(key, event);
+
+			} else if (event.getType() == BonjourEvent.Type.UPDATED && previous.getType() == BonjourEvent.Type.UPDATED) {
+				// Combine both updates into one
+				latest.put(key, new BonjourEvent(BonjourEvent.Type.UPDATED, event.getService(), previous.getDiff().union(event.getDiff())));
+
+			} else if (event.getType() == BonjourEvent.Type.UPDATED && previous.getType() != BonjourEvent.Type.REMOVED) {
+				// The subscriber hasn't seen the service yet, so report it with its updated state right away
+				latest.put(key, new BonjourEvent(previous.getType(), event.getService()));
+
+			} else {
+				latest.put(key, event);
+			}
+		}
+
+		@Override public BonjourEvent poll() {
+			Iterator<Map.Entry<String, BonjourEvent>> iterator = latest.entrySet().iterator();
+			Map.Entry<String, BonjourEvent> entry = iterator.next();
+			BonjourEvent event = entry.getValue();
+			if (event.getType() == BonjourEvent.Type.REMOVED) delivered.remove(entry.getKey());
+			else delivered.add(entry.getKey());
+			iterator.remove();
+			return event;
+		}
+
+		@Override public boolean isEmpty() {
+			return latest.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package rxbonjour.internal;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+/**
+ * Groups Bonjour events into time-windowed chunks, so that bursts of announcements are delivered to subscribers
+ * in few dispatches instead of one per event. Within a chunk, services that appear and disappear again cancel out,
+ * unless the subscriber was already told about them in an earlier chunk.
+ */
+public final class EventBatcher {
+
+	private EventBatcher() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Returns a Transformer grouping events into chunks, emitted once the window elapses or the chunk reaches its maximum size,
+	 * whichever comes first. Chunks that end up empty after coalescing are not emitted.
+	 *
+	 * @param window    Length of the window
+	 * @param unit      Time unit of the window
+	 * @param maxSize   Maximum number of events per chunk
+	 * @param scheduler Scheduler on which windows are timed
+	 * @return A Transformer from events to chunks of events
+	 */
+	public static Observable.Transformer<BonjourEvent, List<BonjourEvent>> batch(final long window, final TimeUnit unit, final int maxSize, final Scheduler scheduler) {
+		return new Observable.Transformer<BonjourEvent, List<BonjourEvent>>() {
+			@Override public Observable<List<BonjourEvent>> call(final Observable<BonjourEvent> events) {
+				return Observable.defer(new Func0<Observable<List<BonjourEvent>>>() {
+					@Override public Observable<List<BonjourEvent>> call() {
+						// Keep track of the services delivered to this subscriber across chunks
+						final Set<String> delivered = new HashSet<>();
+
+						return events
+								.buffer(window, unit, maxSize, scheduler)
+								.map(new Func1<List<BonjourEvent>, List<BonjourEvent>>() {
+									@Override public List<BonjourEvent> call(List<BonjourEvent> chunk) {
+										return coalesce(chunk, delivered);
+									}
+								})
+								.filter(new Func1<List<BonjourEvent>, Boolean>() {
+									@Override public Boolean call(List<BonjourEvent> chunk) {
+										return !chunk.isEmpty();
+									}
+								});
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Removes events that cancel out within the provided chunk, which is taken to be the first one delivered to its subscriber.
+	 *
+	 * @param chunk Chunk of events, in the order they were emitted
+	 * @return The coalesced chunk
+	 * @see #coalesce(List, Set)
+	 */
+	public static List<BonjourEvent> coalesce(List<BonjourEvent> chunk) {
+		return coalesce(chunk, new HashSet<String>());
+	}
+
+	/**
+	 * Removes events that cancel out within the provided chunk: if a service is added (or found) and removed again
+	 * within the same chunk, neither its appearance, updates in between nor its removal are retained.
+	 * Services delivered in an earlier chunk never cancel out, since their subscriber needs to learn about their removal.
+	 * The order of the remaining events is preserved.
+	 *
+	 * @param chunk     Chunk of events, in the order they were emitted
+	 * @param delivered Keys of the services delivered in earlier chunks, updated with the outcome of this chunk
+	 * @return The coalesced chunk
+	 */
+	public static List<BonjourEvent> coalesce(List<BonjourEvent> chunk, Set<String> delivered) {
+		// Indices of the events of services that appeared within this chunk, keyed by service
+		Map<String, List<Integer>> appeared = null;
+		BitSet dropped = null;
+
+		for (int i = 0; i < chunk.size(); i++) {
+			BonjourEvent event = chunk.get(i);
+			String key = key(event.getService());
+
+			switch (event.getType()) {
+				case ADDED:
+				case FOUND:
+				case CACHED:
+				case UPDATED:
+					if (appeared == null) appeared = new HashMap<>();
+					List<Integer> indices = appeared.get(key);
+					if (indices == null) {
+						// Updates only count towards services that first appeared within this chunk
+						if (event.getType() == BonjourEvent.Type.UPDATED || delivered.contains(key)) break;
+						indices = new ArrayList<>(2);
+						appeared.put(key, indices);
+					}
+					indices.add(i);
+					break;
+
+				case REMOVED:
+					List<Integer> cancelled = appeared != null ? appeared.remove(key) : null;
+					if (cancelled != null) {
+						if (dropped == null) dropped = new BitSet(chunk.size());
+						for (int index : cancelled) {
+							dropped.set(index);
+						}
+						dropped.set(i);
+					} else {
+						// The removal of a delivered service is retained, so that it may appear anew later on in this chunk
+						delivered.remove(key);
+					}
+					break;
+			}
+		}
+
+		List<BonjourEvent> coalesced;
+		if (dropped == null) {
+			coalesced = chunk;
+		} else {
+			coalesced = new ArrayList<>(chunk.size() - dropped.cardinality());
+			for (int i = 0; i < chunk.size(); i++) {
+				if (!dropped.get(i)) coalesced.add(chunk.get(i));
+			}
+		}
+
+		// Remember the services the subscriber is told about by the retained events
+		for (BonjourEvent event : coalesced) {
+			if (event.getType() == BonjourEvent.Type.REMOVED) {
+				delivered.remove(key(event.getService()));
+			} else {
+				delivered.add(key(event.getService()));
+			}
+		}
+		return coalesced;
+	}
+}
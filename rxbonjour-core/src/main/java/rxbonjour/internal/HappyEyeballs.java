@@ -0,0 +1,238 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+import rxbonjour.exc.ConnectFailed;
+import rxbonjour.model.BonjourService;
+
+/**
+ * Connects to a resolved service over TCP, racing connection attempts across all of its addresses as described by
+ * RFC 8305 ("Happy Eyeballs Version 2"). Addresses are tried alternating between IPv6 and IPv4, and each attempt is started
+ * once the previous one failed, or didn't succeed within the connection attempt delay. The first socket to connect wins,
+ * and all other attempts are aborted, so that a stale address doesn't cost a full connect timeout.
+ */
+public final class HappyEyeballs {
+
+	/** Delay after which the next attempt is started while the previous one is still pending, as recommended by RFC 8305, section 8 */
+	static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+	/** Default timeout of each connection attempt */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+	private HappyEyeballs() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	/**
+	 * Orders the provided addresses for connection attempts, alternating between address families and starting with IPv6
+	 * (RFC 8305, section 4). Within each family, the original order is kept.
+	 *
+	 * @param addresses Addresses to order
+	 * @return The addresses in the order to attempt them in
+	 */
+	static List<InetAddress> sortAddresses(List<InetAddress> addresses) {
+		List<InetAddress> v6 = new ArrayList<>(addresses.size());
+		List<InetAddress> v4 = new ArrayList<>(addresses.size());
+		for (InetAddress address : addresses) {
+			if (address instanceof Inet6Address) v6.add(address);
+			else v4.add(address);
+		}
+
+		List<InetAddress> sorted = new ArrayList<>(addresses.size());
+		for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			if (i < v6.size()) sorted.add(v6.get(i));
+			if (i < v4.size()) sorted.add(v4.get(i));
+		}
+		return sorted;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Connects to the provided service, using the default timeout for each attempt.
+	 * Please refer to {@link #connect(BonjourService, long, TimeUnit)} for more details.
+	 *
+	 * @param service Resolved service to connect to
+	 * @return An Observable for the connected socket
+	 */
+	public static Observable<Socket> connect(BonjourService service) {
+		return connect(service, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Connects to the provided service, racing connection attempts across all of its addresses.
+	 * The returned Observable emits the first socket that connected and completes, or fails with a {@link ConnectFailed}
+	 * once the attempts on all addresses failed. Unsubscribing before then aborts all pending attempts.
+	 * The subscriber is responsible for closing the emitted socket.
+	 *
+	 * @param service Resolved service to connect to
+	 * @param timeout Timeout of each connection attempt
+	 * @param unit    Unit of the timeout
+	 * @return An Observable for the connected socket
+	 */
+	public static Observable<Socket> connect(final BonjourService service, final long timeout, final TimeUnit unit) {
+		return Observable.create(new Observable.OnSubscribe<Socket>() {
+			@Override public void call(Subscriber<? super Socket> subscriber) {
+				new Race(service, sortAddresses(service.getAddresses()), (int) unit.toMillis(timeout), subscriber).start();
+			}
+		});
+	}
+
+	/* Begin static */
+
+	/**
+	 * Connection attempts of a single subscriber
+	 */
+	private static final class Race {
+
+		/** Service to connect to */
+		private final BonjourService service;
+		/** Addresses to attempt, in order */
+		private final List<InetAddress> addresses;
+		/** Timeout of each attempt, in milliseconds */
+		private final int timeoutMillis;
+		/** Subscriber receiving the winning socket */
+		private final Subscriber<? super Socket> subscriber;
+		/** Worker starting attempts after the connection attempt delay */
+		private final Scheduler.Worker timer = Schedulers.computation().createWorker();
+		/** Sockets of the pending attempts */
+		private final List<Socket> pending = new ArrayList<>();
+		/** Index of the next address to attempt */
+		private int next;
+		/** Number of attempts that failed */
+		private int failed;
+		/** Whether or not the race is over, because an attempt won, all of them failed, or the subscriber left */
+		private boolean done;
+		/** Error of the last failed attempt */
+		private IOException lastError;
+
+		private Race(BonjourService service, List<InetAddress> addresses, int timeoutMillis, Subscriber<? super Socket> subscriber) {
+			this.service = service;
+			this.addresses = addresses;
+			this.timeoutMillis = timeoutMillis;
+			this.subscriber = subscriber;
+		}
+
+		private void start() {
+			if (addresses.isEmpty()) {
+				subscriber.onError(new ConnectFailed(service, null));
+				return;
+			}
+			subscriber.add(Subscriptions.create(new Action0() {
+				@Override public void call() {
+					finish(null);
+				}
+			}));
+			startNext();
+		}
+
+		/**
+		 * Starts an attempt on the next address, if there is one left.
+		 */
+		private void startNext() {
+			final Socket socket = new Socket();
+			final InetAddress address;
+			final int started;
+			synchronized (this) {
+				if (done || next >= addresses.size()) return;
+				address = addresses.get(next++);
+				started = next;
+				pending.add(socket);
+			}
+
+			final Scheduler.Worker worker = Schedulers.io().createWorker();
+			worker.schedule(new Action0() {
+				@Override public void call() {
+					try {
+						socket.connect(new InetSocketAddress(address, service.getPort()), timeoutMillis);
+						connected(socket);
+					} catch (IOException e) {
+						failed(socket, e);
+					} finally {
+						worker.unsubscribe();
+					}
+				}
+			});
+
+			// Start the next attempt after the delay, unless it was started in the meantime because this one failed
+			timer.schedule(new Action0() {
+				@Override public void call() {
+					boolean late;
+					synchronized (Race.this) {
+						late = next == started;
+					}
+					if (late) startNext();
+				}
+			}, CONNECTION_ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		private void connected(Socket socket) {
+			synchronized (this) {
+				if (!done) pending.remove(socket);
+			}
+			if (!finish(socket)) {
+				closeQuietly(socket);
+				return;
+			}
+			subscriber.onNext(socket);
+			subscriber.onCompleted();
+		}
+
+		private void failed(Socket socket, IOException e) {
+			boolean lost;
+			synchronized (this) {
+				if (done) return;
+				pending.remove(socket);
+				lastError = e;
+				lost = ++failed == addresses.size();
+			}
+			if (!lost) {
+				startNext();
+			} else if (finish(null)) {
+				subscriber.onError(new ConnectFailed(service, lastError));
+			}
+		}
+
+		/**
+		 * Ends the race, aborting all pending attempts except the winning one.
+		 *
+		 * @param winner Socket that won the race, or null
+		 * @return True if the race was ended by this call, false if it was already over
+		 */
+		private boolean finish(Socket winner) {
+			List<Socket> aborted;
+			synchronized (this) {
+				if (done) return false;
+				done = true;
+				aborted = new ArrayList<>(pending);
+				pending.clear();
+			}
+			timer.unsubscribe();
+			for (Socket socket : aborted) {
+				if (socket != winner) closeQuietly(socket);
+			}
+			return true;
+		}
+
+		private static void closeQuietly(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.impl.DNSCache;
+import javax.jmdns.impl.DNSEntry;
+import javax.jmdns.impl.DNSIncoming;
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.DNSTaskStarter;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.observers.SerializedSubscriber;
+import rx.subscriptions.Subscriptions;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.DiscoveryFailed;
+import rxbonjour.exc.ResolveFailed;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+import rxbonjour.model.TxtRecords;
+
+/**
+ * Discovery engine utilizing the JmDNS library for lookups. Runs on any JVM; the platform supplies the network binding
+ * the JmDNS instance is created with.
+ */
+public final class JmdnsEngine implements DiscoveryEngine {
+
+	static {
+		// Disable logging for some JmDNS classes, since those severely clutter log output
+		Logger.getLogger(DNSIncoming.class.getName()).setLevel(Level.OFF);
+		Logger.getLogger(DNSRecordType.class.getName()).setLevel(Level.OFF);
+		Logger.getLogger(DNSRecordClass.class.getName()).setLevel(Level.OFF);
+		Logger.getLogger(DNSIncoming.MessageInputStream.class.getName()).setLevel(Level.OFF);
+
+		// Batch the browse queries of all types requested at around the same time into one query packet,
+		// and skip probing and announcing the host name, so that the instances of this engine only ever browse
+		DNSTaskStarter.Factory.setClassDelegate(new BatchingTaskStarter.Delegate());
+	}
+
+	/** Suffix appended to input types */
+	private static final String SUFFIX = ".local.";
+
+	/** Startup phase creating the JmDNS instance. Since the instance never probes for its host name, browsing can start right after it */
+	public static final String PHASE_JMDNS = "jmdns";
+
+	/** Time to wait for on-demand resolves, in milliseconds */
+	private static final long RESOLVE_TIMEOUT_MILLIS = 5000L;
+
+	/** Time for which an idle JmDNS instance is kept running in case a new subscriber arrives, in milliseconds */
+	private static final long IDLE_LINGER_MILLIS = 3000L;
+	/** Time for which a prewarmed JmDNS instance is kept running while waiting for the first subscriber, in milliseconds */
+	private static final long PREWARM_LINGER_MILLIS = 30000L;
+
+	/** Class reported as the failing implementation by errors of this engine */
+	private final Class<?> implClass;
+	/** The JmDNS instance used for discovery, shared among subscribers. Guarded by the JmDNS lock */
+	private JmDNS jmdnsInstance;
+	/** Network binding held for as long as the JmDNS instance is running. Guarded by the JmDNS lock */
+	private NetworkBinding jmdnsBinding;
+	/** Synchronization lock on the JmDNS instance and its bookkeeping */
+	private final Object jmdnsLock = new Object();
+	/** Number of subscribers and resolves holding on to the JmDNS instance. Guarded by the JmDNS lock */
+	private int subscriberCount = 0;
+	/** Incremented whenever the JmDNS instance becomes idle, so that only the latest scheduled close takes effect. Guarded by the JmDNS lock */
+	private long idleGeneration = 0;
+	/** Bookkeeping of in-flight and recent resolves, skipping duplicate requests for the same service */
+	private final ResolveCoalescer<ServiceInfo> resolveCoalescer = new ResolveCoalescer<>();
+
+	/**
+	 * Constructor
+	 */
+	public JmdnsEngine() {
+		this(JmdnsEngine.class);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param implClass Class reported as the failing implementation by errors of this engine, e.g. a platform adapter wrapping it
+	 */
+	public JmdnsEngine(Class<?> implClass) {
+		this.implClass = implClass;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Creates a new BonjourService instance from JmDNS service information.
+	 *
+	 * @param name Name of the service
+	 * @param type Type of the service
+	 * @param info Information about the service, or null to create an unresolved service carrying only its name and type
+	 * @return A BonjourService containing the necessary information
+	 */
+	private BonjourService newBonjourService(String name, String type, ServiceInfo info) {
+		// Construct a new BonjourService
+		BonjourService.Builder serviceBuilder = new BonjourService.Builder(name, type);
+		if (info == null) return serviceBuilder.build();
+
+		serviceBuilder.setTxtRecords(txtRecords(info));
+
+		// Add non-null host addresses and port
+		InetAddress[] addresses = info.getInetAddresses();
+		for (InetAddress address : addresses) {
+			if (address == null) continue;
+			serviceBuilder.addAddress(address);
+		}
+		serviceBuilder.setPort(info.getPort());
+
+		return serviceBuilder.build();
+	}
+
+	/**
+	 * Obtains the TXT records of the provided service information, keeping their raw values. The records are parsed from
+	 * the raw TXT data rather than JmDNS' properties, which lose all attributes of a record holding an attribute without a value,
+	 * and would report such an attribute as {@link ServiceInfo#NO_VALUE}. Attributes without a value are thus kept without a value,
+	 * like on all other engines.
+	 *
+	 * @param info Information about the service
+	 * @return The TXT records of the service
+	 */
+	static TxtRecords txtRecords(ServiceInfo info) {
+		byte[] text = info.getTextBytes();
+		if (text == null) return TxtRecords.EMPTY;
+		return new TxtRecords.Builder().putData(text, 0, text.length).build();
+	}
+
+	/**
+	 * Creates a new BonjourEvent instance from a JmDNS ServiceEvent.
+	 *
+	 * @param type  Type of event
+	 * @param event Event containing information about the changed service
+	 * @return A BonjourEvent containing the necessary information
+	 */
+	private BonjourEvent newBonjourEvent(BonjourEvent.Type type, ServiceEvent event) {
+		// Services that were only found don't carry any resolved information yet
+		ServiceInfo info = (type == BonjourEvent.Type.FOUND) ? null : event.getInfo();
+
+		// Create and return an event wrapping the BonjourService
+		return new BonjourEvent(type, newBonjourService(event.getName(), event.getType(), info));
+	}
+
+	/**
+	 * Acquires a hold on the JmDNS shared among all subscribers for Bonjour events, creating it if necessary.
+	 * Upon creation, the provided network binding is acquired, and held until the instance is closed.
+	 * An idle instance that is still lingering is reused. Each successful call must be balanced by a call to {@link #releaseJmdns(JmDNS)}.
+	 *
+	 * @param binding Network binding providing the address with which JmDNS is initialized
+	 * @param timer   Timer measuring the phases of the startup, if the instance needs to be created
+	 * @return The JmDNS instance
+	 * @throws IOException In case the binding can't be acquired, or JmDNS can't be initialized
+	 */
+	private JmDNS acquireJmdns(NetworkBinding binding, StartupTimer timer) throws IOException {
+		synchronized (jmdnsLock) {
+			if (jmdnsInstance == null) {
+				InetAddress inetAddress = binding.acquire(timer);
+				try {
+					jmdnsInstance = BatchingTaskStarter.createJmdns(inetAddress, inetAddress.toString());
+					timer.mark(PHASE_JMDNS);
+					jmdnsBinding = binding;
+				} catch (IOException e) {
+					binding.release();
+					throw e;
+				}
+			}
+			subscriberCount++;
+			return jmdnsInstance;
+		}
+	}
+
+	/**
+	 * Looks up the SRV record of the provided service in the JmDNS cache.
+	 *
+	 * @param jmdns JmDNS instance
+	 * @param name  Name of the service
+	 * @param type  Type of the service, including the ".local." suffix
+	 * @return The SRV record, or null if it isn't cached
+	 */
+	private static DNSEntry getSrvRecord(JmDNS jmdns, String name, String type) {
+		if (!(jmdns instanceof JmDNSImpl)) return null;
+		DNSCache cache = ((JmDNSImpl) jmdns).getCache();
+		return cache != null ? cache.getDNSEntry(name + "." + type, DNSRecordType.TYPE_SRV, DNSRecordClass.CLASS_ANY) : null;
+	}
+
+	/**
+	 * Obtains the TTL of the provided service's SRV record, which determines how long the service stays valid without being refreshed.
+	 *
+	 * @param jmdns   JmDNS instance
+	 * @param service Resolved service
+	 * @return The TTL of the service, in seconds
+	 */
+	private static int getTtl(JmDNS jmdns, BonjourService service) {
+		DNSEntry record = getSrvRecord(jmdns, service.getName(), service.getType());
+		return record instanceof DNSRecord ? ((DNSRecord) record).getTTL() : ServiceCache.DEFAULT_TTL_SECONDS;
+	}
+
+	/**
+	 * Releases one subscriber's hold on the provided JmDNS instance. Once no more holds remain, the instance lingers for a short while,
+	 * and is closed if no new subscriber acquired it in the meantime.
+	 *
+	 * @param jmdns The JmDNS instance
+	 */
+	private void releaseJmdns(JmDNS jmdns) {
+		releaseJmdns(jmdns, IDLE_LINGER_MILLIS);
+	}
+
+	/**
+	 * Releases one subscriber's hold on the provided JmDNS instance, keeping it running for the provided time once no more holds remain.
+	 *
+	 * @param jmdns        The JmDNS instance
+	 * @param lingerMillis Time for which to keep the idle instance running, in milliseconds
+	 */
+	private void releaseJmdns(final JmDNS jmdns, long lingerMillis) {
+		final long generation;
+		synchronized (jmdnsLock) {
+			if (--subscriberCount > 0) return;
+			subscriberCount = 0;
+			generation = ++idleGeneration;
+		}
+
+		Observable<Void> cleanUpObservable = Observable.create(new Observable.OnSubscribe<Void>() {
+			@Override public void call(final Subscriber<? super Void> subscriber) {
+				// Detach the JmDNS instance and its network binding, unless it was acquired again while lingering
+				NetworkBinding binding;
+				synchronized (jmdnsLock) {
+					if (subscriberCount > 0 || generation != idleGeneration || jmdnsInstance != jmdns) {
+						subscriber.unsubscribe();
+						return;
+					}
+					binding = jmdnsBinding;
+					jmdnsBinding = null;
+					jmdnsInstance = null;
+					resolveCoalescer.clear();
+				}
+
+				// This call blocks, which is why it is running on a computation thread
+				try {
+					jmdns.close();
+				} catch (IOException ignored) {
+				} finally {
+					if (binding != null) binding.release();
+				}
+
+				// Unsubscribe from the observable automatically
+				subscriber.unsubscribe();
+			}
+		});
+		cleanUpObservable
+				.compose(EngineSchedulers.<Void>lingerSchedulers(lingerMillis))
+				.subscribe();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type with the default options,
+	 * binding to the first usable network interface of the host.
+	 *
+	 * @param type Type of service to discover, e.g. "_http._tcp"
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type) {
+		return start(new NetworkInterfaceBinding(), type, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options
+	 * and binding to the first usable network interface of the host.
+	 *
+	 * @param type    Type of service to discover, e.g. "_http._tcp"
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type, DiscoveryOptions options) {
+		return start(new NetworkInterfaceBinding(), type, options);
+	}
+
+	/**
+	 * Resolves the provided service, binding to the first usable network interface of the host.
+	 *
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	public Observable<BonjourService> resolve(BonjourService service) {
+		return resolve(new NetworkInterfaceBinding(), service);
+	}
+
+	/**
+	 * Starts the engine ahead of any discovery, binding to the first usable network interface of the host.
+	 *
+	 * @return An Observable for the timing of the startup
+	 */
+	public Observable<EngineStartup> prewarm() {
+		return prewarm(new NetworkInterfaceBinding());
+	}
+
+	/* Begin overrides */
+
+	@Override public Observable<BonjourEvent> start(final NetworkBinding binding, final String type, DiscoveryOptions options) {
+		// Append ".local." suffix in order to have JmDNS pick up on the services
+		final String dnsType = type + SUFFIX;
+		final boolean lazy = options.isLazyResolution();
+
+		Observable<BonjourEvent> obs = Observable.create(new Observable.OnSubscribe<BonjourEvent>() {
+			@Override public void call(Subscriber<? super BonjourEvent> child) {
+				// Events are emitted from JmDNS' threads as well as upon expiry, so serialize them
+				final Subscriber<? super BonjourEvent> subscriber = new SerializedSubscriber<>(child);
+
+				// Bind to the network and initialize JmDNS' discovery service with its address
+				final JmDNS jmdns;
+				try {
+					jmdns = acquireJmdns(binding, new StartupTimer());
+				} catch (IOException e) {
+					subscriber.onError(new DiscoveryFailed(implClass, dnsType));
+					return;
+				}
+
+				// Keep track of the services reported to this subscriber, in order to report changes to them as updates
+				final ServiceTracker tracker = new ServiceTracker();
+
+				// Keep track of the TTL of resolved services, in order to report those that vanished without a goodbye packet
+				final ServiceCache cache = new ServiceCache(new ServiceCache.Listener() {
+					@Override public void onExpired(ServiceCache cache, BonjourService service) {
+						DNSEntry record = getSrvRecord(jmdns, service.getName(), service.getType());
+						if (record instanceof DNSRecord && !record.isExpired(System.currentTimeMillis())) {
+							// JmDNS refreshed the record without reporting it, so check back on it later
+							cache.put(service, Math.max(1, ((DNSRecord) record).getTTL() / 4));
+							return;
+						}
+
+						resolveCoalescer.forget(service.getName(), service.getType());
+						tracker.removed(service);
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, service));
+						}
+					}
+				});
+
+				// Create the service listener
+				final ServiceListener listener = new ServiceListener() {
+					@Override public void serviceAdded(ServiceEvent event) {
+						if (lazy) {
+							// Report the service right away, leaving its resolution to the subscriber
+							if (!subscriber.isUnsubscribed()) {
+								subscriber.onNext(newBonjourEvent(BonjourEvent.Type.FOUND, event));
+							}
+
+						} else if (resolveCoalescer.begin(event.getName(), event.getType(), null)) {
+							// Only request a resolve if none is in flight or was completed recently;
+							// the result is delivered to all listeners of the type through serviceResolved()
+							event.getDNS().requestServiceInfo(event.getType(), event.getName());
+						}
+					}
+
+					@Override public void serviceRemoved(ServiceEvent event) {
+						resolveCoalescer.forget(event.getName(), event.getType());
+						BonjourEvent removed = newBonjourEvent(BonjourEvent.Type.REMOVED, event);
+						tracker.removed(removed.getService());
+						cache.remove(removed.getService());
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(removed);
+						}
+					}
+
+					@Override public void serviceResolved(ServiceEvent event) {
+						// Also invoked in lazy mode, whenever a service's records arrive unsolicited or through an on-demand resolve.
+						// JmDNS invokes this again whenever the service's records are refreshed, so only report actual changes
+						resolveCoalescer.complete(event.getName(), event.getType(), event.getInfo());
+						BonjourService service = newBonjourService(event.getName(), event.getType(), event.getInfo());
+						cache.put(service, getTtl(jmdns, service));
+						BonjourEvent resolved = tracker.resolved(service);
+						if (resolved != null && !subscriber.isUnsubscribed()) {
+							subscriber.onNext(resolved);
+						}
+					}
+				};
+
+				// Add onUnsubscribe() hook
+				subscriber.add(Subscriptions.create(new Action0() {
+					@Override public void call() {
+						// Remove the listener and clean up the JmDNS client
+						jmdns.removeServiceListener(dnsType, listener);
+						cache.clear();
+						releaseJmdns(jmdns);
+					}
+				}));
+
+				// Start discovery
+				jmdns.addServiceListener(dnsType, listener);
+			}
+		});
+
+		// Hold back services that don't accept connections if asked to, and honor the requests of subscribers,
+		// applying the backpressure strategy to events they can't keep up with
+		return obs
+				.compose(ReachabilityFilter.apply(options))
+				.compose(EventBackpressure.apply(options));
+	}
+
+	@Override public Observable<BonjourService> resolve(final NetworkBinding binding, final BonjourService service) {
+		return Observable.create(new Observable.OnSubscribe<BonjourService>() {
+			@Override public void call(Subscriber<? super BonjourService> subscriber) {
+				// Answer from the result of a recent resolve, if possible
+				ServiceInfo info = resolveCoalescer.getFresh(service.getName(), service.getType());
+				if (info == null) {
+					// Hold on to the JmDNS instance for the duration of the resolve
+					final JmDNS jmdns;
+					try {
+						jmdns = acquireJmdns(binding, new StartupTimer());
+					} catch (IOException e) {
+						subscriber.onError(new ResolveFailed(implClass, service));
+						return;
+					}
+
+					try {
+						// This call blocks until the service is resolved or the timeout elapses
+						info = jmdns.getServiceInfo(service.getType(), service.getName(), RESOLVE_TIMEOUT_MILLIS);
+					} finally {
+						releaseJmdns(jmdns);
+					}
+
+					if (info == null || !info.hasData()) {
+						subscriber.onError(new ResolveFailed(implClass, service));
+						return;
+					}
+					resolveCoalescer.complete(service.getName(), service.getType(), info);
+				}
+
+				if (!subscriber.isUnsubscribed()) {
+					subscriber.onNext(newBonjourService(service.getName(), service.getType(), info));
+					subscriber.onCompleted();
+				}
+			}
+		});
+	}
+
+	@Override public Observable<EngineStartup> prewarm(final NetworkBinding binding) {
+		return Observable.create(new Observable.OnSubscribe<EngineStartup>() {
+			@Override public void call(Subscriber<? super EngineStartup> subscriber) {
+				// Start the JmDNS instance, and keep it running for a while after releasing it
+				StartupTimer timer = new StartupTimer();
+				boolean reused;
+				JmDNS jmdns;
+				try {
+					synchronized (jmdnsLock) {
+						reused = jmdnsInstance != null;
+						jmdns = acquireJmdns(binding, timer);
+					}
+				} catch (IOException e) {
+					subscriber.onError(new DiscoveryFailed(implClass, e));
+					return;
+				}
+				releaseJmdns(jmdns, PREWARM_LINGER_MILLIS);
+
+				if (!subscriber.isUnsubscribed()) {
+					subscriber.onNext(timer.finish(reused));
+					subscriber.onCompleted();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,1099 @@
+package rxbonjour.internal;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import rxbonjour.DiscoveryOptions.ScanProfile;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.TxtRecords;
+
+/**
+ * Browse and resolve state machines of the native engine. The browser keeps track of the instances of every browsed type
+ * and the records received for them, decides which questions to ask and when, and reports services to its listeners.
+ *
+ * The browser performs no I/O and owns no threads: its owner feeds it received responses, polls it for the questions to send,
+ * and passes in the current time. It isn't thread-safe, and must only be accessed from its owner's thread.
+ *
+ * Most received records are of no interest, or merely refresh what is known already. Responses are therefore read in place
+ * by a {@link DnsReader}, matching record names against the encoded names of browsed types, known instances and targeted hosts.
+ * Names, attributes and addresses are only decoded for records that change a service, and only those services are rebuilt and reported.
+ */
+final class MdnsBrowser {
+
+	/** Interval between the first two browse queries of a type, in milliseconds. Grows after every query, depending on the scan profile */
+	static final long INITIAL_QUERY_INTERVAL_MILLIS = 1000L;
+	/** Maximum interval between browse queries of a type, in milliseconds (RFC 6762, section 5.2) */
+	static final long MAX_QUERY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(60);
+	/** Maximum interval between browse queries of a type scanned with the aggressive profile, in milliseconds */
+	static final long AGGRESSIVE_MAX_QUERY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	/** Interval between the first two resolve queries of a service, in milliseconds. Doubles after every query */
+	static final long RESOLVE_RETRY_MILLIS = 1000L;
+	/** Time after which a service that couldn't be resolved is given up on, in milliseconds */
+	static final long RESOLVE_TIMEOUT_MILLIS = 5000L;
+
+	/** Percentages of a record's TTL after which it is queried for again, before it expires (RFC 6762, section 5.2) */
+	private static final int[] REFRESH_PERCENTS = { 80, 85, 90, 95 };
+
+	/** Browsed types. Few types are browsed at once, so they are looked up by scanning */
+	private final List<Browse> browses = new ArrayList<>();
+	/** Hosts targeted by known services */
+	private final List<Host> hosts = new ArrayList<>();
+	/** Reader of received responses, reused for every packet */
+	private final DnsReader reader = new DnsReader();
+	/** Instances changed by the response being applied, reused for every packet */
+	private final List<Instance> changed = new ArrayList<>();
+	/** Number of responses applied, identifying the current one */
+	private long packetCount;
+	/** Earliest deadline found by the running poll, if one was found */
+	private long pollNext;
+	/** Whether the running poll found a deadline */
+	private boolean pollScheduled;
+	/** Whether the browser is failing its listeners, so that callbacks reaching back into the browser don't fail them again */
+	private boolean failing;
+	/** Interface on which responses are received, scoping the link-local IPv6 addresses they carry. May be null */
+	private final NetworkInterface scope;
+
+	/**
+	 * Constructor, leaving link-local IPv6 addresses unscoped
+	 */
+	MdnsBrowser() {
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param scope Interface on which responses are received. Link-local IPv6 addresses are only reachable through it, and are scoped to it
+	 */
+	MdnsBrowser(NetworkInterface scope) {
+		this.scope = scope;
+	}
+
+	/* Begin private */
+
+	private static String key(String name) {
+		return name.toLowerCase(Locale.US);
+	}
+
+	private static long min(long a, long b) {
+		return a - b < 0 ? a : b;
+	}
+
+	/**
+	 * @param profile Scan profile of a type
+	 * @return The maximum interval between browse queries of the type, in milliseconds
+	 */
+	private static long maxQueryInterval(ScanProfile profile) {
+		return profile == ScanProfile.AGGRESSIVE ? AGGRESSIVE_MAX_QUERY_INTERVAL_MILLIS : MAX_QUERY_INTERVAL_MILLIS;
+	}
+
+	/**
+	 * @param profile Scan profile of a type
+	 * @param stable  Whether the type's set of instances stayed the same since its previous browse query
+	 * @return The factor by which the interval to the type's next browse query grows
+	 */
+	private static int backoffFactor(ScanProfile profile, boolean stable) {
+		switch (profile) {
+			case AGGRESSIVE:
+				return 2;
+			case LOW_POWER:
+				return stable ? 8 : 4;
+			default:
+				return stable ? 4 : 2;
+		}
+	}
+
+	/**
+	 * @param type Type name in presentation format
+	 * @return The browsed type, or null if it isn't browsed
+	 */
+	private Browse findBrowse(String type) {
+		String key = key(type);
+		for (int i = 0; i < browses.size(); i++) {
+			if (browses.get(i).key.equals(key)) return browses.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * @param type Type name in presentation format
+	 * @return The browsed type, added if it wasn't browsed yet
+	 */
+	private Browse obtainBrowse(String type) {
+		Browse browse = findBrowse(type);
+		if (browse == null) {
+			browse = new Browse(type);
+			browses.add(browse);
+		}
+		return browse;
+	}
+
+	/**
+	 * Looks up the instance named by the current record of the reader among the browsed types.
+	 *
+	 * @return The instance, or null if it isn't known
+	 */
+	private Instance findInstance() {
+		int name = reader.nameOffset();
+		for (int i = 0; i < browses.size(); i++) {
+			Browse browse = browses.get(i);
+			if (reader.parentEquals(name, browse.encodedType)) return browse.findInstance(reader, name);
+		}
+		return null;
+	}
+
+	/**
+	 * Points the provided instance at the host with the provided name, keeping track of the host's addresses.
+	 *
+	 * @param instance Instance of a browsed type
+	 * @param name     Host name targeted by the instance's SRV record
+	 */
+	private void attach(Instance instance, String name) {
+		detach(instance);
+		String key = key(name);
+		Host host = null;
+		for (int i = 0; i < hosts.size() && host == null; i++) {
+			if (hosts.get(i).key.equals(key)) host = hosts.get(i);
+		}
+		if (host == null) {
+			host = new Host(name);
+			hosts.add(host);
+		}
+		host.targets++;
+		instance.host = host;
+	}
+
+	/**
+	 * Releases the provided instance's hold on its host. Hosts no longer targeted are forgotten on the next poll.
+	 *
+	 * @param instance Instance of a browsed type
+	 */
+	private static void detach(Instance instance) {
+		if (instance.host == null) return;
+		instance.host.targets--;
+		instance.host = null;
+	}
+
+	/**
+	 * @param instance Instance of a browsed type
+	 * @return The addresses of the instance's host, or null if the instance's host isn't known or has no addresses
+	 */
+	private static List<InetAddress> addressesOf(Instance instance) {
+		Host host = instance.host;
+		return host != null && !host.addresses.isEmpty() ? host.addresses : null;
+	}
+
+	/**
+	 * Queues the provided instance for being reported once the current response is applied.
+	 *
+	 * @param instance Changed instance
+	 */
+	private void markChanged(Instance instance) {
+		if (instance.changed) return;
+		instance.changed = true;
+		changed.add(instance);
+	}
+
+	/**
+	 * Starts resolving the provided instance, unless it is already being resolved.
+	 *
+	 * @param instance Instance to resolve
+	 * @param now      Current time, in nanoseconds
+	 */
+	private void startResolve(Instance instance, long now) {
+		if (instance.resolving) return;
+		instance.resolving = true;
+		instance.resolveAttempts = 0;
+		instance.resolveStartNanos = now;
+		instance.nextResolveNanos = now;
+	}
+
+	/**
+	 * Asks for the records still missing to resolve the provided instance.
+	 *
+	 * @param instance Instance being resolved
+	 * @param out      Destination of the questions
+	 */
+	private void askForMissing(Instance instance, Outgoing out) {
+		if (instance.srv == null) out.question(instance.name, DnsMessage.TYPE_SRV);
+		if (instance.txtExpiry == null) out.question(instance.name, DnsMessage.TYPE_TXT);
+		if (instance.srv != null && instance.host != null && addressesOf(instance) == null) {
+			out.question(instance.host.name, DnsMessage.TYPE_A);
+			out.question(instance.host.name, DnsMessage.TYPE_AAAA);
+		}
+	}
+
+	/**
+	 * Sends a browse query for the provided type, listing the instances already known as known answers,
+	 * so that their responders stay quiet (RFC 6762, section 7.1). Pointers with less than half of their TTL remaining
+	 * aren't listed, so that they are refreshed by the answers to the query.
+	 *
+	 * @param browse Browsed type
+	 * @param now    Current time, in nanoseconds
+	 * @param out    Destination of the query
+	 */
+	private static void askForInstances(Browse browse, long now, Outgoing out) {
+		out.question(browse.type, DnsMessage.TYPE_PTR);
+		for (int i = 0; i < browse.instances.size(); i++) {
+			Expiry ptr = browse.instances.get(i).ptr;
+			if (ptr == null) continue;
+			long remaining = ptr.remaining(now);
+			if (remaining > ptr.ttlNanos / 2) {
+				out.knownAnswer(browse.type, browse.instances.get(i).label, TimeUnit.NANOSECONDS.toSeconds(remaining));
+			}
+		}
+	}
+
+	/**
+	 * Reports the provided instance as resolved, if all of its records required to do so are known.
+	 *
+	 * @param instance Instance whose records changed
+	 */
+	private void update(Instance instance) {
+		List<InetAddress> addresses = addressesOf(instance);
+		if (instance.srv == null || addresses == null) return;
+
+		BonjourService.Builder builder = new BonjourService.Builder(instance.label, instance.browse.type).setPort(instance.port);
+		for (InetAddress address : addresses) {
+			builder.addAddress(address);
+		}
+		if (instance.txt != null) builder.setTxtRecords(instance.txt);
+		BonjourService service = builder.build();
+		instance.resolved = service;
+		instance.resolving = false;
+
+		// Report the service to the listeners of its type, which suppress unchanged services themselves
+		if (instance.ptr != null) {
+			for (BrowseListener listener : instance.browse.listeners) {
+				listener.onResolved(service);
+			}
+		}
+		for (ResolveListener waiter : instance.waiters) {
+			waiter.onResolved(service);
+		}
+		instance.waiters.clear();
+	}
+
+	/**
+	 * Reports the removal of the provided instance to the listeners it was reported to, and fails its pending resolves.
+	 * The caller is responsible for removing the instance from its type.
+	 *
+	 * @param instance Removed instance
+	 */
+	private void removed(Instance instance) {
+		detach(instance);
+		if (instance.ptr != null) {
+			BonjourService service = instance.resolved != null ? instance.resolved : instance.unresolved();
+			for (BrowseListener listener : instance.browse.listeners) {
+				listener.onRemoved(service);
+			}
+		}
+		for (ResolveListener waiter : instance.waiters) {
+			waiter.onFailed();
+		}
+		instance.waiters.clear();
+	}
+
+	private void applyPtr(long now) {
+		int target = reader.targetOffset();
+		if (target < 0) return;
+		Browse browse = null;
+		for (int i = 0; i < browses.size() && browse == null; i++) {
+			Browse candidate = browses.get(i);
+			if (reader.nameEquals(reader.nameOffset(), candidate.encodedType) && reader.parentEquals(target, candidate.encodedType)) {
+				browse = candidate;
+			}
+		}
+		if (browse == null) return;
+
+		Instance instance = browse.findInstance(reader, target);
+		if (reader.ttl() == 0) {
+			// Goodbye packet
+			if (instance != null && instance.ptr != null) {
+				browse.instances.remove(instance);
+				browse.answersChanged = true;
+				removed(instance);
+				if (instance.changed) {
+					instance.changed = false;
+					changed.remove(instance);
+				}
+			}
+			return;
+		}
+
+		if (instance == null) {
+			// Only decode the label of instances that weren't known before
+			String label = reader.readFirstLabel(target);
+			if (label == null) return;
+			instance = new Instance(browse, label);
+			browse.instances.add(instance);
+		}
+		if (instance.ptr == null) {
+			// Newly found service
+			instance.ptr = new Expiry();
+			for (BrowseListener listener : browse.listeners) {
+				if (listener.isLazy()) listener.onFound(instance.unresolved());
+			}
+			if (browse.hasEagerListener() && browse.isQuerying()) startResolve(instance, now);
+			browse.answersChanged = true;
+			markChanged(instance);
+		}
+		instance.ptr.refresh(now, reader.ttl());
+	}
+
+	private void applySrv(long now) {
+		Instance instance = findInstance();
+		if (instance == null) return;
+
+		if (reader.ttl() == 0) {
+			instance.srv = null;
+			detach(instance);
+			return;
+		}
+		int target = reader.targetOffset();
+		if (target < 0) return;
+		if (instance.host == null || !reader.nameEquals(target, instance.host.encodedName)) {
+			String name = reader.readName(target);
+			if (name == null) return;
+			attach(instance, name);
+			markChanged(instance);
+		}
+		if (instance.port != reader.port()) {
+			instance.port = reader.port();
+			markChanged(instance);
+		}
+		if (instance.srv == null) instance.srv = new Expiry();
+		instance.srv.refresh(now, reader.ttl());
+	}
+
+	private void applyTxt(long now) {
+		Instance instance = findInstance();
+		if (instance == null) return;
+
+		if (reader.ttl() == 0) {
+			instance.txt = null;
+			instance.txtData = null;
+			instance.txtExpiry = null;
+			return;
+		}
+		if (!reader.dataEquals(instance.txtData)) {
+			instance.txtData = reader.readData();
+			instance.txt = reader.readTxt();
+			markChanged(instance);
+		}
+		if (instance.txtExpiry == null) instance.txtExpiry = new Expiry();
+		instance.txtExpiry.refresh(now, reader.ttl());
+	}
+
+	private void applyAddress(long now) {
+		// Only keep track of hosts targeted by known services
+		Host host = null;
+		for (int i = 0; i < hosts.size() && host == null; i++) {
+			if (reader.nameEquals(reader.nameOffset(), hosts.get(i).encodedName)) host = hosts.get(i);
+		}
+		int length = reader.type() == DnsMessage.TYPE_A ? 4 : 16;
+		if (host == null || reader.dataLength() != length) return;
+
+		int index = host.indexOf(reader);
+		if (reader.ttl() == 0) {
+			if (index >= 0) {
+				host.remove(index);
+				markTargetsChanged(host);
+			}
+			return;
+		}
+
+		boolean hostChanged = false;
+		int family = length == 4 ? 0 : 1;
+		if (reader.isCacheFlush() && host.flushedPackets[family] != packetCount) {
+			// The first record of the flushed set replaces all addresses of the same family
+			host.flushedPackets[family] = packetCount;
+			for (int i = host.rawAddresses.size() - 1; i >= 0; i--) {
+				if (i == index || host.rawAddresses.get(i).length != length) continue;
+				host.remove(i);
+				if (i < index) index--;
+				hostChanged = true;
+			}
+		}
+		if (index < 0) {
+			InetAddress address = reader.readAddress(scope);
+			if (address == null) return;
+			host.addresses.add(address);
+			host.rawAddresses.add(reader.readData());
+			hostChanged = true;
+		}
+		if (host.expiries[family] == null) host.expiries[family] = new Expiry();
+		host.expiries[family].refresh(now, reader.ttl());
+
+		if (hostChanged) markTargetsChanged(host);
+	}
+
+	/**
+	 * Queues the instances targeting the provided host for being reported once the current response is applied.
+	 *
+	 * @param host Host whose addresses changed
+	 */
+	private void markTargetsChanged(Host host) {
+		for (int i = 0; i < browses.size(); i++) {
+			List<Instance> instances = browses.get(i).instances;
+			for (int j = 0; j < instances.size(); j++) {
+				if (instances.get(j).host == host) markChanged(instances.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Reports the instances targeting the provided host after some of its addresses expired. Instances left without
+	 * any address are removed, just like instances whose service record expired.
+	 *
+	 * @param host Host whose addresses expired
+	 */
+	private void addressesExpired(Host host) {
+		for (int i = 0; i < browses.size(); i++) {
+			Browse browse = browses.get(i);
+			for (int j = browse.instances.size() - 1; j >= 0; j--) {
+				Instance instance = browse.instances.get(j);
+				if (instance.host != host) continue;
+				if (!host.addresses.isEmpty()) {
+					update(instance);
+
+				} else {
+					browse.instances.remove(j);
+					browse.answersChanged = true;
+					removed(instance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops keeping track of the provided type and its instances.
+	 *
+	 * @param browse Idle type
+	 */
+	private void forget(Browse browse) {
+		browses.remove(browse);
+		for (Instance instance : browse.instances) {
+			detach(instance);
+		}
+	}
+
+	/**
+	 * Records a deadline found by the running poll.
+	 *
+	 * @param deadline Time at which the browser needs to be polled, in nanoseconds
+	 */
+	private void schedule(long deadline) {
+		pollNext = pollScheduled ? min(pollNext, deadline) : deadline;
+		pollScheduled = true;
+	}
+
+	/**
+	 * Sends a refresh query for, or expires, the provided record once its next deadline is reached.
+	 *
+	 * @param expiry Lifetime of the record
+	 * @param now    Current time, in nanoseconds
+	 * @param out    Destination of the refresh query, or null if the record isn't refreshed
+	 * @param name   Name of the record
+	 * @param type   Type of the record
+	 * @return True if the record expired
+	 */
+	private static boolean poll(Expiry expiry, long now, Outgoing out, String name, int type) {
+		while (now - expiry.deadline() >= 0) {
+			if (expiry.refreshes >= REFRESH_PERCENTS.length) return true;
+			expiry.refreshes++;
+			if (out != null) out.question(name, type);
+		}
+		return false;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Starts browsing for the provided type on behalf of the provided listener. Services already known are reported right away.
+	 *
+	 * @param type     Type to browse for, e.g. '_http._tcp.local.'
+	 * @param listener Listener to report services to
+	 * @param now      Current time, in nanoseconds
+	 */
+	void addListener(String type, BrowseListener listener, long now) {
+		Browse browse = obtainBrowse(type);
+		boolean idle = browse.listeners.isEmpty();
+		ScanProfile previous = browse.profile;
+		browse.listeners.add(listener);
+		browse.updateProfile();
+		if (idle || browse.profile.ordinal() < previous.ordinal()) {
+			// Start querying from scratch for the first listener, and for listeners scanning more actively than the previous ones
+			browse.nextQueryNanos = now;
+			browse.queryIntervalMillis = INITIAL_QUERY_INTERVAL_MILLIS;
+		}
+
+		for (Instance instance : browse.instances) {
+			if (instance.ptr == null) continue;
+			if (listener.isLazy()) listener.onFound(instance.unresolved());
+			if (instance.resolved != null) {
+				listener.onResolved(instance.resolved);
+
+			} else if (!listener.isLazy() && browse.isQuerying()) {
+				startResolve(instance, now);
+			}
+		}
+	}
+
+	/**
+	 * Stops browsing for the provided type on behalf of the provided listener.
+	 *
+	 * @param type     Type browsed for
+	 * @param listener Listener to remove
+	 */
+	void removeListener(String type, BrowseListener listener) {
+		Browse browse = findBrowse(type);
+		if (browse == null) return;
+		browse.listeners.remove(listener);
+		browse.updateProfile();
+		if (browse.isIdle()) forget(browse);
+	}
+
+	/**
+	 * Resolves the provided service. Services resolved by a running browse are answered right away.
+	 *
+	 * @param name     Name of the service, e.g. 'Office Printer'
+	 * @param type     Type of the service, e.g. '_http._tcp.local.'
+	 * @param listener Listener to report the outcome to
+	 * @param now      Current time, in nanoseconds
+	 */
+	void resolve(String name, String type, ResolveListener listener, long now) {
+		Browse browse = obtainBrowse(type);
+		Instance instance = browse.findInstance(name);
+		if (instance != null && instance.resolved != null && instance.srv != null) {
+			listener.onResolved(instance.resolved);
+			return;
+		}
+
+		if (instance == null) {
+			instance = new Instance(browse, name);
+			browse.instances.add(instance);
+		}
+		instance.waiters.add(listener);
+		startResolve(instance, now);
+	}
+
+	/**
+	 * Applies the records of a received response.
+	 *
+	 * @param packet Buffer holding the received message between its position and limit
+	 * @param now    Current time, in nanoseconds
+	 */
+	void handleResponse(ByteBuffer packet, long now) {
+		if (!reader.reset(packet)) return;
+		packetCount++;
+
+		// Apply pointers before service records, and those before address records, so that records of newly found instances
+		// and targets are picked up from the same packet regardless of their order. Rewinding the reader is cheap
+		while (reader.next()) {
+			if (reader.type() == DnsMessage.TYPE_PTR) applyPtr(now);
+		}
+		reader.reset(packet);
+		while (reader.next()) {
+			if (reader.type() == DnsMessage.TYPE_SRV) {
+				applySrv(now);
+
+			} else if (reader.type() == DnsMessage.TYPE_TXT) {
+				applyTxt(now);
+			}
+		}
+		if (!hosts.isEmpty()) {
+			reader.reset(packet);
+			while (reader.next()) {
+				if (reader.type() == DnsMessage.TYPE_A || reader.type() == DnsMessage.TYPE_AAAA) applyAddress(now);
+			}
+		}
+
+		for (int i = 0; i < changed.size(); i++) {
+			Instance instance = changed.get(i);
+			instance.changed = false;
+			update(instance);
+		}
+		changed.clear();
+	}
+
+	/**
+	 * Asks the questions that are due, and expires records that weren't refreshed in time.
+	 *
+	 * @param now Current time, in nanoseconds
+	 * @param out Destination of the questions
+	 * @return The time at which the browser needs to be polled next, in nanoseconds, or {@link Long#MAX_VALUE} if there is nothing to wait for
+	 */
+	long poll(long now, Outgoing out) {
+		pollScheduled = false;
+		boolean anyQuerying = false;
+
+		for (int i = browses.size() - 1; i >= 0; i--) {
+			Browse browse = browses.get(i);
+			boolean querying = browse.isQuerying();
+			anyQuerying |= querying;
+
+			boolean askPtr = false;
+			if (querying) {
+				if (now - browse.nextQueryNanos >= 0) {
+					// Back off faster while the type's instances stay the same
+					askPtr = true;
+					browse.nextQueryNanos = now + TimeUnit.MILLISECONDS.toNanos(browse.queryIntervalMillis);
+					long interval = browse.queryIntervalMillis * backoffFactor(browse.profile, !browse.answersChanged);
+					browse.queryIntervalMillis = Math.min(interval, maxQueryInterval(browse.profile));
+					browse.answersChanged = false;
+				}
+				schedule(browse.nextQueryNanos);
+			}
+
+			for (int j = browse.instances.size() - 1; j >= 0; j--) {
+				Instance instance = browse.instances.get(j);
+
+				if (instance.resolving) {
+					long deadline = instance.resolveStartNanos + TimeUnit.MILLISECONDS.toNanos(RESOLVE_TIMEOUT_MILLIS);
+					if (now - deadline >= 0) {
+						// Give up on the service, and forget about it if it was only known through the resolve
+						instance.resolving = false;
+						for (ResolveListener waiter : instance.waiters) {
+							waiter.onFailed();
+						}
+						instance.waiters.clear();
+						if (instance.ptr == null) {
+							browse.instances.remove(j);
+							detach(instance);
+							continue;
+						}
+
+					} else {
+						if (now - instance.nextResolveNanos >= 0) {
+							askForMissing(instance, out);
+							instance.nextResolveNanos = now + (TimeUnit.MILLISECONDS.toNanos(RESOLVE_RETRY_MILLIS) << instance.resolveAttempts++);
+						}
+						schedule(min(instance.nextResolveNanos, deadline));
+					}
+				}
+
+				// Records are only refreshed while their type is queried for. Pointers are refreshed by the type's browse query
+				Outgoing refresh = querying ? out : null;
+				boolean expired = false;
+				if (instance.ptr != null) {
+					int refreshes = instance.ptr.refreshes;
+					expired = poll(instance.ptr, now, null, browse.type, DnsMessage.TYPE_PTR);
+					askPtr |= querying && instance.ptr.refreshes != refreshes;
+				}
+				expired |= instance.srv != null && poll(instance.srv, now, refresh, instance.name, DnsMessage.TYPE_SRV);
+				if (expired) {
+					browse.instances.remove(j);
+					browse.answersChanged = true;
+					removed(instance);
+					continue;
+				}
+				if (instance.txtExpiry != null && poll(instance.txtExpiry, now, refresh, instance.name, DnsMessage.TYPE_TXT)) {
+					instance.txt = null;
+					instance.txtData = null;
+					instance.txtExpiry = null;
+				}
+
+				if (instance.ptr != null) schedule(instance.ptr.deadline());
+				if (instance.srv != null) schedule(instance.srv.deadline());
+				if (instance.txtExpiry != null) schedule(instance.txtExpiry.deadline());
+			}
+
+			if (askPtr) askForInstances(browse, now, out);
+			if (browse.isIdle()) forget(browse);
+		}
+
+		for (int i = hosts.size() - 1; i >= 0; i--) {
+			Host host = hosts.get(i);
+			if (host.targets <= 0) {
+				hosts.remove(i);
+
+			} else {
+				// Each address family is refreshed with its own question, and expires on its own
+				boolean expired = false;
+				for (int family = 0; family < host.expiries.length; family++) {
+					Expiry expiry = host.expiries[family];
+					if (expiry == null) continue;
+					if (poll(expiry, now, anyQuerying ? out : null, host.name, family == 0 ? DnsMessage.TYPE_A : DnsMessage.TYPE_AAAA)) {
+						host.removeFamily(family);
+						expired = true;
+
+					} else {
+						schedule(expiry.deadline());
+					}
+				}
+				if (expired) addressesExpired(host);
+			}
+		}
+		return pollScheduled ? pollNext : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Resets the backoff of all browsed types, and queries them again right away, e.g. because the network changed
+	 * and services seen on the previous network may be gone, or new ones may be present.
+	 *
+	 * @param now Current time, in nanoseconds
+	 */
+	void resetBackoff(long now) {
+		for (int i = 0; i < browses.size(); i++) {
+			Browse browse = browses.get(i);
+			browse.nextQueryNanos = now;
+			browse.queryIntervalMillis = INITIAL_QUERY_INTERVAL_MILLIS;
+		}
+	}
+
+	/**
+	 * Fails all listeners and pending resolves, e.g. because the engine stopped working, and forgets about all state.
+	 * All state is detached before any listener is invoked, so that listeners may remove themselves, or start browsing anew,
+	 * from within their callbacks. Listeners added that way are failed as well, while calling this method from within the callbacks returns right away.
+	 */
+	void fail() {
+		if (failing) return;
+		failing = true;
+		try {
+			while (!browses.isEmpty()) {
+				List<Browse> failed = new ArrayList<>(browses);
+				browses.clear();
+				hosts.clear();
+
+				List<BrowseListener> listeners = new ArrayList<>();
+				List<ResolveListener> waiters = new ArrayList<>();
+				for (Browse browse : failed) {
+					listeners.addAll(browse.listeners);
+					browse.listeners.clear();
+					for (Instance instance : browse.instances) {
+						waiters.addAll(instance.waiters);
+						instance.waiters.clear();
+					}
+				}
+				for (BrowseListener listener : listeners) {
+					listener.onFailed();
+				}
+				for (ResolveListener waiter : waiters) {
+					waiter.onFailed();
+				}
+			}
+		} finally {
+			failing = false;
+		}
+	}
+
+	/* Begin static */
+
+	/**
+	 * Destination of the questions asked by the browser
+	 */
+	interface Outgoing {
+
+		/**
+		 * Asks a question. Questions asked during one poll are sent together.
+		 *
+		 * @param name Name asked for, in presentation format
+		 * @param type Record type asked for
+		 */
+		void question(String name, int type);
+
+		/**
+		 * Lists a PTR record of a type asked for during the same poll as known, so that responders don't repeat it.
+		 *
+		 * @param type       Type asked for, e.g. '_http._tcp.local.'
+		 * @param label      Unescaped label of the known instance, e.g. 'Office Printer'
+		 * @param ttlSeconds Remaining time-to-live of the record, in seconds
+		 */
+		void knownAnswer(String type, String label, long ttlSeconds);
+	}
+
+	/**
+	 * Listener for the services of a browsed type
+	 */
+	interface BrowseListener {
+
+		/**
+		 * @return True if services are reported without resolving them, false if they are resolved before being reported
+		 */
+		boolean isLazy();
+
+		/**
+		 * @return The profile governing how often the listener's type is queried. The most active profile among a type's listeners applies
+		 */
+		ScanProfile getScanProfile();
+
+		/**
+		 * Invoked on lazy listeners for services that were found, but aren't resolved yet.
+		 *
+		 * @param service Unresolved service, carrying only its name and type
+		 */
+		void onFound(BonjourService service);
+
+		/**
+		 * Invoked whenever received records change a service. The same state may still be reported repeatedly,
+		 * e.g. when an address is replaced by itself.
+		 *
+		 * @param service Resolved service
+		 */
+		void onResolved(BonjourService service);
+
+		/**
+		 * Invoked for services that were lost.
+		 *
+		 * @param service Lost service, in its last known state
+		 */
+		void onRemoved(BonjourService service);
+
+		/**
+		 * Invoked if the engine stopped working. No further callbacks are invoked afterwards.
+		 */
+		void onFailed();
+	}
+
+	/**
+	 * Listener for the outcome of a single resolve
+	 */
+	interface ResolveListener {
+
+		/**
+		 * @param service Resolved service
+		 */
+		void onResolved(BonjourService service);
+
+		/**
+		 * Invoked if the service couldn't be resolved in time.
+		 */
+		void onFailed();
+	}
+
+	/**
+	 * Lifetime of a received record, and the refresh queries sent for it before it expires
+	 */
+	private static final class Expiry {
+
+		/** Time at which the record was last received, in nanoseconds */
+		private long receivedNanos;
+		/** Time-to-live of the record, in nanoseconds */
+		private long ttlNanos;
+		/** Number of refresh queries sent since the record was last received */
+		private int refreshes;
+
+		void refresh(long now, long ttlSeconds) {
+			receivedNanos = now;
+			ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+			refreshes = 0;
+		}
+
+		long remaining(long now) {
+			return receivedNanos + ttlNanos - now;
+		}
+
+		long deadline() {
+			long elapsed = refreshes < REFRESH_PERCENTS.length ? ttlNanos / 100 * REFRESH_PERCENTS[refreshes] : ttlNanos;
+			return receivedNanos + elapsed;
+		}
+	}
+
+	/**
+	 * State of a browsed type
+	 */
+	private static final class Browse {
+
+		/** Browsed type, e.g. '_http._tcp.local.' */
+		final String type;
+		/** Lower-case name of the type */
+		final String key;
+		/** Type name encoded for matching by {@link DnsReader} */
+		final byte[] encodedType;
+		/** Listeners browsing for the type. Types without listeners are only kept around for pending resolves */
+		final List<BrowseListener> listeners = new ArrayList<>();
+		/** Known instances of the type, in order of discovery */
+		final List<Instance> instances = new ArrayList<>();
+		/** Time at which the next browse query is sent, in nanoseconds */
+		long nextQueryNanos;
+		/** Interval to the browse query after the next one, in milliseconds */
+		long queryIntervalMillis = INITIAL_QUERY_INTERVAL_MILLIS;
+		/** Most active scan profile among the listeners */
+		ScanProfile profile = ScanProfile.BALANCED;
+		/** Whether instances were found or removed since the previous browse query */
+		boolean answersChanged;
+
+		Browse(String type) {
+			this.type = type;
+			this.key = key(type);
+			this.encodedType = DnsMessage.encodeName(type);
+		}
+
+		/**
+		 * @param label Unescaped label of an instance, e.g. 'Office Printer'
+		 * @return The instance with that label, or null if it isn't known
+		 */
+		Instance findInstance(String label) {
+			String key = key(label);
+			for (int i = 0; i < instances.size(); i++) {
+				if (instances.get(i).key.equals(key)) return instances.get(i);
+			}
+			return null;
+		}
+
+		/**
+		 * @param reader Reader positioned on a response
+		 * @param offset Offset of an instance name in the response
+		 * @return The instance whose label starts that name, or null if it isn't known
+		 */
+		Instance findInstance(DnsReader reader, int offset) {
+			for (int i = 0; i < instances.size(); i++) {
+				if (reader.firstLabelEquals(offset, instances.get(i).encodedLabel)) return instances.get(i);
+			}
+			return null;
+		}
+
+		void updateProfile() {
+			profile = listeners.isEmpty() ? ScanProfile.BALANCED : ScanProfile.PASSIVE;
+			for (BrowseListener listener : listeners) {
+				if (listener.getScanProfile().ordinal() < profile.ordinal()) profile = listener.getScanProfile();
+			}
+		}
+
+		/**
+		 * @return True if the type is browsed for by listeners that allow sending queries
+		 */
+		boolean isQuerying() {
+			return !listeners.isEmpty() && profile != ScanProfile.PASSIVE;
+		}
+
+		boolean hasEagerListener() {
+			for (BrowseListener listener : listeners) {
+				if (!listener.isLazy()) return true;
+			}
+			return false;
+		}
+
+		boolean isIdle() {
+			if (!listeners.isEmpty()) return false;
+			for (int i = 0; i < instances.size(); i++) {
+				if (!instances.get(i).waiters.isEmpty()) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * State of an instance of a browsed type
+	 */
+	private static final class Instance {
+
+		/** Type the instance belongs to */
+		final Browse browse;
+		/** Unescaped label of the instance, e.g. 'Office Printer' */
+		final String label;
+		/** Lower-case label of the instance */
+		final String key;
+		/** Label encoded for matching by {@link DnsReader} */
+		final byte[] encodedLabel;
+		/** Full name of the instance, e.g. 'Office Printer._http._tcp.local.' */
+		final String name;
+		/** Lifetime of the PTR record announcing the instance, or null if the instance is only known through a resolve */
+		Expiry ptr;
+		/** Lifetime of the SRV record, or null if it wasn't received */
+		Expiry srv;
+		/** Host targeted by the SRV record */
+		Host host;
+		/** Port of the SRV record */
+		int port;
+		/** Lifetime of the TXT record, or null if it wasn't received */
+		Expiry txtExpiry;
+		/** Raw data of the TXT record, compared against refreshed records before decoding them */
+		byte[] txtData;
+		/** Attributes of the TXT record, shared by all states of the service reported while it doesn't change */
+		TxtRecords txt;
+		/** Whether the instance is queued for being reported by the response being applied */
+		boolean changed;
+		/** Whether questions are being asked to resolve the instance */
+		boolean resolving;
+		/** Number of resolve queries sent */
+		int resolveAttempts;
+		/** Time at which resolving started, in nanoseconds */
+		long resolveStartNanos;
+		/** Time at which the next resolve query is sent, in nanoseconds */
+		long nextResolveNanos;
+		/** Latest resolved state of the instance, or null if it wasn't resolved yet */
+		BonjourService resolved;
+		/** Pending resolves of the instance */
+		final List<ResolveListener> waiters = new ArrayList<>();
+
+		Instance(Browse browse, String label) {
+			this.browse = browse;
+			this.label = label;
+			this.key = key(label);
+			this.encodedLabel = DnsMessage.encodeLabel(label);
+			this.name = DnsMessage.instanceName(label, browse.type);
+		}
+
+		BonjourService unresolved() {
+			return new BonjourService.Builder(label, browse.type).build();
+		}
+	}
+
+	/**
+	 * Addresses of a host targeted by known services
+	 */
+	private static final class Host {
+
+		/** Name of the host */
+		final String name;
+		/** Lower-case name of the host */
+		final String key;
+		/** Host name encoded for matching by {@link DnsReader} */
+		final byte[] encodedName;
+		/** Addresses of the host, in order of arrival */
+		final List<InetAddress> addresses = new ArrayList<>();
+		/** Raw data of the address records, parallel to the addresses */
+		final List<byte[]> rawAddresses = new ArrayList<>();
+		/** Number of the last response that flushed the IPv4 and IPv6 addresses, respectively */
+		final long[] flushedPackets = { -1L, -1L };
+		/** Lifetimes of the most recently received IPv4 and IPv6 address records, respectively, or null if no address of the family is known */
+		final Expiry[] expiries = new Expiry[2];
+		/** Number of instances targeting the host */
+		int targets;
+
+		Host(String name) {
+			this.name = name;
+			this.key = key(name);
+			this.encodedName = DnsMessage.encodeName(name);
+		}
+
+		/**
+		 * @param reader Reader positioned on an address record
+		 * @return The index of the record's address, or -1 if it isn't known
+		 */
+		int indexOf(DnsReader reader) {
+			for (int i = 0; i < rawAddresses.size(); i++) {
+				if (reader.dataEquals(rawAddresses.get(i))) return i;
+			}
+			return -1;
+		}
+
+		void remove(int index) {
+			int length = rawAddresses.get(index).length;
+			addresses.remove(index);
+			rawAddresses.remove(index);
+			for (int i = 0; i < rawAddresses.size(); i++) {
+				if (rawAddresses.get(i).length == length) return;
+			}
+			expiries[length == 4 ? 0 : 1] = null;
+		}
+
+		void removeFamily(int family) {
+			int length = family == 0 ? 4 : 16;
+			for (int i = rawAddresses.size() - 1; i >= 0; i--) {
+				if (rawAddresses.get(i).length == length) {
+					addresses.remove(i);
+					rawAddresses.remove(i);
+				}
+			}
+			expiries[family] = null;
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.DiscoveryFailed;
+import rxbonjour.exc.ResolveFailed;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+
+/**
+ * Discovery engine running on every usable network interface of the host at once, e.g. Wifi, Ethernet and USB tethering,
+ * over IPv4 as well as IPv6. One engine is run per interface and address family, and the events of all of them are merged into
+ * a single stream, in which a service seen on several interfaces is reported once, carrying the addresses learned on all of them.
+ *
+ * The network binding passed to this engine is held for as long as any interface is in use, so that platforms can hold on to
+ * the resources required for multicast reception, e.g. Android's multicast lock; the address it provides isn't used.
+ * Interfaces are enumerated whenever a discovery, resolve or prewarm starts, and running discoveries enumerate them again
+ * upon {@link #networkChanged()}: they start on interfaces that came up, and report the loss of the services of interfaces
+ * that went away. Interfaces whose engine can't be started are skipped, and the discovery only fails once it doesn't run
+ * on any interface anymore because of such failures.
+ */
+public final class MultiInterfaceEngine implements DiscoveryEngine {
+
+	/** Class reported as the failing implementation by errors of this engine */
+	private final Class<?> implClass;
+	/** Factory creating the engine of each interface */
+	private final EngineFactory factory;
+	/** Engines of the interfaces used so far, keyed by interface name and address family. Guarded by itself */
+	private final Map<String, DiscoveryEngine> engines = new HashMap<>();
+	/** Network changes, upon which running discoveries enumerate the interfaces again */
+	private final Subject<Void, Void> networkChanges = new SerializedSubject<>(PublishSubject.<Void>create());
+
+	/**
+	 * Constructor, running a native engine on every interface
+	 */
+	public MultiInterfaceEngine() {
+		this(MultiInterfaceEngine.class, new EngineFactory() {
+			@Override public DiscoveryEngine newEngine(Class<?> implClass) {
+				return new NioEngine(implClass);
+			}
+		});
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param implClass Class reported as the failing implementation by errors of this engine, e.g. a platform adapter wrapping it
+	 * @param factory   Factory creating the engine of each interface
+	 */
+	public MultiInterfaceEngine(Class<?> implClass, EngineFactory factory) {
+		this.implClass = implClass;
+		this.factory = factory;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Enumerates the usable interfaces, and obtains the engine of each, creating engines for interfaces that weren't used before.
+	 *
+	 * @param shared Binding held while any of the interfaces is in use
+	 * @return The engine of every usable interface, keyed by its binding
+	 * @throws IOException In case the interfaces can't be enumerated
+	 */
+	private Map<InterfaceBinding, DiscoveryEngine> interfaceEngines(SharedBinding shared) throws IOException {
+		Map<InterfaceBinding, DiscoveryEngine> result = new LinkedHashMap<>();
+		synchronized (engines) {
+			for (NetworkInterfaceBinding binding : NetworkInterfaceBinding.usableInterfaces()) {
+				String key = binding.toString();
+				DiscoveryEngine engine = engines.get(key);
+				if (engine == null) {
+					engine = factory.newEngine(implClass);
+					engines.put(key, engine);
+				}
+				result.put(new InterfaceBinding(key, shared, binding), engine);
+			}
+		}
+		return result;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type with the default options, on every usable interface of the host.
+	 *
+	 * @param type Type of service to discover, e.g. "_http._tcp"
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type) {
+		return start(SharedBinding.NONE, type, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options, on every usable interface of the host.
+	 *
+	 * @param type    Type of service to discover, e.g. "_http._tcp"
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type, DiscoveryOptions options) {
+		return start(SharedBinding.NONE, type, options);
+	}
+
+	/**
+	 * Resolves the provided service on every usable interface of the host, emitting the first successful resolve.
+	 *
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	public Observable<BonjourService> resolve(BonjourService service) {
+		return resolve(SharedBinding.NONE, service);
+	}
+
+	/**
+	 * Starts the engines of all usable interfaces of the host ahead of any discovery.
+	 *
+	 * @return An Observable for the timing of the startup
+	 */
+	public Observable<EngineStartup> prewarm() {
+		return prewarm(SharedBinding.NONE);
+	}
+
+	/**
+	 * Notifies the engines of all interfaces that the network changed, resetting the query backoff of native engines.
+	 * Running discoveries enumerate the interfaces again, starting on those that came up and stopping on those that went away.
+	 */
+	public void networkChanged() {
+		synchronized (engines) {
+			for (DiscoveryEngine engine : engines.values()) {
+				if (engine instanceof NioEngine) ((NioEngine) engine).networkChanged();
+			}
+		}
+		networkChanges.onNext(null);
+	}
+
+	/**
+	 * @return The number of known answers the native engines of all interfaces listed in their browse queries
+	 */
+	public long getKnownAnswerCount() {
+		long count = 0;
+		synchronized (engines) {
+			for (DiscoveryEngine engine : engines.values()) {
+				if (engine instanceof NioEngine) count += ((NioEngine) engine).getKnownAnswerCount();
+			}
+		}
+		return count;
+	}
+
+	/* Begin overrides */
+
+	@Override public Observable<BonjourEvent> start(final NetworkBinding binding, final String type, final DiscoveryOptions options) {
+		final String dnsType = type + ".local.";
+
+		Observable<BonjourEvent> obs = Observable.defer(new Func0<Observable<BonjourEvent>>() {
+			@Override public Observable<BonjourEvent> call() {
+				final SharedBinding shared = new SharedBinding(binding);
+				Map<InterfaceBinding, DiscoveryEngine> interfaces;
+				try {
+					interfaces = interfaceEngines(shared);
+				} catch (IOException e) {
+					return Observable.error(new DiscoveryFailed(implClass, dnsType));
+				}
+				if (interfaces.isEmpty()) return Observable.error(new DiscoveryFailed(implClass, dnsType));
+
+				// Enumerate the interfaces again upon network changes, keeping the previous ones if that fails
+				Observable<Map<InterfaceBinding, DiscoveryEngine>> enumerations = networkChanges
+						.concatMap(new Func1<Void, Observable<Map<InterfaceBinding, DiscoveryEngine>>>() {
+							@Override public Observable<Map<InterfaceBinding, DiscoveryEngine>> call(Void ignored) {
+								try {
+									return Observable.just(interfaceEngines(shared));
+								} catch (IOException e) {
+									return Observable.empty();
+								}
+							}
+						})
+						.startWith(interfaces);
+
+				// Reachability is probed once the addresses of all interfaces are known
+				DiscoveryOptions interfaceOptions = new DiscoveryOptions.Builder(options).setReachabilityProbing(false).build();
+				final InterfaceDiscovery discovery = new InterfaceDiscovery(type, interfaceOptions);
+
+				// Collapse services seen on several interfaces. Merging serializes the events, so the merger is only accessed by one thread at a time
+				final ServiceMerger merger = new ServiceMerger();
+				return Observable.merge(enumerations.map(new Func1<Map<InterfaceBinding, DiscoveryEngine>, Observable<InterfaceEvent>>() {
+							@Override public Observable<InterfaceEvent> call(Map<InterfaceBinding, DiscoveryEngine> interfaces) {
+								return discovery.update(interfaces);
+							}
+						}))
+						.concatMap(new Func1<InterfaceEvent, Observable<BonjourEvent>>() {
+							@Override public Observable<BonjourEvent> call(InterfaceEvent tagged) {
+								List<BonjourEvent> events = tagged.event != null
+										? merger.apply(tagged.interfaceKey, tagged.event)
+										: merger.interfaceLost(tagged.interfaceKey);
+								return Observable.from(events);
+							}
+						});
+			}
+		});
+
+		// Hold back services that don't accept connections if asked to, and honor the requests of subscribers,
+		// applying the backpressure strategy to events they can't keep up with
+		return obs
+				.compose(ReachabilityFilter.apply(options))
+				.compose(EventBackpressure.apply(options));
+	}
+
+	@Override public Observable<BonjourService> resolve(final NetworkBinding binding, final BonjourService service) {
+		return Observable.defer(new Func0<Observable<BonjourService>>() {
+			@Override public Observable<BonjourService> call() {
+				Map<InterfaceBinding, DiscoveryEngine> interfaces;
+				try {
+					interfaces = interfaceEngines(new SharedBinding(binding));
+				} catch (IOException e) {
+					return Observable.error(new ResolveFailed(implClass, service));
+				}
+
+				// Resolve on all interfaces at once, and take the first that succeeds
+				List<Observable<BonjourService>> resolves = new ArrayList<>(interfaces.size());
+				for (Map.Entry<InterfaceBinding, DiscoveryEngine> entry : interfaces.entrySet()) {
+					resolves.add(entry.getValue().resolve(entry.getKey(), service).onErrorResumeNext(Observable.<BonjourService>empty()));
+				}
+				return Observable.merge(resolves)
+						.take(1)
+						.switchIfEmpty(Observable.<BonjourService>error(new ResolveFailed(implClass, service)));
+			}
+		});
+	}
+
+	@Override public Observable<EngineStartup> prewarm(final NetworkBinding binding) {
+		return Observable.defer(new Func0<Observable<EngineStartup>>() {
+			@Override public Observable<EngineStartup> call() {
+				Map<InterfaceBinding, DiscoveryEngine> interfaces;
+				try {
+					interfaces = interfaceEngines(new SharedBinding(binding));
+				} catch (IOException e) {
+					return Observable.error(new DiscoveryFailed(implClass, e));
+				}
+
+				// Start all interfaces, reporting the phases of each prefixed with the interface's key
+				List<Observable<EngineStartup>> startups = new ArrayList<>(interfaces.size());
+				for (Map.Entry<InterfaceBinding, DiscoveryEngine> entry : interfaces.entrySet()) {
+					final String interfaceKey = entry.getKey().key;
+					startups.add(entry.getValue().prewarm(entry.getKey())
+							.map(new Func1<EngineStartup, EngineStartup>() {
+								@Override public EngineStartup call(EngineStartup startup) {
+									Map<String, Long> phases = new LinkedHashMap<>();
+									for (Map.Entry<String, Long> phase : startup.getPhaseNanos().entrySet()) {
+										phases.put(interfaceKey + ":" + phase.getKey(), phase.getValue());
+									}
+									return new EngineStartup(startup.isReused(), phases);
+								}
+							})
+							.onErrorResumeNext(Observable.<EngineStartup>empty()));
+				}
+				return Observable.merge(startups)
+						.toList()
+						.flatMap(new Func1<List<EngineStartup>, Observable<EngineStartup>>() {
+							@Override public Observable<EngineStartup> call(List<EngineStartup> results) {
+								if (results.isEmpty()) {
+									return Observable.error(new DiscoveryFailed(implClass, new IOException("No usable network interface")));
+								}
+								boolean reused = true;
+								Map<String, Long> phases = new LinkedHashMap<>();
+								for (EngineStartup startup : results) {
+									reused &= startup.isReused();
+									phases.putAll(startup.getPhaseNanos());
+								}
+								return Observable.just(new EngineStartup(reused, phases));
+							}
+						});
+			}
+		});
+	}
+
+	/* Begin static */
+
+	/**
+	 * Factory creating the engine of each interface
+	 */
+	public interface EngineFactory {
+
+		/**
+		 * @param implClass Class reported as the failing implementation by errors of the engine
+		 * @return A new engine, bound to a single interface once started
+		 */
+		DiscoveryEngine newEngine(Class<?> implClass);
+	}
+
+	/**
+	 * Interfaces a discovery runs on, updated whenever the interfaces are enumerated
+	 */
+	private static final class InterfaceDiscovery {
+
+		/** Type of service to discover */
+		private final String type;
+		/** Options applied to the discovery on each interface */
+		private final DiscoveryOptions options;
+		/** Signals stopping the discovery on each interface it runs on, keyed by interface. Guarded by itself */
+		private final Map<String, PublishSubject<Void>> running = new HashMap<>();
+
+		private InterfaceDiscovery(String type, DiscoveryOptions options) {
+			this.type = type;
+			this.options = options;
+		}
+
+		/**
+		 * Starts the discovery on interfaces it doesn't run on yet, and stops it on those that aren't usable anymore.
+		 *
+		 * @param interfaces The engine of every usable interface, keyed by its binding
+		 * @return An Observable for the events of the newly started interfaces, preceded by the loss of the stopped ones
+		 */
+		private Observable<InterfaceEvent> update(Map<InterfaceBinding, DiscoveryEngine> interfaces) {
+			Set<String> keys = new HashSet<>();
+			for (InterfaceBinding binding : interfaces.keySet()) {
+				keys.add(binding.key);
+			}
+
+			List<PublishSubject<Void>> stopped = new ArrayList<>();
+			List<Observable<InterfaceEvent>> streams = new ArrayList<>();
+			synchronized (running) {
+				for (Iterator<Map.Entry<String, PublishSubject<Void>>> iterator = running.entrySet().iterator(); iterator.hasNext(); ) {
+					Map.Entry<String, PublishSubject<Void>> entry = iterator.next();
+					if (keys.contains(entry.getKey())) continue;
+					stopped.add(entry.getValue());
+					streams.add(Observable.just(new InterfaceEvent(entry.getKey(), null)));
+					iterator.remove();
+				}
+				for (Map.Entry<InterfaceBinding, DiscoveryEngine> entry : interfaces.entrySet()) {
+					if (running.containsKey(entry.getKey().key)) continue;
+					PublishSubject<Void> stop = PublishSubject.create();
+					running.put(entry.getKey().key, stop);
+					streams.add(start(entry.getKey(), entry.getValue(), stop));
+				}
+			}
+
+			for (PublishSubject<Void> stop : stopped) {
+				stop.onNext(null);
+			}
+			return Observable.merge(streams);
+		}
+
+		/**
+		 * Starts the discovery on one interface, tagging its events. An interface whose discovery fails reports the loss of its services,
+		 * unless the discovery doesn't run on any other interface anymore, in which case it fails as a whole.
+		 */
+		private Observable<InterfaceEvent> start(InterfaceBinding binding, DiscoveryEngine engine, final PublishSubject<Void> stop) {
+			final String interfaceKey = binding.key;
+			return engine.start(binding, type, options)
+					.takeUntil(stop)
+					.map(new Func1<BonjourEvent, InterfaceEvent>() {
+						@Override public InterfaceEvent call(BonjourEvent event) {
+							return new InterfaceEvent(interfaceKey, event);
+						}
+					})
+					.onErrorResumeNext(new Func1<Throwable, Observable<InterfaceEvent>>() {
+						@Override public Observable<InterfaceEvent> call(Throwable throwable) {
+							synchronized (running) {
+								if (running.get(interfaceKey) == stop) running.remove(interfaceKey);
+								if (running.isEmpty()) return Observable.error(throwable);
+							}
+							return Observable.just(new InterfaceEvent(interfaceKey, null));
+						}
+					});
+		}
+	}
+
+	/**
+	 * Event reported by the discovery on one interface
+	 */
+	private static final class InterfaceEvent {
+
+		/** Interface on which the event was reported */
+		private final String interfaceKey;
+		/** Reported event, or null if the interface's discovery stopped working */
+		private final BonjourEvent event;
+
+		private InterfaceEvent(String interfaceKey, BonjourEvent event) {
+			this.interfaceKey = interfaceKey;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Binding held on behalf of all interfaces of one discovery, acquired by the first interface and released by the last
+	 */
+	private static final class SharedBinding {
+
+		/** Binding holding nothing, used on plain JVMs */
+		private static final NetworkBinding NONE = new NetworkBinding() {
+			@Override public InetAddress acquire(StartupTimer timer) {
+				return null;
+			}
+
+			@Override public void release() {
+			}
+		};
+
+		/** Shared binding */
+		private final NetworkBinding delegate;
+		/** Number of interfaces holding the binding. Guarded by this */
+		private int holds;
+
+		private SharedBinding(NetworkBinding delegate) {
+			this.delegate = delegate;
+		}
+
+		private synchronized void acquire(StartupTimer timer) throws IOException {
+			if (holds == 0) delegate.acquire(timer);
+			holds++;
+		}
+
+		private synchronized void release() {
+			if (--holds == 0) delegate.release();
+		}
+	}
+
+	/**
+	 * Binding of one interface, holding the shared binding of the discovery while it is acquired
+	 */
+	private static final class InterfaceBinding implements NetworkBinding {
+
+		/** Interface name and address family */
+		private final String key;
+		/** Binding shared among all interfaces */
+		private final SharedBinding shared;
+		/** Binding to the interface */
+		private final NetworkInterfaceBinding interfaceBinding;
+
+		private InterfaceBinding(String key, SharedBinding shared, NetworkInterfaceBinding interfaceBinding) {
+			this.key = key;
+			this.shared = shared;
+			this.interfaceBinding = interfaceBinding;
+		}
+
+		@Override public InetAddress acquire(StartupTimer timer) throws IOException {
+			shared.acquire(timer);
+			try {
+				return interfaceBinding.acquire(timer);
+			} catch (IOException e) {
+				shared.release();
+				throw e;
+			}
+		}
+
+		@Override public void release() {
+			interfaceBinding.release();
+			shared.release();
+		}
+
+		@Override public String toString() {
+			return key;
+		}
+	}
+}
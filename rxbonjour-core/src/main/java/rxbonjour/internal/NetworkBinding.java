@@ -0,0 +1,25 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Network a discovery engine binds to. The binding is acquired once before the engine starts, and released after the engine stopped,
+ * allowing platforms to hold on to resources required for multicast reception in the meantime, e.g. Android's multicast lock.
+ */
+public interface NetworkBinding {
+
+	/**
+	 * Acquires the binding, and returns the local address the engine binds to.
+	 *
+	 * @param timer Timer measuring the phases of the engine startup, which the binding may mark its own phases on
+	 * @return The local address to bind to
+	 * @throws IOException In case no usable address is available. The binding must not be released in this case
+	 */
+	InetAddress acquire(StartupTimer timer) throws IOException;
+
+	/**
+	 * Releases the binding, after the engine using it stopped.
+	 */
+	void release();
+}
@@ -0,0 +1,134 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Binding to a network interface of the host, selected through {@link NetworkInterface}. Used on plain JVMs,
+ * where no platform-specific resources are required to receive multicast packets, and for each interface of a multi-interface discovery.
+ */
+public final class NetworkInterfaceBinding implements NetworkBinding {
+
+	/** Startup phase looking up the address of the interface */
+	public static final String PHASE_ADDRESS = "address";
+
+	/** Name of the interface to bind to, or null to select the first usable one */
+	private final String interfaceName;
+	/** Whether to bind to an IPv6 address of the interface, using the IPv6 multicast group, rather than to an IPv4 address */
+	private final boolean ipv6;
+
+	/**
+	 * Constructor, binding to the first interface that is up, isn't a loopback or point-to-point interface, supports multicast and has an IPv4 address
+	 */
+	public NetworkInterfaceBinding() {
+		this(null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param interfaceName Name of the interface to bind to, e.g. "eth0", or null to select the first usable one
+	 */
+	public NetworkInterfaceBinding(String interfaceName) {
+		this(interfaceName, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param interfaceName Name of the interface to bind to, e.g. "eth0", or null to select the first usable one
+	 * @param ipv6          True to bind to an IPv6 address of the interface, false to bind to an IPv4 address
+	 */
+	public NetworkInterfaceBinding(String interfaceName, boolean ipv6) {
+		this.interfaceName = interfaceName;
+		this.ipv6 = ipv6;
+	}
+
+	/* Begin private */
+
+	private static boolean isUsable(NetworkInterface networkInterface) throws SocketException {
+		return networkInterface.isUp() && !networkInterface.isLoopback() && !networkInterface.isPointToPoint() && networkInterface.supportsMulticast();
+	}
+
+	private static InetAddress getAddress(NetworkInterface networkInterface, boolean ipv6) {
+		Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+		while (addresses.hasMoreElements()) {
+			InetAddress address = addresses.nextElement();
+			if (ipv6 ? address instanceof Inet6Address : address instanceof Inet4Address) return address;
+		}
+		return null;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Enumerates the usable interfaces of the host, i.e. those that are up, aren't loopback or point-to-point interfaces,
+	 * and support multicast. Interfaces with both IPv4 and IPv6 addresses yield one binding per address family.
+	 *
+	 * @return A binding for every usable interface and address family, in the order reported by the host
+	 * @throws IOException In case the interfaces can't be enumerated
+	 */
+	public static List<NetworkInterfaceBinding> usableInterfaces() throws IOException {
+		List<NetworkInterfaceBinding> bindings = new ArrayList<>();
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface networkInterface = interfaces.nextElement();
+			if (!isUsable(networkInterface)) continue;
+			if (getAddress(networkInterface, false) != null) bindings.add(new NetworkInterfaceBinding(networkInterface.getName(), false));
+			if (getAddress(networkInterface, true) != null) bindings.add(new NetworkInterfaceBinding(networkInterface.getName(), true));
+		}
+		return bindings;
+	}
+
+	/**
+	 * @return The name of the interface to bind to, or null if the first usable one is selected
+	 */
+	public String getInterfaceName() {
+		return interfaceName;
+	}
+
+	/**
+	 * @return True if the binding uses an IPv6 address of the interface, false if it uses an IPv4 address
+	 */
+	public boolean isIpv6() {
+		return ipv6;
+	}
+
+	/* Begin overrides */
+
+	@Override public InetAddress acquire(StartupTimer timer) throws IOException {
+		InetAddress address = null;
+		if (interfaceName != null) {
+			NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+			if (networkInterface != null && isUsable(networkInterface)) address = getAddress(networkInterface, ipv6);
+
+		} else {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (address == null && interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface networkInterface = interfaces.nextElement();
+				if (isUsable(networkInterface)) address = getAddress(networkInterface, ipv6);
+			}
+		}
+
+		if (address == null) {
+			throw new IOException("No usable network interface" + (interfaceName != null ? " named " + interfaceName : "") + (ipv6 ? " with an IPv6 address" : ""));
+		}
+		timer.mark(PHASE_ADDRESS);
+		return address;
+	}
+
+	@Override public void release() {
+		// Nothing to release
+	}
+
+	@Override public String toString() {
+		return (interfaceName != null ? interfaceName : "*") + (ipv6 ? "/IPv6" : "/IPv4");
+	}
+}
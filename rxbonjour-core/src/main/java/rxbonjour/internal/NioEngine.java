@@ -0,0 +1,353 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.DiscoveryFailed;
+import rxbonjour.exc.ResolveFailed;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+
+/**
+ * Native discovery engine, speaking multicast DNS through a single {@link java.nio.channels.DatagramChannel} instead of JmDNS.
+ * One event loop thread serves all types and subscribers of the engine; browse and resolve queries are driven by state machines
+ * on that thread, rather than by per-query timer threads.
+ */
+public final class NioEngine implements DiscoveryEngine {
+
+	/** Suffix appended to input types */
+	private static final String SUFFIX = ".local.";
+
+	/** Startup phase opening the multicast socket and starting the event loop */
+	public static final String PHASE_SOCKET = "socket";
+
+	/** Time for which an idle event loop is kept running in case a new subscriber arrives, in milliseconds */
+	private static final long IDLE_LINGER_MILLIS = 3000L;
+	/** Time for which a prewarmed event loop is kept running while waiting for the first subscriber, in milliseconds */
+	private static final long PREWARM_LINGER_MILLIS = 30000L;
+
+	/** Class reported as the failing implementation by errors of this engine */
+	private final Class<?> implClass;
+	/** The event loop used for discovery, shared among subscribers. Guarded by the loop lock */
+	private NioEventLoop loopInstance;
+	/** Network binding held for as long as the event loop is running. Guarded by the loop lock */
+	private NetworkBinding loopBinding;
+	/** Synchronization lock on the event loop and its bookkeeping */
+	private final Object loopLock = new Object();
+	/** Number of subscribers and resolves holding on to the event loop. Guarded by the loop lock */
+	private int subscriberCount = 0;
+	/** Incremented whenever the event loop becomes idle, so that only the latest scheduled close takes effect. Guarded by the loop lock */
+	private long idleGeneration = 0;
+	/** Number of known answers sent by all event loops of this engine */
+	private final AtomicLong knownAnswerCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 */
+	public NioEngine() {
+		this(NioEngine.class);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param implClass Class reported as the failing implementation by errors of this engine, e.g. a platform adapter wrapping it
+	 */
+	public NioEngine(Class<?> implClass) {
+		this.implClass = implClass;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Acquires a hold on the event loop shared among all subscribers, starting it if necessary.
+	 * Upon start, the provided network binding is acquired, and held until the loop is closed.
+	 * A loop that stopped working is replaced. Each successful call must be balanced by a call to {@link #releaseLoop(NioEventLoop)}.
+	 *
+	 * @param binding Network binding providing the address of the interface to use
+	 * @param timer   Timer measuring the phases of the startup, if the loop needs to be started
+	 * @return The event loop
+	 * @throws IOException In case the binding can't be acquired, or the socket can't be opened
+	 */
+	private NioEventLoop acquireLoop(NetworkBinding binding, StartupTimer timer) throws IOException {
+		synchronized (loopLock) {
+			if (loopInstance != null && !loopInstance.isRunning()) {
+				// Replace a loop whose socket stopped working; its subscribers have been failed already
+				loopBinding.release();
+				loopInstance = null;
+				loopBinding = null;
+			}
+			if (loopInstance == null) {
+				InetAddress inetAddress = binding.acquire(timer);
+				try {
+					loopInstance = NioEventLoop.open(inetAddress, knownAnswerCount);
+					timer.mark(PHASE_SOCKET);
+					loopBinding = binding;
+				} catch (IOException e) {
+					binding.release();
+					throw e;
+				}
+			}
+			subscriberCount++;
+			return loopInstance;
+		}
+	}
+
+	/**
+	 * Releases one subscriber's hold on the provided event loop. Once no more holds remain, the loop lingers for a short while,
+	 * and is closed if no new subscriber acquired it in the meantime.
+	 *
+	 * @param loop The event loop
+	 */
+	private void releaseLoop(NioEventLoop loop) {
+		releaseLoop(loop, IDLE_LINGER_MILLIS);
+	}
+
+	/**
+	 * Releases one subscriber's hold on the provided event loop, keeping it running for the provided time once no more holds remain.
+	 *
+	 * @param loop         The event loop
+	 * @param lingerMillis Time for which to keep the idle loop running, in milliseconds
+	 */
+	private void releaseLoop(final NioEventLoop loop, long lingerMillis) {
+		final long generation;
+		synchronized (loopLock) {
+			if (--subscriberCount > 0) return;
+			subscriberCount = 0;
+			generation = ++idleGeneration;
+		}
+
+		Observable<Void> cleanUpObservable = Observable.create(new Observable.OnSubscribe<Void>() {
+			@Override public void call(final Subscriber<? super Void> subscriber) {
+				// Detach the event loop and its network binding, unless it was acquired again while lingering
+				NetworkBinding binding;
+				synchronized (loopLock) {
+					if (subscriberCount > 0 || generation != idleGeneration || loopInstance != loop) {
+						subscriber.unsubscribe();
+						return;
+					}
+					binding = loopBinding;
+					loopBinding = null;
+					loopInstance = null;
+				}
+
+				// This call blocks until the loop thread finished, which is why it is running on a computation thread
+				loop.close();
+				if (binding != null) binding.release();
+
+				// Unsubscribe from the observable automatically
+				subscriber.unsubscribe();
+			}
+		});
+		cleanUpObservable
+				.compose(EngineSchedulers.<Void>lingerSchedulers(lingerMillis))
+				.subscribe();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type with the default options,
+	 * binding to the first usable network interface of the host.
+	 *
+	 * @param type Type of service to discover, e.g. "_http._tcp"
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type) {
+		return start(new NetworkInterfaceBinding(), type, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options
+	 * and binding to the first usable network interface of the host.
+	 *
+	 * @param type    Type of service to discover, e.g. "_http._tcp"
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	public Observable<BonjourEvent> start(String type, DiscoveryOptions options) {
+		return start(new NetworkInterfaceBinding(), type, options);
+	}
+
+	/**
+	 * Resolves the provided service, binding to the first usable network interface of the host.
+	 *
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	public Observable<BonjourService> resolve(BonjourService service) {
+		return resolve(new NetworkInterfaceBinding(), service);
+	}
+
+	/**
+	 * Starts the engine ahead of any discovery, binding to the first usable network interface of the host.
+	 *
+	 * @return An Observable for the timing of the startup
+	 */
+	public Observable<EngineStartup> prewarm() {
+		return prewarm(new NetworkInterfaceBinding());
+	}
+
+	/**
+	 * Notifies the engine that the network changed, resetting the query backoff of all browsed types,
+	 * so that services are looked for right away instead of after the intervals grown on the previous network.
+	 */
+	public void networkChanged() {
+		synchronized (loopLock) {
+			if (loopInstance != null) loopInstance.resetBackoff();
+		}
+	}
+
+	/**
+	 * Returns the number of known answers the engine listed in its browse queries. Queries list the services already known,
+	 * so that their responders may refrain from repeating them (RFC 6762, section 7.1). Whether a responder actually does
+	 * isn't measured, so this counts the answers the engine asked to be suppressed, not those that were.
+	 *
+	 * @return The number of known answers sent since the engine was created
+	 */
+	public long getKnownAnswerCount() {
+		return knownAnswerCount.get();
+	}
+
+	/* Begin overrides */
+
+	@Override public Observable<BonjourEvent> start(final NetworkBinding binding, final String type, DiscoveryOptions options) {
+		final String dnsType = type + SUFFIX;
+		final boolean lazy = options.isLazyResolution();
+		final DiscoveryOptions.ScanProfile scanProfile = options.getScanProfile();
+
+		Observable<BonjourEvent> obs = Observable.create(new Observable.OnSubscribe<BonjourEvent>() {
+			@Override public void call(final Subscriber<? super BonjourEvent> subscriber) {
+				// Bind to the network and start the event loop on its interface
+				final NioEventLoop loop;
+				try {
+					loop = acquireLoop(binding, new StartupTimer());
+				} catch (IOException e) {
+					subscriber.onError(new DiscoveryFailed(implClass, dnsType));
+					return;
+				}
+
+				// Keep track of the services reported to this subscriber, in order to report changes to them as updates
+				final ServiceTracker tracker = new ServiceTracker();
+
+				// Create the browse listener. Its callbacks are all invoked on the loop thread, so events don't need to be serialized
+				final MdnsBrowser.BrowseListener listener = new MdnsBrowser.BrowseListener() {
+					@Override public boolean isLazy() {
+						return lazy;
+					}
+
+					@Override public DiscoveryOptions.ScanProfile getScanProfile() {
+						return scanProfile;
+					}
+
+					@Override public void onFound(BonjourService service) {
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(new BonjourEvent(BonjourEvent.Type.FOUND, service));
+						}
+					}
+
+					@Override public void onResolved(BonjourService service) {
+						// Records are received again whenever they are refreshed, so only report actual changes
+						BonjourEvent resolved = tracker.resolved(service);
+						if (resolved != null && !subscriber.isUnsubscribed()) {
+							subscriber.onNext(resolved);
+						}
+					}
+
+					@Override public void onRemoved(BonjourService service) {
+						tracker.removed(service);
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, service));
+						}
+					}
+
+					@Override public void onFailed() {
+						subscriber.onError(new DiscoveryFailed(implClass, dnsType));
+					}
+				};
+
+				// Add onUnsubscribe() hook
+				subscriber.add(Subscriptions.create(new Action0() {
+					@Override public void call() {
+						// Stop browsing and release the event loop
+						loop.removeListener(dnsType, listener);
+						releaseLoop(loop);
+					}
+				}));
+
+				// Start discovery
+				loop.addListener(dnsType, listener);
+			}
+		});
+
+		// Hold back services that don't accept connections if asked to, and honor the requests of subscribers,
+		// applying the backpressure strategy to events they can't keep up with
+		return obs
+				.compose(ReachabilityFilter.apply(options))
+				.compose(EventBackpressure.apply(options));
+	}
+
+	@Override public Observable<BonjourService> resolve(final NetworkBinding binding, final BonjourService service) {
+		return Observable.create(new Observable.OnSubscribe<BonjourService>() {
+			@Override public void call(final Subscriber<? super BonjourService> subscriber) {
+				// Hold on to the event loop for the duration of the resolve
+				final NioEventLoop loop;
+				try {
+					loop = acquireLoop(binding, new StartupTimer());
+				} catch (IOException e) {
+					subscriber.onError(new ResolveFailed(implClass, service));
+					return;
+				}
+
+				// Resolves running for the same service are joined, and services resolved by a running discovery are answered right away
+				loop.resolve(service.getName(), service.getType(), new MdnsBrowser.ResolveListener() {
+					@Override public void onResolved(BonjourService resolved) {
+						releaseLoop(loop);
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(resolved);
+							subscriber.onCompleted();
+						}
+					}
+
+					@Override public void onFailed() {
+						releaseLoop(loop);
+						subscriber.onError(new ResolveFailed(implClass, service));
+					}
+				});
+			}
+		});
+	}
+
+	@Override public Observable<EngineStartup> prewarm(final NetworkBinding binding) {
+		return Observable.create(new Observable.OnSubscribe<EngineStartup>() {
+			@Override public void call(Subscriber<? super EngineStartup> subscriber) {
+				// Start the event loop, and keep it running for a while after releasing it
+				StartupTimer timer = new StartupTimer();
+				boolean reused;
+				NioEventLoop loop;
+				try {
+					synchronized (loopLock) {
+						reused = loopInstance != null && loopInstance.isRunning();
+						loop = acquireLoop(binding, timer);
+					}
+				} catch (IOException e) {
+					subscriber.onError(new DiscoveryFailed(implClass, e));
+					return;
+				}
+				releaseLoop(loop, PREWARM_LINGER_MILLIS);
+
+				if (!subscriber.isUnsubscribed()) {
+					subscriber.onNext(timer.finish(reused));
+					subscriber.onCompleted();
+				}
+			}
+		});
+	}
+}
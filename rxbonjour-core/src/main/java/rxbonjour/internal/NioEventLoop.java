@@ -0,0 +1,461 @@
+package rxbonjour.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event loop of the native engine. A single thread multiplexes the multicast socket through a {@link Selector},
+ * feeds received responses to an {@link MdnsBrowser}, and sends the questions it asks, regardless of the number of browsed types
+ * and subscribers. Packets are received into and sent from direct buffers allocated once per loop.
+ * Each loop serves one network interface and address family, joining the IPv4 or IPv6 multicast group depending on its address.
+ *
+ * All browser state is confined to the loop thread; other threads hand over work using the loop's methods, which enqueue a task
+ * and wake up the selector.
+ */
+final class NioEventLoop implements Runnable, MdnsBrowser.Outgoing {
+
+	/** Port of multicast DNS */
+	static final int MDNS_PORT = 5353;
+	/** IPv4 multicast group of multicast DNS */
+	private static final String MDNS_GROUP = "224.0.0.251";
+	/** IPv6 multicast group of multicast DNS, link-local scope */
+	private static final String MDNS_GROUP_IPV6 = "ff02::fb";
+	/** Size of the receive and send buffers, in bytes. Multicast DNS messages may span jumbo frames (RFC 6762, section 17) */
+	private static final int BUFFER_SIZE = 9000;
+	/** Combined size of the IPv4 and UDP headers preceding a message, in bytes */
+	private static final int HEADER_OVERHEAD = 28;
+	/** Combined size of the IPv6 and UDP headers preceding a message, in bytes */
+	private static final int IPV6_HEADER_OVERHEAD = 48;
+	/** MTU assumed if the MTU of the interface can't be determined, in bytes */
+	private static final int DEFAULT_MTU = 1500;
+	/** Minimum size of sent packets, in bytes */
+	private static final int MIN_PACKET_SIZE = 512;
+	/** Time to wait for the loop thread to finish when closing the loop, in milliseconds */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000L;
+
+	/** State machines driven by the loop */
+	private final MdnsBrowser browser;
+	/** Network interface the loop serves */
+	private final NetworkInterface networkInterface;
+	/** Addresses of the interface, along with their prefix lengths, telling which packets originate from its link */
+	private final List<InterfaceAddress> interfaceAddresses;
+	/** Selector multiplexing the socket */
+	private final Selector selector;
+	/** Multicast socket, bound to the mDNS port */
+	private final DatagramChannel channel;
+	/** Address to which queries are sent */
+	private final InetSocketAddress group;
+	/** Buffer into which packets are received */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/** Buffer holding the query being assembled */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/** Maximum size of sent packets, so that they fit into the MTU of the interface without being fragmented */
+	private final int maxPacketSize;
+	/** Questions asked during the current poll, to avoid asking the same question twice in one packet */
+	private final Set<String> asked = new HashSet<>();
+	/** Known answers listed during the current poll, sent after all questions */
+	private final List<KnownAnswer> knownAnswers = new ArrayList<>();
+	/** Offsets of the type names written to the packet being assembled, keyed by their lower-case name, for compressing known answers */
+	private final Map<String, Integer> nameOffsets = new HashMap<>();
+	/** Counter of known answers sent, shared with the engine */
+	private final AtomicLong knownAnswerCount;
+	/** Tasks handed over by other threads */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	/** Thread running the loop */
+	private final Thread thread;
+	/** Whether the loop is running. Cleared when the loop is closed, or stopped working */
+	private volatile boolean running = true;
+	/** Whether the loop thread finished. Guarded by the task queue */
+	private boolean terminated = false;
+
+	private NioEventLoop(NetworkInterface networkInterface, Selector selector, DatagramChannel channel, InetSocketAddress group, int maxPacketSize,
+			AtomicLong knownAnswerCount) {
+		this.browser = new MdnsBrowser(networkInterface);
+		this.networkInterface = networkInterface;
+		this.interfaceAddresses = networkInterface.getInterfaceAddresses();
+		this.selector = selector;
+		this.channel = channel;
+		this.group = group;
+		this.maxPacketSize = maxPacketSize;
+		this.knownAnswerCount = knownAnswerCount;
+		this.thread = new Thread(this, "RxBonjour-NIO-" + networkInterface.getName());
+		this.thread.setDaemon(true);
+	}
+
+	/* Begin private */
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * @param a            An address
+	 * @param b            Another address of the same family
+	 * @param prefixLength Length of the network prefix, in bits
+	 * @return True if the addresses share the network prefix
+	 */
+	private static boolean samePrefix(byte[] a, byte[] b, int prefixLength) {
+		int bits = Math.min(prefixLength, a.length * 8);
+		for (int i = 0; i < bits; i++) {
+			int mask = 0x80 >>> (i % 8);
+			if ((a[i / 8] & mask) != (b[i / 8] & mask)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a packet originates from the link of the loop's interface (RFC 6762, section 11). Sockets bound to the mDNS port
+	 * receive the packets of every interface that joined the group, so that the loops serving other interfaces see them as well.
+	 *
+	 * @param source Source address of the packet
+	 * @return True if the source is on the link of the interface, or can't be attributed to any link
+	 */
+	private boolean isOnLink(InetAddress source) {
+		if (source instanceof Inet6Address && ((Inet6Address) source).getScopeId() != 0) {
+			return ((Inet6Address) source).getScopeId() == networkInterface.getIndex();
+		}
+		boolean comparable = false;
+		for (InterfaceAddress local : interfaceAddresses) {
+			InetAddress address = local.getAddress();
+			if (address == null || address.getClass() != source.getClass()) continue;
+			comparable = true;
+			if (samePrefix(address.getAddress(), source.getAddress(), local.getNetworkPrefixLength())) return true;
+		}
+		return !comparable;
+	}
+
+	/**
+	 * Hands over a task to the loop thread.
+	 *
+	 * @param task Task to run on the loop thread
+	 */
+	private void execute(Runnable task) {
+		synchronized (tasks) {
+			if (terminated) {
+				// The loop thread is gone, so fail the work right away. Tasks handed over by listeners being failed,
+				// e.g. removing themselves, don't fail the browser again: the failure in progress covers them
+				task.run();
+				browser.fail();
+				return;
+			}
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Starts assembling a new query.
+	 */
+	private void beginPacket() {
+		DnsMessage.beginQuery(sendBuffer);
+		sendBuffer.limit(maxPacketSize);
+		nameOffsets.clear();
+	}
+
+	/**
+	 * Sends the query assembled so far, if it holds any questions or known answers, and starts a new one.
+	 */
+	private void send() {
+		if (!DnsMessage.isEmptyQuery(sendBuffer)) {
+			sendBuffer.flip();
+			try {
+				channel.send(sendBuffer, group);
+			} catch (IOException ignored) {
+				// The network may be temporarily unavailable; the question is asked again later
+			}
+		}
+		beginPacket();
+	}
+
+	/**
+	 * Appends a known answer to the query being assembled, pointing to the type name written earlier in the same packet if possible.
+	 *
+	 * @param answer Known answer
+	 * @return True if the answer was added, false if the packet is full
+	 */
+	private boolean addKnownAnswer(KnownAnswer answer) {
+		Integer typeOffset = nameOffsets.get(answer.typeKey);
+		int offset = DnsMessage.addKnownAnswer(sendBuffer, answer.type, typeOffset != null ? typeOffset : -1, answer.label, answer.ttlSeconds);
+		if (offset < 0) return false;
+		nameOffsets.put(answer.typeKey, offset);
+		knownAnswerCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Sends the questions asked and known answers listed during the current poll. Known answers follow the questions,
+	 * and spill over into additional packets if necessary, each but the last one marked as truncated (RFC 6762, section 7.2).
+	 */
+	private void flush() {
+		for (KnownAnswer answer : knownAnswers) {
+			if (!addKnownAnswer(answer)) {
+				DnsMessage.setTruncated(sendBuffer);
+				send();
+				addKnownAnswer(answer);
+			}
+		}
+		knownAnswers.clear();
+		send();
+	}
+
+	/**
+	 * Feeds all packets waiting on the socket to the browser.
+	 *
+	 * @throws IOException In case the socket stopped working
+	 */
+	private void receive() throws IOException {
+		SocketAddress source;
+		while ((source = channel.receive(receiveBuffer)) != null) {
+			receiveBuffer.flip();
+			// Responses not originating from the mDNS port aren't multicast DNS responses (RFC 6762, section 6)
+			if (source instanceof InetSocketAddress && ((InetSocketAddress) source).getPort() == MDNS_PORT
+					&& isOnLink(((InetSocketAddress) source).getAddress())) {
+				browser.handleResponse(receiveBuffer, System.nanoTime());
+			}
+			receiveBuffer.clear();
+		}
+	}
+
+	/* Begin public */
+
+	/**
+	 * Opens a multicast socket on the network interface with the provided address, and starts the loop thread.
+	 * The socket joins the IPv6 multicast group if the address is an IPv6 address, and the IPv4 group otherwise.
+	 *
+	 * @param address          Local address of the network interface to use
+	 * @param knownAnswerCount Counter to increment for every known answer sent
+	 * @return The running loop
+	 * @throws IOException In case the socket can't be opened
+	 */
+	static NioEventLoop open(InetAddress address, AtomicLong knownAnswerCount) throws IOException {
+		NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+		if (networkInterface == null) throw new IOException("No network interface with address " + address);
+
+		DatagramChannel channel = null;
+		Selector selector = null;
+		try {
+			boolean ipv6 = address instanceof Inet6Address;
+			InetAddress groupAddress = InetAddress.getByName(ipv6 ? MDNS_GROUP_IPV6 : MDNS_GROUP);
+			channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(MDNS_PORT));
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
+			channel.join(groupAddress, networkInterface);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+
+			int mtu = networkInterface.getMTU();
+			if (mtu <= 0) mtu = DEFAULT_MTU;
+			int maxPacketSize = Math.max(MIN_PACKET_SIZE, Math.min(BUFFER_SIZE, mtu - (ipv6 ? IPV6_HEADER_OVERHEAD : HEADER_OVERHEAD)));
+
+			NioEventLoop loop = new NioEventLoop(networkInterface, selector, channel, new InetSocketAddress(groupAddress, MDNS_PORT), maxPacketSize,
+					knownAnswerCount);
+			loop.thread.start();
+			return loop;
+
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(selector);
+			closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return True if the loop is running, false if it was closed or stopped working
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Starts browsing for the provided type. The listener is invoked on the loop thread.
+	 *
+	 * @param type     Type to browse for, e.g. '_http._tcp.local.'
+	 * @param listener Listener to report services to
+	 */
+	void addListener(final String type, final MdnsBrowser.BrowseListener listener) {
+		execute(new Runnable() {
+			@Override public void run() {
+				browser.addListener(type, listener, System.nanoTime());
+			}
+		});
+	}
+
+	/**
+	 * Stops browsing for the provided type on behalf of the provided listener.
+	 *
+	 * @param type     Type browsed for
+	 * @param listener Listener to remove
+	 */
+	void removeListener(final String type, final MdnsBrowser.BrowseListener listener) {
+		execute(new Runnable() {
+			@Override public void run() {
+				browser.removeListener(type, listener);
+			}
+		});
+	}
+
+	/**
+	 * Resolves the provided service. The listener is invoked on the loop thread.
+	 *
+	 * @param name     Name of the service
+	 * @param type     Type of the service, e.g. '_http._tcp.local.'
+	 * @param listener Listener to report the outcome to
+	 */
+	void resolve(final String name, final String type, final MdnsBrowser.ResolveListener listener) {
+		execute(new Runnable() {
+			@Override public void run() {
+				browser.resolve(name, type, listener, System.nanoTime());
+			}
+		});
+	}
+
+	/**
+	 * Resets the backoff of all browsed types, and queries them again right away.
+	 */
+	void resetBackoff() {
+		execute(new Runnable() {
+			@Override public void run() {
+				browser.resetBackoff(System.nanoTime());
+			}
+		});
+	}
+
+	/**
+	 * Stops the loop, and closes its socket. Blocks until the loop thread finished, or a short timeout elapsed.
+	 */
+	void close() {
+		running = false;
+		selector.wakeup();
+		if (Thread.currentThread() == thread) return;
+		try {
+			thread.join(CLOSE_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Begin overrides */
+
+	@Override public void question(String name, int type) {
+		String key = name.toLowerCase(Locale.US);
+		if (!asked.add(type + " " + key)) return;
+		int offset = sendBuffer.position();
+		if (!DnsMessage.addQuestion(sendBuffer, name, type)) {
+			// Start a new packet once the current one is full. Known answers pending for its questions follow in a later packet
+			if (!knownAnswers.isEmpty()) DnsMessage.setTruncated(sendBuffer);
+			send();
+			offset = sendBuffer.position();
+			DnsMessage.addQuestion(sendBuffer, name, type);
+		}
+		if (type == DnsMessage.TYPE_PTR) nameOffsets.put(key, offset);
+	}
+
+	@Override public void knownAnswer(String type, String label, long ttlSeconds) {
+		knownAnswers.add(new KnownAnswer(type, label, ttlSeconds));
+	}
+
+	@Override public void run() {
+		beginPacket();
+		try {
+			while (running) {
+				runTasks();
+
+				// Ask the questions that are due, and sleep until the next one is, or a packet or task arrives
+				long now = System.nanoTime();
+				asked.clear();
+				long next = browser.poll(now, this);
+				flush();
+
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if (next == Long.MAX_VALUE) {
+					selector.select();
+				} else {
+					selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(next - now + 999999L)));
+				}
+
+				if (!selector.selectedKeys().isEmpty()) {
+					selector.selectedKeys().clear();
+					receive();
+				}
+			}
+
+		} catch (IOException | ClosedSelectorException ignored) {
+			// The socket stopped working, which is reported to all listeners below
+
+		} finally {
+			running = false;
+			closeQuietly(channel);
+			closeQuietly(selector);
+
+			// Fail the listeners still attached, including those handed over while the loop was stopping
+			synchronized (tasks) {
+				terminated = true;
+				runTasks();
+				browser.fail();
+			}
+		}
+	}
+
+	/* Begin static */
+
+	/**
+	 * PTR record listed as known in a browse query
+	 */
+	private static final class KnownAnswer {
+
+		/** Type asked for */
+		final String type;
+		/** Lower-case name of the type */
+		final String typeKey;
+		/** Unescaped label of the known instance */
+		final String label;
+		/** Remaining time-to-live of the record, in seconds */
+		final long ttlSeconds;
+
+		KnownAnswer(String type, String label, long ttlSeconds) {
+			this.type = type;
+			this.typeKey = type.toLowerCase(Locale.US);
+			this.label = label;
+			this.ttlSeconds = ttlSeconds;
+		}
+	}
+}
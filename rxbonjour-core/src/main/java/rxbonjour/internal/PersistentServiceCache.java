@@ -0,0 +1,527 @@
+package rxbonjour.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.BonjourServiceDiff;
+import rxbonjour.model.ServiceSet;
+import rxbonjour.model.TxtRecords;
+
+/**
+ * On-disk cache of the last-known services per discovered type, surviving process restarts. Discoveries using it
+ * report the cached services as {@link BonjourEvent.Type#CACHED} right away upon subscription, and report those
+ * that aren't confirmed by the live discovery within a timeout as {@link BonjourEvent.Type#REMOVED}.
+ *
+ * The file consists of a short header followed by length-prefixed PUT and REMOVE records, so that changes are appended
+ * without rewriting the file. It is memory-mapped and parsed once, upon the first access; a truncated or corrupt tail,
+ * e.g. left behind by a process killed mid-write, is ignored. Once superseded records dominate the file, it is compacted.
+ *
+ * Changes take effect in memory right away, and are written to the file in order on a separate scheduler,
+ * so that the threads reporting events, e.g. the native engine's event loop, never wait for the disk.
+ */
+final class PersistentServiceCache {
+
+	/** Magic number at the start of the file ("RXBC") */
+	private static final int MAGIC = 0x52584243;
+	/** Version of the file format */
+	private static final byte VERSION = 2;
+	/** Length of the file header, in bytes */
+	private static final int HEADER_LENGTH = 5;
+	/** Record adding or replacing a service */
+	private static final byte OP_PUT = 1;
+	/** Record removing a service */
+	private static final byte OP_REMOVE = 2;
+	/** Length marking a TXT attribute without a value, which TXT strings of at most 255 bytes never reach */
+	private static final int NO_VALUE_LENGTH = 0xffff;
+	/** Minimum number of superseded records before the file is compacted */
+	private static final int COMPACTION_THRESHOLD = 64;
+	/** Charset of strings in the file */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Process-wide instances, one per file */
+	private static final Map<File, PersistentServiceCache> instances = new HashMap<>();
+
+	/** File backing the cache */
+	private final File file;
+	/** Scheduler on which changes are written to the file */
+	private final Scheduler writeScheduler;
+	/** Cached services, keyed by discovered type and then by service name and type. Null until the file was read */
+	private Map<String, Map<String, BonjourService>> services;
+	/** Changes not yet written to the file, in order. Guarded by the cache's lock */
+	private final Queue<PendingWrite> pendingWrites = new ArrayDeque<>();
+	/** Whether or not pending changes are being written. Guarded by the cache's lock */
+	private boolean writing;
+	/** Number of records in the file. Only accessed by the writer once the file was read */
+	private int recordCount;
+	/** Whether or not the file needs to be rewritten before appending to it, e.g. because its header is invalid. Only accessed by the writer once the file was read */
+	private boolean rewrite;
+
+	PersistentServiceCache(File file) {
+		this(file, Schedulers.io());
+	}
+
+	PersistentServiceCache(File file, Scheduler writeScheduler) {
+		this.file = file;
+		this.writeScheduler = writeScheduler;
+	}
+
+	/**
+	 * Returns the process-wide cache backed by the provided file. The file isn't accessed until the cache is first used.
+	 *
+	 * @param file File backing the cache
+	 * @return The cache backed by the file
+	 */
+	static PersistentServiceCache forFile(File file) {
+		synchronized (instances) {
+			File key = file.getAbsoluteFile();
+			PersistentServiceCache cache = instances.get(key);
+			if (cache == null) {
+				cache = new PersistentServiceCache(key);
+				instances.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/**
+	 * Reads the file into memory, if it wasn't already. Must be called while holding the cache's lock.
+	 */
+	private void ensureLoaded() {
+		if (services != null) return;
+		services = new HashMap<>();
+		recordCount = 0;
+		rewrite = false;
+		if (!file.exists() || file.length() == 0) {
+			// Write the header along with the first record
+			rewrite = true;
+			return;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+				// Unknown format: start over
+				rewrite = true;
+				return;
+			}
+
+			while (buffer.remaining() > 5) {
+				byte op = buffer.get();
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) break;
+
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				buffer.position(buffer.position() + length);
+				try {
+					readRecord(op, record);
+				} catch (BufferUnderflowException | IllegalArgumentException | UnknownHostException e) {
+					// Skip corrupt records
+				}
+				recordCount++;
+			}
+
+			// Truncate an incomplete tail before appending further records
+			if (buffer.hasRemaining()) rewrite = true;
+
+		} catch (IOException e) {
+			rewrite = true;
+		}
+	}
+
+	/**
+	 * Applies a single record read from the file. Must be called while holding the cache's lock.
+	 */
+	private void readRecord(byte op, ByteBuffer record) throws UnknownHostException {
+		String type = readString(record);
+		String name = readString(record);
+		String serviceType = readString(record);
+
+		if (op == OP_PUT) {
+			BonjourService.Builder builder = new BonjourService.Builder(name, serviceType)
+					.setPort(record.getInt());
+			int addressCount = record.getShort() & 0xffff;
+			for (int i = 0; i < addressCount; i++) {
+				builder.addAddress(readAddress(record));
+			}
+			int txtCount = record.getShort() & 0xffff;
+			for (int i = 0; i < txtCount; i++) {
+				String key = readString(record);
+				builder.addTxtRecord(key, readValue(record));
+			}
+			BonjourService service = builder.build();
+			typeServices(type).put(key(service), service);
+
+		} else if (op == OP_REMOVE) {
+			Map<String, BonjourService> typeServices = services.get(type);
+			if (typeServices != null) typeServices.remove(name + "/" + serviceType);
+
+		} else {
+			throw new IllegalArgumentException("Unknown record " + op);
+		}
+	}
+
+	/**
+	 * Reads an address, restoring the scope of link-local IPv6 addresses if their interface still exists.
+	 */
+	private static InetAddress readAddress(ByteBuffer buffer) throws UnknownHostException {
+		byte[] address = readBytes(buffer);
+		String scope = readString(buffer);
+		if (!scope.isEmpty()) {
+			try {
+				NetworkInterface networkInterface = NetworkInterface.getByName(scope);
+				if (networkInterface != null) return Inet6Address.getByAddress(null, address, networkInterface);
+			} catch (SocketException | UnknownHostException e) {
+				// Fall back to the unscoped address
+			}
+		}
+		return InetAddress.getByAddress(address);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		return new String(readBytes(buffer), UTF_8);
+	}
+
+	/**
+	 * Reads the value of a TXT record, which is marked by a length of {@link #NO_VALUE_LENGTH} if the attribute has no value.
+	 */
+	private static byte[] readValue(ByteBuffer buffer) {
+		if ((buffer.getShort(buffer.position()) & 0xffff) == NO_VALUE_LENGTH) {
+			buffer.getShort();
+			return null;
+		}
+		return readBytes(buffer);
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value != null ? value.getBytes(UTF_8) : new byte[0]);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeRecord(OutputStream out, byte op, String type, BonjourService service) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream record = new DataOutputStream(bytes);
+		writeString(record, type);
+		writeString(record, service.getName());
+		writeString(record, service.getType());
+
+		if (op == OP_PUT) {
+			record.writeInt(service.getPort());
+			List<InetAddress> addresses = service.getAddresses();
+			record.writeShort(addresses.size());
+			for (InetAddress address : addresses) {
+				writeBytes(record, address.getAddress());
+				NetworkInterface scope = address instanceof Inet6Address ? ((Inet6Address) address).getScopedInterface() : null;
+				writeString(record, scope != null ? scope.getName() : null);
+			}
+			TxtRecords txtRecords = service.getTxtRecords();
+			record.writeShort(txtRecords.size());
+			for (String key : txtRecords.keySet()) {
+				byte[] value = txtRecords.getBytes(key);
+				writeString(record, key);
+				if (value != null) {
+					writeBytes(record, value);
+				} else {
+					record.writeShort(NO_VALUE_LENGTH);
+				}
+			}
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeByte(op);
+		data.writeInt(bytes.size());
+		bytes.writeTo(data);
+		data.flush();
+	}
+
+	/**
+	 * Queues a record to be appended to the file, and starts writing the queued records unless a write is running already.
+	 * Must be called while holding the cache's lock.
+	 */
+	private void enqueue(byte op, String type, BonjourService service) {
+		pendingWrites.add(new PendingWrite(op, type, service));
+		if (writing) return;
+		writing = true;
+
+		final Scheduler.Worker worker = writeScheduler.createWorker();
+		worker.schedule(new Action0() {
+			@Override public void call() {
+				try {
+					writePending();
+				} finally {
+					worker.unsubscribe();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends the queued records to the file, until none are left.
+	 */
+	private void writePending() {
+		while (true) {
+			PendingWrite write;
+			synchronized (this) {
+				write = pendingWrites.poll();
+				if (write == null) {
+					writing = false;
+					return;
+				}
+			}
+			append(write.op, write.type, write.service);
+		}
+	}
+
+	/**
+	 * Appends a record to the file, rewriting it first if necessary. Only called by the writer.
+	 */
+	private void append(byte op, String type, BonjourService service) {
+		recordCount++;
+		if (rewrite || recordCount > COMPACTION_THRESHOLD && recordCount > 2 * liveCount()) {
+			compact();
+			return;
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+			writeRecord(out, op, type, service);
+		} catch (IOException e) {
+			// Persisting is best-effort; rewrite the file upon the next change
+			rewrite = true;
+		}
+	}
+
+	/**
+	 * Rewrites the file with one record per cached service, replacing it atomically. Only called by the writer.
+	 * Changes queued after the cached services were copied are appended once more afterwards, which doesn't alter the outcome.
+	 */
+	private void compact() {
+		Map<String, List<BonjourService>> snapshot = new HashMap<>();
+		synchronized (this) {
+			for (Map.Entry<String, Map<String, BonjourService>> typeEntry : services.entrySet()) {
+				snapshot.put(typeEntry.getKey(), new ArrayList<>(typeEntry.getValue().values()));
+			}
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		int count = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeByte(VERSION);
+			for (Map.Entry<String, List<BonjourService>> typeEntry : snapshot.entrySet()) {
+				for (BonjourService service : typeEntry.getValue()) {
+					writeRecord(out, OP_PUT, typeEntry.getKey(), service);
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			temp.delete();
+			rewrite = true;
+			return;
+		}
+
+		if (temp.renameTo(file)) {
+			recordCount = count;
+			rewrite = false;
+		} else {
+			temp.delete();
+			rewrite = true;
+		}
+	}
+
+	private synchronized int liveCount() {
+		int count = 0;
+		for (Map<String, BonjourService> typeServices : services.values()) {
+			count += typeServices.size();
+		}
+		return count;
+	}
+
+	private Map<String, BonjourService> typeServices(String type) {
+		Map<String, BonjourService> typeServices = services.get(type);
+		if (typeServices == null) {
+			typeServices = new LinkedHashMap<>();
+			services.put(type, typeServices);
+		}
+		return typeServices;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Returns the services cached for the provided type, reading the file if it wasn't read before.
+	 *
+	 * @param type Discovered type
+	 * @return The cached services of the type
+	 */
+	synchronized List<BonjourService> get(String type) {
+		ensureLoaded();
+		Map<String, BonjourService> typeServices = services.get(type);
+		return typeServices != null ? new ArrayList<>(typeServices.values()) : Collections.<BonjourService>emptyList();
+	}
+
+	/**
+	 * Caches the provided state of a service of the provided type. Identical states aren't written again.
+	 *
+	 * @param type    Discovered type
+	 * @param service Resolved service
+	 */
+	synchronized void put(String type, BonjourService service) {
+		ensureLoaded();
+		BonjourService previous = typeServices(type).put(key(service), service);
+		if (previous != null && previous.equals(service) && BonjourServiceDiff.between(previous, service).isEmpty()) return;
+		enqueue(OP_PUT, type, service);
+	}
+
+	/**
+	 * Removes the provided service of the provided type from the cache, if it's contained.
+	 *
+	 * @param type    Discovered type
+	 * @param service Service to remove
+	 */
+	synchronized void remove(String type, BonjourService service) {
+		ensureLoaded();
+		Map<String, BonjourService> typeServices = services.get(type);
+		if (typeServices == null || typeServices.remove(key(service)) == null) return;
+		enqueue(OP_REMOVE, type, service);
+	}
+
+	/**
+	 * Returns a Transformer prepending the cached services of the provided type to a stream of Bonjour events, and keeping the cache
+	 * up-to-date with the events of the stream. Cached services are reported as CACHED upon subscription, and as REMOVED
+	 * once the timeout elapses without the stream reporting them, which also removes them from the cache.
+	 *
+	 * @param type      Discovered type
+	 * @param timeout   Time to wait for cached services to be confirmed
+	 * @param unit      Time unit of the timeout
+	 * @param scheduler Scheduler on which the timeout is timed
+	 * @return A Transformer for the stream of Bonjour events of the type
+	 */
+	Observable.Transformer<BonjourEvent, BonjourEvent> warmStart(String type, long timeout, TimeUnit unit, Scheduler scheduler) {
+		return warmStart(type, ServiceSet.empty(), true, timeout, unit, scheduler);
+	}
+
+	/**
+	 * Returns a Transformer prepending the cached services of the provided type to a stream of Bonjour events shared with other subscribers,
+	 * and keeping the cache up-to-date with the events of the stream. Cached services that the stream already knows about aren't reported,
+	 * since the stream reports them itself; the others are reported as CACHED upon subscription, and as REMOVED once the timeout elapses
+	 * without the stream reporting them. Only the subscriber that started the stream removes those services from the cache as well,
+	 * so that subscribers joining later can't expire services that were confirmed before they joined.
+	 *
+	 * @param type      Discovered type
+	 * @param known     Services the stream already knows about
+	 * @param expire    Whether or not to remove cached services that aren't confirmed in time from the cache
+	 * @param timeout   Time to wait for cached services to be confirmed
+	 * @param unit      Time unit of the timeout
+	 * @param scheduler Scheduler on which the timeout is timed
+	 * @return A Transformer for the stream of Bonjour events of the type
+	 */
+	Observable.Transformer<BonjourEvent, BonjourEvent> warmStart(final String type, final ServiceSet known, final boolean expire, final long timeout,
+			final TimeUnit unit, final Scheduler scheduler) {
+		return new Observable.Transformer<BonjourEvent, BonjourEvent>() {
+			@Override public Observable<BonjourEvent> call(final Observable<BonjourEvent> events) {
+				return Observable.defer(new Func0<Observable<BonjourEvent>>() {
+					@Override public Observable<BonjourEvent> call() {
+						List<BonjourService> cached = new ArrayList<>();
+						for (BonjourService service : get(type)) {
+							if (!known.contains(ServiceSet.keyOf(service))) cached.add(service);
+						}
+
+						// Persist the live events
+						Observable<BonjourEvent> replayed = events
+								.doOnNext(new Action1<BonjourEvent>() {
+									@Override public void call(BonjourEvent event) {
+										switch (event.getType()) {
+											case ADDED:
+											case UPDATED:
+												put(type, event.getService());
+												break;
+
+											case REMOVED:
+												remove(type, event.getService());
+												break;
+										}
+									}
+								})
+								.compose(ServiceReplay.replay(cached, timeout, unit, scheduler));
+						if (!expire) return replayed;
+
+						// Persist the removal of cached services that weren't confirmed
+						return replayed.doOnNext(new Action1<BonjourEvent>() {
+							@Override public void call(BonjourEvent event) {
+								if (event.getType() == BonjourEvent.Type.REMOVED) remove(type, event.getService());
+							}
+						});
+					}
+				});
+			}
+		};
+	}
+
+	/* Begin static */
+
+	/**
+	 * Record waiting to be appended to the file
+	 */
+	private static final class PendingWrite {
+
+		final byte op;
+		final String type;
+		final BonjourService service;
+
+		PendingWrite(byte op, String type, BonjourService service) {
+			this.op = op;
+			this.type = type;
+			this.service = service;
+		}
+	}
+}
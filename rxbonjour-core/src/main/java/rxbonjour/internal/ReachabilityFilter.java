@@ -0,0 +1,246 @@
+package rxbonjour.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.subscriptions.Subscriptions;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.BonjourServiceDiff;
+
+/**
+ * Filters resolved services of a discovery by whether they accept TCP connections, for discoveries that probe reachability.
+ * Every added or updated service is probed on its addresses in turn, in the order of {@link HappyEyeballs}, until one of them
+ * accepts a connection. Reachable services are reported annotated with the round-trip time of that connection, and services
+ * that don't accept connections aren't reported at all, or reported as removed if they stopped accepting them.
+ *
+ * Probes are shared process-wide: at most a fixed number of them is in flight, and results are remembered per endpoint for a while.
+ * A suppressed service is probed again when the discovery reports it again, e.g. once its records change, and otherwise
+ * whenever the result of its last probe is no longer remembered, for as long as the discovery doesn't report it as removed.
+ */
+public final class ReachabilityFilter {
+
+	private ReachabilityFilter() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	/**
+	 * Returns an Observable probing the addresses of the provided service in turn, until one of them accepts a connection.
+	 *
+	 * @param service Service to probe
+	 * @return An Observable for the round-trip time of the first address accepting a connection, or {@link ReachabilityProber#UNREACHABLE}
+	 */
+	private static Observable<Long> probe(final BonjourService service) {
+		return Observable.from(HappyEyeballs.sortAddresses(service.getAddresses()))
+				.concatMap(new Func1<InetAddress, Observable<Long>>() {
+					@Override public Observable<Long> call(InetAddress address) {
+						return ReachabilityProber.shared().probe(new InetSocketAddress(address, service.getPort()));
+					}
+				})
+				.firstOrDefault(ReachabilityProber.UNREACHABLE, new Func1<Long, Boolean>() {
+					@Override public Boolean call(Long rttNanos) {
+						return rttNanos != ReachabilityProber.UNREACHABLE;
+					}
+				});
+	}
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Sets the maximum number of reachability probes in flight, shared by all discoveries. Takes effect for probes started after this call.
+	 *
+	 * @param maxConcurrentProbes Maximum number of concurrent probes, or 0 to restore the default
+	 */
+	public static void setMaxConcurrentProbes(int maxConcurrentProbes) {
+		ReachabilityProber.shared().setMaxConcurrentProbes(maxConcurrentProbes);
+	}
+
+	/**
+	 * Returns a Transformer filtering a stream of Bonjour events by the reachability of their services, if the provided options
+	 * ask for it, and passing the stream through unchanged otherwise.
+	 *
+	 * @param options Options of the discovery
+	 * @return A Transformer filtering unreachable services
+	 */
+	public static Observable.Transformer<BonjourEvent, BonjourEvent> apply(final DiscoveryOptions options) {
+		return new Observable.Transformer<BonjourEvent, BonjourEvent>() {
+			@Override public Observable<BonjourEvent> call(Observable<BonjourEvent> events) {
+				if (!options.probesReachability()) return events;
+				return events.lift(new Observable.Operator<BonjourEvent, BonjourEvent>() {
+					@Override public Subscriber<? super BonjourEvent> call(Subscriber<? super BonjourEvent> child) {
+						FilterSubscriber parent = new FilterSubscriber(child);
+						child.add(parent);
+						return parent;
+					}
+				});
+			}
+		};
+	}
+
+	/* Begin static */
+
+	/**
+	 * Subscriber to the upstream source, holding back events of services until their probes finished
+	 */
+	private static final class FilterSubscriber extends Subscriber<BonjourEvent> {
+
+		private final Subscriber<? super BonjourEvent> child;
+		/** Services being probed, reported as reachable or suppressed as unreachable, keyed by name and type. Guarded by the lock */
+		private final Map<String, Tracked> services = new HashMap<>();
+		/** Synchronization lock on the services, also serializing emissions to the child */
+		private final Object lock = new Object();
+
+		private FilterSubscriber(Subscriber<? super BonjourEvent> child) {
+			this.child = child;
+			add(Subscriptions.create(new Action0() {
+				@Override public void call() {
+					synchronized (lock) {
+						for (Tracked tracked : services.values()) {
+							tracked.cancelProbe();
+						}
+						services.clear();
+					}
+				}
+			}));
+		}
+
+		/**
+		 * Starts probing the current state of a service, superseding the probe of a previous state.
+		 * Must be called while holding the lock.
+		 */
+		private void startProbe(final String key, final Tracked tracked, final BonjourService service) {
+			tracked.cancelProbe();
+			final int generation = ++tracked.generation;
+			Subscription probe = probe(service).subscribe(new Action1<Long>() {
+				@Override public void call(Long rttNanos) {
+					synchronized (lock) {
+						if (tracked.generation != generation || isUnsubscribed()) return;
+						tracked.probe = null;
+						probed(key, tracked, service, rttNanos);
+					}
+				}
+			});
+			// Remembered results are reported right away, in which case the probe is over already
+			if (!probe.isUnsubscribed()) tracked.probe = probe;
+		}
+
+		/**
+		 * Probes a suppressed service again once the result of its failed probe is no longer remembered, since the discovery
+		 * doesn't report the service again while its records don't change. Must be called while holding the lock.
+		 */
+		private void scheduleReprobe(final String key, final Tracked tracked, final BonjourService service) {
+			final int generation = tracked.generation;
+			tracked.probe = Observable.timer(ReachabilityProber.UNREACHABLE_FRESH_MILLIS, TimeUnit.MILLISECONDS).subscribe(new Action1<Long>() {
+				@Override public void call(Long ignored) {
+					synchronized (lock) {
+						if (tracked.generation != generation || isUnsubscribed()) return;
+						tracked.probe = null;
+						startProbe(key, tracked, service);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Reports the outcome of a probe. Must be called while holding the lock.
+		 */
+		private void probed(String key, Tracked tracked, BonjourService service, long rttNanos) {
+			if (rttNanos == ReachabilityProber.UNREACHABLE) {
+				if (tracked.reported != null) child.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, tracked.reported));
+				tracked.reported = null;
+				scheduleReprobe(key, tracked, service);
+				return;
+			}
+
+			BonjourService reachable = new BonjourService.Builder(service).setRttNanos(rttNanos).build();
+			if (tracked.reported == null) {
+				child.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, reachable));
+			} else {
+				BonjourServiceDiff diff = BonjourServiceDiff.between(tracked.reported, reachable);
+				if (!diff.isEmpty()) child.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, reachable, diff));
+			}
+			tracked.reported = reachable;
+		}
+
+		@Override public void onNext(BonjourEvent event) {
+			BonjourService service = event.getService();
+			String key = key(service);
+			synchronized (lock) {
+				switch (event.getType()) {
+					case ADDED:
+					case UPDATED:
+						if (!service.isResolved()) {
+							child.onNext(event);
+							break;
+						}
+						Tracked tracked = services.get(key);
+						if (tracked == null) {
+							tracked = new Tracked();
+							services.put(key, tracked);
+						}
+						startProbe(key, tracked, service);
+						break;
+
+					case REMOVED:
+						Tracked removed = services.remove(key);
+						if (removed == null) break;
+						removed.cancelProbe();
+						if (removed.reported != null) child.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, removed.reported));
+						break;
+
+					default:
+						child.onNext(event);
+						break;
+				}
+			}
+		}
+
+		@Override public void onCompleted() {
+			synchronized (lock) {
+				child.onCompleted();
+			}
+		}
+
+		@Override public void onError(Throwable e) {
+			synchronized (lock) {
+				child.onError(e);
+			}
+		}
+	}
+
+	/**
+	 * Reachability state of a service
+	 */
+	private static final class Tracked {
+
+		/** Service last reported as reachable, or null if it wasn't reported yet */
+		private BonjourService reported;
+		/** Probe of the latest state of the service, or the timer of its next probe while it is suppressed, or null if neither is pending */
+		private Subscription probe;
+		/** Number of probes started, identifying the latest one */
+		private int generation;
+
+		private void cancelProbe() {
+			if (probe != null) {
+				probe.unsubscribe();
+				probe = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package rxbonjour.internal;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Probes whether TCP endpoints accept connections, using non-blocking connects multiplexed on a single {@link Selector}.
+ * At most a fixed number of probes is in flight at any time, further ones wait in line. Subscribers probing the same endpoint
+ * share a single probe, and results are remembered for a while, so that the services of a busy network that share a host
+ * don't open a socket each.
+ *
+ * The selector thread is started on demand, and ends once no probes are left.
+ */
+final class ReachabilityProber {
+
+	/** Result of probes that didn't connect */
+	static final long UNREACHABLE = -1L;
+	/** Default maximum number of probes in flight */
+	static final int DEFAULT_MAX_CONCURRENT_PROBES = 16;
+	/** Timeout of each probe */
+	static final long TIMEOUT_MILLIS = 2000L;
+	/** Time for which the result of a probe that connected is remembered */
+	static final long REACHABLE_FRESH_MILLIS = 30000L;
+	/** Time for which the result of a probe that didn't connect is remembered */
+	static final long UNREACHABLE_FRESH_MILLIS = 5000L;
+
+	/** Process-wide instance */
+	private static final ReachabilityProber shared = new ReachabilityProber();
+
+	/** Results of recent probes, keyed by endpoint. Guarded by the lock */
+	private final Map<InetSocketAddress, Result> results = new HashMap<>();
+	/** Probes waiting or in flight, keyed by endpoint. Guarded by the lock */
+	private final Map<InetSocketAddress, Probe> probes = new HashMap<>();
+	/** Probes waiting for a slot. Guarded by the lock */
+	private final Queue<Probe> queued = new ArrayDeque<>();
+	/** Synchronization lock on the prober's state */
+	private final Object lock = new Object();
+	/** Maximum number of probes in flight. Guarded by the lock */
+	private int maxConcurrentProbes = DEFAULT_MAX_CONCURRENT_PROBES;
+	/** Number of probes in flight. Guarded by the lock */
+	private int active;
+	/** Selector of the running thread, or null if no thread is running. Guarded by the lock */
+	private Selector selector;
+
+	/* Begin private */
+
+	/**
+	 * Starts the selector thread, unless it is already running. Must be called while holding the lock.
+	 *
+	 * @param results Results to report once the lock is released
+	 */
+	private void ensureRunning(List<Probe> results) {
+		if (selector != null) {
+			selector.wakeup();
+			return;
+		}
+		final Selector started;
+		try {
+			started = Selector.open();
+		} catch (IOException e) {
+			// Without a selector, nothing can be probed
+			for (Probe probe : new ArrayList<>(queued)) {
+				complete(probe, UNREACHABLE, results);
+			}
+			return;
+		}
+		selector = started;
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run() {
+				loop(started);
+			}
+		}, "RxBonjour-Probe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Runs the selector thread until no probes are left.
+	 *
+	 * @param selector Selector of the thread
+	 */
+	private void loop(Selector selector) {
+		List<Probe> finished = new ArrayList<>();
+		List<Probe> results = new ArrayList<>();
+		try {
+			while (true) {
+				boolean running;
+				synchronized (lock) {
+					running = startQueued(selector, results);
+					if (!running) this.selector = null;
+				}
+				deliver(results);
+				if (!running) return;
+				selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(nextDeadline(selector) - System.nanoTime()) + 1));
+
+				long now = System.nanoTime();
+				for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					Probe probe = (Probe) key.attachment();
+					try {
+						if (((SocketChannel) key.channel()).finishConnect()) probe.rttNanos = Math.max(1L, now - probe.startNanos);
+					} catch (IOException e) {
+						probe.rttNanos = UNREACHABLE;
+					}
+					if (probe.rttNanos != 0) finished.add(probe);
+				}
+				for (SelectionKey key : selector.keys()) {
+					Probe probe = (Probe) key.attachment();
+					if (probe.rttNanos == 0 && now - probe.deadlineNanos >= 0) {
+						probe.rttNanos = UNREACHABLE;
+						finished.add(probe);
+					}
+				}
+
+				for (Probe probe : finished) {
+					probe.close();
+				}
+				synchronized (lock) {
+					for (Probe probe : finished) {
+						active--;
+						complete(probe, probe.rttNanos, results);
+					}
+				}
+				finished.clear();
+				deliver(results);
+			}
+		} catch (IOException e) {
+			// The selector broke down; fail the probes in flight, and let the next probe start a new thread
+			synchronized (lock) {
+				for (SelectionKey key : selector.keys()) {
+					Probe probe = (Probe) key.attachment();
+					if (probe.rttNanos != 0) continue;
+					probe.close();
+					active--;
+					complete(probe, UNREACHABLE, results);
+				}
+				this.selector = null;
+				if (!queued.isEmpty()) ensureRunning(results);
+			}
+			deliver(results);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Starts queued probes while slots are free. Must be called on the selector thread while holding the lock.
+	 *
+	 * @param selector Selector to register the probes with
+	 * @param results  Results to report once the lock is released
+	 * @return True if probes are in flight, false if the thread may end
+	 */
+	private boolean startQueued(Selector selector, List<Probe> results) {
+		Probe probe;
+		while (active < maxConcurrentProbes && (probe = queued.poll()) != null) {
+			try {
+				probe.channel = SocketChannel.open();
+				probe.channel.configureBlocking(false);
+				probe.startNanos = System.nanoTime();
+				probe.deadlineNanos = probe.startNanos + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+				if (probe.channel.connect(probe.endpoint)) {
+					// Connected right away, e.g. to a local address
+					probe.close();
+					complete(probe, Math.max(1L, System.nanoTime() - probe.startNanos), results);
+					continue;
+				}
+				probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+				active++;
+			} catch (IOException e) {
+				probe.close();
+				complete(probe, UNREACHABLE, results);
+			}
+		}
+		return active > 0;
+	}
+
+	private static long nextDeadline(Selector selector) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+		for (SelectionKey key : selector.keys()) {
+			Probe probe = (Probe) key.attachment();
+			if (probe.rttNanos == 0 && probe.deadlineNanos - deadline < 0) deadline = probe.deadlineNanos;
+		}
+		return deadline;
+	}
+
+	/**
+	 * Remembers the result of a probe, and queues it for being reported to the probe's subscribers.
+	 * Must be called while holding the lock; the results are reported through {@link #deliver(List)} once it is released,
+	 * so that subscribers may probe again from their callbacks.
+	 *
+	 * @param probe    Finished probe
+	 * @param rttNanos Round-trip time of the connect, in nanoseconds, or {@link #UNREACHABLE}
+	 * @param results  Results to report once the lock is released
+	 */
+	private void complete(Probe probe, long rttNanos, List<Probe> results) {
+		probes.remove(probe.endpoint);
+		queued.remove(probe);
+		probe.rttNanos = rttNanos;
+		long freshMillis = rttNanos != UNREACHABLE ? REACHABLE_FRESH_MILLIS : UNREACHABLE_FRESH_MILLIS;
+		this.results.put(probe.endpoint, new Result(rttNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(freshMillis)));
+		probe.finished = new ArrayList<>(probe.subscribers);
+		probe.subscribers.clear();
+		results.add(probe);
+	}
+
+	/**
+	 * Reports finished probes to their subscribers. Must be called without holding the lock.
+	 *
+	 * @param results Finished probes, which are cleared
+	 */
+	private static void deliver(List<Probe> results) {
+		for (Probe probe : results) {
+			for (Subscriber<? super Long> subscriber : probe.finished) {
+				subscriber.onNext(probe.rttNanos);
+				subscriber.onCompleted();
+			}
+			probe.finished = null;
+		}
+		results.clear();
+	}
+
+	/**
+	 * Forgets about results that are no longer fresh. Must be called while holding the lock.
+	 *
+	 * @param now Current time, in nanoseconds
+	 */
+	private void evictStale(long now) {
+		for (Iterator<Result> iterator = results.values().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().deadlineNanos - now <= 0) iterator.remove();
+		}
+	}
+
+	/* Begin public */
+
+	/**
+	 * @return The process-wide prober
+	 */
+	static ReachabilityProber shared() {
+		return shared;
+	}
+
+	/**
+	 * Sets the maximum number of probes in flight. Takes effect for probes started after this call.
+	 *
+	 * @param maxConcurrentProbes Maximum number of concurrent probes, or 0 to restore the default
+	 */
+	void setMaxConcurrentProbes(int maxConcurrentProbes) {
+		synchronized (lock) {
+			this.maxConcurrentProbes = maxConcurrentProbes > 0 ? maxConcurrentProbes : DEFAULT_MAX_CONCURRENT_PROBES;
+		}
+	}
+
+	/**
+	 * Returns an Observable probing whether the provided endpoint accepts TCP connections. It emits the round-trip time
+	 * of the connect in nanoseconds, or {@link #UNREACHABLE} if the endpoint didn't accept it within the timeout, and completes.
+	 * A recent result for the same endpoint is emitted right away. Unsubscribing from a probe that didn't start yet takes it
+	 * out of the line, unless other subscribers wait for it.
+	 *
+	 * @param endpoint Endpoint to probe
+	 * @return An Observable for the round-trip time
+	 */
+	Observable<Long> probe(final InetSocketAddress endpoint) {
+		return Observable.create(new Observable.OnSubscribe<Long>() {
+			@Override public void call(final Subscriber<? super Long> subscriber) {
+				Long cached = null;
+				List<Probe> failed = new ArrayList<>(0);
+				synchronized (lock) {
+					long now = System.nanoTime();
+					evictStale(now);
+					Result result = results.get(endpoint);
+					if (result != null) {
+						cached = result.rttNanos;
+
+					} else {
+						Probe probe = probes.get(endpoint);
+						if (probe == null) {
+							probe = new Probe(endpoint);
+							probes.put(endpoint, probe);
+							queued.add(probe);
+							ensureRunning(failed);
+						}
+						probe.subscribers.add(subscriber);
+
+						final Probe joined = probe;
+						subscriber.add(Subscriptions.create(new Action0() {
+							@Override public void call() {
+								synchronized (lock) {
+									joined.subscribers.remove(subscriber);
+									if (joined.subscribers.isEmpty() && queued.remove(joined)) probes.remove(endpoint);
+								}
+							}
+						}));
+					}
+				}
+				deliver(failed);
+				if (cached != null) {
+					subscriber.onNext(cached);
+					subscriber.onCompleted();
+				}
+			}
+		});
+	}
+
+	/* Begin static */
+
+	/**
+	 * Probe of a single endpoint, shared by all of its subscribers
+	 */
+	private static final class Probe {
+
+		/** Probed endpoint */
+		private final InetSocketAddress endpoint;
+		/** Subscribers waiting for the result */
+		private final List<Subscriber<? super Long>> subscribers = new ArrayList<>(1);
+		/** Subscribers to report the result to, once the probe finished */
+		private List<Subscriber<? super Long>> finished;
+		/** Channel of the probe, once it started */
+		private SocketChannel channel;
+		/** Time at which the probe started, in nanoseconds */
+		private long startNanos;
+		/** Time at which the probe times out, in nanoseconds */
+		private long deadlineNanos;
+		/** Round-trip time once connected, {@link #UNREACHABLE} once failed, or 0 while in flight */
+		private long rttNanos;
+
+		private Probe(InetSocketAddress endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		private void close() {
+			if (channel == null) return;
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Result of a probe
+	 */
+	private static final class Result {
+
+		/** Round-trip time of the connect, or {@link #UNREACHABLE} */
+		private final long rttNanos;
+		/** Time until which the result is fresh, in nanoseconds */
+		private final long deadlineNanos;
+
+		private Result(long rttNanos, long deadlineNanos) {
+			this.rttNanos = rttNanos;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
+}
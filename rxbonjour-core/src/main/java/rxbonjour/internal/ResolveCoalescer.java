@@ -0,0 +1,233 @@
+package rxbonjour.internal;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bookkeeping of in-flight and recently completed resolves, keyed by service name and type.
+ * Discovery implementations consult it before resolving a found service, so that repeated announcements of the same
+ * service either join the resolve already in progress or are answered from the result of a recent one.
+ *
+ * @param <T> Type of resolve results
+ */
+public final class ResolveCoalescer<T> {
+
+	/** Default time after which an in-flight resolve is considered lost, and may be started again */
+	public static final long DEFAULT_PENDING_MILLIS = 10000L;
+	/** Default time for which the result of a resolve is considered fresh */
+	public static final long DEFAULT_FRESH_MILLIS = 30000L;
+
+	/** Entries, keyed by service name and type */
+	private final Map<Key, Entry<T>> entries = new HashMap<>();
+	/** Time after which an in-flight resolve is considered lost, in nanoseconds */
+	private final long pendingNanos;
+	/** Time for which the result of a resolve is considered fresh, in nanoseconds */
+	private final long freshNanos;
+
+	/**
+	 * Constructor, using the default timings
+	 */
+	public ResolveCoalescer() {
+		this(DEFAULT_PENDING_MILLIS, DEFAULT_FRESH_MILLIS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param pendingMillis Time after which an in-flight resolve is considered lost, and may be started again
+	 * @param freshMillis   Time for which the result of a resolve is considered fresh
+	 */
+	public ResolveCoalescer(long pendingMillis, long freshMillis) {
+		this.pendingNanos = TimeUnit.MILLISECONDS.toNanos(pendingMillis);
+		this.freshNanos = TimeUnit.MILLISECONDS.toNanos(freshMillis);
+	}
+
+	/* Begin public */
+
+	/**
+	 * Registers interest in the resolve result of the provided service.
+	 * If a resolve is already in flight, the waiter joins it, unless it is waiting for it already;
+	 * if a fresh result is available, the waiter is answered right away.
+	 * Otherwise, the caller is expected to start a resolve, and report its outcome through {@link #complete(String, String, Object)}
+	 * or {@link #fail(String, String)}.
+	 *
+	 * @param name   Name of the service
+	 * @param type   Type of the service
+	 * @param waiter Callback notified of the result, or null if the caller receives results through other means
+	 * @return True if the caller should start a resolve, false if it was coalesced with an existing one
+	 */
+	public boolean begin(String name, String type, Callback<T> waiter) {
+		T freshResult;
+		synchronized (entries) {
+			Key key = new Key(name, type);
+			Entry<T> entry = entries.get(key);
+			long now = System.nanoTime();
+
+			if (entry != null && entry.result == null && now - entry.timestamp < pendingNanos) {
+				// Join the resolve in flight
+				if (waiter != null) entry.waiters.add(waiter);
+				return false;
+
+			} else if (entry != null && entry.result != null && now - entry.timestamp < freshNanos) {
+				// Answer from fresh data, outside of the lock
+				freshResult = entry.result;
+
+			} else {
+				// Start a new resolve, taking over the waiters of a lost one
+				Entry<T> started = new Entry<>(now);
+				if (entry != null && entry.result == null) started.waiters.addAll(entry.waiters);
+				if (waiter != null) started.waiters.add(waiter);
+				entries.put(key, started);
+				return true;
+			}
+		}
+
+		if (waiter != null) waiter.onResolved(freshResult);
+		return false;
+	}
+
+	/**
+	 * Stores the result of a resolve, and notifies all waiters of it.
+	 *
+	 * @param name   Name of the service
+	 * @param type   Type of the service
+	 * @param result Result of the resolve
+	 */
+	public void complete(String name, String type, T result) {
+		Set<Callback<T>> waiters;
+		synchronized (entries) {
+			Key key = new Key(name, type);
+			Entry<T> entry = entries.get(key);
+			waiters = entry != null ? entry.waiters : null;
+
+			Entry<T> completed = new Entry<>(System.nanoTime());
+			completed.result = result;
+			entries.put(key, completed);
+		}
+
+		if (waiters != null) {
+			for (Callback<T> waiter : waiters) {
+				waiter.onResolved(result);
+			}
+		}
+	}
+
+	/**
+	 * Returns the result of a recent resolve of the provided service, if it's still fresh.
+	 *
+	 * @param name Name of the service
+	 * @param type Type of the service
+	 * @return The fresh result, or null if there is none
+	 */
+	public T getFresh(String name, String type) {
+		synchronized (entries) {
+			Entry<T> entry = entries.get(new Key(name, type));
+			if (entry != null && entry.result != null && System.nanoTime() - entry.timestamp < freshNanos) {
+				return entry.result;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Discards a failed resolve and notifies its waiters, so that the next announcement of the service starts a new one.
+	 *
+	 * @param name Name of the service
+	 * @param type Type of the service
+	 */
+	public void fail(String name, String type) {
+		Set<Callback<T>> waiters;
+		synchronized (entries) {
+			Entry<T> entry = entries.remove(new Key(name, type));
+			waiters = entry != null && entry.result == null ? entry.waiters : null;
+		}
+
+		if (waiters != null) {
+			for (Callback<T> waiter : waiters) {
+				waiter.onFailed();
+			}
+		}
+	}
+
+	/**
+	 * Discards everything known about the provided service, e.g. because it was lost.
+	 *
+	 * @param name Name of the service
+	 * @param type Type of the service
+	 */
+	public void forget(String name, String type) {
+		synchronized (entries) {
+			entries.remove(new Key(name, type));
+		}
+	}
+
+	/**
+	 * Discards all entries
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/* Begin static */
+
+	/**
+	 * Callback notified of the outcome of a resolve
+	 *
+	 * @param <T> Type of resolve results
+	 */
+	public interface Callback<T> {
+
+		void onResolved(T result);
+
+		void onFailed();
+	}
+
+	/**
+	 * State of a resolve: in flight while its result is null, completed otherwise
+	 */
+	private static final class Entry<T> {
+
+		private final long timestamp;
+		private final Set<Callback<T>> waiters = new LinkedHashSet<>(2);
+		private T result;
+
+		private Entry(long timestamp) {
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * Key of an entry, identifying a service instance by name and type
+	 */
+	private static final class Key {
+
+		private final String name;
+		private final String type;
+
+		private Key(String name, String type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+
+			Key that = (Key) o;
+
+			if (name != null ? !name.equals(that.name) : that.name != null) return false;
+			return !(type != null ? !type.equals(that.type) : that.type != null);
+		}
+
+		@Override public int hashCode() {
+			int result = name != null ? name.hashCode() : 0;
+			result = 31 * result + (type != null ? type.hashCode() : 0);
+			return result;
+		}
+	}
+}
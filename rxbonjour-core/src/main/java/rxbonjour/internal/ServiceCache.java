@@ -0,0 +1,245 @@
+package rxbonjour.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import rxbonjour.model.BonjourService;
+
+/**
+ * Cache of resolved services and the time-to-live of their records. Services whose TTL runs out without being refreshed
+ * are reported to the cache's listener, allowing discoveries to report devices that vanished without sending a goodbye packet.
+ *
+ * Expiry is tracked on a hashed timing wheel: a ring of slots, each holding the services expiring within one tick.
+ * A single periodic task advances the wheel while the cache isn't empty, so that refreshing, removing and expiring a service
+ * takes constant time regardless of the number of cached services, without any per-service timers.
+ */
+final class ServiceCache {
+
+	/** TTL assumed for services whose records don't provide one, in seconds (RFC 6762's recommendation for SRV records) */
+	static final int DEFAULT_TTL_SECONDS = 120;
+
+	/** Default length of one tick of the wheel, in milliseconds */
+	private static final long DEFAULT_TICK_MILLIS = 1000L;
+	/** Default number of slots of the wheel */
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/** Listener notified of expired services */
+	private final Listener listener;
+	/** Scheduler on which the wheel is advanced */
+	private final Scheduler scheduler;
+	/** Length of one tick, in milliseconds */
+	private final long tickMillis;
+	/** Slots of the wheel, each the head of a doubly-linked list of entries. Its length is a power of two */
+	private final Entry[] wheel;
+	/** Entries, keyed by service name and type */
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	/** Worker advancing the wheel, or null while the cache is empty */
+	private Scheduler.Worker worker;
+	/** Time at which the wheel started turning, in milliseconds */
+	private long startMillis;
+	/** Number of ticks processed since the wheel started turning */
+	private long currentTick;
+
+	/**
+	 * Constructor, using the default timings
+	 *
+	 * @param listener Listener notified of expired services
+	 */
+	ServiceCache(Listener listener) {
+		this(listener, Schedulers.computation(), DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param listener   Listener notified of expired services
+	 * @param scheduler  Scheduler on which the wheel is advanced
+	 * @param tickMillis Length of one tick, in milliseconds. Expiry is reported with this granularity
+	 * @param wheelSize  Number of slots of the wheel, rounded up to the next power of two
+	 */
+	ServiceCache(Listener listener, Scheduler scheduler, long tickMillis, int wheelSize) {
+		this.listener = listener;
+		this.scheduler = scheduler;
+		this.tickMillis = tickMillis;
+		this.wheel = new Entry[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+	}
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/**
+	 * Links the provided entry into the slot of its deadline. Must be called while holding the cache's lock.
+	 */
+	private void link(Entry entry) {
+		int slot = (int) (entry.deadlineTick & (wheel.length - 1));
+		entry.slot = slot;
+		entry.prev = null;
+		entry.next = wheel[slot];
+		if (entry.next != null) entry.next.prev = entry;
+		wheel[slot] = entry;
+	}
+
+	/**
+	 * Unlinks the provided entry from its slot. Must be called while holding the cache's lock.
+	 */
+	private void unlink(Entry entry) {
+		if (entry.prev != null) entry.prev.next = entry.next;
+		else wheel[entry.slot] = entry.next;
+		if (entry.next != null) entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * Starts turning the wheel, if it isn't already. Must be called while holding the cache's lock.
+	 */
+	private void startWheel() {
+		if (worker != null) return;
+		worker = scheduler.createWorker();
+		startMillis = scheduler.now();
+		currentTick = 0;
+		worker.schedulePeriodically(new Action0() {
+			@Override public void call() {
+				advance();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops turning the wheel. Must be called while holding the cache's lock.
+	 */
+	private void stopWheel() {
+		if (worker == null) return;
+		worker.unsubscribe();
+		worker = null;
+	}
+
+	/**
+	 * Processes all ticks elapsed since the last call, collecting the entries whose deadline passed, and notifies the listener of them.
+	 */
+	private void advance() {
+		List<BonjourService> expired = null;
+		synchronized (this) {
+			if (worker == null) return;
+
+			// Catch up on ticks that were delayed, visiting every slot at most once
+			long targetTick = (scheduler.now() - startMillis) / tickMillis;
+			long firstTick = Math.max(currentTick + 1, targetTick - wheel.length + 1);
+			for (long tick = firstTick; tick <= targetTick; tick++) {
+				Entry entry = wheel[(int) (tick & (wheel.length - 1))];
+				while (entry != null) {
+					Entry next = entry.next;
+					if (entry.deadlineTick <= targetTick) {
+						unlink(entry);
+						entries.remove(entry.key);
+						if (expired == null) expired = new ArrayList<>();
+						expired.add(entry.service);
+					}
+					entry = next;
+				}
+			}
+			currentTick = Math.max(currentTick, targetTick);
+			if (entries.isEmpty()) stopWheel();
+		}
+
+		// Notify the listener outside of the lock, so that it may re-add services
+		if (expired != null) {
+			for (BonjourService service : expired) {
+				listener.onExpired(this, service);
+			}
+		}
+	}
+
+	/* Begin public */
+
+	/**
+	 * Adds the provided service to the cache, or refreshes it if it's already contained.
+	 *
+	 * @param service    Resolved service
+	 * @param ttlSeconds Time-to-live of the service's records, in seconds
+	 */
+	synchronized void put(BonjourService service, int ttlSeconds) {
+		String key = key(service);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			entries.put(key, entry);
+		} else {
+			unlink(entry);
+		}
+		startWheel();
+
+		// Round up to the next tick, so that services never expire early
+		long ttlTicks = (TimeUnit.SECONDS.toMillis(Math.max(1, ttlSeconds)) + tickMillis - 1) / tickMillis;
+		long nowTick = (scheduler.now() - startMillis) / tickMillis;
+		entry.service = service;
+		entry.deadlineTick = Math.max(nowTick, currentTick) + ttlTicks;
+		link(entry);
+	}
+
+	/**
+	 * Removes the provided service from the cache, e.g. because it was lost.
+	 *
+	 * @param service Service to remove
+	 */
+	synchronized void remove(BonjourService service) {
+		Entry entry = entries.remove(key(service));
+		if (entry != null) unlink(entry);
+		if (entries.isEmpty()) stopWheel();
+	}
+
+	/**
+	 * @return The number of services in the cache
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes all services from the cache, and stops the wheel
+	 */
+	synchronized void clear() {
+		entries.clear();
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = null;
+		}
+		stopWheel();
+	}
+
+	/* Begin static */
+
+	/**
+	 * Listener notified of services whose TTL ran out. Expired services are removed from the cache before the listener is notified.
+	 */
+	interface Listener {
+
+		void onExpired(ServiceCache cache, BonjourService service);
+	}
+
+	/**
+	 * Cached service, linked into the slot of the tick it expires at
+	 */
+	private static final class Entry {
+
+		private final String key;
+		private BonjourService service;
+		private long deadlineTick;
+		private int slot;
+		private Entry prev;
+		private Entry next;
+
+		private Entry(String key) {
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package rxbonjour.internal;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.BonjourServiceDiff;
+
+/**
+ * Collapses the events of discoveries running on several network interfaces into the events of a single discovery.
+ * A service seen on several interfaces is reported once, carrying the addresses learned on all of them, and is only reported
+ * as removed once it is gone from every interface. Changes to the addresses it is reachable at are reported as updates.
+ *
+ * The merger isn't thread-safe; the events of all interfaces must be applied in order, e.g. after merging their streams.
+ */
+final class ServiceMerger {
+
+	/** State of every service seen on any interface, keyed by service name and type */
+	private final Map<String, Entry> services = new HashMap<>();
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/**
+	 * Combines the states of a service reported by different interfaces. Port and TXT records are taken from the first interface
+	 * that resolved the service, and the addresses of all interfaces are joined, starting with those of the interface
+	 * that saw the service first.
+	 *
+	 * @param entry Service state
+	 * @return The combined service, or null if no interface resolved the service yet
+	 */
+	private static BonjourService merge(Entry entry) {
+		BonjourService base = null;
+		for (BonjourService service : entry.perInterface.values()) {
+			if (service.isResolved()) {
+				base = service;
+				break;
+			}
+		}
+		if (base == null) return null;
+
+		BonjourService.Builder builder = new BonjourService.Builder(base.getName(), base.getType())
+				.setPort(base.getPort())
+				.setTxtRecords(base.getTxtRecords());
+		for (BonjourService service : entry.perInterface.values()) {
+			for (InetAddress address : service.getAddresses()) {
+				builder.addAddress(address);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reports the current state of a service that is still seen on at least one interface, if it changed.
+	 *
+	 * @param entry  Service state
+	 * @param events Events to add the update to
+	 */
+	private static void report(Entry entry, List<BonjourEvent> events) {
+		BonjourService merged = merge(entry);
+		if (merged == null) return;
+
+		if (entry.reported == null) {
+			events.add(new BonjourEvent(BonjourEvent.Type.ADDED, merged));
+		} else {
+			BonjourServiceDiff diff = BonjourServiceDiff.between(entry.reported, merged);
+			if (diff.isEmpty()) return;
+			events.add(new BonjourEvent(BonjourEvent.Type.UPDATED, merged, diff));
+		}
+		entry.reported = merged;
+	}
+
+	/**
+	 * Forgets about a service on the provided interface, and reports it as removed once it is gone from all interfaces.
+	 *
+	 * @param key            Service key
+	 * @param entry          Service state
+	 * @param interfaceKey   Interface that lost the service
+	 * @param removedService Service to report as removed, if the entry doesn't hold a better one
+	 * @param events         Events to add the removal or update to
+	 */
+	private void remove(String key, Entry entry, String interfaceKey, BonjourService removedService, List<BonjourEvent> events) {
+		if (entry.perInterface.remove(interfaceKey) == null) return;
+		if (entry.perInterface.isEmpty()) {
+			services.remove(key);
+			events.add(new BonjourEvent(BonjourEvent.Type.REMOVED, entry.reported != null ? entry.reported : removedService));
+		} else {
+			report(entry, events);
+		}
+	}
+
+	/* Begin public */
+
+	/**
+	 * Applies an event reported by the discovery on the provided interface.
+	 *
+	 * @param interfaceKey Interface on which the event was reported
+	 * @param event        Event of the interface's discovery
+	 * @return The events to report for the combined discovery, which may be empty
+	 */
+	List<BonjourEvent> apply(String interfaceKey, BonjourEvent event) {
+		BonjourService service = event.getService();
+		String key = key(service);
+		Entry entry = services.get(key);
+		List<BonjourEvent> events = new ArrayList<>(1);
+
+		switch (event.getType()) {
+			case FOUND:
+				if (entry == null) {
+					entry = new Entry();
+					services.put(key, entry);
+					events.add(event);
+				}
+				// Don't let a service found on one interface replace the resolved state of another interface
+				if (!entry.perInterface.containsKey(interfaceKey)) entry.perInterface.put(interfaceKey, service);
+				break;
+
+			case ADDED:
+			case UPDATED:
+				if (entry == null) {
+					entry = new Entry();
+					services.put(key, entry);
+				}
+				entry.perInterface.put(interfaceKey, service);
+				report(entry, events);
+				break;
+
+			case REMOVED:
+				if (entry != null) remove(key, entry, interfaceKey, service, events);
+				break;
+
+			default:
+				events.add(event);
+				break;
+		}
+		return events;
+	}
+
+	/**
+	 * Forgets about all services seen on the provided interface, e.g. because its discovery stopped working.
+	 *
+	 * @param interfaceKey Interface that was lost
+	 * @return The events to report for the combined discovery, which may be empty
+	 */
+	List<BonjourEvent> interfaceLost(String interfaceKey) {
+		List<BonjourEvent> events = new ArrayList<>();
+		for (Map.Entry<String, Entry> service : new ArrayList<>(services.entrySet())) {
+			BonjourService lost = service.getValue().perInterface.get(interfaceKey);
+			if (lost != null) remove(service.getKey(), service.getValue(), interfaceKey, lost, events);
+		}
+		return events.isEmpty() ? Collections.<BonjourEvent>emptyList() : events;
+	}
+
+	/* Begin static */
+
+	/**
+	 * State of a service across interfaces
+	 */
+	private static final class Entry {
+
+		/** Last state of the service reported by each interface that sees it, in the order the interfaces saw it */
+		private final Map<String, BonjourService> perInterface = new LinkedHashMap<>();
+		/** Combined service last reported as added or updated, or null if it was only reported as found */
+		private BonjourService reported;
+	}
+}
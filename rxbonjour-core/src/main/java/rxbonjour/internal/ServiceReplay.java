@@ -0,0 +1,96 @@
+package rxbonjour.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+/**
+ * Replays previously known services ahead of a live stream of Bonjour events, and re-verifies them against it:
+ * known services are reported as {@link BonjourEvent.Type#CACHED} right away, and as {@link BonjourEvent.Type#REMOVED}
+ * if the live stream doesn't report them again within a timeout.
+ */
+final class ServiceReplay {
+
+	/** Time after which known services not confirmed by the live discovery are reported as removed, in seconds */
+	static final long DEFAULT_CONFIRM_TIMEOUT_SECONDS = 10L;
+
+	private ServiceReplay() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Returns a Transformer prepending the provided services to a stream of Bonjour events, and reporting those that the stream
+	 * doesn't confirm in time as removed. Any event of the stream other than CACHED confirms the service it refers to.
+	 * Each subscriber re-verifies the services on its own.
+	 *
+	 * @param known     Previously known services
+	 * @param timeout   Time to wait for known services to be confirmed
+	 * @param unit      Time unit of the timeout
+	 * @param scheduler Scheduler on which the timeout is timed
+	 * @return A Transformer for the live stream of Bonjour events
+	 */
+	static Observable.Transformer<BonjourEvent, BonjourEvent> replay(final Collection<BonjourService> known, final long timeout, final TimeUnit unit, final Scheduler scheduler) {
+		return new Observable.Transformer<BonjourEvent, BonjourEvent>() {
+			@Override public Observable<BonjourEvent> call(final Observable<BonjourEvent> events) {
+				if (known.isEmpty()) return events;
+
+				return Observable.defer(new Func0<Observable<BonjourEvent>>() {
+					@Override public Observable<BonjourEvent> call() {
+						// Known services not yet confirmed by the live stream, guarded by the map itself
+						final Map<String, BonjourService> unconfirmed = new LinkedHashMap<>();
+						List<BonjourEvent> cachedEvents = new ArrayList<>(known.size());
+						for (BonjourService service : known) {
+							unconfirmed.put(key(service), service);
+							cachedEvents.add(new BonjourEvent(BonjourEvent.Type.CACHED, service));
+						}
+
+						Observable<BonjourEvent> live = events.doOnNext(new Action1<BonjourEvent>() {
+							@Override public void call(BonjourEvent event) {
+								if (event.getType() == BonjourEvent.Type.CACHED) return;
+								synchronized (unconfirmed) {
+									unconfirmed.remove(key(event.getService()));
+								}
+							}
+						});
+
+						Observable<BonjourEvent> expired = Observable.timer(timeout, unit, scheduler)
+								.concatMap(new Func1<Long, Observable<BonjourEvent>>() {
+									@Override public Observable<BonjourEvent> call(Long ignored) {
+										List<BonjourEvent> removals;
+										synchronized (unconfirmed) {
+											removals = new ArrayList<>(unconfirmed.size());
+											for (BonjourService service : unconfirmed.values()) {
+												removals.add(new BonjourEvent(BonjourEvent.Type.REMOVED, service));
+											}
+											unconfirmed.clear();
+										}
+										return Observable.from(removals);
+									}
+								});
+
+						return Observable.from(cachedEvents).concatWith(live.mergeWith(expired));
+					}
+				});
+			}
+		};
+	}
+}
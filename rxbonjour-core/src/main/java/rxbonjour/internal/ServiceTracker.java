@@ -0,0 +1,55 @@
+package rxbonjour.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.BonjourServiceDiff;
+
+/**
+ * Remembers the last state of every service reported to a subscriber, so that repeated resolves of the same service
+ * are reported as {@link BonjourEvent.Type#UPDATED} with a field-level diff, or suppressed altogether if nothing changed.
+ */
+final class ServiceTracker {
+
+	/** Last reported state of every service, keyed by service name and type */
+	private final Map<String, BonjourService> reported = new HashMap<>();
+
+	/* Begin private */
+
+	private static String key(BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/* Begin public */
+
+	/**
+	 * Records a resolved state of the provided service, and returns the event to report for it.
+	 *
+	 * @param service Resolved service
+	 * @return An ADDED event for services not reported before, an UPDATED event for services whose fields changed,
+	 * or null if the service is identical to the one reported last
+	 */
+	synchronized BonjourEvent resolved(BonjourService service) {
+		BonjourService previous = reported.put(key(service), service);
+		if (previous == null) return new BonjourEvent(BonjourEvent.Type.ADDED, service);
+
+		BonjourServiceDiff diff = BonjourServiceDiff.between(previous, service);
+		if (diff.isEmpty()) {
+			// Keep the instance that was reported
+			reported.put(key(service), previous);
+			return null;
+		}
+		return new BonjourEvent(BonjourEvent.Type.UPDATED, service, diff);
+	}
+
+	/**
+	 * Forgets about the provided service, e.g. because it was lost.
+	 *
+	 * @param service Lost service
+	 */
+	synchronized void removed(BonjourService service) {
+		reported.remove(key(service));
+	}
+}
@@ -0,0 +1,37 @@
+package rxbonjour.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import rxbonjour.model.EngineStartup;
+
+/**
+ * Measures the phases of an engine startup. Each phase lasts from the end of the previous one, or the creation of the timer,
+ * until it is marked.
+ */
+public final class StartupTimer {
+
+	/** Duration of the phases marked so far, in nanoseconds */
+	private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+	/** Time at which the current phase started, in nanoseconds */
+	private long phaseStart = System.nanoTime();
+
+	/**
+	 * Ends the current phase, and starts the next one.
+	 *
+	 * @param phase Name of the ended phase
+	 */
+	public void mark(String phase) {
+		long now = System.nanoTime();
+		phaseNanos.put(phase, now - phaseStart);
+		phaseStart = now;
+	}
+
+	/**
+	 * @param reused True if an already running engine was reused
+	 * @return The timing of the phases marked so far
+	 */
+	public EngineStartup finish(boolean reused) {
+		return new EngineStartup(reused, phaseNanos);
+	}
+}
@@ -0,0 +1,81 @@
+package rxbonjour.model;
+
+import javax.annotation.Nullable;
+
+/**
+ * Event container class broadcast by discovery implementations.
+ * Contains Bonjour service data, as well as information on whether the service was just discovered
+ * or lost.
+ * 
+ * Discoveries using lazy resolution report discovered services as {@link Type#FOUND} without resolving them;
+ * such services only carry their name and type. Services that were already reported as {@link Type#ADDED} and whose records change
+ * afterwards are reported as {@link Type#UPDATED}, along with a {@link BonjourServiceDiff} describing the changed fields.
+ * Discoveries using a persistent cache report the services known from previous runs as {@link Type#CACHED} right away,
+ * before the live discovery confirms them as ADDED, or reports them as REMOVED if they don't show up.
+ */
+public class BonjourEvent {
+
+	public enum Type {
+		ADDED,
+		REMOVED,
+		FOUND,
+		UPDATED,
+		CACHED
+	}
+
+	private Type mType;
+	private BonjourService mService;
+	private BonjourServiceDiff mDiff;
+
+	public BonjourEvent(Type type, BonjourService service) {
+		this(type, service, null);
+	}
+
+	public BonjourEvent(Type type, BonjourService service, BonjourServiceDiff diff) {
+		mType = type;
+		mService = service;
+		mDiff = diff;
+	}
+
+	public Type getType() {
+		return mType;
+	}
+
+	public BonjourService getService() {
+		return mService;
+	}
+
+	/**
+	 * @return The fields that changed since the service was last reported, or null if this isn't an {@link Type#UPDATED} event
+	 */
+	public @Nullable BonjourServiceDiff getDiff() {
+		return mDiff;
+	}
+
+	@Override public String toString() {
+		return "BonjourEvent{" +
+				"type=" + mType +
+				", service=" + mService +
+				(mDiff != null ? ", diff=" + mDiff : "") +
+				'}';
+	}
+
+	@Override public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof BonjourEvent)) return false;
+
+		BonjourEvent that = (BonjourEvent) o;
+
+		if (mType != that.mType) return false;
+		if (mService != null ? !mService.equals(that.mService) : that.mService != null) return false;
+		return !(mDiff != null ? !mDiff.equals(that.mDiff) : that.mDiff != null);
+
+	}
+
+	@Override public int hashCode() {
+		int result = mType != null ? mType.hashCode() : 0;
+		result = 31 * result + (mService != null ? mService.hashCode() : 0);
+		result = 31 * result + (mDiff != null ? mDiff.hashCode() : 0);
+		return result;
+	}
+}
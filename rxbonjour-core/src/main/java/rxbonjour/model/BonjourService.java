@@ -0,0 +1,300 @@
+package rxbonjour.model;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Resolved Bonjour service detected within the device's local network.
+ */
+public class BonjourService {
+
+	private String mName;
+	private String mType;
+	private List<InetAddress> mAddresses;
+	private Inet4Address mV4Host;
+	private Inet6Address mV6Host;
+	private int mPort;
+	private TxtRecords mTxtRecords;
+	private long mRttNanos;
+
+	private BonjourService(String name, String type, List<InetAddress> addresses, int port, TxtRecords txtRecords, long rttNanos) {
+		mName = name;
+		mType = type;
+		mAddresses = addresses;
+		for (InetAddress address : addresses) {
+			if (mV4Host == null && address instanceof Inet4Address) mV4Host = (Inet4Address) address;
+			if (mV6Host == null && address instanceof Inet6Address) mV6Host = (Inet6Address) address;
+		}
+		mPort = port;
+		mTxtRecords = txtRecords;
+		mRttNanos = rttNanos;
+	}
+
+	/**
+	 * @return The service's display name, e.g. 'Office Printer'
+	 */
+	public @Nonnull String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return The service's type, e.g. '_http._tcp.local.'
+	 */
+	public @Nonnull String getType() {
+		return mType;
+	}
+
+	/**
+	 * Obtains the host address of the service.
+	 * For services with both an IPv4 <strong>and</strong> an IPv6 address, the former address takes precedence over the latter,
+	 * so that it always favors the v4 address over the v6 one.
+	 * 
+	 * If you need to access specific addresses, consider using {@link #getV4Host()} and {@link #getV6Host()}, respectively,
+	 * or {@link #getAddresses()} for all of them.
+	 *
+	 * @return A host address of the service, or null if the service hasn't been resolved
+	 */
+	public @Nullable InetAddress getHost() {
+		return (mV4Host != null) ? mV4Host : mV6Host;
+	}
+
+	/**
+	 * Checks whether or not the service was resolved. Services reported by discoveries using lazy resolution
+	 * only carry their name and type, until they are resolved on demand.
+	 *
+	 * @return True if the service carries a host address
+	 */
+	public boolean isResolved() {
+		return !mAddresses.isEmpty();
+	}
+
+	/**
+	 * Returns an unmodifiable List containing all host addresses of the service, IPv4 and IPv6 alike, in the order they were learned.
+	 * Link-local IPv6 addresses are scoped to the network interface they were learned on, so that they can be connected to directly.
+	 *
+	 * @return The service's host addresses, which is empty if the service hasn't been resolved
+	 */
+	public @Nonnull List<InetAddress> getAddresses() {
+		return mAddresses;
+	}
+
+	/**
+	 * @return The first IPv4 host address of the service, or null if it doesn't provide any
+	 */
+	public @Nullable Inet4Address getV4Host() {
+		return mV4Host;
+	}
+
+	/**
+	 * @return The first IPv6 host address of the service, or null if it doesn't provide any
+	 */
+	public @Nullable Inet6Address getV6Host() {
+		return mV6Host;
+	}
+
+	/**
+	 * @return The port on which the service is being broadcast
+	 */
+	public int getPort() {
+		return mPort;
+	}
+
+	/**
+	 * Returns the round-trip time of a TCP connection to the service, measured by discoveries that probe reachability.
+	 * The round-trip time doesn't take part in comparing services.
+	 *
+	 * @return The round-trip time in nanoseconds, or -1 if it wasn't measured
+	 */
+	public long getRttNanos() {
+		return mRttNanos;
+	}
+
+	/**
+	 * @return The number of TXT records associated with the service
+	 */
+	public int getTxtRecordCount() {
+		return mTxtRecords.size();
+	}
+
+	/**
+	 * Returns an immutable Map containing all TXT records associated with the service, stored as &lt;String, String&gt; key-value pairs.
+	 * Values are decoded from their raw bytes as UTF-8 when they are accessed; use {@link #getTxtRecordBytes(String)} for binary values.
+	 * 
+	 * If the service doesn't have any TXT records, or none could be resolved, this returns an empty Map.
+	 *
+	 * @return A Map containing the service's TXT records
+	 */
+	public @Nonnull TxtRecords getTxtRecords() {
+		return mTxtRecords;
+	}
+
+	/**
+	 * Returns the raw value of the specific TXT record with the provided key, as received from the network.
+	 *
+	 * @param key Key of the TXT record
+	 * @return A copy of the raw value for the provided key, or null if absent or without a value
+	 */
+	public @Nullable byte[] getTxtRecordBytes(String key) {
+		return mTxtRecords.getBytes(key);
+	}
+
+	/**
+	 * Returns the specific TXT record with the provided key, falling back to the default value if this TXT record doesn't exist.
+	 *
+	 * @param key          Key of the TXT record
+	 * @param defaultValue Value to return if the TXT record isn't contained in the service's records
+	 * @return The associated value for the provided key, or the default value if absent
+	 */
+	public String getTxtRecord(String key, String defaultValue) {
+		String value = mTxtRecords.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * Returns the specific TXT record with the provided key, or null if no such mapping exists.
+	 * This method is a shorthand for <pre>getTxtRecord(key, null)</pre>
+	 *
+	 * @param key Key of the TXT record
+	 * @return The associated value for the provided key, or null if absent
+	 */
+	public @Nullable String getTxtRecord(String key) {
+		return getTxtRecord(key, null);
+	}
+
+	@Override public String toString() {
+		return "BonjourService{" +
+				"name='" + mName + '\'' +
+				", type='" + mType + '\'' +
+				", addresses=" + mAddresses +
+				", port=" + mPort +
+				'}';
+	}
+
+	@Override public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof BonjourService)) return false;
+
+		BonjourService that = (BonjourService) o;
+
+		if (mPort != that.mPort) return false;
+		if (!mName.equals(that.mName)) return false;
+		if (!mType.equals(that.mType)) return false;
+		return sameAddresses(mAddresses, that.mAddresses);
+	}
+
+	@Override public int hashCode() {
+		int result = mName != null ? mName.hashCode() : 0;
+		result = 31 * result + (mType != null ? mType.hashCode() : 0);
+		result = 31 * result + mAddresses.hashCode();
+		result = 31 * result + mPort;
+		return result;
+	}
+
+	/* Begin static */
+
+	/**
+	 * Compares two addresses, taking the scope of IPv6 addresses into account, which {@link InetAddress#equals(Object)} ignores.
+	 *
+	 * @param a An address
+	 * @param b Another address
+	 * @return True if both addresses are equal and share the same scope
+	 */
+	static boolean sameAddress(InetAddress a, InetAddress b) {
+		if (!a.equals(b)) return false;
+		return !(a instanceof Inet6Address) || ((Inet6Address) a).getScopeId() == ((Inet6Address) b).getScopeId();
+	}
+
+	/**
+	 * Compares two lists of addresses element by element, taking the scope of IPv6 addresses into account.
+	 *
+	 * @param a A list of addresses
+	 * @param b Another list of addresses
+	 * @return True if both lists hold the same addresses in the same order
+	 */
+	static boolean sameAddresses(List<InetAddress> a, List<InetAddress> b) {
+		if (a.size() != b.size()) return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (!sameAddress(a.get(i), b.get(i))) return false;
+		}
+		return true;
+	}
+
+	public static final class Builder {
+
+		private String mName;
+		private String mType;
+		private List<InetAddress> mAddresses;
+		private int mPort;
+		private TxtRecords mTxtRecords = TxtRecords.EMPTY;
+		private TxtRecords.Builder mTxtBuilder;
+		private long mRttNanos = -1L;
+
+		public Builder(String name, String type) {
+			mName = name;
+			mType = type;
+		}
+
+		public Builder(BonjourService service) {
+			mName = service.mName;
+			mType = service.mType;
+			mAddresses = new ArrayList<>(service.mAddresses);
+			mPort = service.mPort;
+			mTxtRecords = service.mTxtRecords;
+			mRttNanos = service.mRttNanos;
+		}
+
+		public Builder addAddress(InetAddress address) {
+			if (address == null) return this;
+			if (mAddresses == null) mAddresses = new ArrayList<>(2);
+			for (InetAddress added : mAddresses) {
+				if (sameAddress(added, address)) return this;
+			}
+			mAddresses.add(address);
+			return this;
+		}
+
+		public Builder setPort(int port) {
+			mPort = port;
+			return this;
+		}
+
+		public Builder setRttNanos(long rttNanos) {
+			mRttNanos = rttNanos;
+			return this;
+		}
+
+		public Builder addTxtRecord(String key, String value) {
+			txtBuilder().put(key, value);
+			return this;
+		}
+
+		public Builder addTxtRecord(String key, byte[] value) {
+			txtBuilder().put(key, value);
+			return this;
+		}
+
+		public Builder setTxtRecords(TxtRecords txtRecords) {
+			mTxtRecords = txtRecords;
+			mTxtBuilder = null;
+			return this;
+		}
+
+		private TxtRecords.Builder txtBuilder() {
+			if (mTxtBuilder == null) mTxtBuilder = new TxtRecords.Builder(mTxtRecords);
+			return mTxtBuilder;
+		}
+
+		public BonjourService build() {
+			TxtRecords txtRecords = (mTxtBuilder != null) ? mTxtBuilder.build() : mTxtRecords;
+			List<InetAddress> addresses = (mAddresses != null) ? Collections.unmodifiableList(new ArrayList<>(mAddresses)) : Collections.<InetAddress>emptyList();
+			return new BonjourService(mName, mType, addresses, mPort, txtRecords, mRttNanos);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package rxbonjour.model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Field-level difference between two states of the same Bonjour service, carried by {@link BonjourEvent.Type#UPDATED} events.
+ */
+public final class BonjourServiceDiff {
+
+	private final boolean mAddressesChanged;
+	private final boolean mPortChanged;
+	private final Set<String> mChangedTxtKeys;
+
+	private BonjourServiceDiff(boolean addressesChanged, boolean portChanged, Set<String> changedTxtKeys) {
+		mAddressesChanged = addressesChanged;
+		mPortChanged = portChanged;
+		mChangedTxtKeys = changedTxtKeys;
+	}
+
+	/**
+	 * Computes the difference between two states of the same service.
+	 *
+	 * @param previous Previous state of the service
+	 * @param current  Current state of the service
+	 * @return The difference between both states, which is empty if they are identical
+	 */
+	public static @Nonnull BonjourServiceDiff between(@Nonnull BonjourService previous, @Nonnull BonjourService current) {
+		boolean addressesChanged = !BonjourService.sameAddresses(previous.getAddresses(), current.getAddresses());
+		boolean portChanged = previous.getPort() != current.getPort();
+
+		// Collect keys that were added, removed or changed their value, comparing raw values without decoding them
+		TxtRecords previousTxt = previous.getTxtRecords();
+		TxtRecords currentTxt = current.getTxtRecords();
+		Set<String> changedTxtKeys = null;
+		for (String key : currentTxt.keySet()) {
+			if (!currentTxt.sameValue(previousTxt, key)) {
+				if (changedTxtKeys == null) changedTxtKeys = new HashSet<>();
+				changedTxtKeys.add(key);
+			}
+		}
+		for (String key : previousTxt.keySet()) {
+			if (!currentTxt.containsKey(key)) {
+				if (changedTxtKeys == null) changedTxtKeys = new HashSet<>();
+				changedTxtKeys.add(key);
+			}
+		}
+
+		return new BonjourServiceDiff(addressesChanged, portChanged,
+				changedTxtKeys != null ? Collections.unmodifiableSet(changedTxtKeys) : Collections.<String>emptySet());
+	}
+
+	/**
+	 * Combines this difference with a subsequent one, as if both changes had been applied at once.
+	 *
+	 * @param next Difference following this one
+	 * @return The combined difference
+	 */
+	public @Nonnull BonjourServiceDiff union(@Nonnull BonjourServiceDiff next) {
+		Set<String> changedTxtKeys;
+		if (next.mChangedTxtKeys.isEmpty()) {
+			changedTxtKeys = mChangedTxtKeys;
+		} else if (mChangedTxtKeys.isEmpty()) {
+			changedTxtKeys = next.mChangedTxtKeys;
+		} else {
+			Set<String> union = new HashSet<>(mChangedTxtKeys);
+			union.addAll(next.mChangedTxtKeys);
+			changedTxtKeys = Collections.unmodifiableSet(union);
+		}
+		return new BonjourServiceDiff(mAddressesChanged || next.mAddressesChanged, mPortChanged || next.mPortChanged, changedTxtKeys);
+	}
+
+	/**
+	 * @return True if any host address of the service was added or removed, or the order of its addresses changed
+	 */
+	public boolean hasAddressesChanged() {
+		return mAddressesChanged;
+	}
+
+	/**
+	 * @return True if the port of the service changed
+	 */
+	public boolean hasPortChanged() {
+		return mPortChanged;
+	}
+
+	/**
+	 * @return The keys of TXT records that were added, removed or changed their value
+	 */
+	public @Nonnull Set<String> getChangedTxtKeys() {
+		return mChangedTxtKeys;
+	}
+
+	/**
+	 * @return True if neither addresses, port nor TXT records changed
+	 */
+	public boolean isEmpty() {
+		return !mAddressesChanged && !mPortChanged && mChangedTxtKeys.isEmpty();
+	}
+
+	@Override public String toString() {
+		return "BonjourServiceDiff{" +
+				"addressesChanged=" + mAddressesChanged +
+				", portChanged=" + mPortChanged +
+				", changedTxtKeys=" + mChangedTxtKeys +
+				'}';
+	}
+
+	@Override public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof BonjourServiceDiff)) return false;
+
+		BonjourServiceDiff that = (BonjourServiceDiff) o;
+
+		if (mAddressesChanged != that.mAddressesChanged) return false;
+		if (mPortChanged != that.mPortChanged) return false;
+		return mChangedTxtKeys.equals(that.mChangedTxtKeys);
+	}
+
+	@Override public int hashCode() {
+		int result = (mAddressesChanged ? 1 : 0);
+		result = 31 * result + (mPortChanged ? 1 : 0);
+		result = 31 * result + mChangedTxtKeys.hashCode();
+		return result;
+	}
+}
@@ -0,0 +1,73 @@
+package rxbonjour.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Timing of the startup of a discovery engine, broken down into its phases, as reported when prewarming an engine.
+ * Phases are named by the implementation, e.g. "multicastLock", "address" and "jmdns" for the support implementation,
+ * and are reported in the order they ran. An engine that was already running reports no phases.
+ */
+public final class EngineStartup {
+
+	private final boolean mReused;
+	private final Map<String, Long> mPhaseNanos;
+	private final long mTotalNanos;
+
+	public EngineStartup(boolean reused, Map<String, Long> phaseNanos) {
+		long total = 0;
+		for (long nanos : phaseNanos.values()) {
+			total += nanos;
+		}
+		mReused = reused;
+		mPhaseNanos = Collections.unmodifiableMap(new LinkedHashMap<>(phaseNanos));
+		mTotalNanos = total;
+	}
+
+	/**
+	 * @return True if an already running engine was reused, false if it had to be started
+	 */
+	public boolean isReused() {
+		return mReused;
+	}
+
+	/**
+	 * @return An unmodifiable Map of the duration of each startup phase in nanoseconds, in the order the phases ran
+	 */
+	public @Nonnull Map<String, Long> getPhaseNanos() {
+		return mPhaseNanos;
+	}
+
+	/**
+	 * @param phase Name of the phase
+	 * @return The duration of the phase in milliseconds, or 0 if the phase didn't run
+	 */
+	public long getPhaseMillis(String phase) {
+		Long nanos = mPhaseNanos.get(phase);
+		return nanos != null ? TimeUnit.NANOSECONDS.toMillis(nanos) : 0L;
+	}
+
+	/**
+	 * @return The total duration of all startup phases, in milliseconds
+	 */
+	public long getTotalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mTotalNanos);
+	}
+
+	@Override public String toString() {
+		StringBuilder phases = new StringBuilder();
+		for (Map.Entry<String, Long> entry : mPhaseNanos.entrySet()) {
+			if (phases.length() > 0) phases.append(", ");
+			phases.append(entry.getKey()).append('=').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+		}
+		return "EngineStartup{" +
+				"reused=" + mReused +
+				", phases={" + phases + '}' +
+				", totalMillis=" + getTotalMillis() +
+				'}';
+	}
+}
@@ -0,0 +1,184 @@
+package rxbonjour.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable snapshot of the services currently visible to a discovery, along with the delta that led to it from the previous snapshot.
+ * Services are indexed by a key combining their name and type, obtained through {@link #keyOf(BonjourService)}.
+ * Applying an event never modifies a snapshot; instead, a new snapshot is returned, so that snapshots can be safely
+ * held on to and compared across threads. A new snapshot shares all but the path to the affected service with its
+ * predecessor, so applying an event takes logarithmic time in the number of services, rather than copying all of them.
+ * The services of a snapshot are ordered by their key.
+ *
+ * On Android, use {@code RxBonjour.toServiceSet()} to turn a stream of Bonjour events into a stream of snapshots.
+ */
+public final class ServiceSet {
+
+	private static final ServiceSet EMPTY = new ServiceSet(ServiceTree.EMPTY, Delta.EMPTY);
+
+	private final ServiceTree mServices;
+	private final Delta mDelta;
+
+	private ServiceSet(ServiceTree services, Delta delta) {
+		mServices = services;
+		mDelta = delta;
+	}
+
+	/**
+	 * @return The empty snapshot, with an empty delta
+	 */
+	public static @Nonnull ServiceSet empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Returns the key under which the provided service is indexed. Different states of the same service instance share the same key.
+	 *
+	 * @param service Service to obtain the key of
+	 * @return The key of the service
+	 */
+	public static @Nonnull String keyOf(@Nonnull BonjourService service) {
+		return service.getName() + "/" + service.getType();
+	}
+
+	/**
+	 * Returns the snapshot resulting from applying the provided event to this one.
+	 * ADDED, UPDATED, FOUND and CACHED events insert or replace the service, REMOVED events remove it.
+	 * If the event doesn't change the set of services, this snapshot itself is returned.
+	 *
+	 * @param event Event to apply
+	 * @return The resulting snapshot, carrying the delta to this one
+	 */
+	public @Nonnull ServiceSet apply(@Nonnull BonjourEvent event) {
+		BonjourService service = event.getService();
+		String key = keyOf(service);
+		BonjourService previous = mServices.get(key);
+
+		if (event.getType() == BonjourEvent.Type.REMOVED) {
+			if (previous == null) return this;
+
+			return new ServiceSet(mServices.remove(key), new Delta(Collections.<String>emptySet(), Collections.singleton(key), Collections.<String>emptySet()));
+
+		} else {
+			// Don't let a lazily found or cached service replace a resolved state of it
+			if (previous != null && (service == previous || event.getType() == BonjourEvent.Type.FOUND || event.getType() == BonjourEvent.Type.CACHED)) return this;
+
+			Set<String> changed = Collections.singleton(key);
+			Set<String> none = Collections.emptySet();
+			return new ServiceSet(mServices.put(key, service), previous == null ? new Delta(changed, none, none) : new Delta(none, none, changed));
+		}
+	}
+
+	/**
+	 * @return The number of services in this snapshot
+	 */
+	public int size() {
+		return mServices.size();
+	}
+
+	/**
+	 * @return True if this snapshot doesn't contain any services
+	 */
+	public boolean isEmpty() {
+		return mServices.size() == 0;
+	}
+
+	/**
+	 * @param key Key of the service, as obtained through {@link #keyOf(BonjourService)}
+	 * @return True if this snapshot contains a service with the provided key
+	 */
+	public boolean contains(String key) {
+		return mServices.get(key) != null;
+	}
+
+	/**
+	 * @param key Key of the service, as obtained through {@link #keyOf(BonjourService)}
+	 * @return The service with the provided key, or null if this snapshot doesn't contain it
+	 */
+	public @Nullable BonjourService get(String key) {
+		return mServices.get(key);
+	}
+
+	/**
+	 * @return An unmodifiable view of the services in this snapshot, ordered by their key
+	 */
+	public @Nonnull Collection<BonjourService> getServices() {
+		return mServices.values();
+	}
+
+	/**
+	 * @return The delta from the previous snapshot to this one
+	 */
+	public @Nonnull Delta getDelta() {
+		return mDelta;
+	}
+
+	@Override public String toString() {
+		return "ServiceSet{" +
+				"services=" + mServices.values() +
+				", delta=" + mDelta +
+				'}';
+	}
+
+	/* Begin static */
+
+	/**
+	 * Keys of the services inserted, removed and changed between two consecutive snapshots.
+	 * Look up inserted and changed services in the new snapshot, and removed ones in the previous snapshot.
+	 */
+	public static final class Delta {
+
+		private static final Delta EMPTY = new Delta(Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+		private final Set<String> mInserted;
+		private final Set<String> mRemoved;
+		private final Set<String> mChanged;
+
+		private Delta(Set<String> inserted, Set<String> removed, Set<String> changed) {
+			mInserted = inserted;
+			mRemoved = removed;
+			mChanged = changed;
+		}
+
+		/**
+		 * @return Keys of services that weren't contained in the previous snapshot
+		 */
+		public @Nonnull Set<String> getInserted() {
+			return mInserted;
+		}
+
+		/**
+		 * @return Keys of services that are no longer contained in the snapshot
+		 */
+		public @Nonnull Set<String> getRemoved() {
+			return mRemoved;
+		}
+
+		/**
+		 * @return Keys of services whose state changed since the previous snapshot
+		 */
+		public @Nonnull Set<String> getChanged() {
+			return mChanged;
+		}
+
+		/**
+		 * @return True if no services were inserted, removed or changed
+		 */
+		public boolean isEmpty() {
+			return mInserted.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+		}
+
+		@Override public String toString() {
+			return "Delta{" +
+					"inserted=" + mInserted +
+					", removed=" + mRemoved +
+					", changed=" + mChanged +
+					'}';
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package rxbonjour.model;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Persistent map of services, backing the snapshots of {@link ServiceSet}. Implemented as an AVL tree ordered by service key:
+ * inserting or removing a service copies only the nodes on the path to it, and shares all other nodes with the previous tree.
+ * Each change thus takes logarithmic time and space, no matter how many services the tree holds.
+ */
+final class ServiceTree {
+
+	/** Tree without any services */
+	static final ServiceTree EMPTY = new ServiceTree(null);
+
+	/** Root node, or null if the tree is empty */
+	private final Node root;
+
+	private ServiceTree(Node root) {
+		this.root = root;
+	}
+
+	/* Begin private */
+
+	private static int height(Node node) {
+		return node != null ? node.height : 0;
+	}
+
+	private static int size(Node node) {
+		return node != null ? node.size : 0;
+	}
+
+	/**
+	 * Creates a node from the provided parts, restoring the balance of its subtrees if necessary.
+	 * The heights of the subtrees may differ by at most two, as is the case after a single insertion or removal.
+	 */
+	private static Node balance(String key, BonjourService value, Node left, Node right) {
+		int diff = height(left) - height(right);
+		if (diff > 1) {
+			if (height(left.left) >= height(left.right)) {
+				// Single right rotation
+				return new Node(left.key, left.value, left.left, new Node(key, value, left.right, right));
+			}
+			// Double rotation, lifting the right child of the left subtree
+			Node pivot = left.right;
+			return new Node(pivot.key, pivot.value, new Node(left.key, left.value, left.left, pivot.left), new Node(key, value, pivot.right, right));
+
+		} else if (diff < -1) {
+			if (height(right.right) >= height(right.left)) {
+				// Single left rotation
+				return new Node(right.key, right.value, new Node(key, value, left, right.left), right.right);
+			}
+			// Double rotation, lifting the left child of the right subtree
+			Node pivot = right.left;
+			return new Node(pivot.key, pivot.value, new Node(key, value, left, pivot.left), new Node(right.key, right.value, pivot.right, right.right));
+		}
+		return new Node(key, value, left, right);
+	}
+
+	private static Node put(Node node, String key, BonjourService value) {
+		if (node == null) return new Node(key, value, null, null);
+
+		int cmp = key.compareTo(node.key);
+		if (cmp < 0) return balance(node.key, node.value, put(node.left, key, value), node.right);
+		if (cmp > 0) return balance(node.key, node.value, node.left, put(node.right, key, value));
+		return new Node(key, value, node.left, node.right);
+	}
+
+	private static Node remove(Node node, String key) {
+		if (node == null) return null;
+
+		int cmp = key.compareTo(node.key);
+		if (cmp < 0) return balance(node.key, node.value, remove(node.left, key), node.right);
+		if (cmp > 0) return balance(node.key, node.value, node.left, remove(node.right, key));
+
+		// Replace the removed node with its successor, if it has two children
+		if (node.left == null) return node.right;
+		if (node.right == null) return node.left;
+		Node successor = node.right;
+		while (successor.left != null) successor = successor.left;
+		return balance(successor.key, successor.value, node.left, remove(node.right, successor.key));
+	}
+
+	/* Begin package */
+
+	/**
+	 * @param key Key of the service
+	 * @return The service with the provided key, or null if the tree doesn't contain it
+	 */
+	BonjourService get(String key) {
+		Node node = root;
+		while (node != null) {
+			int cmp = key.compareTo(node.key);
+			if (cmp == 0) return node.value;
+			node = cmp < 0 ? node.left : node.right;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key   Key of the service
+	 * @param value Service to insert, or to replace the present one with
+	 * @return A tree containing the service, sharing all unaffected nodes with this one
+	 */
+	ServiceTree put(String key, BonjourService value) {
+		return new ServiceTree(put(root, key, value));
+	}
+
+	/**
+	 * @param key Key of the service
+	 * @return A tree without the service, sharing all unaffected nodes with this one
+	 */
+	ServiceTree remove(String key) {
+		return new ServiceTree(remove(root, key));
+	}
+
+	/**
+	 * @return The number of services in this tree
+	 */
+	int size() {
+		return size(root);
+	}
+
+	/**
+	 * @return An unmodifiable view of the services in this tree, ordered by their key
+	 */
+	Collection<BonjourService> values() {
+		return new AbstractCollection<BonjourService>() {
+			@Override public Iterator<BonjourService> iterator() {
+				return new ValueIterator(root);
+			}
+
+			@Override public int size() {
+				return ServiceTree.this.size();
+			}
+		};
+	}
+
+	/* Begin static */
+
+	/**
+	 * Immutable node of the tree
+	 */
+	private static final class Node {
+
+		private final String key;
+		private final BonjourService value;
+		private final Node left;
+		private final Node right;
+		/** Height of the subtree rooted at this node */
+		private final int height;
+		/** Number of nodes in the subtree rooted at this node */
+		private final int size;
+
+		private Node(String key, BonjourService value, Node left, Node right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+		}
+	}
+
+	/**
+	 * In-order iterator over the services of a tree
+	 */
+	private static final class ValueIterator implements Iterator<BonjourService> {
+
+		/** Nodes whose service and right subtree are yet to be visited, with the next one on top */
+		private final Deque<Node> stack = new ArrayDeque<>();
+
+		private ValueIterator(Node root) {
+			pushLeft(root);
+		}
+
+		private void pushLeft(Node node) {
+			while (node != null) {
+				stack.push(node);
+				node = node.left;
+			}
+		}
+
+		@Override public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+
+		@Override public BonjourService next() {
+			if (stack.isEmpty()) throw new NoSuchElementException();
+			Node node = stack.pop();
+			pushLeft(node.right);
+			return node.value;
+		}
+
+		@Override public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
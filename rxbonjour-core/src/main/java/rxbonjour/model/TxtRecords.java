@@ -0,0 +1,316 @@
+package rxbonjour.model;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Immutable TXT records of a Bonjour service. Values are kept as the raw bytes received from the network, back to back in a single array,
+ * and only decoded into Strings when they are accessed through the Map interface, so that binary values survive intact
+ * and services whose records are never looked at don't pay for decoding them. Services without TXT records share {@link #EMPTY}.
+ *
+ * Keys are sorted, and looked up by binary search. Attributes without a value ("key") map to null on all engines,
+ * while attributes with an empty value ("key=") map to an empty String.
+ */
+public final class TxtRecords extends AbstractMap<String, String> {
+
+	/** TXT records of services that don't have any */
+	public static final TxtRecords EMPTY = new TxtRecords(new String[0], new byte[0], new int[0], new int[0]);
+
+	/** Charset of decoded values */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Keys, in ascending order */
+	private final String[] keys;
+	/** Values of all keys, back to back */
+	private final byte[] data;
+	/** Offset of each key's value in the data */
+	private final int[] offsets;
+	/** Length of each key's value, or -1 for keys without a value */
+	private final int[] lengths;
+	/** Decoded values, created on first access. Racing threads decode the same values, so no locking is required */
+	private String[] decoded;
+	/** View of the records as entries, created on first access */
+	private Set<Entry<String, String>> entrySet;
+
+	private TxtRecords(String[] keys, byte[] data, int[] offsets, int[] lengths) {
+		this.keys = keys;
+		this.data = data;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	/* Begin private */
+
+	private int indexOf(Object key) {
+		return key instanceof String ? Arrays.binarySearch(keys, key) : -1;
+	}
+
+	/**
+	 * Decodes the value at the provided index, unless it was decoded before.
+	 *
+	 * @param index Index of the key
+	 * @return The decoded value, or null if the key has no value
+	 */
+	private String valueAt(int index) {
+		if (lengths[index] < 0) return null;
+		String[] values = decoded;
+		if (values == null) {
+			values = new String[keys.length];
+			decoded = values;
+		}
+		String value = values[index];
+		if (value == null) {
+			value = new String(data, offsets[index], lengths[index], UTF_8);
+			values[index] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Compares the raw value at the provided index with the one of another instance.
+	 */
+	private boolean sameValueAt(int index, TxtRecords other, int otherIndex) {
+		int length = lengths[index];
+		if (length != other.lengths[otherIndex]) return false;
+		for (int i = 0; i < length; i++) {
+			if (data[offsets[index] + i] != other.data[other.offsets[otherIndex] + i]) return false;
+		}
+		return true;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Checks whether or not the provided key maps to the same raw value in both instances, both of them lacking the key included.
+	 *
+	 * @param other Other instance
+	 * @param key   Key to compare
+	 * @return True if the key's raw values are identical
+	 */
+	boolean sameValue(TxtRecords other, String key) {
+		int index = indexOf(key);
+		int otherIndex = other.indexOf(key);
+		if (index < 0 || otherIndex < 0) return index < 0 && otherIndex < 0;
+		return sameValueAt(index, other, otherIndex);
+	}
+
+	/**
+	 * Returns a copy of the raw value of the provided key, as received from the network.
+	 *
+	 * @param key Key of the TXT record
+	 * @return The raw value, or null if the key is absent or has no value
+	 */
+	public @Nullable byte[] getBytes(String key) {
+		int index = indexOf(key);
+		if (index < 0 || lengths[index] < 0) return null;
+		return Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]);
+	}
+
+	/* Begin overrides */
+
+	@Override public int size() {
+		return keys.length;
+	}
+
+	@Override public boolean isEmpty() {
+		return keys.length == 0;
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override public String get(Object key) {
+		int index = indexOf(key);
+		return index >= 0 ? valueAt(index) : null;
+	}
+
+	@Override public @Nonnull Set<Entry<String, String>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Entry<String, String>>() {
+				@Override public Iterator<Entry<String, String>> iterator() {
+					return new Iterator<Entry<String, String>>() {
+						private int index;
+
+						@Override public boolean hasNext() {
+							return index < keys.length;
+						}
+
+						@Override public Entry<String, String> next() {
+							if (index >= keys.length) throw new NoSuchElementException();
+							return new RecordEntry(index++);
+						}
+
+						@Override public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override public int size() {
+					return keys.length;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	@Override public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof TxtRecords)) return super.equals(o);
+
+		// Compare raw values, without decoding them
+		TxtRecords that = (TxtRecords) o;
+		if (!Arrays.equals(keys, that.keys)) return false;
+		for (int i = 0; i < keys.length; i++) {
+			if (!sameValueAt(i, that, i)) return false;
+		}
+		return true;
+	}
+
+	@Override public int hashCode() {
+		return super.hashCode();
+	}
+
+	/* Begin static */
+
+	/**
+	 * Entry decoding its value only when it is accessed, so that iterating over the keys doesn't decode any values
+	 */
+	private final class RecordEntry implements Entry<String, String> {
+
+		private final int index;
+
+		private RecordEntry(int index) {
+			this.index = index;
+		}
+
+		@Override public String getKey() {
+			return keys[index];
+		}
+
+		@Override public String getValue() {
+			return valueAt(index);
+		}
+
+		@Override public String setValue(String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Entry)) return false;
+			Entry<?, ?> that = (Entry<?, ?>) o;
+			String value = getValue();
+			return getKey().equals(that.getKey()) && (value != null ? value.equals(that.getValue()) : that.getValue() == null);
+		}
+
+		@Override public int hashCode() {
+			String value = getValue();
+			return getKey().hashCode() ^ (value != null ? value.hashCode() : 0);
+		}
+
+		@Override public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	public static final class Builder {
+
+		private final TreeMap<String, byte[]> mRecords = new TreeMap<>();
+
+		public Builder() {
+		}
+
+		public Builder(TxtRecords records) {
+			for (int i = 0; i < records.keys.length; i++) {
+				mRecords.put(records.keys[i], records.lengths[i] >= 0
+						? Arrays.copyOfRange(records.data, records.offsets[i], records.offsets[i] + records.lengths[i])
+						: null);
+			}
+		}
+
+		public boolean containsKey(String key) {
+			return mRecords.containsKey(key);
+		}
+
+		public Builder put(String key, byte[] value) {
+			mRecords.put(key, value);
+			return this;
+		}
+
+		public Builder put(String key, String value) {
+			return put(key, value != null ? value.getBytes(UTF_8) : null);
+		}
+
+		/**
+		 * Adds the attributes held by the data of a TXT record, i.e. its length-prefixed strings, as specified by RFC 6763.
+		 * Strings without a '=' add their key without a value, while strings ending in '=' add their key with an empty value.
+		 * Only the first occurrence of a key is kept, strings without a key are ignored, and parsing stops at the first malformed string.
+		 *
+		 * @param data   Buffer holding the data of the record
+		 * @param offset Offset of the data in the buffer
+		 * @param length Length of the data
+		 * @return This builder
+		 */
+		public Builder putData(byte[] data, int offset, int length) {
+			int end = offset + length;
+			while (offset < end) {
+				int stringLength = data[offset] & 0xff;
+				int start = offset + 1;
+				int stringEnd = start + stringLength;
+				if (stringEnd > end) break;
+
+				int separator = start;
+				while (separator < stringEnd && data[separator] != '=') {
+					separator++;
+				}
+				if (separator > start) {
+					String key = new String(data, start, separator - start, UTF_8);
+					if (!mRecords.containsKey(key)) {
+						mRecords.put(key, separator < stringEnd ? Arrays.copyOfRange(data, separator + 1, stringEnd) : null);
+					}
+				}
+				offset = stringEnd;
+			}
+			return this;
+		}
+
+		public TxtRecords build() {
+			if (mRecords.isEmpty()) return EMPTY;
+
+			int size = mRecords.size();
+			int total = 0;
+			for (byte[] value : mRecords.values()) {
+				if (value != null) total += value.length;
+			}
+			String[] keys = new String[size];
+			byte[] data = new byte[total];
+			int[] offsets = new int[size];
+			int[] lengths = new int[size];
+			int index = 0;
+			int offset = 0;
+			for (Map.Entry<String, byte[]> entry : mRecords.entrySet()) {
+				byte[] value = entry.getValue();
+				keys[index] = entry.getKey();
+				offsets[index] = offset;
+				lengths[index] = value != null ? value.length : -1;
+				if (value != null) {
+					System.arraycopy(value, 0, data, offset, value.length);
+					offset += value.length;
+				}
+				index++;
+			}
+			return new TxtRecords(keys, data, offsets, lengths);
+		}
+	}
+}
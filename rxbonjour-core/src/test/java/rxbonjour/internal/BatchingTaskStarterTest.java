@@ -0,0 +1,112 @@
+package rxbonjour.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.impl.DNSOutgoing;
+import javax.jmdns.impl.DNSTaskStarter;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.constants.DNSState;
+import javax.jmdns.impl.tasks.DNSTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ JmDNS.class, JmDNSImpl.class })
+public class BatchingTaskStarterTest {
+
+	private JmDNSImpl jmdns;
+
+	@Before public void setUp() throws Exception {
+		jmdns = mock(JmDNSImpl.class);
+	}
+
+	@Test public void testTypesShareOneQuery() throws Exception {
+		BatchingTaskStarter starter = new BatchingTaskStarter(jmdns);
+
+		starter.startServiceResolver("_http._tcp.local.");
+		starter.startServiceResolver(Arrays.asList("_ssh._tcp.local.", "_ipp._tcp.local."));
+		Thread.sleep(500);
+		starter.cancelTimer();
+
+		ArgumentCaptor<DNSOutgoing> captor = ArgumentCaptor.forClass(DNSOutgoing.class);
+		verify(jmdns, atLeastOnce()).send(captor.capture());
+		assertEquals(3, captor.getAllValues().get(0).getQuestions().size());
+	}
+
+	@Test public void testLateTypeStartsNewBatch() throws Exception {
+		BatchingTaskStarter starter = new BatchingTaskStarter(jmdns);
+
+		starter.startServiceResolver("_http._tcp.local.");
+		Thread.sleep(300);
+		starter.startServiceResolver("_ssh._tcp.local.");
+		Thread.sleep(300);
+		starter.cancelTimer();
+
+		ArgumentCaptor<DNSOutgoing> captor = ArgumentCaptor.forClass(DNSOutgoing.class);
+		verify(jmdns, atLeastOnce()).send(captor.capture());
+		for (DNSOutgoing out : captor.getAllValues()) {
+			assertEquals(1, out.getQuestions().size());
+		}
+	}
+
+	@Test public void testHostNameNeverClaimed() throws Exception {
+		BatchingTaskStarter starter = new BatchingTaskStarter(jmdns);
+
+		starter.startProber();
+		starter.startAnnouncer();
+		starter.startRenewer();
+		Thread.sleep(500);
+		starter.cancelStateTimer();
+
+		verify(jmdns, never()).associateWithTask(any(DNSTask.class), any(DNSState.class));
+		verify(jmdns, never()).send(any(DNSOutgoing.class));
+	}
+
+	@Test public void testOwnedInstanceBrowsesOnly() throws Exception {
+		// JmDNS obtains the starter of a new instance while constructing it
+		final DNSTaskStarter[] starters = new DNSTaskStarter[1];
+		mockStatic(JmDNS.class);
+		given(JmDNS.create(any(InetAddress.class), anyString())).willAnswer(new Answer<JmDNS>() {
+			@Override public JmDNS answer(InvocationOnMock invocation) throws Throwable {
+				starters[0] = new BatchingTaskStarter.Delegate().newDNSTaskStarter(jmdns);
+				return jmdns;
+			}
+		});
+
+		BatchingTaskStarter.createJmdns(InetAddress.getLoopbackAddress(), "rxbonjour");
+
+		assertTrue(starters[0] instanceof BatchingTaskStarter);
+	}
+
+	@Test public void testForeignInstanceStillProbes() throws Exception {
+		DNSTaskStarter starter = new BatchingTaskStarter.Delegate().newDNSTaskStarter(jmdns);
+
+		starter.startProber();
+		Thread.sleep(500);
+		starter.cancelStateTimer();
+
+		assertFalse(starter instanceof BatchingTaskStarter);
+		verify(jmdns, atLeastOnce()).associateWithTask(any(DNSTask.class), any(DNSState.class));
+	}
+}
@@ -0,0 +1,78 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DnsMessageTest {
+
+	@Test public void testWriteQuery() throws Exception {
+		ByteBuffer query = ByteBuffer.allocate(512);
+
+		DnsMessage.beginQuery(query);
+		assertTrue(DnsMessage.isEmptyQuery(query));
+		assertTrue(DnsMessage.addQuestion(query, DnsMessage.instanceName("a.b", "_http._tcp.local."), DnsMessage.TYPE_SRV));
+		assertFalse(DnsMessage.isEmptyQuery(query));
+
+		assertEquals(1, query.getShort(4));
+		byte[] expected = { 3, 'a', '.', 'b', 5, '_', 'h', 't', 't', 'p', 4, '_', 't', 'c', 'p', 5, 'l', 'o', 'c', 'a', 'l', 0, 0, 33, 0, 1 };
+		assertEquals(12 + expected.length, query.position());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], query.get(12 + i));
+		}
+	}
+
+	@Test public void testQuestionThatDoesNotFit() throws Exception {
+		ByteBuffer query = ByteBuffer.allocate(20);
+
+		DnsMessage.beginQuery(query);
+
+		assertFalse(DnsMessage.addQuestion(query, "_http._tcp.local.", DnsMessage.TYPE_PTR));
+		assertEquals(12, query.position());
+		assertTrue(DnsMessage.isEmptyQuery(query));
+	}
+
+	@Test public void testEncodeFoldsCase() throws Exception {
+		assertArrayEquals(new byte[] { 3, 'a', '.', 'b', 5, 'l', 'o', 'c', 'a', 'l', 0 }, DnsMessage.encodeName("A\\.B.Local."));
+		assertArrayEquals(new byte[] { 8, 'o', 'f', 'f', 'i', 'c', 'e', ' ', 'p' }, DnsMessage.encodeLabel("Office P"));
+	}
+
+	@Test public void testKnownAnswersCompressTypeName() throws Exception {
+		ByteBuffer query = ByteBuffer.allocate(512);
+		DnsMessage.beginQuery(query);
+		DnsMessage.addQuestion(query, "_http._tcp.local.", DnsMessage.TYPE_PTR);
+
+		assertEquals(12, DnsMessage.addKnownAnswer(query, "_http._tcp.local.", 12, "a", 4500));
+		int second = query.position();
+		assertEquals(12, DnsMessage.addKnownAnswer(query, "_http._tcp.local.", 12, "b", 4500));
+
+		assertEquals(1, query.getShort(4));
+		assertEquals(2, query.getShort(6));
+		// Name pointer, type, class, TTL, data length, then the label and a pointer to the type name
+		byte[] expected = { (byte) 0xc0, 12, 0, 12, 0, 1, 0, 0, 0x11, (byte) 0x94, 0, 4, 1, 'b', (byte) 0xc0, 12 };
+		assertEquals(second + expected.length, query.position());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], query.get(second + i));
+		}
+	}
+
+	@Test public void testKnownAnswerThatDoesNotFit() throws Exception {
+		ByteBuffer query = ByteBuffer.allocate(50);
+		DnsMessage.beginQuery(query);
+
+		assertEquals(12, DnsMessage.addKnownAnswer(query, "_http._tcp.local.", -1, "a", 4500));
+		assertFalse(DnsMessage.isEmptyQuery(query));
+		int position = query.position();
+		assertEquals(-1, DnsMessage.addKnownAnswer(query, "_http._tcp.local.", 12, "printer", 4500));
+		assertEquals(position, query.position());
+		assertEquals(1, query.getShort(6));
+
+		DnsMessage.setTruncated(query);
+		assertEquals(0x0200, query.getShort(2));
+	}
+}
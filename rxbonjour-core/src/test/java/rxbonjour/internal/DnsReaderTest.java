@@ -0,0 +1,164 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+import rxbonjour.util.TestPackets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsReaderTest {
+
+	private static final String INSTANCE = "Office\\.Printer._http._tcp.local.";
+	private static final byte[] ADDRESS = { (byte) 192, (byte) 168, 0, 10 };
+
+	private final DnsReader reader = new DnsReader();
+
+	@Test public void testReadResponse() throws Exception {
+		ByteBuffer packet = TestPackets.response()
+				.ptr("_http._tcp.local.", INSTANCE, 4500)
+				.srv(INSTANCE, "printer.local.", 631, 120)
+				.txt(INSTANCE, 4500, "path=/queue", "color", "path=/other")
+				.a("printer.local.", ADDRESS, 120)
+				.build();
+
+		assertTrue(reader.reset(packet));
+
+		assertTrue(reader.next());
+		assertEquals(DnsMessage.TYPE_PTR, reader.type());
+		assertEquals(4500, reader.ttl());
+		assertEquals("Office.Printer", reader.readFirstLabel(reader.targetOffset()));
+		assertTrue(reader.parentEquals(reader.targetOffset(), DnsMessage.encodeName("_http._tcp.local.")));
+
+		assertTrue(reader.next());
+		assertEquals(DnsMessage.TYPE_SRV, reader.type());
+		assertEquals("printer.local.", reader.readName(reader.targetOffset()));
+		assertEquals(631, reader.port());
+		assertTrue(reader.isCacheFlush());
+
+		assertTrue(reader.next());
+		Map<String, String> txt = reader.readTxt();
+		assertEquals(2, txt.size());
+		assertEquals("/queue", txt.get("path"));
+		assertTrue(txt.containsKey("color"));
+		assertNull(txt.get("color"));
+
+		assertTrue(reader.next());
+		assertEquals(InetAddress.getByAddress(ADDRESS), reader.readAddress(null));
+		assertTrue(reader.dataEquals(ADDRESS));
+		assertFalse(reader.next());
+	}
+
+	private static NetworkInterface linkLocalInterface() throws Exception {
+		for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			for (InetAddress address : Collections.list(ni.getInetAddresses())) {
+				if (address.isLinkLocalAddress() && address instanceof Inet6Address) return ni;
+			}
+		}
+		return null;
+	}
+
+	@Test public void testLinkLocalAddressScoped() throws Exception {
+		byte[] linkLocal = new byte[16];
+		linkLocal[0] = (byte) 0xfe;
+		linkLocal[1] = (byte) 0x80;
+		linkLocal[15] = 1;
+		byte[] global = new byte[16];
+		global[0] = 0x20;
+		global[1] = 0x01;
+		global[15] = 1;
+		NetworkInterface scope = linkLocalInterface();
+		if (scope == null) return;
+		ByteBuffer packet = TestPackets.response()
+				.aaaa("printer.local.", linkLocal, 120)
+				.aaaa("printer.local.", global, 120)
+				.build();
+		assertTrue(reader.reset(packet));
+
+		assertTrue(reader.next());
+		Inet6Address address = (Inet6Address) reader.readAddress(scope);
+		assertEquals(scope, address.getScopedInterface());
+		assertNull(((Inet6Address) reader.readAddress(null)).getScopedInterface());
+
+		assertTrue(reader.next());
+		assertNull(((Inet6Address) reader.readAddress(scope)).getScopedInterface());
+	}
+
+	@Test public void testMatchNamesInPlace() throws Exception {
+		ByteBuffer packet = TestPackets.response().srv(INSTANCE, "Printer.LOCAL.", 631, 120).build();
+		assertTrue(reader.reset(packet));
+		assertTrue(reader.next());
+
+		int name = reader.nameOffset();
+		assertTrue(reader.nameEquals(name, DnsMessage.encodeName("office\\.printer._HTTP._tcp.local.")));
+		assertFalse(reader.nameEquals(name, DnsMessage.encodeName("_http._tcp.local.")));
+		assertTrue(reader.parentEquals(name, DnsMessage.encodeName("_http._tcp.local.")));
+		assertFalse(reader.parentEquals(name, DnsMessage.encodeName("_ipp._tcp.local.")));
+		assertTrue(reader.firstLabelEquals(name, DnsMessage.encodeLabel("OFFICE.PRINTER")));
+		assertFalse(reader.firstLabelEquals(name, DnsMessage.encodeLabel("Office")));
+		assertTrue(reader.nameEquals(reader.targetOffset(), DnsMessage.encodeName("printer.local.")));
+	}
+
+	@Test public void testCompressedName() throws Exception {
+		ByteBuffer packet = ByteBuffer.wrap(new byte[] {
+				0, 0, (byte) 0x84, 0, 0, 0, 0, 1, 0, 0, 0, 0,
+				// PTR record for _http._tcp.local.
+				5, '_', 'h', 't', 't', 'p', 4, '_', 't', 'c', 'p', 5, 'l', 'o', 'c', 'a', 'l', 0,
+				0, 12, 0, 1, 0, 0, 0, 120, 0, 6,
+				// Target 'abc', followed by a pointer to the record name at offset 12
+				3, 'a', 'b', 'c', (byte) 0xc0, 12
+		});
+
+		assertTrue(reader.reset(packet));
+		assertTrue(reader.next());
+
+		assertEquals("abc._http._tcp.local.", reader.readName(reader.targetOffset()));
+		assertTrue(reader.nameEquals(reader.targetOffset(), DnsMessage.encodeName("abc._http._tcp.local.")));
+		assertTrue(reader.parentEquals(reader.targetOffset(), DnsMessage.encodeName("_http._tcp.local.")));
+	}
+
+	@Test public void testIgnoresQueriesAndMalformedMessages() throws Exception {
+		ByteBuffer query = ByteBuffer.allocate(512);
+		DnsMessage.beginQuery(query);
+		DnsMessage.addQuestion(query, "_http._tcp.local.", DnsMessage.TYPE_PTR);
+		query.flip();
+		assertFalse(reader.reset(query));
+
+		ByteBuffer truncated = TestPackets.response().srv("a._http._tcp.local.", "host.local.", 80, 120).build();
+		truncated.limit(truncated.limit() - 3);
+		assertTrue(reader.reset(truncated));
+		assertFalse(reader.next());
+
+		ByteBuffer loop = ByteBuffer.wrap(new byte[] {
+				0, 0, (byte) 0x84, 0, 0, 0, 0, 1, 0, 0, 0, 0,
+				// PTR record whose target points to itself
+				0, 0, 12, 0, 1, 0, 0, 0, 120, 0, 2, (byte) 0xc0, 23
+		});
+		assertTrue(reader.reset(loop));
+		assertTrue(reader.next());
+		assertEquals(null, reader.readName(reader.targetOffset()));
+		assertFalse(reader.nameEquals(reader.targetOffset(), DnsMessage.encodeName("a.local.")));
+	}
+
+	@Test public void testReuseAcrossPackets() throws Exception {
+		ByteBuffer first = TestPackets.response().a("one.local.", ADDRESS, 120).build();
+		ByteBuffer second = TestPackets.response().a("two.local.", ADDRESS, 0).build();
+
+		assertTrue(reader.reset(first));
+		assertTrue(reader.next());
+		assertTrue(reader.reset(second));
+		assertTrue(reader.next());
+
+		assertTrue(reader.nameEquals(reader.nameOffset(), DnsMessage.encodeName("two.local.")));
+		assertEquals(0, reader.ttl());
+	}
+}
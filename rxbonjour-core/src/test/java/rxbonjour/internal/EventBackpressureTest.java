@@ -0,0 +1,161 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.BonjourServiceDiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventBackpressureTest {
+
+	private final BonjourService first = new BonjourService.Builder("first", "_http._tcp").setPort(80).build();
+	private final BonjourService firstMoved = new BonjourService.Builder("first", "_http._tcp").setPort(8080).build();
+	private final BonjourService second = new BonjourService.Builder("second", "_http._tcp").setPort(80).build();
+	private final BonjourService third = new BonjourService.Builder("third", "_http._tcp").setPort(80).build();
+
+	private TestSubscriber<BonjourEvent> subscribe(PublishSubject<BonjourEvent> events, DiscoveryOptions.Backpressure backpressure, int bufferSize) {
+		DiscoveryOptions options = new DiscoveryOptions.Builder()
+				.setBackpressure(backpressure)
+				.setBufferSize(bufferSize)
+				.build();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>(0);
+		events.compose(EventBackpressure.apply(options)).subscribe(subscriber);
+		return subscriber;
+	}
+
+	@Test public void testBuffer() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.BUFFER, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, third));
+		subscriber.assertValueCount(0);
+
+		// The oldest event was dropped
+		subscriber.requestMore(1);
+		subscriber.assertValueCount(1);
+		assertSame(second, subscriber.getOnNextEvents().get(0).getService());
+		subscriber.requestMore(5);
+		subscriber.assertValueCount(2);
+		assertSame(third, subscriber.getOnNextEvents().get(1).getService());
+
+		// Requested events pass through directly
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+		subscriber.assertValueCount(3);
+	}
+
+	@Test public void testLatestPerService() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.LATEST_PER_SERVICE, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, firstMoved, BonjourServiceDiff.between(first, firstMoved)));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, third));
+		subscriber.requestMore(10);
+
+		// The update is folded into the pending event, and the third service exceeds the buffer
+		subscriber.assertValueCount(2);
+		assertEquals(new BonjourEvent(BonjourEvent.Type.ADDED, firstMoved), subscriber.getOnNextEvents().get(0));
+		assertEquals(new BonjourEvent(BonjourEvent.Type.ADDED, second), subscriber.getOnNextEvents().get(1));
+	}
+
+	@Test public void testLatestPerServiceCombinesUpdates() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.LATEST_PER_SERVICE, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, firstMoved, BonjourServiceDiff.between(first, firstMoved)));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, first, BonjourServiceDiff.between(firstMoved, first)));
+		subscriber.requestMore(10);
+
+		subscriber.assertValueCount(1);
+		BonjourEvent event = subscriber.getOnNextEvents().get(0);
+		assertEquals(BonjourEvent.Type.UPDATED, event.getType());
+		assertSame(first, event.getService());
+		assertTrue(event.getDiff().hasPortChanged());
+	}
+
+	@Test public void testLatestPerServiceKeepsRemovalsWhenFull() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.LATEST_PER_SERVICE, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		subscriber.requestMore(1);
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, third));
+
+		// The removal of a service the subscriber knows evicts the addition of one it doesn't know yet
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+		subscriber.requestMore(10);
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.ADDED, first),
+				new BonjourEvent(BonjourEvent.Type.ADDED, third),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+	}
+
+	@Test public void testLatestPerServiceDropsRemovalOfUnseenService() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.LATEST_PER_SERVICE, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+		subscriber.requestMore(10);
+
+		// The subscriber never saw the first service, so neither its addition nor its removal is reported
+		subscriber.assertValues(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+
+		// Once seen, the removal of a service that was added again is reported
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, second));
+		subscriber.assertValueCount(2);
+		assertEquals(BonjourEvent.Type.REMOVED, subscriber.getOnNextEvents().get(1).getType());
+	}
+
+	@Test public void testBufferKeepsRemovalsWhenFull() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.BUFFER, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, third));
+		subscriber.requestMore(10);
+
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first),
+				new BonjourEvent(BonjourEvent.Type.ADDED, third));
+	}
+
+	@Test public void testDrop() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.DROP, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		subscriber.requestMore(1);
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, third));
+
+		subscriber.assertValueCount(1);
+		assertSame(second, subscriber.getOnNextEvents().get(0).getService());
+	}
+
+	@Test public void testErrorAfterPendingEvents() throws Exception {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = subscribe(events, DiscoveryOptions.Backpressure.BUFFER, 2);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		events.onError(new IllegalStateException());
+		subscriber.assertNoErrors();
+
+		subscriber.requestMore(1);
+		subscriber.assertValueCount(1);
+		subscriber.assertError(IllegalStateException.class);
+	}
+}
@@ -0,0 +1,107 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventBatcherTest {
+
+	private final BonjourService first = new BonjourService.Builder("first", "_http._tcp").build();
+	private final BonjourService second = new BonjourService.Builder("second", "_http._tcp").build();
+	private final BonjourService third = new BonjourService.Builder("third", "_http._tcp").build();
+
+	@Test public void testAddedAndRemovedCancelOut() throws Exception {
+		List<BonjourEvent> chunk = Arrays.asList(
+				new BonjourEvent(BonjourEvent.Type.ADDED, first),
+				new BonjourEvent(BonjourEvent.Type.ADDED, second),
+				new BonjourEvent(BonjourEvent.Type.UPDATED, first),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+
+		List<BonjourEvent> coalesced = EventBatcher.coalesce(chunk);
+
+		assertEquals(1, coalesced.size());
+		assertEquals(new BonjourEvent(BonjourEvent.Type.ADDED, second), coalesced.get(0));
+	}
+
+	@Test public void testRemovedAndAddedAreKept() throws Exception {
+		List<BonjourEvent> chunk = Arrays.asList(
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first),
+				new BonjourEvent(BonjourEvent.Type.ADDED, first),
+				new BonjourEvent(BonjourEvent.Type.UPDATED, second));
+
+		assertSame(chunk, EventBatcher.coalesce(chunk));
+	}
+
+	@Test public void testDeliveredServiceIsNotCancelled() throws Exception {
+		Set<String> delivered = new HashSet<>();
+		EventBatcher.coalesce(Arrays.asList(new BonjourEvent(BonjourEvent.Type.FOUND, first)), delivered);
+
+		// The subscriber already knows about the service, so it needs to learn about its removal
+		List<BonjourEvent> chunk = Arrays.asList(
+				new BonjourEvent(BonjourEvent.Type.ADDED, first),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+
+		assertSame(chunk, EventBatcher.coalesce(chunk, delivered));
+		assertTrue(delivered.isEmpty());
+	}
+
+	@Test public void testServiceReappearingAfterRemovalCancelsOut() throws Exception {
+		Set<String> delivered = new HashSet<>();
+		EventBatcher.coalesce(Arrays.asList(new BonjourEvent(BonjourEvent.Type.ADDED, first)), delivered);
+
+		List<BonjourEvent> chunk = Arrays.asList(
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first),
+				new BonjourEvent(BonjourEvent.Type.ADDED, first),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+
+		List<BonjourEvent> coalesced = EventBatcher.coalesce(chunk, delivered);
+
+		assertEquals(1, coalesced.size());
+		assertEquals(BonjourEvent.Type.REMOVED, coalesced.get(0).getType());
+	}
+
+	@Test public void testWindowAndMaxSize() throws Exception {
+		TestScheduler scheduler = new TestScheduler();
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		TestSubscriber<List<BonjourEvent>> subscriber = new TestSubscriber<>();
+
+		events.compose(EventBatcher.batch(100, TimeUnit.MILLISECONDS, 2, scheduler)).subscribe(subscriber);
+
+		// A full chunk is emitted right away
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, second));
+		subscriber.assertValueCount(1);
+
+		// A chunk that cancels out isn't emitted at all
+		events.onNext(new BonjourEvent(BonjourEvent.Type.FOUND, third));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, third));
+		scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+		subscriber.assertValueCount(1);
+
+		// Services delivered in an earlier chunk don't cancel out
+		events.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, first));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, first));
+		scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+		subscriber.assertValueCount(2);
+
+		// A partial chunk is emitted once the window elapses
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, second));
+		scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+		subscriber.assertValueCount(3);
+		assertEquals(1, subscriber.getOnNextEvents().get(2).size());
+	}
+}
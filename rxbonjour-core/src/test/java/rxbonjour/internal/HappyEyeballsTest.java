@@ -0,0 +1,66 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import rxbonjour.exc.ConnectFailed;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HappyEyeballsTest {
+
+	@Test public void testAddressFamiliesInterleaved() throws Exception {
+		InetAddress v4a = InetAddress.getByName("192.168.0.1");
+		InetAddress v4b = InetAddress.getByName("192.168.0.2");
+		InetAddress v4c = InetAddress.getByName("192.168.0.3");
+		InetAddress v6a = InetAddress.getByName("fd00::1");
+		InetAddress v6b = InetAddress.getByName("fd00::2");
+
+		List<InetAddress> sorted = HappyEyeballs.sortAddresses(Arrays.asList(v4a, v4b, v6a, v4c, v6b));
+		assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c), sorted);
+	}
+
+	@Test public void testStaleAddressSkipped() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+			// The first address never answers, so the loopback address is attempted after the connection attempt delay
+			BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+					.setPort(server.getLocalPort())
+					.addAddress(InetAddress.getByName("192.0.2.1"))
+					.addAddress(InetAddress.getByName("127.0.0.1"))
+					.build();
+
+			long start = System.nanoTime();
+			try (Socket socket = HappyEyeballs.connect(service).toBlocking().single()) {
+				assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+				assertTrue(socket.isConnected());
+			}
+			assertTrue(System.nanoTime() - start < 5000000000L);
+		}
+	}
+
+	@Test public void testAllAddressesFail() throws Exception {
+		int port;
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+			port = server.getLocalPort();
+		}
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(port)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+
+		try {
+			HappyEyeballs.connect(service).toBlocking().single();
+			fail("Connected to a closed port");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof ConnectFailed);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rxbonjour.DiscoveryOptions.ScanProfile;
+import rxbonjour.model.BonjourService;
+import rxbonjour.util.TestPackets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MdnsBrowserTest {
+
+	private static final String TYPE = "_http._tcp.local.";
+	private static final String INSTANCE = "printer._http._tcp.local.";
+	private static final byte[] ADDRESS = { (byte) 192, (byte) 168, 0, 10 };
+	private static final byte[] IPV6_ADDRESS = { (byte) 0xfd, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x10 };
+
+	private final MdnsBrowser browser = new MdnsBrowser();
+	private final List<String> questions = new ArrayList<>();
+	private final List<String> knownAnswers = new ArrayList<>();
+
+	private final MdnsBrowser.Outgoing out = new MdnsBrowser.Outgoing() {
+		@Override public void question(String name, int type) {
+			questions.add(type + " " + name);
+		}
+
+		@Override public void knownAnswer(String type, String label, long ttlSeconds) {
+			knownAnswers.add(label + " " + ttlSeconds);
+		}
+	};
+
+	private static long seconds(double seconds) {
+		return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private static TestPackets.Response resolvedRecords() {
+		return TestPackets.response()
+				.srv(INSTANCE, "printer.local.", 631, 120)
+				.txt(INSTANCE, 4500, "path=/queue")
+				.a("printer.local.", ADDRESS, 120);
+	}
+
+	private List<String> poll(long now) {
+		questions.clear();
+		knownAnswers.clear();
+		browser.poll(now, out);
+		return new ArrayList<>(questions);
+	}
+
+	@Test public void testBrowseQueriesBackOff() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(false), 0);
+
+		// Nobody answers, so the intervals quadruple
+		assertEquals(1, poll(0).size());
+		assertTrue(poll(seconds(0.5)).isEmpty());
+		assertEquals(1, poll(seconds(1)).size());
+		assertTrue(poll(seconds(4.5)).isEmpty());
+		assertEquals("12 " + TYPE, poll(seconds(5)).get(0));
+		assertEquals(seconds(21), browser.poll(seconds(5), out));
+	}
+
+	@Test public void testChangingTypesBackOffSlower() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(true), 0);
+		poll(0);
+
+		// A new service showed up since the previous query, so the interval only doubles: 1, 4, 8 instead of 1, 4, 16 seconds
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 4500).build(), seconds(0.5));
+		poll(seconds(1));
+		assertEquals(1, poll(seconds(5)).size());
+		assertEquals(seconds(13), browser.poll(seconds(5), out));
+	}
+
+	@Test public void testScanProfiles() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(true, ScanProfile.LOW_POWER), 0);
+		poll(0);
+		poll(seconds(1));
+		assertEquals(seconds(9), browser.poll(seconds(1), out));
+
+		// Profiles reaching their maximum interval stop backing off
+		browser.addListener("_ipp._tcp.local.", new RecordingListener(true, ScanProfile.AGGRESSIVE), 0);
+		long now = 0;
+		for (int i = 0; i < 10; i++) {
+			now = browser.poll(now, out);
+		}
+		long next = browser.poll(now, out);
+		assertEquals(MdnsBrowser.AGGRESSIVE_MAX_QUERY_INTERVAL_MILLIS, TimeUnit.NANOSECONDS.toMillis(next - now));
+	}
+
+	@Test public void testPassiveSendsNothing() throws Exception {
+		RecordingListener listener = new RecordingListener(false, ScanProfile.PASSIVE);
+		browser.addListener(TYPE, listener, 0);
+		assertTrue(poll(0).isEmpty());
+
+		// Announcements are reported, and left to expire without refresh queries
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 10).build(), seconds(1));
+		assertEquals("resolved printer", listener.events.get(0));
+		for (double time = 1; time <= 12; time += 0.5) {
+			assertTrue(poll(seconds(time)).isEmpty());
+		}
+		assertEquals("removed printer", listener.events.get(1));
+
+		// The most active profile among the listeners of a type applies
+		browser.addListener(TYPE, new RecordingListener(true), seconds(13));
+		assertEquals(1, poll(seconds(13)).size());
+	}
+
+	@Test public void testResetBackoff() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(true), 0);
+		poll(0);
+		poll(seconds(1));
+		assertTrue(poll(seconds(2)).isEmpty());
+
+		browser.resetBackoff(seconds(2));
+
+		assertEquals(1, poll(seconds(2)).size());
+		assertEquals(seconds(3), browser.poll(seconds(2), out));
+	}
+
+	@Test public void testKnownAnswersListed() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(true), 0);
+		poll(0);
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 4500).ptr(TYPE, "scanner._http._tcp.local.", 4500).build(), seconds(0.5));
+
+		List<String> asked = poll(seconds(1));
+
+		assertEquals("12 " + TYPE, asked.get(0));
+		assertEquals(2, knownAnswers.size());
+		assertEquals("printer 4499", knownAnswers.get(0));
+		assertEquals("scanner 4499", knownAnswers.get(1));
+	}
+
+	@Test public void testStaleKnownAnswersOmitted() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(true), 0);
+		poll(0);
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 10).build(), 0);
+
+		// Records with less than half of their TTL remaining are left out, so that responders refresh them
+		poll(seconds(3));
+		assertEquals(1, knownAnswers.size());
+		assertEquals("printer 7", knownAnswers.get(0));
+		assertEquals(1, poll(seconds(7)).size());
+		assertTrue(knownAnswers.isEmpty());
+	}
+
+	@Test public void testEagerResolve() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		poll(0);
+
+		// A newly found service is resolved before it is reported
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 4500).build(), seconds(0.1));
+		assertTrue(listener.events.isEmpty());
+		List<String> asked = poll(seconds(0.1));
+		assertTrue(asked.contains("33 " + INSTANCE));
+		assertTrue(asked.contains("16 " + INSTANCE));
+
+		browser.handleResponse(resolvedRecords().build(), seconds(0.2));
+		assertEquals(1, listener.events.size());
+		assertEquals("resolved printer", listener.events.get(0));
+		BonjourService service = listener.services.get(0);
+		assertEquals(631, service.getPort());
+		assertEquals(InetAddress.getByAddress(ADDRESS), service.getHost());
+		assertEquals("/queue", service.getTxtRecord("path"));
+		assertEquals(TYPE, service.getType());
+	}
+
+	@Test public void testLazyResolution() throws Exception {
+		RecordingListener listener = new RecordingListener(true);
+		browser.addListener(TYPE, listener, 0);
+		poll(0);
+
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 4500).build(), seconds(0.1));
+
+		assertEquals(1, listener.events.size());
+		assertEquals("found printer", listener.events.get(0));
+		assertFalse(listener.services.get(0).isResolved());
+		assertTrue(poll(seconds(0.2)).isEmpty());
+	}
+
+	@Test public void testGoodbye() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 4500).build(), 0);
+
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 0).build(), seconds(1));
+
+		assertEquals(2, listener.events.size());
+		assertEquals("removed printer", listener.events.get(1));
+		assertTrue(listener.services.get(1).isResolved());
+	}
+
+	@Test public void testExpiryAfterRefreshQueries() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		poll(0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 10).build(), 0);
+
+		// Refresh queries are sent at 80, 85, 90 and 95 percent of the TTL, besides the regular browse queries
+		assertEquals(1, poll(seconds(7)).size());
+		assertTrue(poll(seconds(7.9)).isEmpty());
+		assertEquals(1, poll(seconds(8)).size());
+		assertTrue(poll(seconds(8.4)).isEmpty());
+		assertEquals(1, poll(seconds(8.5)).size());
+		assertEquals(1, listener.events.size());
+
+		// Without an answer, the service is removed once its TTL ran out
+		poll(seconds(9.5));
+		assertEquals(1, listener.events.size());
+		poll(seconds(10));
+		assertEquals(2, listener.events.size());
+		assertEquals("removed printer", listener.events.get(1));
+	}
+
+	@Test public void testIpv6AddressesRefreshedAndExpired() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(TestPackets.response()
+				.ptr(TYPE, INSTANCE, 4500)
+				.srv(INSTANCE, "printer.local.", 631, 4500)
+				.aaaa("printer.local.", IPV6_ADDRESS, 10)
+				.build(), 0);
+		assertEquals("resolved printer", listener.events.get(0));
+
+		// The host only has an IPv6 address, so that is what its refresh asks for
+		List<String> asked = poll(seconds(8));
+		assertTrue(asked.contains(DnsMessage.TYPE_AAAA + " printer.local."));
+		assertFalse(asked.contains(DnsMessage.TYPE_A + " printer.local."));
+
+		// Without an answer, the service can't be reached anymore once the address expired
+		poll(seconds(10));
+		assertEquals(2, listener.events.size());
+		assertEquals("removed printer", listener.events.get(1));
+	}
+
+	@Test public void testExpiredAddressFamilyReported() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(resolvedRecords()
+				.ptr(TYPE, INSTANCE, 4500)
+				.aaaa("printer.local.", IPV6_ADDRESS, 10)
+				.build(), 0);
+		assertEquals(2, listener.services.get(0).getAddresses().size());
+
+		// Only the IPv6 address expires, and the service is reported with the remaining IPv4 address
+		poll(seconds(10));
+		assertEquals(2, listener.events.size());
+		assertEquals("resolved printer", listener.events.get(1));
+		assertEquals(Arrays.asList(InetAddress.getByAddress(ADDRESS)), listener.services.get(1).getAddresses());
+	}
+
+	@Test public void testRefreshKeepsService() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 10).build(), 0);
+
+		poll(seconds(8));
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 10).build(), seconds(8.1));
+		poll(seconds(12));
+
+		// The refresh carries nothing new, so it isn't reported again
+		assertEquals(1, listener.events.size());
+		assertEquals("resolved printer", listener.events.get(0));
+	}
+
+	@Test public void testOnlyChangesReported() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 4500).build(), 0);
+
+		browser.handleResponse(resolvedRecords().build(), seconds(1));
+		assertEquals(1, listener.events.size());
+
+		browser.handleResponse(TestPackets.response().txt(INSTANCE, 4500, "path=/other").build(), seconds(2));
+		assertEquals(2, listener.events.size());
+		assertEquals("/other", listener.services.get(1).getTxtRecord("path"));
+	}
+
+	@Test public void testCacheFlushReplacesAddresses() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		byte[] other = { (byte) 192, (byte) 168, 0, 11 };
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 4500).build(), 0);
+
+		// The first record flushes the known address, which the second record of the same packet then adds back after it
+		browser.handleResponse(TestPackets.response().a("PRINTER.local.", other, 120).a("printer.local.", ADDRESS, 120).build(), seconds(1));
+
+		assertEquals(2, listener.events.size());
+		assertEquals(Arrays.asList(InetAddress.getByAddress(other), InetAddress.getByAddress(ADDRESS)), listener.services.get(1).getAddresses());
+	}
+
+	@Test public void testUntargetedHostsIgnored() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		browser.addListener(TYPE, listener, 0);
+		browser.handleResponse(TestPackets.response().ptr(TYPE, INSTANCE, 4500).a("printer.local.", ADDRESS, 120).build(), 0);
+
+		browser.handleResponse(TestPackets.response().srv(INSTANCE, "printer.local.", 631, 120).build(), seconds(1));
+
+		assertTrue(listener.events.isEmpty());
+		List<String> asked = poll(seconds(1));
+		assertTrue(asked.contains("1 printer.local."));
+	}
+
+	@Test public void testResolveTimeout() throws Exception {
+		RecordingResolve resolve = new RecordingResolve();
+
+		browser.resolve("printer", TYPE, resolve, 0);
+
+		assertEquals(2, poll(0).size());
+		assertTrue(poll(seconds(0.5)).isEmpty());
+		assertEquals(2, poll(seconds(1)).size());
+		assertTrue(poll(seconds(2.5)).isEmpty());
+		assertEquals(2, poll(seconds(3)).size());
+		assertEquals(0, resolve.failures);
+		poll(seconds(5));
+		assertEquals(1, resolve.failures);
+		assertEquals(Long.MAX_VALUE, browser.poll(seconds(6), out));
+	}
+
+	@Test public void testResolveAnsweredByBrowse() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(false), 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 4500).build(), 0);
+		RecordingResolve resolve = new RecordingResolve();
+
+		browser.resolve("printer", TYPE, resolve, seconds(1));
+
+		assertEquals(1, resolve.resolved.size());
+		assertEquals(631, resolve.resolved.get(0).getPort());
+	}
+
+	@Test public void testLateListenerReceivesKnownServices() throws Exception {
+		browser.addListener(TYPE, new RecordingListener(false), 0);
+		browser.handleResponse(resolvedRecords().ptr(TYPE, INSTANCE, 4500).build(), 0);
+		RecordingListener late = new RecordingListener(true);
+
+		browser.addListener(TYPE, late, seconds(1));
+
+		assertEquals(2, late.events.size());
+		assertEquals("found printer", late.events.get(0));
+		assertEquals("resolved printer", late.events.get(1));
+	}
+
+	@Test public void testOtherTypesIgnored() throws Exception {
+		RecordingListener listener = new RecordingListener(true);
+		browser.addListener(TYPE, listener, 0);
+
+		browser.handleResponse(TestPackets.response().ptr("_ssh._tcp.local.", "host._ssh._tcp.local.", 4500).build(), 0);
+
+		assertTrue(listener.events.isEmpty());
+	}
+
+	@Test public void testFail() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		RecordingResolve resolve = new RecordingResolve();
+		browser.addListener(TYPE, listener, 0);
+		browser.resolve("other", TYPE, resolve, 0);
+
+		browser.fail();
+
+		assertEquals("failed", listener.events.get(0));
+		assertEquals(1, resolve.failures);
+		assertEquals(Long.MAX_VALUE, browser.poll(0, out));
+	}
+
+	@Test public void testFailWhileListenersRemoveThemselves() throws Exception {
+		final List<String> failures = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			final String id = "listener" + i;
+			browser.addListener(TYPE, new RecordingListener(false) {
+				@Override public void onFailed() {
+					// Mirrors the native engine, whose listeners remove themselves upon failure on a terminated loop
+					failures.add(id);
+					browser.removeListener(TYPE, this);
+					browser.fail();
+				}
+			}, 0);
+		}
+
+		browser.fail();
+
+		assertEquals(Arrays.asList("listener0", "listener1"), failures);
+		assertEquals(Long.MAX_VALUE, browser.poll(0, out));
+	}
+
+	@Test public void testFailListenersAddedWhileFailing() throws Exception {
+		final RecordingListener late = new RecordingListener(false);
+		browser.addListener(TYPE, new RecordingListener(false) {
+			@Override public void onFailed() {
+				browser.addListener(TYPE, late, 0);
+			}
+		}, 0);
+
+		browser.fail();
+
+		assertEquals(Arrays.asList("failed"), late.events);
+		assertEquals(Long.MAX_VALUE, browser.poll(0, out));
+	}
+
+	private static class RecordingListener implements MdnsBrowser.BrowseListener {
+
+		private final boolean lazy;
+		private final ScanProfile profile;
+		private final List<String> events = new ArrayList<>();
+		private final List<BonjourService> services = new ArrayList<>();
+
+		RecordingListener(boolean lazy) {
+			this(lazy, ScanProfile.BALANCED);
+		}
+
+		RecordingListener(boolean lazy, ScanProfile profile) {
+			this.lazy = lazy;
+			this.profile = profile;
+		}
+
+		@Override public boolean isLazy() {
+			return lazy;
+		}
+
+		@Override public ScanProfile getScanProfile() {
+			return profile;
+		}
+
+		@Override public void onFound(BonjourService service) {
+			events.add("found " + service.getName());
+			services.add(service);
+		}
+
+		@Override public void onResolved(BonjourService service) {
+			events.add("resolved " + service.getName());
+			services.add(service);
+		}
+
+		@Override public void onRemoved(BonjourService service) {
+			events.add("removed " + service.getName());
+			services.add(service);
+		}
+
+		@Override public void onFailed() {
+			events.add("failed");
+		}
+	}
+
+	private static final class RecordingResolve implements MdnsBrowser.ResolveListener {
+
+		private final List<BonjourService> resolved = new ArrayList<>();
+		private int failures;
+
+		@Override public void onResolved(BonjourService service) {
+			resolved.add(service);
+		}
+
+		@Override public void onFailed() {
+			failures++;
+		}
+	}
+}
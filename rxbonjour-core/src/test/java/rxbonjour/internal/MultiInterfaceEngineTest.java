@@ -0,0 +1,136 @@
+package rxbonjour.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(NetworkInterfaceBinding.class)
+public class MultiInterfaceEngineTest {
+
+	private static final NetworkInterfaceBinding ETH0 = new NetworkInterfaceBinding("eth0", false);
+	private static final NetworkInterfaceBinding WLAN0 = new NetworkInterfaceBinding("wlan0", false);
+
+	/** Events of the discovery started on each interface, keyed by interface name and address family */
+	private Map<String, PublishSubject<BonjourEvent>> discoveries;
+	private MultiInterfaceEngine engine;
+
+	@Before public void setUp() throws Exception {
+		mockStatic(NetworkInterfaceBinding.class);
+		discoveries = new HashMap<>();
+		engine = new MultiInterfaceEngine(MultiInterfaceEngine.class, new MultiInterfaceEngine.EngineFactory() {
+			@Override public DiscoveryEngine newEngine(Class<?> implClass) {
+				return new FakeEngine();
+			}
+		});
+	}
+
+	private void setInterfaces(NetworkInterfaceBinding... interfaces) throws Exception {
+		List<NetworkInterfaceBinding> list = Arrays.asList(interfaces);
+		given(NetworkInterfaceBinding.usableInterfaces()).willReturn(list);
+	}
+
+	private static BonjourEvent added(String name) throws Exception {
+		BonjourService service = new BonjourService.Builder(name, "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("192.168.1.2"))
+				.build();
+		return new BonjourEvent(BonjourEvent.Type.ADDED, service);
+	}
+
+	@Test public void testStartsOnInterfaceThatCameUp() throws Exception {
+		setInterfaces(ETH0);
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		engine.start("_http._tcp").subscribe(subscriber);
+		assertEquals(Collections.singleton("eth0/IPv4"), discoveries.keySet());
+
+		setInterfaces(ETH0, WLAN0);
+		engine.networkChanged();
+		assertTrue(discoveries.containsKey("wlan0/IPv4"));
+
+		discoveries.get("wlan0/IPv4").onNext(added("printer"));
+		subscriber.assertNoErrors();
+		assertEquals(1, subscriber.getOnNextEvents().size());
+		assertEquals("printer", subscriber.getOnNextEvents().get(0).getService().getName());
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testReportsLossOfInterfaceThatWentAway() throws Exception {
+		setInterfaces(ETH0, WLAN0);
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		engine.start("_http._tcp").subscribe(subscriber);
+		PublishSubject<BonjourEvent> wlan0 = discoveries.get("wlan0/IPv4");
+		wlan0.onNext(added("printer"));
+
+		setInterfaces(ETH0);
+		engine.networkChanged();
+
+		// The service seen only on the lost interface is removed, and its discovery is stopped
+		List<BonjourEvent> events = subscriber.getOnNextEvents();
+		assertEquals(2, events.size());
+		assertEquals(BonjourEvent.Type.REMOVED, events.get(1).getType());
+		assertFalse(wlan0.hasObservers());
+		subscriber.assertNoErrors();
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testSurvivesNetworkWithoutInterfaces() throws Exception {
+		setInterfaces(ETH0);
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		engine.start("_http._tcp").subscribe(subscriber);
+
+		setInterfaces();
+		engine.networkChanged();
+		setInterfaces(ETH0);
+		discoveries.clear();
+		engine.networkChanged();
+
+		assertTrue(discoveries.containsKey("eth0/IPv4"));
+		subscriber.assertNoErrors();
+		subscriber.assertNoTerminalEvent();
+		subscriber.unsubscribe();
+	}
+
+	/**
+	 * Engine recording the discovery started on each interface, without running any actual discovery
+	 */
+	private final class FakeEngine implements DiscoveryEngine {
+
+		@Override public Observable<BonjourEvent> start(NetworkBinding binding, String type, DiscoveryOptions options) {
+			PublishSubject<BonjourEvent> events = PublishSubject.create();
+			discoveries.put(binding.toString(), events);
+			return events;
+		}
+
+		@Override public Observable<BonjourService> resolve(NetworkBinding binding, BonjourService service) {
+			return Observable.empty();
+		}
+
+		@Override public Observable<EngineStartup> prewarm(NetworkBinding binding) {
+			return Observable.empty();
+		}
+	}
+}
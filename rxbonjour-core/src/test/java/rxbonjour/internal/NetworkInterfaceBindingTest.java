@@ -0,0 +1,26 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+
+public class NetworkInterfaceBindingTest {
+
+	@Test(expected = IOException.class) public void testUnknownInterface() throws Exception {
+		NetworkBinding binding = new NetworkInterfaceBinding("rxbonjour-does-not-exist0");
+
+		binding.acquire(new StartupTimer());
+	}
+
+	@Test public void testUsableInterfacesAcquire() throws Exception {
+		for (NetworkInterfaceBinding binding : NetworkInterfaceBinding.usableInterfaces()) {
+			InetAddress address = binding.acquire(new StartupTimer());
+			assertEquals(binding.isIpv6(), address instanceof Inet6Address);
+			binding.release();
+		}
+	}
+}
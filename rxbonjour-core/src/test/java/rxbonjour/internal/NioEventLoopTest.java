@@ -0,0 +1,109 @@
+package rxbonjour.internal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rxbonjour.DiscoveryOptions.ScanProfile;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioEventLoopTest {
+
+	private static final String TYPE = "_http._tcp.local.";
+
+	private final Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+	private final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+	private NetworkInterfaceBinding binding;
+
+	@After public void tearDown() {
+		Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+		if (binding != null) binding.release();
+	}
+
+	/**
+	 * @return A loop on the first usable network interface, or null if the host has none
+	 */
+	private NioEventLoop openLoop() throws Exception {
+		List<NetworkInterfaceBinding> bindings = NetworkInterfaceBinding.usableInterfaces();
+		if (bindings.isEmpty()) return null;
+		binding = bindings.get(0);
+		InetAddress address = binding.acquire(new StartupTimer());
+		return NioEventLoop.open(address, new AtomicLong());
+	}
+
+	@Test public void testLoopFailureFailsAllListeners() throws Exception {
+		NioEventLoop loop = openLoop();
+		if (loop == null) return;
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override public void uncaughtException(Thread t, Throwable e) {
+				uncaught.add(e);
+			}
+		});
+
+		// Two subscribers browsing the same type, removing themselves from the loop once they fail, like the engine's subscribers
+		CountDownLatch failed = new CountDownLatch(2);
+		loop.addListener(TYPE, new RemovingListener(loop, failed));
+		loop.addListener(TYPE, new RemovingListener(loop, failed));
+
+		loop.close();
+
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+		assertFalse(loop.isRunning());
+		assertEquals(Collections.<Throwable>emptyList(), uncaught);
+	}
+
+	@Test public void testListenerAddedAfterFailureFails() throws Exception {
+		NioEventLoop loop = openLoop();
+		if (loop == null) return;
+		loop.close();
+
+		CountDownLatch failed = new CountDownLatch(1);
+		loop.addListener(TYPE, new RemovingListener(loop, failed));
+
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+	}
+
+	private static final class RemovingListener implements MdnsBrowser.BrowseListener {
+
+		private final NioEventLoop loop;
+		private final CountDownLatch failed;
+
+		RemovingListener(NioEventLoop loop, CountDownLatch failed) {
+			this.loop = loop;
+			this.failed = failed;
+		}
+
+		@Override public boolean isLazy() {
+			return false;
+		}
+
+		@Override public ScanProfile getScanProfile() {
+			return ScanProfile.BALANCED;
+		}
+
+		@Override public void onFound(BonjourService service) {
+		}
+
+		@Override public void onResolved(BonjourService service) {
+		}
+
+		@Override public void onRemoved(BonjourService service) {
+		}
+
+		@Override public void onFailed() {
+			failed.countDown();
+			loop.removeListener(TYPE, this);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package rxbonjour.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.ServiceSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentServiceCacheTest {
+
+	private static final String TYPE = "_http._tcp";
+
+	private File file;
+
+	@Before public void setUp() throws Exception {
+		file = File.createTempFile("rxbonjour", ".cache");
+		assertTrue(file.delete());
+	}
+
+	@After public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	private static BonjourService service(String name, int port) throws Exception {
+		return new BonjourService.Builder(name, "_http._tcp.local.")
+				.addAddress(InetAddress.getByAddress(new byte[] { (byte) 192, (byte) 168, 0, 1 }))
+				.addAddress(InetAddress.getByName("fd00::1"))
+				.addAddress(InetAddress.getByAddress(new byte[] { (byte) 192, (byte) 168, 0, 2 }))
+				.setPort(port)
+				.addTxtRecord("path", "/" + name)
+				.addTxtRecord("color", (String) null)
+				.addTxtRecord("note", "")
+				.build();
+	}
+
+	@Test public void testRoundTrip() throws Exception {
+		PersistentServiceCache cache = new PersistentServiceCache(file, Schedulers.immediate());
+		BonjourService kept = service("kept", 80);
+		BonjourService updated = service("updated", 8080);
+		cache.put(TYPE, kept);
+		cache.put(TYPE, service("updated", 80));
+		cache.put(TYPE, updated);
+		cache.put(TYPE, service("removed", 80));
+		cache.remove(TYPE, service("removed", 80));
+		cache.put("_ipp._tcp", service("other", 631));
+
+		List<BonjourService> services = new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE);
+		assertEquals(2, services.size());
+		assertEquals(kept, services.get(0));
+		assertEquals("/kept", services.get(0).getTxtRecord("path"));
+		assertTrue(services.get(0).getTxtRecords().containsKey("color"));
+		assertNull(services.get(0).getTxtRecord("color"));
+		assertEquals("", services.get(0).getTxtRecord("note"));
+		assertEquals(updated, services.get(1));
+		assertEquals(1, new PersistentServiceCache(file, Schedulers.immediate()).get("_ipp._tcp").size());
+	}
+
+	@Test public void testTruncatedTail() throws Exception {
+		PersistentServiceCache cache = new PersistentServiceCache(file, Schedulers.immediate());
+		cache.put(TYPE, service("first", 80));
+		long length = file.length();
+		cache.put(TYPE, service("second", 80));
+
+		// Simulate a write interrupted in the middle of the second record
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length + 7);
+		}
+
+		PersistentServiceCache reopened = new PersistentServiceCache(file, Schedulers.immediate());
+		assertEquals(1, reopened.get(TYPE).size());
+		reopened.put(TYPE, service("third", 80));
+		assertEquals(2, new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).size());
+	}
+
+	@Test public void testCorruptFile() throws Exception {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.writeBytes("garbage");
+		}
+
+		PersistentServiceCache cache = new PersistentServiceCache(file, Schedulers.immediate());
+		assertTrue(cache.get(TYPE).isEmpty());
+		cache.put(TYPE, service("service", 80));
+		assertEquals(1, new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).size());
+	}
+
+	@Test public void testWarmStart() throws Exception {
+		BonjourService confirmed = service("confirmed", 80);
+		BonjourService vanished = service("vanished", 80);
+		PersistentServiceCache previousRun = new PersistentServiceCache(file, Schedulers.immediate());
+		previousRun.put(TYPE, confirmed);
+		previousRun.put(TYPE, vanished);
+
+		TestScheduler scheduler = new TestScheduler();
+		PublishSubject<BonjourEvent> live = PublishSubject.create();
+		PersistentServiceCache cache = new PersistentServiceCache(file, Schedulers.immediate());
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		live.compose(cache.warmStart(TYPE, 10, TimeUnit.SECONDS, scheduler)).subscribe(subscriber);
+
+		// Cached services are reported right away
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.CACHED, confirmed),
+				new BonjourEvent(BonjourEvent.Type.CACHED, vanished));
+
+		// Live events confirm cached services, and services that don't show up in time are removed
+		BonjourService added = service("added", 80);
+		live.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, confirmed));
+		live.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, added));
+		scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+		subscriber.assertNoErrors();
+		assertEquals(5, subscriber.getOnNextEvents().size());
+		assertEquals(new BonjourEvent(BonjourEvent.Type.REMOVED, vanished), subscriber.getOnNextEvents().get(4));
+
+		List<BonjourService> services = new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE);
+		assertEquals(2, services.size());
+		assertTrue(services.contains(confirmed));
+		assertTrue(services.contains(added));
+	}
+
+	@Test public void testWritesOnWriteScheduler() throws Exception {
+		TestScheduler writeScheduler = new TestScheduler();
+		PersistentServiceCache cache = new PersistentServiceCache(file, writeScheduler);
+		BonjourService service = service("service", 80);
+
+		// Changes take effect in memory right away, and reach the file once the write scheduler runs
+		cache.put(TYPE, service);
+		assertEquals(1, cache.get(TYPE).size());
+		assertTrue(new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).isEmpty());
+		writeScheduler.triggerActions();
+		assertEquals(1, new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).size());
+
+		cache.remove(TYPE, service);
+		cache.put(TYPE, service("other", 80));
+		writeScheduler.triggerActions();
+		List<BonjourService> services = new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE);
+		assertEquals(1, services.size());
+		assertEquals("other", services.get(0).getName());
+	}
+
+	@Test public void testWarmStartJoiningSharedStream() throws Exception {
+		BonjourService confirmed = service("confirmed", 80);
+		BonjourService unconfirmed = service("unconfirmed", 80);
+		PersistentServiceCache previousRun = new PersistentServiceCache(file, Schedulers.immediate());
+		previousRun.put(TYPE, confirmed);
+		previousRun.put(TYPE, unconfirmed);
+
+		// The stream already confirmed one of the cached services before the subscriber joined
+		ServiceSet known = ServiceSet.empty().apply(new BonjourEvent(BonjourEvent.Type.ADDED, confirmed));
+		TestScheduler scheduler = new TestScheduler();
+		PublishSubject<BonjourEvent> live = PublishSubject.create();
+		PersistentServiceCache cache = new PersistentServiceCache(file, Schedulers.immediate());
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		live.compose(cache.warmStart(TYPE, known, false, 10, TimeUnit.SECONDS, scheduler)).subscribe(subscriber);
+
+		// Services known to the stream aren't reported as cached, and aren't expired
+		subscriber.assertValues(new BonjourEvent(BonjourEvent.Type.CACHED, unconfirmed));
+		scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.CACHED, unconfirmed),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, unconfirmed));
+
+		// Only the subscriber starting the stream removes unconfirmed services from the cache
+		assertEquals(2, new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).size());
+	}
+
+	@Test public void testEmptyCacheWarmStart() throws Exception {
+		TestScheduler scheduler = new TestScheduler();
+		PublishSubject<BonjourEvent> live = PublishSubject.create();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		live.compose(new PersistentServiceCache(file, Schedulers.immediate()).warmStart(TYPE, 10, TimeUnit.SECONDS, scheduler)).subscribe(subscriber);
+
+		subscriber.assertNoValues();
+		BonjourService service = service("service", 80);
+		live.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service));
+		live.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, service));
+		scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+		assertEquals(2, subscriber.getOnNextEvents().size());
+		assertTrue(new PersistentServiceCache(file, Schedulers.immediate()).get(TYPE).isEmpty());
+	}
+}
@@ -0,0 +1,116 @@
+package rxbonjour.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReachabilityFilterTest {
+
+	private ServerSocket server;
+	private int closedPort;
+	private PublishSubject<BonjourEvent> events;
+	private TestSubscriber<BonjourEvent> subscriber;
+
+	@Before public void setUp() throws Exception {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+			closedPort = closed.getLocalPort();
+		}
+		events = PublishSubject.create();
+		subscriber = new TestSubscriber<>();
+		events.compose(ReachabilityFilter.apply(new DiscoveryOptions.Builder().setReachabilityProbing(true).build())).subscribe(subscriber);
+	}
+
+	@After public void tearDown() throws Exception {
+		server.close();
+	}
+
+	private static BonjourService service(String name, int port) throws Exception {
+		return new BonjourService.Builder(name, "_http._tcp")
+				.setPort(port)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+	}
+
+	private void awaitValueCount(int count) throws Exception {
+		awaitValueCount(count, 5);
+	}
+
+	private void awaitValueCount(int count, long timeoutSeconds) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+		while (subscriber.getOnNextEvents().size() < count && System.nanoTime() - deadline < 0) {
+			Thread.sleep(10);
+		}
+		subscriber.assertValueCount(count);
+	}
+
+	@Test public void testReachableAnnotated() throws Exception {
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("alive", server.getLocalPort())));
+
+		awaitValueCount(1);
+		BonjourEvent event = subscriber.getOnNextEvents().get(0);
+		assertEquals(BonjourEvent.Type.ADDED, event.getType());
+		assertTrue(event.getService().getRttNanos() > 0);
+		assertEquals(service("alive", server.getLocalPort()), event.getService());
+	}
+
+	@Test public void testUnreachableSuppressed() throws Exception {
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("dead", closedPort)));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("alive", server.getLocalPort())));
+
+		// Only the reachable service is reported, and the removal of the unreported one is swallowed
+		awaitValueCount(1);
+		assertEquals("alive", subscriber.getOnNextEvents().get(0).getService().getName());
+		events.onNext(new BonjourEvent(BonjourEvent.Type.REMOVED, service("dead", closedPort)));
+		Thread.sleep(100);
+		subscriber.assertValueCount(1);
+	}
+
+	@Test public void testSuppressedServiceProbedAgain() throws Exception {
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("late", closedPort)));
+		Thread.sleep(100);
+		subscriber.assertNoValues();
+
+		// The discovery doesn't report the unchanged service again, but it is reported once it starts accepting connections
+		try (ServerSocket late = new ServerSocket(closedPort, 50, InetAddress.getByName("127.0.0.1"))) {
+			awaitValueCount(1, ReachabilityProber.UNREACHABLE_FRESH_MILLIS / 1000 + 5);
+			assertEquals(BonjourEvent.Type.ADDED, subscriber.getOnNextEvents().get(0).getType());
+			assertEquals("late", subscriber.getOnNextEvents().get(0).getService().getName());
+		}
+	}
+
+	@Test public void testUpdateToUnreachableRemoves() throws Exception {
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("moving", server.getLocalPort())));
+		awaitValueCount(1);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.UPDATED, service("moving", closedPort)));
+
+		awaitValueCount(2);
+		BonjourEvent event = subscriber.getOnNextEvents().get(1);
+		assertEquals(BonjourEvent.Type.REMOVED, event.getType());
+		assertEquals(server.getLocalPort(), event.getService().getPort());
+	}
+
+	@Test public void testDisabledPassesThrough() throws Exception {
+		TestSubscriber<BonjourEvent> plain = new TestSubscriber<>();
+		events.compose(ReachabilityFilter.apply(DiscoveryOptions.defaults())).subscribe(plain);
+
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service("dead", closedPort)));
+
+		plain.assertValueCount(1);
+		assertEquals(-1L, plain.getOnNextEvents().get(0).getService().getRttNanos());
+	}
+}
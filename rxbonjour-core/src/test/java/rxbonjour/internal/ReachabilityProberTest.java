@@ -0,0 +1,74 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReachabilityProberTest {
+
+	private final ReachabilityProber prober = new ReachabilityProber();
+
+	@Test public void testReachable() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+			long rttNanos = prober.probe(new InetSocketAddress("127.0.0.1", server.getLocalPort())).toBlocking().single();
+
+			assertTrue(rttNanos > 0);
+		}
+	}
+
+	@Test public void testUnreachable() throws Exception {
+		int port;
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+			port = server.getLocalPort();
+		}
+
+		long rttNanos = prober.probe(new InetSocketAddress("127.0.0.1", port)).toBlocking().single();
+
+		assertEquals(ReachabilityProber.UNREACHABLE, rttNanos);
+	}
+
+	@Test public void testResultsRemembered() throws Exception {
+		InetSocketAddress endpoint;
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+			endpoint = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+			long first = prober.probe(endpoint).toBlocking().single();
+			assertTrue(first > 0);
+		}
+
+		// The server is gone, but the recent result still applies
+		assertTrue(prober.probe(endpoint).toBlocking().single() > 0);
+	}
+
+	@Test public void testConcurrentProbesShareConnection() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+			InetSocketAddress endpoint = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+			List<Observable<Long>> probes = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				probes.add(prober.probe(endpoint));
+			}
+
+			List<Long> results = Observable.merge(probes).toList().toBlocking().single();
+			assertEquals(10, results.size());
+
+			// Only one connection reached the server
+			server.setSoTimeout(200);
+			server.accept().close();
+			try {
+				server.accept().close();
+				fail("Probed the same endpoint twice");
+			} catch (SocketTimeoutException expected) {
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResolveCoalescerTest {
+
+	private final List<String> results = new ArrayList<>();
+	private int failures;
+
+	private final ResolveCoalescer.Callback<String> waiter = new ResolveCoalescer.Callback<String>() {
+		@Override public void onResolved(String result) {
+			results.add(result);
+		}
+
+		@Override public void onFailed() {
+			failures++;
+		}
+	};
+
+	@Test public void testJoinInFlight() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>();
+
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+		assertFalse(coalescer.begin("name", "_http._tcp.", waiter));
+		assertTrue(coalescer.begin("other", "_http._tcp.", waiter));
+		assertTrue(coalescer.begin("name", "_ssh._tcp.", waiter));
+		coalescer.complete("name", "_http._tcp.", "result");
+
+		// The waiter joined its own resolve, and is only notified once
+		assertEquals(1, results.size());
+	}
+
+	@Test public void testWaitersNotifiedOnce() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>(50, 50);
+
+		// Repeated announcements of a service pass the same waiter, including to the resolve taking over a lost one
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+		assertFalse(coalescer.begin("name", "_http._tcp.", waiter));
+		Thread.sleep(100);
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+		assertFalse(coalescer.begin("name", "_http._tcp.", waiter));
+		coalescer.fail("name", "_http._tcp.");
+
+		assertEquals(1, failures);
+	}
+
+	@Test public void testAnswerFromFreshData() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>();
+
+		assertTrue(coalescer.begin("name", "_http._tcp.", null));
+		coalescer.complete("name", "_http._tcp.", "result");
+		assertFalse(coalescer.begin("name", "_http._tcp.", waiter));
+
+		assertEquals(1, results.size());
+		assertEquals("result", results.get(0));
+	}
+
+	@Test public void testExpiry() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>(50, 50);
+
+		assertTrue(coalescer.begin("name", "_http._tcp.", null));
+		Thread.sleep(100);
+		assertTrue(coalescer.begin("name", "_http._tcp.", null));
+		coalescer.complete("name", "_http._tcp.", "result");
+		Thread.sleep(100);
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+
+		assertTrue(results.isEmpty());
+	}
+
+	@Test public void testFailAndForget() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>();
+
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+		coalescer.fail("name", "_http._tcp.");
+		assertTrue(coalescer.begin("name", "_http._tcp.", waiter));
+		coalescer.complete("name", "_http._tcp.", "result");
+		coalescer.forget("name", "_http._tcp.");
+		assertTrue(coalescer.begin("name", "_http._tcp.", null));
+
+		assertEquals(1, results.size());
+		assertEquals(1, failures);
+	}
+
+	@Test public void testGetFresh() throws Exception {
+		ResolveCoalescer<String> coalescer = new ResolveCoalescer<>();
+
+		assertNull(coalescer.getFresh("name", "_http._tcp."));
+		assertTrue(coalescer.begin("name", "_http._tcp.", null));
+		assertNull(coalescer.getFresh("name", "_http._tcp."));
+		coalescer.complete("name", "_http._tcp.", "result");
+		assertEquals("result", coalescer.getFresh("name", "_http._tcp."));
+	}
+}
@@ -0,0 +1,105 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.schedulers.TestScheduler;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceCacheTest {
+
+	private final TestScheduler scheduler = new TestScheduler();
+	private final List<BonjourService> expired = new ArrayList<>();
+
+	private final ServiceCache.Listener listener = new ServiceCache.Listener() {
+		@Override public void onExpired(ServiceCache cache, BonjourService service) {
+			expired.add(service);
+		}
+	};
+
+	private static BonjourService service(String name) {
+		return new BonjourService.Builder(name, "_http._tcp.local.").build();
+	}
+
+	@Test public void testExpiry() throws Exception {
+		ServiceCache cache = new ServiceCache(listener, scheduler, 1000, 8);
+		BonjourService service = service("service");
+
+		cache.put(service, 2);
+		scheduler.advanceTimeBy(1999, TimeUnit.MILLISECONDS);
+		assertTrue(expired.isEmpty());
+
+		scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+		assertEquals(1, expired.size());
+		assertSame(service, expired.get(0));
+		assertEquals(0, cache.size());
+	}
+
+	@Test public void testRefreshAndRemove() throws Exception {
+		ServiceCache cache = new ServiceCache(listener, scheduler, 1000, 8);
+		BonjourService refreshed = service("refreshed");
+		BonjourService removed = service("removed");
+
+		cache.put(refreshed, 2);
+		cache.put(removed, 2);
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		cache.put(refreshed, 2);
+		cache.remove(removed);
+		scheduler.advanceTimeBy(1999, TimeUnit.MILLISECONDS);
+		assertTrue(expired.isEmpty());
+
+		scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+		assertEquals(1, expired.size());
+		assertSame(refreshed, expired.get(0));
+	}
+
+	@Test public void testTtlBeyondOneRotation() throws Exception {
+		ServiceCache cache = new ServiceCache(listener, scheduler, 1000, 8);
+
+		cache.put(service("service"), 20);
+		scheduler.advanceTimeBy(19, TimeUnit.SECONDS);
+		assertTrue(expired.isEmpty());
+
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		assertEquals(1, expired.size());
+	}
+
+	@Test public void testReaddFromListener() throws Exception {
+		final ServiceCache cache = new ServiceCache(new ServiceCache.Listener() {
+			@Override public void onExpired(ServiceCache cache, BonjourService service) {
+				expired.add(service);
+				if (expired.size() == 1) cache.put(service, 1);
+			}
+		}, scheduler, 1000, 8);
+
+		cache.put(service("service"), 1);
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		assertEquals(1, cache.size());
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		assertEquals(2, expired.size());
+		assertEquals(0, cache.size());
+	}
+
+	@Test public void testManyEntries() throws Exception {
+		ServiceCache cache = new ServiceCache(listener, scheduler, 1000, 512);
+		int count = 6000;
+
+		for (int i = 0; i < count; i++) {
+			cache.put(service("service" + i), 1 + i % 600);
+		}
+		assertEquals(count, cache.size());
+
+		scheduler.advanceTimeBy(300, TimeUnit.SECONDS);
+		assertEquals(count / 2, expired.size());
+		scheduler.advanceTimeBy(300, TimeUnit.SECONDS);
+		assertEquals(count, expired.size());
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,79 @@
+package rxbonjour.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceMergerTest {
+
+	private ServiceMerger merger;
+
+	@Before public void setUp() throws Exception {
+		merger = new ServiceMerger();
+	}
+
+	private static BonjourService service(String address) throws Exception {
+		return new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName(address))
+				.build();
+	}
+
+	@Test public void testAddressesMergedAcrossInterfaces() throws Exception {
+		List<BonjourEvent> events = merger.apply("eth0/IPv4", new BonjourEvent(BonjourEvent.Type.ADDED, service("192.168.1.10")));
+		assertEquals(1, events.size());
+		assertEquals(BonjourEvent.Type.ADDED, events.get(0).getType());
+
+		events = merger.apply("eth0/IPv6", new BonjourEvent(BonjourEvent.Type.ADDED, service("fd00::10")));
+		assertEquals(1, events.size());
+		assertEquals(BonjourEvent.Type.UPDATED, events.get(0).getType());
+		assertTrue(events.get(0).getDiff().hasAddressesChanged());
+		BonjourService merged = events.get(0).getService();
+		assertEquals(InetAddress.getByName("192.168.1.10"), merged.getV4Host());
+		assertEquals(InetAddress.getByName("fd00::10"), merged.getV6Host());
+
+		// Seeing the same state again doesn't report anything
+		assertTrue(merger.apply("eth0/IPv6", new BonjourEvent(BonjourEvent.Type.UPDATED, service("fd00::10"))).isEmpty());
+	}
+
+	@Test public void testRemovedOnceGoneEverywhere() throws Exception {
+		merger.apply("eth0/IPv4", new BonjourEvent(BonjourEvent.Type.ADDED, service("192.168.1.10")));
+		merger.apply("wlan0/IPv4", new BonjourEvent(BonjourEvent.Type.ADDED, service("192.168.1.10")));
+
+		List<BonjourEvent> events = merger.apply("eth0/IPv4", new BonjourEvent(BonjourEvent.Type.REMOVED, service("192.168.1.10")));
+		assertTrue(events.isEmpty());
+
+		events = merger.apply("wlan0/IPv4", new BonjourEvent(BonjourEvent.Type.REMOVED, service("192.168.1.10")));
+		assertEquals(1, events.size());
+		assertEquals(BonjourEvent.Type.REMOVED, events.get(0).getType());
+	}
+
+	@Test public void testFoundReportedOnce() throws Exception {
+		BonjourService found = new BonjourService.Builder("service", "_http._tcp").build();
+		assertEquals(1, merger.apply("eth0/IPv4", new BonjourEvent(BonjourEvent.Type.FOUND, found)).size());
+		assertTrue(merger.apply("wlan0/IPv4", new BonjourEvent(BonjourEvent.Type.FOUND, found)).isEmpty());
+	}
+
+	@Test public void testInterfaceLost() throws Exception {
+		merger.apply("eth0/IPv4", new BonjourEvent(BonjourEvent.Type.ADDED, service("192.168.1.10")));
+		merger.apply("eth0/IPv6", new BonjourEvent(BonjourEvent.Type.ADDED, service("fd00::10")));
+
+		List<BonjourEvent> events = merger.interfaceLost("eth0/IPv6");
+		assertEquals(1, events.size());
+		assertEquals(BonjourEvent.Type.UPDATED, events.get(0).getType());
+		assertEquals(null, events.get(0).getService().getV6Host());
+
+		events = merger.interfaceLost("eth0/IPv4");
+		assertEquals(1, events.size());
+		assertEquals(BonjourEvent.Type.REMOVED, events.get(0).getType());
+		assertTrue(merger.interfaceLost("eth0/IPv4").isEmpty());
+	}
+}
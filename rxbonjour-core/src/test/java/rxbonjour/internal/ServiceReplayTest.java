@@ -0,0 +1,60 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+public class ServiceReplayTest {
+
+	private final TestScheduler scheduler = new TestScheduler();
+	private final PublishSubject<BonjourEvent> live = PublishSubject.create();
+
+	private static BonjourService service(String name) {
+		return new BonjourService.Builder(name, "_http._tcp.local.").build();
+	}
+
+	@Test public void testReplayAndVerify() throws Exception {
+		BonjourService confirmed = service("confirmed");
+		BonjourService vanished = service("vanished");
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+
+		live.compose(ServiceReplay.replay(Arrays.asList(confirmed, vanished), 10, TimeUnit.SECONDS, scheduler)).subscribe(subscriber);
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.CACHED, confirmed),
+				new BonjourEvent(BonjourEvent.Type.CACHED, vanished));
+
+		// CACHED events of the live stream don't confirm anything
+		live.onNext(new BonjourEvent(BonjourEvent.Type.FOUND, confirmed));
+		live.onNext(new BonjourEvent(BonjourEvent.Type.CACHED, vanished));
+		scheduler.advanceTimeBy(9, TimeUnit.SECONDS);
+		subscriber.assertValueCount(4);
+
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		subscriber.assertValueCount(5);
+		subscriber.assertNoErrors();
+		subscriber.assertValues(
+				new BonjourEvent(BonjourEvent.Type.CACHED, confirmed),
+				new BonjourEvent(BonjourEvent.Type.CACHED, vanished),
+				new BonjourEvent(BonjourEvent.Type.FOUND, confirmed),
+				new BonjourEvent(BonjourEvent.Type.CACHED, vanished),
+				new BonjourEvent(BonjourEvent.Type.REMOVED, vanished));
+	}
+
+	@Test public void testNothingToReplay() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+
+		live.compose(ServiceReplay.replay(Collections.<BonjourService>emptyList(), 10, TimeUnit.SECONDS, scheduler)).subscribe(subscriber);
+		scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+
+		subscriber.assertNoValues();
+		subscriber.assertNoTerminalEvent();
+	}
+}
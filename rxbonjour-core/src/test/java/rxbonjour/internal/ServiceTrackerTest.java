@@ -0,0 +1,46 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceTrackerTest {
+
+	@Test public void testAddUpdateAndSuppress() throws Exception {
+		ServiceTracker tracker = new ServiceTracker();
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+		BonjourService moved = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(8080)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+
+		assertEquals(BonjourEvent.Type.ADDED, tracker.resolved(service).getType());
+		assertNull(tracker.resolved(service));
+
+		BonjourEvent updated = tracker.resolved(moved);
+		assertEquals(BonjourEvent.Type.UPDATED, updated.getType());
+		assertTrue(updated.getDiff().hasPortChanged());
+		assertNull(tracker.resolved(moved));
+	}
+
+	@Test public void testAddAfterRemove() throws Exception {
+		ServiceTracker tracker = new ServiceTracker();
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.build();
+
+		assertEquals(BonjourEvent.Type.ADDED, tracker.resolved(service).getType());
+		tracker.removed(service);
+		assertEquals(BonjourEvent.Type.ADDED, tracker.resolved(service).getType());
+	}
+}
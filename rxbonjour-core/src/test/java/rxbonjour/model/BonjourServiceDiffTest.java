@@ -0,0 +1,66 @@
+package rxbonjour.model;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BonjourServiceDiffTest {
+
+	@Test public void testIdentical() throws Exception {
+		BonjourService previous = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.addTxtRecord("key", "value")
+				.build();
+		BonjourService current = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.addTxtRecord("key", "value")
+				.build();
+
+		assertTrue(BonjourServiceDiff.between(previous, current).isEmpty());
+	}
+
+	@Test public void testAddressAndPort() throws Exception {
+		BonjourService previous = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+		BonjourService current = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(8080)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.addAddress(InetAddress.getByName("::1"))
+				.build();
+
+		BonjourServiceDiff diff = BonjourServiceDiff.between(previous, current);
+		assertFalse(diff.isEmpty());
+		assertTrue(diff.hasAddressesChanged());
+		assertTrue(diff.hasPortChanged());
+		assertTrue(diff.getChangedTxtKeys().isEmpty());
+	}
+
+	@Test public void testTxtRecords() throws Exception {
+		BonjourService previous = new BonjourService.Builder("service", "_http._tcp")
+				.addTxtRecord("kept", "value")
+				.addTxtRecord("changed", "old")
+				.addTxtRecord("removed", "value")
+				.build();
+		BonjourService current = new BonjourService.Builder("service", "_http._tcp")
+				.addTxtRecord("kept", "value")
+				.addTxtRecord("changed", "new")
+				.addTxtRecord("added", "value")
+				.build();
+
+		BonjourServiceDiff diff = BonjourServiceDiff.between(previous, current);
+		assertFalse(diff.hasAddressesChanged());
+		assertFalse(diff.hasPortChanged());
+		assertEquals(3, diff.getChangedTxtKeys().size());
+		assertTrue(diff.getChangedTxtKeys().contains("changed"));
+		assertTrue(diff.getChangedTxtKeys().contains("removed"));
+		assertTrue(diff.getChangedTxtKeys().contains("added"));
+	}
+}
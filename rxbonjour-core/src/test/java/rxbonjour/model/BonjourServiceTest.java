@@ -3,13 +3,12 @@ package rxbonjour.model;
 import org.junit.Test;
 
 import java.net.InetAddress;
-
-import rxbonjour.base.BaseTest;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
-public class BonjourServiceTest extends BaseTest {
+public class BonjourServiceTest {
 
 	@Test public void testV4Address() throws Exception {
 		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
@@ -44,4 +43,30 @@ public class BonjourServiceTest extends BaseTest {
 		assertEquals(InetAddress.getByName("127.0.0.1"), service.getV4Host());
 		assertEquals(InetAddress.getByName("::1"), service.getV6Host());
 	}
+
+	@Test public void testAllAddressesKept() throws Exception {
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("192.168.0.1"))
+				.addAddress(InetAddress.getByName("fd00::1"))
+				.addAddress(InetAddress.getByName("192.168.0.2"))
+				.addAddress(InetAddress.getByName("192.168.0.1"))
+				.build();
+
+		assertEquals(Arrays.asList(InetAddress.getByName("192.168.0.1"), InetAddress.getByName("fd00::1"), InetAddress.getByName("192.168.0.2")),
+				service.getAddresses());
+		assertEquals(InetAddress.getByName("192.168.0.1"), service.getV4Host());
+	}
+
+	@Test public void testBuilderReuseLeavesBuiltServiceUnchanged() throws Exception {
+		BonjourService.Builder builder = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("192.168.0.1"));
+		BonjourService service = builder.build();
+
+		builder.addAddress(InetAddress.getByName("192.168.0.2"));
+
+		assertEquals(Arrays.asList(InetAddress.getByName("192.168.0.1")), service.getAddresses());
+		assertEquals(2, builder.build().getAddresses().size());
+	}
 }
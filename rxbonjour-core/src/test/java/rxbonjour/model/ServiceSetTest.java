@@ -0,0 +1,56 @@
+package rxbonjour.model;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceSetTest {
+
+	@Test public void testInsertChangeRemove() throws Exception {
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(80)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+		BonjourService updated = new BonjourService.Builder("service", "_http._tcp")
+				.setPort(8080)
+				.addAddress(InetAddress.getByName("127.0.0.1"))
+				.build();
+		String key = ServiceSet.keyOf(service);
+
+		ServiceSet empty = ServiceSet.empty();
+		ServiceSet inserted = empty.apply(new BonjourEvent(BonjourEvent.Type.ADDED, service));
+		assertTrue(empty.isEmpty());
+		assertEquals(1, inserted.size());
+		assertTrue(inserted.getDelta().getInserted().contains(key));
+		assertSame(service, inserted.get(key));
+
+		ServiceSet changed = inserted.apply(new BonjourEvent(BonjourEvent.Type.UPDATED, updated));
+		assertEquals(1, changed.size());
+		assertTrue(changed.getDelta().getChanged().contains(key));
+		assertTrue(changed.getDelta().getInserted().isEmpty());
+		assertSame(updated, changed.get(key));
+		assertSame(service, inserted.get(key));
+
+		ServiceSet removed = changed.apply(new BonjourEvent(BonjourEvent.Type.REMOVED, updated));
+		assertTrue(removed.isEmpty());
+		assertTrue(removed.getDelta().getRemoved().contains(key));
+		assertNull(removed.get(key));
+	}
+
+	@Test public void testNoChange() throws Exception {
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp").build();
+		BonjourService other = new BonjourService.Builder("other", "_http._tcp").build();
+
+		ServiceSet set = ServiceSet.empty().apply(new BonjourEvent(BonjourEvent.Type.ADDED, service));
+		assertSame(set, set.apply(new BonjourEvent(BonjourEvent.Type.ADDED, service)));
+		assertSame(set, set.apply(new BonjourEvent(BonjourEvent.Type.FOUND, service)));
+		assertSame(set, set.apply(new BonjourEvent(BonjourEvent.Type.REMOVED, other)));
+		assertFalse(set.contains(ServiceSet.keyOf(other)));
+	}
+}
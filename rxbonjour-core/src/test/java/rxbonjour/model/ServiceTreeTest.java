@@ -0,0 +1,77 @@
+package rxbonjour.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ServiceTreeTest {
+
+	private static BonjourService service(int index) {
+		return new BonjourService.Builder("service" + index, "_http._tcp").build();
+	}
+
+	@Test public void testMatchesMap() throws Exception {
+		Random random = new Random(42);
+		TreeMap<String, BonjourService> expected = new TreeMap<>();
+		ServiceTree tree = ServiceTree.EMPTY;
+
+		for (int i = 0; i < 2000; i++) {
+			BonjourService service = service(random.nextInt(300));
+			String key = ServiceSet.keyOf(service);
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				tree = tree.remove(key);
+			} else {
+				expected.put(key, service);
+				tree = tree.put(key, service);
+			}
+			assertEquals(expected.size(), tree.size());
+		}
+
+		for (Map.Entry<String, BonjourService> entry : expected.entrySet()) {
+			assertSame(entry.getValue(), tree.get(entry.getKey()));
+		}
+		assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(tree.values()));
+	}
+
+	@Test public void testPreviousTreesAreUnaffected() throws Exception {
+		List<ServiceTree> trees = new ArrayList<>();
+		Map<String, BonjourService> services = new HashMap<>();
+		ServiceTree tree = ServiceTree.EMPTY;
+		for (int i = 0; i < 100; i++) {
+			BonjourService service = service(i);
+			services.put(ServiceSet.keyOf(service), service);
+			trees.add(tree);
+			tree = tree.put(ServiceSet.keyOf(service), service);
+		}
+		ServiceTree removed = tree.remove(ServiceSet.keyOf(service(50)));
+
+		// Each tree still holds exactly the services it was created with
+		for (int i = 0; i < trees.size(); i++) {
+			assertEquals(i, trees.get(i).size());
+			assertNull(trees.get(i).get(ServiceSet.keyOf(service(i))));
+		}
+		assertEquals(100, tree.size());
+		assertSame(services.get(ServiceSet.keyOf(service(50))), tree.get(ServiceSet.keyOf(service(50))));
+		assertEquals(99, removed.size());
+		assertNull(removed.get(ServiceSet.keyOf(service(50))));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testValuesAreUnmodifiable() throws Exception {
+		ServiceTree tree = ServiceTree.EMPTY.put("key", service(0));
+		Iterator<BonjourService> iterator = tree.values().iterator();
+		iterator.next();
+		iterator.remove();
+	}
+}
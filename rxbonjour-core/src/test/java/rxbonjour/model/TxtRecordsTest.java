@@ -0,0 +1,88 @@
+package rxbonjour.model;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TxtRecordsTest {
+
+	@Test public void testEmptyShared() throws Exception {
+		assertSame(TxtRecords.EMPTY, new TxtRecords.Builder().build());
+		assertSame(TxtRecords.EMPTY, new BonjourService.Builder("service", "_http._tcp").build().getTxtRecords());
+		assertTrue(TxtRecords.EMPTY.isEmpty());
+	}
+
+	@Test public void testLookup() throws Exception {
+		TxtRecords records = new TxtRecords.Builder()
+				.put("path", "/index.html")
+				.put("vers", "1.2")
+				.put("flag", new byte[0])
+				.put("novalue", (byte[]) null)
+				.build();
+
+		assertEquals(4, records.size());
+		assertEquals("/index.html", records.get("path"));
+		assertEquals("1.2", records.get("vers"));
+		assertEquals("", records.get("flag"));
+		assertTrue(records.containsKey("novalue"));
+		assertNull(records.get("novalue"));
+		assertFalse(records.containsKey("missing"));
+		assertNull(records.get("missing"));
+		assertNull(records.get(42));
+	}
+
+	@Test public void testBinaryValue() throws Exception {
+		byte[] value = new byte[] { 0, (byte) 0xff, (byte) 0xc3, 0x28 };
+		TxtRecords records = new TxtRecords.Builder().put("key", value).build();
+
+		assertArrayEquals(value, records.getBytes("key"));
+
+		// Returned bytes are a copy
+		records.getBytes("key")[0] = 1;
+		assertArrayEquals(value, records.getBytes("key"));
+	}
+
+	@Test public void testEqualsMap() throws Exception {
+		TxtRecords records = new TxtRecords.Builder()
+				.put("b", "2")
+				.put("a", "1")
+				.build();
+		Map<String, String> map = new HashMap<>();
+		map.put("a", "1");
+		map.put("b", "2");
+
+		assertEquals(map, records);
+		assertEquals(records, map);
+		assertEquals(map.hashCode(), records.hashCode());
+		assertEquals(records, new TxtRecords.Builder(records).build());
+		assertFalse(records.equals(new TxtRecords.Builder(records).put("a", "3").build()));
+	}
+
+	@Test public void testSameValue() throws Exception {
+		TxtRecords records = new TxtRecords.Builder().put("a", "1").put("b", "2").build();
+		TxtRecords other = new TxtRecords.Builder().put("a", "1").put("b", "3").build();
+
+		assertTrue(records.sameValue(other, "a"));
+		assertFalse(records.sameValue(other, "b"));
+		assertTrue(records.sameValue(other, "missing"));
+		assertFalse(records.sameValue(TxtRecords.EMPTY, "a"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testImmutable() throws Exception {
+		new TxtRecords.Builder().put("a", "1").build().put("b", "2");
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testImmutableEntries() throws Exception {
+		new TxtRecords.Builder().put("a", "1").build().entrySet().iterator().next().setValue("2");
+	}
+}
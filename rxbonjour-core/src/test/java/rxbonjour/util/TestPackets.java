@@ -0,0 +1,103 @@
+package rxbonjour.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class TestPackets {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static Response response() {
+		return new Response();
+	}
+
+	public static final class Response {
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(1500);
+		private int records;
+
+		private Response() {
+			buffer.position(12);
+		}
+
+		private void name(String name) {
+			StringBuilder label = new StringBuilder();
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (c == '\\') {
+					label.append(name.charAt(++i));
+				} else if (c == '.') {
+					byte[] bytes = label.toString().getBytes(UTF_8);
+					buffer.put((byte) bytes.length).put(bytes);
+					label.setLength(0);
+				} else {
+					label.append(c);
+				}
+			}
+			buffer.put((byte) 0);
+		}
+
+		private Response record(String name, int type, boolean cacheFlush, long ttl, byte[] data) {
+			name(name);
+			buffer.putShort((short) type);
+			buffer.putShort((short) (cacheFlush ? 0x8001 : 1));
+			buffer.putInt((int) ttl);
+			buffer.putShort((short) data.length);
+			buffer.put(data);
+			records++;
+			return this;
+		}
+
+		private byte[] encodedName(String name) {
+			Response scratch = new Response();
+			int start = scratch.buffer.position();
+			scratch.name(name);
+			byte[] bytes = new byte[scratch.buffer.position() - start];
+			scratch.buffer.position(start);
+			scratch.buffer.get(bytes);
+			return bytes;
+		}
+
+		public Response ptr(String type, String instance, long ttl) {
+			return record(type, 12, false, ttl, encodedName(instance));
+		}
+
+		public Response srv(String instance, String host, int port, long ttl) {
+			byte[] target = encodedName(host);
+			ByteBuffer data = ByteBuffer.allocate(6 + target.length);
+			data.putShort((short) 0).putShort((short) 0).putShort((short) port).put(target);
+			return record(instance, 33, true, ttl, data.array());
+		}
+
+		public Response txt(String instance, long ttl, String... entries) {
+			ByteBuffer data = ByteBuffer.allocate(256);
+			for (String entry : entries) {
+				byte[] bytes = entry.getBytes(UTF_8);
+				data.put((byte) bytes.length).put(bytes);
+			}
+			byte[] bytes = new byte[data.position()];
+			data.flip();
+			data.get(bytes);
+			return record(instance, 16, true, ttl, bytes);
+		}
+
+		public Response a(String host, byte[] address, long ttl) {
+			return record(host, 1, true, ttl, address);
+		}
+
+		public Response aaaa(String host, byte[] address, long ttl) {
+			return record(host, 28, true, ttl, address);
+		}
+
+		public ByteBuffer build() {
+			buffer.putShort(0, (short) 0);
+			buffer.putShort(2, (short) 0x8400);
+			buffer.putShort(4, (short) 0);
+			buffer.putShort(6, (short) records);
+			buffer.putShort(8, (short) 0);
+			buffer.putShort(10, (short) 0);
+			buffer.flip();
+			return buffer;
+		}
+	}
+}
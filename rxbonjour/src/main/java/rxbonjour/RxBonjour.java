@@ -3,12 +3,29 @@ package rxbonjour;
 import android.content.Context;
 import android.os.Build;
 
+import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.functions.Func2;
+import rx.schedulers.Schedulers;
+
 import rxbonjour.exc.TypeMalformedException;
 import rxbonjour.internal.BonjourDiscovery;
 import rxbonjour.internal.BonjourSchedulers;
+import rxbonjour.internal.DiscoveryRegistry;
+import rxbonjour.internal.EventBatcher;
+import rxbonjour.internal.HappyEyeballs;
 import rxbonjour.internal.JBBonjourDiscovery;
+import rxbonjour.internal.MultiInterfaceBonjourDiscovery;
+import rxbonjour.internal.NioBonjourDiscovery;
+import rxbonjour.internal.ReachabilityFilter;
 import rxbonjour.internal.SupportBonjourDiscovery;
 import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+import rxbonjour.model.ServiceSet;
 
 import static android.os.Build.VERSION_CODES.JELLY_BEAN;
 
@@ -20,6 +37,9 @@ public final class RxBonjour {
 
 	private static final String TYPE_PATTERN = "_[a-zA-Z0-9\\-]+.(_tcp|_udp)";
 
+	/** API level from which on DatagramChannel supports multicast, as required by the native engine (Android N) */
+	private static final int NATIVE_ENGINE_MIN_SDK = NioBonjourDiscovery.MIN_SDK;
+
 	private RxBonjour() {
 		throw new AssertionError("no instances");
 	}
@@ -53,6 +73,8 @@ public final class RxBonjour {
 	 * resolves these known issues with NsdManager.
 	 * 
 	 * This method's return Observable is scheduled to run on an I/O thread and notify subscribers on the main thread.
+	 * Subscribers discovering the same type with the same implementation share a single discovery session, which is stopped
+	 * once the last of them unsubscribes.
 	 * 
 	 * This method will throw a Runtime Exception if the input type does not obey Bonjour type specifications. If you intend
 	 * to use this method with arbitrary types that can be provided by user input, it is highly encouraged to verify this input
@@ -66,22 +88,311 @@ public final class RxBonjour {
 	 * @see <a href="https://code.google.com/p/android/issues/detail?id=39750">"NSD causes Nexus 7 device to spontaneously restart." - Issue on Google Code</a>
 	 */
 	public static rx.Observable<BonjourEvent> startDiscovery(Context context, String type, boolean useNsdManager) {
+		return startDiscovery(context, type, new DiscoveryOptions.Builder().setUseNsdManager(useNsdManager).build());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options.
+	 * Please refer to {@link #startDiscovery(Context, String, boolean)} for more details.
+	 *
+	 * With lazy resolution enabled, services are reported as {@link BonjourEvent.Type#FOUND FOUND} as soon as they are announced,
+	 * carrying only their name and type. Resolve the ones of interest using {@link #resolve(Context, BonjourService, DiscoveryOptions)}.
+	 *
+	 * @param context Context of the request
+	 * @param type    Type of service to discover
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 * @throws IllegalArgumentException If the options ask for the {@link DiscoveryOptions.ScanProfile#PASSIVE PASSIVE} scan profile,
+	 *                                  but the native engine can't be used, since other implementations would send queries regardless
+	 */
+	public static rx.Observable<BonjourEvent> startDiscovery(Context context, String type, DiscoveryOptions options) {
 		// Verify input
 		if (!isBonjourType(type)) throw new TypeMalformedException(type);
 
-		// Choose discovery strategy
-		BonjourDiscovery discovery;
-		if (useNsdManager && Build.VERSION.SDK_INT >= JELLY_BEAN) {
-			discovery = new JBBonjourDiscovery();
-		} else {
-			discovery = new SupportBonjourDiscovery();
+		// Obtain the discovery Observable, shared with other subscribers to the same type, and pre-configure it
+		return DiscoveryRegistry.start(discoveryClass(options), context, type, options)
+				.compose(BonjourSchedulers.<BonjourEvent>startSchedulers());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for all of the provided service types, using the support implementation with JmDNS as its backbone.
+	 * All types are discovered by one engine, and the events of all types are delivered through a single Observable.
+	 * Please refer to {@link #startDiscovery(Context, String)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param types   Types of service to discover
+	 * @return An Observable for Bonjour events of all types
+	 */
+	public static rx.Observable<BonjourEvent> startDiscovery(Context context, Collection<String> types) {
+		return startDiscovery(context, types, false);
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for all of the provided service types.
+	 * All types are discovered by one engine, and the events of all types are delivered through a single Observable.
+	 * When using the support implementation, the queries for all types are batched into a single packet.
+	 * Please refer to {@link #startDiscovery(Context, String, boolean)} for more details.
+	 *
+	 * This method will throw a Runtime Exception if any of the input types does not obey Bonjour type specifications.
+	 *
+	 * @param context       Context of the request
+	 * @param types         Types of service to discover
+	 * @param useNsdManager Whether or not to use the NsdManager implementation on devices that support it
+	 * @return An Observable for Bonjour events of all types
+	 */
+	public static rx.Observable<BonjourEvent> startDiscovery(Context context, Collection<String> types, boolean useNsdManager) {
+		return startDiscovery(context, types, new DiscoveryOptions.Builder().setUseNsdManager(useNsdManager).build());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for all of the provided service types, applying the provided options.
+	 * Please refer to {@link #startDiscovery(Context, Collection, boolean)} and {@link #startDiscovery(Context, String, DiscoveryOptions)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param types   Types of service to discover
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events of all types
+	 */
+	public static rx.Observable<BonjourEvent> startDiscovery(Context context, Collection<String> types, DiscoveryOptions options) {
+		// Verify input
+		for (String type : types) {
+			if (!isBonjourType(type)) throw new TypeMalformedException(type);
 		}
 
-		// Create the discovery Observable and pre-configure it
-		return discovery.start(context, type)
+		// Obtain the merged discovery Observable and pre-configure it
+		return DiscoveryRegistry.start(discoveryClass(options), context, types, options)
 				.compose(BonjourSchedulers.<BonjourEvent>startSchedulers());
 	}
 
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, delivering events in chunks rather than one at a time.
+	 * Please refer to {@link #startDiscoveryBatched(Context, String, DiscoveryOptions, long, TimeUnit, int)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param type    Type of service to discover
+	 * @param window  Maximum time for which events are collected into one chunk
+	 * @param unit    Time unit of the window
+	 * @param maxSize Maximum number of events per chunk
+	 * @return An Observable for chunks of Bonjour events
+	 */
+	public static rx.Observable<List<BonjourEvent>> startDiscoveryBatched(Context context, String type, long window, TimeUnit unit, int maxSize) {
+		return startDiscoveryBatched(context, type, DiscoveryOptions.defaults(), window, unit, maxSize);
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options and delivering events in chunks.
+	 * Events are collected until the window elapses or the chunk reaches its maximum size, and each chunk is delivered to the main thread
+	 * in a single dispatch. Within a chunk, a service that is added and removed again cancels out, and isn't reported at all,
+	 * unless it was already reported in an earlier chunk.
+	 * Windows without any remaining events don't produce a chunk.
+	 * Please refer to {@link #startDiscovery(Context, String, DiscoveryOptions)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param type    Type of service to discover
+	 * @param options Options applied to the discovery
+	 * @param window  Maximum time for which events are collected into one chunk
+	 * @param unit    Time unit of the window
+	 * @param maxSize Maximum number of events per chunk
+	 * @return An Observable for chunks of Bonjour events
+	 */
+	public static rx.Observable<List<BonjourEvent>> startDiscoveryBatched(Context context, String type, DiscoveryOptions options, long window, TimeUnit unit, int maxSize) {
+		// Verify input
+		if (!isBonjourType(type)) throw new TypeMalformedException(type);
+
+		// Group events into chunks before they are handed to the main thread
+		return DiscoveryRegistry.start(discoveryClass(options), context, type, options)
+				.compose(EventBatcher.batch(window, unit, maxSize, Schedulers.computation()))
+				.compose(BonjourSchedulers.<List<BonjourEvent>>startSchedulers());
+	}
+
+	/**
+	 * Starts a Bonjour service discovery for all of the provided service types, applying the provided options and delivering events in chunks.
+	 * Please refer to {@link #startDiscoveryBatched(Context, String, DiscoveryOptions, long, TimeUnit, int)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param types   Types of service to discover
+	 * @param options Options applied to the discovery
+	 * @param window  Maximum time for which events are collected into one chunk
+	 * @param unit    Time unit of the window
+	 * @param maxSize Maximum number of events per chunk
+	 * @return An Observable for chunks of Bonjour events of all types
+	 */
+	public static rx.Observable<List<BonjourEvent>> startDiscoveryBatched(Context context, Collection<String> types, DiscoveryOptions options, long window, TimeUnit unit, int maxSize) {
+		// Verify input
+		for (String type : types) {
+			if (!isBonjourType(type)) throw new TypeMalformedException(type);
+		}
+
+		// Group the merged events into chunks before they are handed to the main thread
+		return DiscoveryRegistry.start(discoveryClass(options), context, types, options)
+				.compose(EventBatcher.batch(window, unit, maxSize, Schedulers.computation()))
+				.compose(BonjourSchedulers.<List<BonjourEvent>>startSchedulers());
+	}
+
+	/**
+	 * Resolves a service reported by a lazy discovery, using the support implementation.
+	 * Please refer to {@link #resolve(Context, BonjourService, DiscoveryOptions)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	public static rx.Observable<BonjourService> resolve(Context context, BonjourService service) {
+		return resolve(context, service, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Resolves a service reported by a lazy discovery, using the implementation selected by the provided options.
+	 * Pass in the same options used to discover the service, so that the resolve can be answered from, or joined with,
+	 * resolves performed by that discovery. Services resolved recently are answered right away.
+	 *
+	 * This method's return Observable is scheduled to run on an I/O thread and notify subscribers on the main thread.
+	 * It emits the resolved service and completes, or fails with a {@link rxbonjour.exc.ResolveFailed} if the service couldn't be resolved.
+	 *
+	 * @param context Context of the request
+	 * @param service Service to resolve
+	 * @param options Options the service was discovered with
+	 * @return An Observable for the resolved service
+	 */
+	public static rx.Observable<BonjourService> resolve(Context context, BonjourService service, DiscoveryOptions options) {
+		return DiscoveryRegistry.resolve(implementationClass(options), context, service)
+				.compose(BonjourSchedulers.<BonjourService>startSchedulers());
+	}
+
+	/**
+	 * Connects to a resolved service over TCP, using the default timeout for each connection attempt.
+	 * Please refer to {@link #connect(BonjourService, long, TimeUnit)} for more details.
+	 *
+	 * @param service Resolved service to connect to
+	 * @return An Observable for the connected socket
+	 */
+	public static rx.Observable<Socket> connect(BonjourService service) {
+		return connect(service, HappyEyeballs.DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Connects to a resolved service over TCP, racing connection attempts across all of its addresses, IPv6 and IPv4 alternately.
+	 * Each attempt is started once the previous one failed, or didn't connect within 250 milliseconds, so that a stale address
+	 * doesn't hold up the connection for a full timeout.
+	 * 
+	 * This method's return Observable is scheduled to run on an I/O thread and notify subscribers on the main thread.
+	 * It emits the first socket that connected and completes, or fails with a {@link rxbonjour.exc.ConnectFailed}
+	 * if no address could be connected to. The subscriber is responsible for closing the socket.
+	 *
+	 * @param service Resolved service to connect to
+	 * @param timeout Timeout of each connection attempt
+	 * @param unit    Unit of the timeout
+	 * @return An Observable for the connected socket
+	 */
+	public static rx.Observable<Socket> connect(BonjourService service, long timeout, TimeUnit unit) {
+		return HappyEyeballs.connect(service, timeout, unit)
+				.compose(BonjourSchedulers.<Socket>startSchedulers());
+	}
+
+	/**
+	 * Starts the discovery engine of the support implementation ahead of time.
+	 * Please refer to {@link #prewarm(Context, DiscoveryOptions)} for more details.
+	 *
+	 * @param context Context of the request
+	 * @return An Observable for the timing of the engine startup
+	 */
+	public static rx.Observable<EngineStartup> prewarm(Context context) {
+		return prewarm(context, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Starts the discovery engine of the implementation selected by the provided options ahead of time, e.g. while the app starts up,
+	 * so that the first discovery doesn't have to wait for it. Discoveries started later attach to the running engine.
+	 * Prewarmed engines are kept running for 30 seconds while waiting for the first discovery.
+	 * 
+	 * This method's return Observable is scheduled to run on an I/O thread and notify subscribers on the main thread.
+	 * It emits the timing of each phase of the engine startup and completes, or fails with a {@link rxbonjour.exc.DiscoveryFailed}
+	 * if the engine couldn't be started.
+	 *
+	 * @param context Context of the request
+	 * @param options Options selecting the implementation, as used by later discoveries
+	 * @return An Observable for the timing of the engine startup
+	 */
+	public static rx.Observable<EngineStartup> prewarm(Context context, DiscoveryOptions options) {
+		return DiscoveryRegistry.prewarm(implementationClass(options), context)
+				.compose(BonjourSchedulers.<EngineStartup>startSchedulers());
+	}
+
+	/**
+	 * Returns a Transformer turning a stream of Bonjour events into a stream of {@link ServiceSet} snapshots of the currently visible services.
+	 * Each snapshot carries a delta of the keys inserted, removed and changed since the previous one, so that consumers can update their state
+	 * incrementally. Events that don't change the set of services don't produce a new snapshot.
+	 * 
+	 * The resulting Observable is shared among its subscribers, and starts with an empty snapshot. Subscribers joining later
+	 * immediately receive the current snapshot:
+	 * 
+	 * <pre>
+	 * Observable&lt;ServiceSet&gt; services = RxBonjour.startDiscovery(context, "_http._tcp").compose(RxBonjour.toServiceSet());
+	 * </pre>
+	 *
+	 * @return A Transformer from Bonjour events to service set snapshots
+	 */
+	public static rx.Observable.Transformer<BonjourEvent, ServiceSet> toServiceSet() {
+		return new rx.Observable.Transformer<BonjourEvent, ServiceSet>() {
+			@Override public rx.Observable<ServiceSet> call(rx.Observable<BonjourEvent> events) {
+				return events
+						.scan(ServiceSet.empty(), new Func2<ServiceSet, BonjourEvent, ServiceSet>() {
+							@Override public ServiceSet call(ServiceSet snapshot, BonjourEvent event) {
+								return snapshot.apply(event);
+							}
+						})
+						.distinctUntilChanged()
+						.replay(1)
+						.refCount();
+			}
+		};
+	}
+
+	/**
+	 * Sets the maximum number of services resolved concurrently by the NsdManager implementation.
+	 * By default, services are resolved one at a time on devices running versions of Android prior to Lollipop,
+	 * since NsdManager handles concurrent resolves badly there, and up to four at a time otherwise.
+	 *
+	 * @param maxConcurrentResolves Maximum number of concurrent resolves, or 0 to restore the default
+	 */
+	public static void setMaxConcurrentResolves(int maxConcurrentResolves) {
+		JBBonjourDiscovery.setMaxConcurrentResolves(maxConcurrentResolves);
+	}
+
+	/**
+	 * Sets the maximum number of reachability probes in flight at any time, shared by all discoveries that probe reachability.
+	 * Further probes wait until a probe in flight finished. Takes effect for probes started after this call.
+	 *
+	 * @param maxConcurrentProbes Maximum number of concurrent probes, or 0 to restore the default of 16
+	 * @see DiscoveryOptions.Builder#setReachabilityProbing(boolean)
+	 */
+	public static void setMaxConcurrentProbes(int maxConcurrentProbes) {
+		ReachabilityFilter.setMaxConcurrentProbes(maxConcurrentProbes);
+	}
+
+	/**
+	 * Notifies running discoveries that the device's network changed. The native engine resets the backoff of its queries,
+	 * and looks for services right away instead of waiting for the intervals grown on the previous network to elapse.
+	 * JmDNS manages its queries on its own, and isn't affected.
+	 *
+	 * While discoveries of the native engine are running, RxBonjour monitors the device's connectivity and does this on its own,
+	 * so calling this is only necessary for network changes the system doesn't report, e.g. those of a VPN managed by the app.
+	 */
+	public static void onNetworkChanged() {
+		DiscoveryRegistry.networkChanged();
+	}
+
+	/**
+	 * Returns the number of known answers listed by the native engine. Its browse queries list the services already known
+	 * (RFC 6762, section 7.1), so that responders may refrain from repeating them on every query. The count reflects what was asked
+	 * of responders, not how many answers they actually left out; other implementations don't contribute to it.
+	 *
+	 * @return The number of known answers sent by the native engine since the process started
+	 */
+	public static long getKnownAnswerCount() {
+		return DiscoveryRegistry.knownAnswerCount();
+	}
+
 	/**
 	 * Checks the provided type String against Bonjour specifications, and returns whether or not the type is valid.
 	 *
@@ -91,4 +402,43 @@ public final class RxBonjour {
 	public static boolean isBonjourType(String type) {
 		return type.matches(TYPE_PATTERN);
 	}
+
+	/* Begin private */
+
+	/**
+	 * Chooses the discovery strategy for a discovery with the provided options, making sure that it honors their scan profile.
+	 *
+	 * @param options Options of the discovery
+	 * @return The implementation class to use
+	 * @throws IllegalArgumentException If the options ask for the passive scan profile, but the native engine can't be used
+	 */
+	private static Class<? extends BonjourDiscovery> discoveryClass(DiscoveryOptions options) {
+		// Both JmDNS and NsdManager send browse queries on their own, so only the native engine can stay passive
+		if (options.getScanProfile() == DiscoveryOptions.ScanProfile.PASSIVE
+				&& (options.usesNsdManager() || Build.VERSION.SDK_INT < NATIVE_ENGINE_MIN_SDK)) {
+			throw new IllegalArgumentException("The PASSIVE scan profile requires the native engine, which " +
+					(options.usesNsdManager() ? "isn't used with NsdManager" : "requires API level " + NATIVE_ENGINE_MIN_SDK));
+		}
+		return implementationClass(options);
+	}
+
+	/**
+	 * Chooses the discovery strategy based on the device's API level.
+	 *
+	 * @param options Options selecting whether or not to use the NsdManager implementation or the native engine on devices that support it.
+	 *                Scan profiles other than the default one require the native engine. Discovering on all interfaces uses its own implementation
+	 * @return The implementation class to use
+	 */
+	private static Class<? extends BonjourDiscovery> implementationClass(DiscoveryOptions options) {
+		if (options.usesNsdManager() && Build.VERSION.SDK_INT >= JELLY_BEAN) {
+			return JBBonjourDiscovery.class;
+		} else if (options.usesAllInterfaces()) {
+			return MultiInterfaceBonjourDiscovery.class;
+		} else if ((options.usesNativeEngine() || options.getScanProfile() != DiscoveryOptions.ScanProfile.BALANCED)
+				&& Build.VERSION.SDK_INT >= NATIVE_ENGINE_MIN_SDK) {
+			return NioBonjourDiscovery.class;
+		} else {
+			return SupportBonjourDiscovery.class;
+		}
+	}
 }
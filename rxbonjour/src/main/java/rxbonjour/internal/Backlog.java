@@ -1,69 +1,136 @@
 package rxbonjour.internal;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import rx.Subscription;
-import rx.functions.Action1;
-import rx.subjects.BehaviorSubject;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Backlog manager class, polling objects and processing them until an external object calls
- * {@link #proceed()}.
+ * {@link #proceed()}. By default, one item is processed at a time; backlogs with a higher concurrency
+ * process up to that many items before waiting for {@link #proceed()}.
+ *
+ * Items are held in a lock-free, bounded queue. Processing happens on whichever thread adds an item or calls {@link #proceed()}
+ * while the backlog has room for more work, so that no thread hops are required per item. If the queue is full, the backlog's
+ * {@link OverflowPolicy} decides what happens to an incoming item.
  */
 public abstract class Backlog<T> {
 
-	/** Item sent to the Backlog upon requesting to quit processing with it */
-	private static final Object STOP_MARKER = new Object();
+	/** Default number of items held by a backlog */
+	public static final int DEFAULT_CAPACITY = 256;
 
 	/** Queue to which pending objects are added */
-	private BlockingQueue<Object> queue = new LinkedBlockingQueue<>(32);
+	private final BoundedQueue<T> queue;
+
+	/** Policy applied to incoming items while the queue is full */
+	private final OverflowPolicy policy;
 
-	/** Subject responsible for notifying the backlog to continue processing */
-	private BehaviorSubject<Void> subject;
+	/** Work-in-progress counter, ensuring that only one thread at a time processes items */
+	private final AtomicInteger wip = new AtomicInteger();
 
-	/** Subscription to the subject, held right after instantiation */
-	private Subscription subscription;
+	/** Maximum number of items processed at the same time */
+	private final int concurrency;
 
-	/** Busy flag, set upon processing an item, until {@link #proceed()} is called */
-	private AtomicBoolean idle = new AtomicBoolean(true);
+	/** Number of items that may still be processed until {@link #proceed()} is called */
+	private final AtomicInteger permits;
+
+	/** Flag set once the backlog is terminated */
+	private volatile boolean quit;
 
 	/**
-	 * Constructor
+	 * Constructor, creating a backlog with the default capacity, which drops its oldest items on overflow
 	 */
 	public Backlog() {
-		subject = BehaviorSubject.create();
-		subscription = subject
-				.compose(BonjourSchedulers.<Void>backlogSchedulers())
-				.subscribe(new Action1<Void>() {
-					@Override public void call(Void aVoid) {
-						try {
-							// Take an item pushed to the queue and check for the STOP marker
-							Object info = queue.take();
-							if (!STOP_MARKER.equals(info)) {
-								// If an item other than the STOP marker is added,
-								// invoke the onNext callback with it
-								idle.set(false);
-
-								//noinspection unchecked
-								onNext(Backlog.this, (T) info);
-							}
-
-						} catch (InterruptedException ignored) {
-						}
+		this(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity Maximum number of pending items, rounded up to the next power of two
+	 * @param policy   Policy applied to incoming items while the backlog is full
+	 */
+	public Backlog(int capacity, OverflowPolicy policy) {
+		this(capacity, policy, 1);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity    Maximum number of pending items, rounded up to the next power of two
+	 * @param policy      Policy applied to incoming items while the backlog is full
+	 * @param concurrency Maximum number of items processed at the same time
+	 */
+	public Backlog(int capacity, OverflowPolicy policy, int concurrency) {
+		if (concurrency <= 0) throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		this.queue = new BoundedQueue<>(capacity);
+		this.policy = policy;
+		this.concurrency = concurrency;
+		this.permits = new AtomicInteger(concurrency);
+	}
+
+	/* Begin private */
+
+	/**
+	 * Processes pending items for as long as the backlog has permits left. If another thread is already processing items,
+	 * this call only marks that more work is available, and returns immediately.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) return;
+
+		int missed = 1;
+		for (; ; ) {
+			while (!quit && permits.get() > 0) {
+				T item = queue.poll();
+				if (item == null) break;
+
+				// Invoke the onNext callback with the item
+				permits.decrementAndGet();
+				onNext(this, item);
+			}
+
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) break;
+		}
+	}
+
+	/**
+	 * Enqueues the provided item according to the overflow policy.
+	 *
+	 * @param item Item to enqueue
+	 */
+	private void enqueue(T item) {
+		// Coalesced items are otherwise treated like those of DROP_OLDEST, making room for them if necessary
+		if (policy == OverflowPolicy.COALESCE && queue.contains(item)) return;
+
+		switch (policy) {
+			case COALESCE:
+			case DROP_OLDEST:
+				while (!queue.offer(item)) {
+					queue.poll();
+				}
+				break;
+
+			case BLOCK:
+				int spins = 0;
+				while (!queue.offer(item)) {
+					if (quit) return;
+					if (++spins < 64) {
+						Thread.yield();
+					} else {
+						LockSupport.parkNanos(100000L);
 					}
-				});
+				}
+				break;
+		}
 	}
 
+	/* Begin public */
+
 	/**
 	 * Terminates the work of this backlog instance
 	 */
 	public void quit() {
-		// Send the STOP signal to the queue
-		queue.add(STOP_MARKER);
-		subject.onCompleted();
-		subscription.unsubscribe();
+		quit = true;
+		queue.clear();
 	}
 
 	/**
@@ -71,26 +138,49 @@ public abstract class Backlog<T> {
 	 * @param item	Item enqueued to the backlog
 	 */
 	public void add(T item) {
+		if (quit) return;
+
 		// Add to the queue, and if ready for another item, proceed right away
-		queue.add(item);
-		if (idle.get()) proceed();
+		enqueue(item);
+		drain();
 	}
 
 	/**
 	 * Signalizes that the backlog can proceed with the next item
 	 */
 	public void proceed() {
-		idle.set(true);
-		subject.onNext(null);
+		// Return a permit, without exceeding the backlog's concurrency
+		for (; ; ) {
+			int current = permits.get();
+			if (current >= concurrency || permits.compareAndSet(current, current + 1)) break;
+		}
+		drain();
 	}
 
 	/* Begin abstract */
 
 	/**
-	 * Callback invoked upon processing an item. This method is executed on a background thread;
+	 * Callback invoked upon processing an item. This method is executed on the thread that added the item or called {@link #proceed()};
 	 * after the caller is done processing the item, it is his responsibility to call {@link #proceed()}
 	 * or {@link #quit()} on the backlog.
 	 * @param item	Item to be processed next
 	 */
 	public abstract void onNext(Backlog<T> backlog, T item);
+
+	/* Begin static */
+
+	/**
+	 * Policy deciding what happens to incoming items when a backlog is full
+	 */
+	public enum OverflowPolicy {
+		/** The oldest pending item is dropped to make room for the incoming one */
+		DROP_OLDEST,
+		/** Incoming items equal to an already pending item are dropped right away; otherwise, the oldest pending item is dropped to make room */
+		COALESCE,
+		/**
+		 * The adding thread waits until there is room for the incoming item.
+		 * Only use this if the thread calling {@link #proceed()} never adds items itself, as it would block forever otherwise
+		 */
+		BLOCK
+	}
 }
@@ -2,7 +2,10 @@ package rxbonjour.internal;
 
 import android.content.Context;
 
+import rxbonjour.DiscoveryOptions;
 import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
 
 /**
  * Base interface for DNS-SD implementations
@@ -17,4 +20,33 @@ public interface BonjourDiscovery {
 	 * @return An Observable for Bonjour events
 	 */
 	rx.Observable<BonjourEvent> start(Context context, String type);
+
+	/**
+	 * Starts a Bonjour service discovery for the provided service type, applying the provided options.
+	 *
+	 * @param context Context of the request
+	 * @param type    Type of service to discover
+	 * @param options Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	rx.Observable<BonjourEvent> start(Context context, String type, DiscoveryOptions options);
+
+	/**
+	 * Resolves the provided service, which was previously reported by a discovery of this implementation.
+	 * The returned Observable emits the resolved service and completes, or fails with a {@link rxbonjour.exc.ResolveFailed}.
+	 *
+	 * @param context Context of the request
+	 * @param service Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	rx.Observable<BonjourService> resolve(Context context, BonjourService service);
+
+	/**
+	 * Starts the engine of this implementation ahead of any discovery, so that discoveries started later attach to the running engine.
+	 * The returned Observable emits the timing of the startup and completes, or fails with a {@link rxbonjour.exc.DiscoveryFailed}.
+	 *
+	 * @param context Context of the request
+	 * @return An Observable for the timing of the startup
+	 */
+	rx.Observable<EngineStartup> prewarm(Context context);
 }
@@ -0,0 +1,133 @@
+package rxbonjour.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, bounded queue backed by a pre-allocated ring buffer.
+ * Any number of threads may offer and poll concurrently; since every slot carries its own sequence number,
+ * no allocations or locks are required per item.
+ *
+ * @param <T> Type of items held by the queue
+ */
+final class BoundedQueue<T> {
+
+	/** Slots holding the queued items */
+	private final AtomicReferenceArray<T> buffer;
+	/** Sequence numbers of each slot, indicating whether it's ready to be written to or read from */
+	private final AtomicLongArray sequences;
+	/** Mask applied to indices in order to obtain a slot offset */
+	private final int mask;
+
+	/** Index of the next slot to write to */
+	private final AtomicLong producerIndex = new AtomicLong();
+	/** Index of the next slot to read from */
+	private final AtomicLong consumerIndex = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity Maximum number of items held by the queue, rounded up to the next power of two
+	 */
+	BoundedQueue(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+
+		buffer = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return The maximum number of items held by the queue
+	 */
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Adds the provided item to the tail of the queue, unless the queue is full.
+	 *
+	 * @param item Item to add
+	 * @return True if the item was added, false if the queue is full
+	 */
+	boolean offer(T item) {
+		if (item == null) throw new NullPointerException("item == null");
+
+		for (; ; ) {
+			long index = producerIndex.get();
+			int offset = (int) index & mask;
+			long delta = sequences.get(offset) - index;
+
+			if (delta == 0) {
+				// Slot is free; claim it, then publish the item
+				if (producerIndex.compareAndSet(index, index + 1)) {
+					buffer.lazySet(offset, item);
+					sequences.lazySet(offset, index + 1);
+					return true;
+				}
+
+			} else if (delta < 0) {
+				// Slot still holds an item from the previous lap
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the item at the head of the queue.
+	 *
+	 * @return The head of the queue, or null if the queue is empty
+	 */
+	T poll() {
+		for (; ; ) {
+			long index = consumerIndex.get();
+			int offset = (int) index & mask;
+			long delta = sequences.get(offset) - (index + 1);
+
+			if (delta == 0) {
+				// Slot holds a published item; claim it, then release the slot for the next lap
+				if (consumerIndex.compareAndSet(index, index + 1)) {
+					T item = buffer.get(offset);
+					buffer.lazySet(offset, null);
+					sequences.lazySet(offset, index + mask + 1);
+					return item;
+				}
+
+			} else if (delta < 0) {
+				// Slot hasn't been published yet
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an item equal to the provided one is currently queued.
+	 * Since producers and consumers may operate concurrently, the result is a best-effort snapshot.
+	 *
+	 * @param item Item to look for
+	 * @return True if an equal item was found
+	 */
+	boolean contains(T item) {
+		long start = consumerIndex.get();
+		long end = producerIndex.get();
+		for (long index = start; index < end; index++) {
+			T queued = buffer.get((int) index & mask);
+			if (queued != null && queued.equals(item)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes all items from the queue.
+	 */
+	void clear() {
+		//noinspection StatementWithEmptyBody
+		while (poll() != null) ;
+	}
+}
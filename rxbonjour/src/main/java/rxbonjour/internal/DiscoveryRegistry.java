@@ -0,0 +1,539 @@
+package rxbonjour.internal;
+
+import android.content.Context;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.observers.Subscribers;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.StaleContextException;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+import rxbonjour.model.ServiceSet;
+
+/**
+ * Process-wide registry of discovery implementations and their running discovery sessions.
+ * Each implementation is instantiated only once, and all subscribers requesting the same type from the same implementation
+ * share a single session, which is torn down once the last of them unsubscribes. Subscribers joining a running session
+ * are caught up on the services it knows about before receiving its live events. The services known to a torn down session
+ * are remembered for the linger period of its options, and replayed to the subscriber starting the same session again.
+ * Each subscriber is served events as it requests them, applying the backpressure strategy of its options on its own,
+ * so that a slow subscriber neither throttles the session nor makes other subscribers miss events.
+ * While sessions of the native engines are running, the registry monitors the device's connectivity, and notifies the engines
+ * of network changes on its own.
+ */
+public final class DiscoveryRegistry {
+
+	/** Implementation instances, one per implementation class */
+	private static final Map<Class<? extends BonjourDiscovery>, BonjourDiscovery> implementations = new HashMap<>();
+	/** Running discovery sessions, keyed by implementation class and type */
+	private static final Map<String, Session> sessions = new HashMap<>();
+	/** Services of recently torn down sessions, keyed like the sessions */
+	private static final Map<String, Lingering> lingering = new HashMap<>();
+	/** Synchronization lock on the registry's maps */
+	private static final Object registryLock = new Object();
+	/** Monitor of the device's connectivity, held by each running session of the native engines */
+	private static final NetworkMonitor networkMonitor = new NetworkMonitor(new Action0() {
+		@Override public void call() {
+			networkChanged();
+		}
+	});
+
+	private DiscoveryRegistry() {
+		throw new AssertionError("no instances");
+	}
+
+	/* Begin private */
+
+	/**
+	 * Returns the process-wide instance of the provided implementation class, creating it if necessary.
+	 * Must be called while holding the registry lock.
+	 *
+	 * @param implClass Implementation class
+	 * @return The implementation instance
+	 */
+	private static BonjourDiscovery getImplementation(Class<? extends BonjourDiscovery> implClass) {
+		BonjourDiscovery discovery = implementations.get(implClass);
+		if (discovery == null) {
+			try {
+				discovery = implClass.newInstance();
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new IllegalArgumentException("Can't instantiate " + implClass.getSimpleName(), e);
+			}
+			implementations.put(implClass, discovery);
+		}
+		return discovery;
+	}
+
+	/**
+	 * Creates the key under which a discovery session is registered.
+	 * Sessions are only shared among subscribers using equal options.
+	 *
+	 * @param implClass Implementation class
+	 * @param type      Type of service to discover
+	 * @param options   Options applied to the discovery
+	 * @return The session key
+	 */
+	private static String sessionKey(Class<? extends BonjourDiscovery> implClass, String type, DiscoveryOptions options) {
+		return implClass.getName() + "/" + type + "/" + options;
+	}
+
+	/**
+	 * @param implClass Implementation class
+	 * @return True if the sessions of the provided implementation need to be notified of network changes
+	 */
+	private static boolean monitorsNetwork(Class<? extends BonjourDiscovery> implClass) {
+		return implClass == NioBonjourDiscovery.class || implClass == MultiInterfaceBonjourDiscovery.class;
+	}
+
+	/**
+	 * @return The current time of a monotonic clock, in milliseconds
+	 */
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Remembers the services known to a torn down session for the provided period, and forgets about those of other sessions
+	 * whose period ran out. Must be called while holding the registry lock.
+	 *
+	 * @param key          Session key
+	 * @param session      Torn down session
+	 * @param lingerMillis Time for which to remember the services, in milliseconds
+	 */
+	private static void linger(String key, Session session, long lingerMillis) {
+		long now = now();
+		for (Iterator<Lingering> iterator = lingering.values().iterator(); iterator.hasNext(); ) {
+			if (iterator.next().deadline - now <= 0) iterator.remove();
+		}
+
+		ServiceSet services = session.services;
+		if (lingerMillis > 0 && !services.isEmpty()) {
+			lingering.put(key, new Lingering(services.getServices(), now + lingerMillis));
+		}
+	}
+
+	/**
+	 * Takes the services remembered for the provided session key, if its linger period didn't run out yet.
+	 * Must be called while holding the registry lock.
+	 *
+	 * @param key Session key
+	 * @return The remembered services, or null if there aren't any
+	 */
+	private static Collection<BonjourService> takeLingering(String key) {
+		Lingering remembered = lingering.remove(key);
+		return (remembered != null && remembered.deadline - now() > 0) ? remembered.services : null;
+	}
+
+	/* Begin public */
+
+	/**
+	 * Returns an Observable for Bonjour events of the provided type, discovered by the provided implementation.
+	 * Upon subscription, the Observable attaches to the implementation's running session for this type, or starts a new one
+	 * if no other subscriber is currently listening to it.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @param type      Type of service to discover
+	 * @return An Observable for Bonjour events
+	 */
+	public static Observable<BonjourEvent> start(Class<? extends BonjourDiscovery> implClass, Context context, String type) {
+		return start(implClass, context, type, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Returns an Observable for Bonjour events of the provided type, discovered by the provided implementation with the provided options.
+	 * Upon subscription, the Observable attaches to the implementation's running session for this type and options, or starts a new one
+	 * if no other subscriber is currently listening to it. If the options specify a persistent cache, the services cached for this type
+	 * that the session doesn't know about yet are reported to each subscriber before the events of the session.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @param type      Type of service to discover
+	 * @param options   Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	public static Observable<BonjourEvent> start(final Class<? extends BonjourDiscovery> implClass, Context context, final String type, final DiscoveryOptions options) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.create(new Observable.OnSubscribe<BonjourEvent>() {
+			@Override public void call(Subscriber<? super BonjourEvent> subscriber) {
+				Context context = weakContext.get();
+				if (context == null) {
+					subscriber.onError(new StaleContextException());
+					return;
+				}
+
+				// Attach to the running session, or start a new one
+				final String key = sessionKey(implClass, type, options);
+				final Session session;
+				Collection<BonjourService> remembered = null;
+				boolean started = false;
+				synchronized (registryLock) {
+					Session running = sessions.get(key);
+					if (running == null) {
+						running = new Session(getImplementation(implClass).start(context, type, options));
+						sessions.put(key, running);
+						remembered = takeLingering(key);
+						started = true;
+					}
+					running.refCount++;
+					session = running;
+				}
+
+				// Watch for network changes for as long as the session is running
+				final boolean monitored = monitorsNetwork(implClass);
+				if (started && monitored) networkMonitor.acquire(context);
+
+				// Add onUnsubscribe() hook, forgetting about the session once its last subscriber leaves
+				subscriber.add(Subscriptions.create(new Action0() {
+					@Override public void call() {
+						boolean stopped = false;
+						synchronized (registryLock) {
+							if (--session.refCount <= 0 && sessions.get(key) == session) {
+								sessions.remove(key);
+								linger(key, session, options.getLingerMillis());
+								stopped = true;
+							}
+						}
+						if (stopped && monitored) networkMonitor.release();
+					}
+				}));
+
+				// Replay the services remembered from the previous session, while the new one re-verifies them
+				ServiceSet known = session.services;
+				Observable<BonjourEvent> events = session.attach();
+				if (remembered != null) {
+					events = events.compose(ServiceReplay.replay(remembered, ServiceReplay.DEFAULT_CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS, Schedulers.computation()));
+				}
+
+				// Report the services cached by previous runs that the session doesn't know about yet.
+				// Only the subscriber starting the session removes those it doesn't confirm in time from the cache
+				if (options.getPersistentCache() != null) {
+					events = events.compose(PersistentServiceCache.forFile(options.getPersistentCache())
+							.warmStart(type, known, started, ServiceReplay.DEFAULT_CONFIRM_TIMEOUT_SECONDS, TimeUnit.SECONDS, Schedulers.computation()));
+				}
+
+				// Honor the requests of the subscriber, holding back the events of all stages above it according to the backpressure strategy.
+				// The subscriber was already started, and is wrapped so that it doesn't request its initial events a second time
+				events.compose(EventBackpressure.apply(options)).unsafeSubscribe(Subscribers.wrap(subscriber));
+			}
+		});
+	}
+
+	/**
+	 * Returns an Observable for Bonjour events of all provided types, discovered by the provided implementation.
+	 * Each type attaches to the implementation's running session for it, and the events of all types are merged into one stream.
+	 * Types contained in the collection more than once are only discovered once.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @param types     Types of service to discover
+	 * @return An Observable for Bonjour events
+	 */
+	public static Observable<BonjourEvent> start(Class<? extends BonjourDiscovery> implClass, Context context, Collection<String> types) {
+		return start(implClass, context, types, DiscoveryOptions.defaults());
+	}
+
+	/**
+	 * Returns an Observable for Bonjour events of all provided types, discovered by the provided implementation with the provided options.
+	 * Please refer to {@link #start(Class, Context, Collection)} for more details.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @param types     Types of service to discover
+	 * @param options   Options applied to the discovery
+	 * @return An Observable for Bonjour events
+	 */
+	public static Observable<BonjourEvent> start(Class<? extends BonjourDiscovery> implClass, Context context, Collection<String> types, DiscoveryOptions options) {
+		List<Observable<BonjourEvent>> observables = new ArrayList<>(types.size());
+		for (String type : new LinkedHashSet<>(types)) {
+			observables.add(start(implClass, context, type, options));
+		}
+		return Observable.merge(observables);
+	}
+
+	/**
+	 * Returns an Observable resolving the provided service through the process-wide instance of the provided implementation,
+	 * so that the resolve can join the bookkeeping of the implementation's running discovery sessions.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @param service   Service to resolve
+	 * @return An Observable for the resolved service
+	 */
+	public static Observable<BonjourService> resolve(Class<? extends BonjourDiscovery> implClass, Context context, BonjourService service) {
+		BonjourDiscovery discovery;
+		synchronized (registryLock) {
+			discovery = getImplementation(implClass);
+		}
+		return discovery.resolve(context, service);
+	}
+
+	/**
+	 * Returns an Observable starting the engine of the process-wide instance of the provided implementation,
+	 * so that discoveries started later attach to the running engine.
+	 *
+	 * @param implClass Implementation class
+	 * @param context   Context of the request
+	 * @return An Observable for the timing of the startup
+	 */
+	public static Observable<EngineStartup> prewarm(Class<? extends BonjourDiscovery> implClass, Context context) {
+		BonjourDiscovery discovery;
+		synchronized (registryLock) {
+			discovery = getImplementation(implClass);
+		}
+		return discovery.prewarm(context);
+	}
+
+	/**
+	 * Notifies the native engines of a network change, if they were used yet.
+	 */
+	public static void networkChanged() {
+		BonjourDiscovery discovery;
+		BonjourDiscovery multiDiscovery;
+		synchronized (registryLock) {
+			discovery = implementations.get(NioBonjourDiscovery.class);
+			multiDiscovery = implementations.get(MultiInterfaceBonjourDiscovery.class);
+		}
+		if (discovery != null) ((NioBonjourDiscovery) discovery).networkChanged();
+		if (multiDiscovery != null) ((MultiInterfaceBonjourDiscovery) multiDiscovery).networkChanged();
+	}
+
+	/**
+	 * Returns the number of known answers the native engines listed in their browse queries, or 0 if they weren't used yet.
+	 *
+	 * @return The number of known answers sent by the native engines
+	 */
+	public static long knownAnswerCount() {
+		BonjourDiscovery discovery;
+		BonjourDiscovery multiDiscovery;
+		synchronized (registryLock) {
+			discovery = implementations.get(NioBonjourDiscovery.class);
+			multiDiscovery = implementations.get(MultiInterfaceBonjourDiscovery.class);
+		}
+		long count = discovery != null ? ((NioBonjourDiscovery) discovery).getKnownAnswerCount() : 0L;
+		if (multiDiscovery != null) count += ((MultiInterfaceBonjourDiscovery) multiDiscovery).getKnownAnswerCount();
+		return count;
+	}
+
+	/* Begin static */
+
+	/**
+	 * Discovery session shared among the subscribers of one implementation and type
+	 */
+	private static final class Session {
+
+		/** Shared Observable, connected to the implementation while at least one subscriber is present */
+		private final Observable<BonjourEvent> observable;
+		/** Number of subscribers attached to the session */
+		private int refCount;
+		/** Services currently known to the session */
+		private volatile ServiceSet services = ServiceSet.empty();
+
+		private Session(Observable<BonjourEvent> source) {
+			this.observable = source
+					.doOnNext(new Action1<BonjourEvent>() {
+						@Override public void call(BonjourEvent event) {
+							services = services.apply(event);
+						}
+					})
+					.share();
+		}
+
+		/**
+		 * Returns an Observable attaching a subscriber to the session. The subscriber first receives the services
+		 * the session already knows about, as ADDED or, if they aren't resolved, FOUND events, and the live events after that.
+		 * The underlying discovery only reports services once, to the first subscriber, so later subscribers would miss them otherwise.
+		 *
+		 * @return An Observable for the events of the session
+		 */
+		private Observable<BonjourEvent> attach() {
+			return Observable.create(new Observable.OnSubscribe<BonjourEvent>() {
+				@Override public void call(Subscriber<? super BonjourEvent> child) {
+					// Attach to the live events first, so that no event is lost between taking the snapshot and attaching.
+					// Services reported by both are only reported once
+					final Attachment attachment = new Attachment(child);
+					child.add(attachment);
+					child.setProducer(new Producer() {
+						@Override public void request(long n) {
+							attachment.requestMore(n);
+						}
+					});
+					observable.unsafeSubscribe(attachment);
+					attachment.catchUp(services);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Subscriber attached to a session, forwarding its events to the child subscriber after catching it up on the known services.
+	 * The session isn't throttled by the child: events are queued until the child requests them, and emitted outside of the lock,
+	 * so that a slow child doesn't hold up the session's other subscribers.
+	 */
+	private static final class Attachment extends Subscriber<BonjourEvent> {
+
+		private final Subscriber<? super BonjourEvent> child;
+		/** Last state of every service reported to the child, keyed like in a {@link ServiceSet}. Guarded by this */
+		private final Map<String, BonjourService> reported = new HashMap<>();
+		/** Events waiting to be requested by the child, in order. Guarded by this */
+		private final Queue<BonjourEvent> queue = new ArrayDeque<>();
+		/** Number of events requested by the child, but not yet emitted. Guarded by this */
+		private long requested;
+		/** Whether or not a thread is currently emitting to the child. Guarded by this */
+		private boolean emitting;
+		/** Whether or not the session terminated. Guarded by this */
+		private boolean done;
+		/** Error the session terminated with, if any. Guarded by this */
+		private Throwable error;
+
+		private Attachment(Subscriber<? super BonjourEvent> child) {
+			this.child = child;
+		}
+
+		/* Begin private */
+
+		/**
+		 * Reports the services of the provided snapshot that weren't reported to the child yet.
+		 *
+		 * @param snapshot Services known to the session
+		 */
+		private void catchUp(ServiceSet snapshot) {
+			for (BonjourService service : snapshot.getServices()) {
+				offer(new BonjourEvent(service.isResolved() ? BonjourEvent.Type.ADDED : BonjourEvent.Type.FOUND, service));
+			}
+			drain();
+		}
+
+		/**
+		 * Queues an event for the child, unless the child already knows about it. Services are shared by the snapshot and the live events,
+		 * so that identical states are recognized by reference.
+		 */
+		private synchronized void offer(BonjourEvent event) {
+			BonjourService service = event.getService();
+			String key = ServiceSet.keyOf(service);
+			BonjourService previous = reported.get(key);
+			if (event.getType() == BonjourEvent.Type.REMOVED) {
+				// Don't report services that the child never saw as removed
+				if (previous == null) return;
+				reported.remove(key);
+
+			} else {
+				if (previous == service) return;
+				// Report an update of a service the child never saw as its addition
+				if (previous == null && event.getType() == BonjourEvent.Type.UPDATED) event = new BonjourEvent(BonjourEvent.Type.ADDED, service);
+				reported.put(key, service);
+			}
+			queue.offer(event);
+		}
+
+		private void requestMore(long n) {
+			if (n <= 0) return;
+			synchronized (this) {
+				requested += n;
+				if (requested < 0) requested = Long.MAX_VALUE;
+			}
+			drain();
+		}
+
+		/**
+		 * Emits the queued events requested by the child, and the termination of the session once they are all emitted.
+		 * Only one thread emits at a time, and always outside of the lock.
+		 */
+		private void drain() {
+			synchronized (this) {
+				if (emitting) return;
+				emitting = true;
+			}
+
+			for (; ; ) {
+				BonjourEvent event = null;
+				Throwable terminalError = null;
+				synchronized (this) {
+					if (child.isUnsubscribed()) return;
+					if (queue.isEmpty()) {
+						if (!done) {
+							emitting = false;
+							return;
+						}
+						terminalError = error;
+
+					} else {
+						if (requested == 0) {
+							emitting = false;
+							return;
+						}
+						if (requested != Long.MAX_VALUE) requested--;
+						event = queue.poll();
+					}
+				}
+
+				if (event != null) {
+					child.onNext(event);
+				} else {
+					if (terminalError != null) child.onError(terminalError);
+					else child.onCompleted();
+					return;
+				}
+			}
+		}
+
+		/* Begin overrides */
+
+		@Override public void onNext(BonjourEvent event) {
+			offer(event);
+			drain();
+		}
+
+		@Override public void onCompleted() {
+			synchronized (this) {
+				done = true;
+			}
+			drain();
+		}
+
+		@Override public void onError(Throwable e) {
+			synchronized (this) {
+				error = e;
+				done = true;
+			}
+			drain();
+		}
+	}
+
+	/**
+	 * Services remembered from a torn down session
+	 */
+	private static final class Lingering {
+
+		/** Services known to the session when it was torn down */
+		private final Collection<BonjourService> services;
+		/** Time at which the services are forgotten, in milliseconds of the monotonic clock */
+		private final long deadline;
+
+		private Lingering(Collection<BonjourService> services, long deadline) {
+			this.services = services;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package rxbonjour.internal;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+
+import java.lang.ref.WeakReference;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.StaleContextException;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
+
+/**
+ * Base class of implementations running one of the core module's discovery engines on the device's Wifi connection.
+ * The Context of each request is only held weakly, and looked up upon subscription to bind the engine to the network.
+ */
+abstract class EngineBonjourDiscovery implements BonjourDiscovery {
+
+	/** Engine performing the discovery, shared among subscribers */
+	private final DiscoveryEngine engine;
+	/** Whether or not the engine is bound to the address of the Wifi connection, rather than only holding the multicast lock */
+	private final boolean bindsWifiAddress;
+
+	/**
+	 * Constructor, binding the engine to the address of the Wifi connection
+	 *
+	 * @param engine Engine performing the discovery
+	 */
+	EngineBonjourDiscovery(DiscoveryEngine engine) {
+		this(engine, true);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param engine           Engine performing the discovery
+	 * @param bindsWifiAddress Whether or not the engine is bound to the address of the Wifi connection, rather than only holding the multicast lock
+	 */
+	EngineBonjourDiscovery(DiscoveryEngine engine, boolean bindsWifiAddress) {
+		this.engine = engine;
+		this.bindsWifiAddress = bindsWifiAddress;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Creates the binding to the Wifi connection of the device, if the provided Context is still alive.
+	 *
+	 * @param weakContext Weak reference to the Context to obtain the WifiManager from
+	 * @return The binding, or null if the Context is stale
+	 */
+	private NetworkBinding newBinding(WeakReference<Context> weakContext) {
+		Context context = weakContext.get();
+		if (context == null) return null;
+		return new WifiBinding((WifiManager) context.getSystemService(Context.WIFI_SERVICE), bindsWifiAddress);
+	}
+
+	/* Begin overrides */
+
+	@Override public Observable<BonjourEvent> start(Context context, String type) {
+		return start(context, type, DiscoveryOptions.defaults());
+	}
+
+	@Override public Observable<BonjourEvent> start(Context context, final String type, final DiscoveryOptions options) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.defer(new Func0<Observable<BonjourEvent>>() {
+			@Override public Observable<BonjourEvent> call() {
+				NetworkBinding binding = newBinding(weakContext);
+				if (binding == null) return Observable.error(new StaleContextException());
+				return engine.start(binding, type, options);
+			}
+		});
+	}
+
+	@Override public Observable<BonjourService> resolve(Context context, final BonjourService service) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.defer(new Func0<Observable<BonjourService>>() {
+			@Override public Observable<BonjourService> call() {
+				NetworkBinding binding = newBinding(weakContext);
+				if (binding == null) return Observable.error(new StaleContextException());
+				return engine.resolve(binding, service);
+			}
+		});
+	}
+
+	@Override public Observable<EngineStartup> prewarm(Context context) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.defer(new Func0<Observable<EngineStartup>>() {
+			@Override public Observable<EngineStartup> call() {
+				NetworkBinding binding = newBinding(weakContext);
+				if (binding == null) return Observable.error(new StaleContextException());
+				return engine.prewarm(binding);
+			}
+		});
+	}
+}
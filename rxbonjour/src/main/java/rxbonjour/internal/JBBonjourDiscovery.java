@@ -7,16 +7,20 @@ import android.net.nsd.NsdServiceInfo;
 import android.os.Build;
 
 import java.lang.ref.WeakReference;
-import java.nio.charset.Charset;
 import java.util.Map;
 
 import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 import rxbonjour.exc.DiscoveryFailed;
 
 import rx.Observable;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.exc.ResolveFailed;
 import rxbonjour.exc.StaleContextException;
 import rxbonjour.model.BonjourEvent;
 import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
 
 import static android.os.Build.VERSION_CODES.JELLY_BEAN;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
@@ -32,13 +36,28 @@ public final class JBBonjourDiscovery implements BonjourDiscovery {
 
 	/** NsdManager instance used for discovery, shared among subscribers */
 	private NsdManager nsdManagerInstance;
+	/** Startup phase obtaining the NsdManager */
+	static final String PHASE_NSD_MANAGER = "nsdManager";
+	/** Startup phase creating the resolver pipeline */
+	static final String PHASE_RESOLVER = "resolver";
+
+	/** Time for which a prewarmed resolver is kept running while waiting for the first subscriber, in milliseconds */
+	private static final long PREWARM_LINGER_MILLIS = 30000L;
+
 	/** Synchronization lock on the NsdManager instance */
 	private final Object nsdManagerLock = new Object();
-	/** Number of subscribers listening to Bonjour events */
+	/** Number of subscribers and resolves holding on to the NsdManager and resolver. Guarded by the NsdManager lock */
 	private int subscriberCount = 0;
+	/** Incremented whenever the resolver becomes idle, so that only the latest scheduled quit takes effect. Guarded by the NsdManager lock */
+	private long idleGeneration = 0;
 
-	/** Resolver backlog, necessary because of NsdManager's "one resolve at a time" limitation */
-	private Backlog<NsdServiceInfo> resolveBacklog;
+	/** Maximum number of concurrent resolves, or 0 to use the default for the device's API level */
+	private static volatile int maxConcurrentResolves = 0;
+
+	/** Resolver pipeline, shared among subscribers */
+	private NsdResolver resolverInstance;
+	/** Bookkeeping of in-flight and recent resolves, joining duplicate requests for the same service */
+	private final ResolveCoalescer<NsdServiceInfo> resolveCoalescer = new ResolveCoalescer<>();
 
 	/**
 	 * Constructor
@@ -50,30 +69,55 @@ public final class JBBonjourDiscovery implements BonjourDiscovery {
 	/* Begin private */
 
 	/**
-	 * Creates a new BonjourEvent instance from an Nsd Service info object.
+	 * Creates a new BonjourService instance from an Nsd Service info object.
 	 *
-	 * @param type        Type of event, either ADDED or REMOVED
-	 * @param serviceInfo ServiceInfo containing information about the changed service
-	 * @return A BonjourEvent containing the necessary information
+	 * @param serviceInfo ServiceInfo containing information about the service
+	 * @return A BonjourService containing the necessary information
 	 */
-	@TargetApi(LOLLIPOP) private BonjourEvent newBonjourEvent(BonjourEvent.Type type, NsdServiceInfo serviceInfo) {
+	@TargetApi(LOLLIPOP) private BonjourService newBonjourService(NsdServiceInfo serviceInfo) {
 		// Construct a new BonjourService
 		BonjourService.Builder serviceBuilder = new BonjourService.Builder(serviceInfo.getServiceName(), serviceInfo.getServiceType());
 
-		// Prepare TXT record Bundle (on Lollipop and up)
+		// Prepare TXT records (on Lollipop and up)
 		if (Build.VERSION.SDK_INT >= LOLLIPOP) {
-			Map<String, byte[]> attributes = serviceInfo.getAttributes();
-			for (String key : attributes.keySet()) {
-				serviceBuilder.addTxtRecord(key, new String(attributes.get(key), Charset.forName("UTF-8")));
-			}
+			addTxtRecords(serviceBuilder, serviceInfo.getAttributes());
 		}
 
 		// Add host address and port
 		serviceBuilder.addAddress(serviceInfo.getHost());
 		serviceBuilder.setPort(serviceInfo.getPort());
 
+		return serviceBuilder.build();
+	}
+
+	/**
+	 * Adds the provided TXT attributes of an Nsd Service info object to the builder.
+	 * NsdManager reports attributes without a value as null, which are added without a value, like on all other engines.
+	 *
+	 * @param serviceBuilder Builder of the service
+	 * @param attributes     TXT attributes of the service
+	 */
+	static void addTxtRecords(BonjourService.Builder serviceBuilder, Map<String, byte[]> attributes) {
+		for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+			serviceBuilder.addTxtRecord(attribute.getKey(), attribute.getValue());
+		}
+	}
+
+	/**
+	 * Creates a new BonjourEvent instance from an Nsd Service info object.
+	 *
+	 * @param type        Type of event
+	 * @param serviceInfo ServiceInfo containing information about the changed service
+	 * @return A BonjourEvent containing the necessary information
+	 */
+	private BonjourEvent newBonjourEvent(BonjourEvent.Type type, NsdServiceInfo serviceInfo) {
+		// Services that were only found don't carry any resolved information yet
+		BonjourService service = (type == BonjourEvent.Type.FOUND)
+				? new BonjourService.Builder(serviceInfo.getServiceName(), serviceInfo.getServiceType()).build()
+				: newBonjourService(serviceInfo);
+
 		// Create and return an event wrapping the BonjourService
-		return new BonjourEvent(type, serviceBuilder.build());
+		return new BonjourEvent(type, service);
 	}
 
 	/**
@@ -91,9 +135,122 @@ public final class JBBonjourDiscovery implements BonjourDiscovery {
 		}
 	}
 
+	/**
+	 * Returns the resolver shared among all subscribers for Bonjour events, creating it if necessary.
+	 *
+	 * @param nsdManager NsdManager performing the resolves
+	 * @return The resolver instance
+	 */
+	private NsdResolver getResolver(NsdManager nsdManager) {
+		synchronized (nsdManagerLock) {
+			if (resolverInstance == null) {
+				int concurrency = maxConcurrentResolves > 0 ? maxConcurrentResolves : NsdResolver.defaultConcurrency();
+				resolverInstance = new NsdResolver(nsdManager, concurrency);
+			}
+			return resolverInstance;
+		}
+	}
+
+	/**
+	 * Obtains the resolver shared among all subscribers for Bonjour events, and holds on to it along with its NsdManager.
+	 * Each call must be balanced by a call to {@link #releaseResolver(long)}.
+	 *
+	 * @param nsdManager NsdManager performing the resolves
+	 * @return The resolver instance
+	 */
+	private NsdResolver acquireResolver(NsdManager nsdManager) {
+		synchronized (nsdManagerLock) {
+			subscriberCount++;
+			return getResolver(nsdManager);
+		}
+	}
+
+	/**
+	 * Releases one hold on the resolver, quitting it after the provided time once no more holds remain.
+	 *
+	 * @param lingerMillis Time for which to keep the idle resolver running, in milliseconds, or 0 to quit it right away
+	 */
+	private void releaseResolver(long lingerMillis) {
+		final long generation;
+		synchronized (nsdManagerLock) {
+			if (--subscriberCount > 0) return;
+			subscriberCount = 0;
+			generation = ++idleGeneration;
+			if (lingerMillis <= 0) {
+				quitResolver();
+				return;
+			}
+		}
+
+		Observable<Void> cleanUpObservable = Observable.create(new Observable.OnSubscribe<Void>() {
+			@Override public void call(Subscriber<? super Void> subscriber) {
+				// Quit the resolver, unless it was acquired again while lingering
+				synchronized (nsdManagerLock) {
+					if (subscriberCount <= 0 && generation == idleGeneration) quitResolver();
+				}
+				subscriber.unsubscribe();
+			}
+		});
+		cleanUpObservable
+				.compose(EngineSchedulers.<Void>lingerSchedulers(lingerMillis))
+				.subscribe();
+	}
+
+	/**
+	 * Quits the resolver and forgets about the NsdManager. Must be called while holding the NsdManager lock.
+	 */
+	private void quitResolver() {
+		if (resolverInstance != null) resolverInstance.quit();
+		resolverInstance = null;
+		resolveCoalescer.clear();
+		nsdManagerInstance = null;
+	}
+
+	/**
+	 * Resolves the provided service, unless a resolve of the same service is already in flight or was completed recently.
+	 * In any case, the waiter is notified of the outcome.
+	 *
+	 * @param resolver    Resolver performing the resolve
+	 * @param serviceInfo Service to resolve
+	 * @param waiter      Callback notified of the outcome
+	 */
+	private void requestResolve(NsdResolver resolver, NsdServiceInfo serviceInfo, ResolveCoalescer.Callback<NsdServiceInfo> waiter) {
+		final String name = serviceInfo.getServiceName();
+		final String type = serviceInfo.getServiceType();
+		if (!resolveCoalescer.begin(name, type, waiter)) return;
+
+		// Hand the service to the resolver (it will be processed once a resolve slot is available)
+		resolver.resolve(serviceInfo, new NsdResolver.Callback() {
+			@Override public void onServiceResolved(NsdServiceInfo resolvedInfo) {
+				resolveCoalescer.complete(name, type, resolvedInfo);
+			}
+
+			@Override public void onResolveFailed(NsdServiceInfo failedInfo, int errorCode) {
+				resolveCoalescer.fail(name, type);
+			}
+		});
+	}
+
+	/* Begin public */
+
+	/**
+	 * Sets the maximum number of services resolved concurrently. Takes effect for resolvers created after this call.
+	 *
+	 * @param maxConcurrentResolves Maximum number of concurrent resolves, or 0 to use the default for the device's API level
+	 */
+	public static void setMaxConcurrentResolves(int maxConcurrentResolves) {
+		JBBonjourDiscovery.maxConcurrentResolves = Math.max(0, maxConcurrentResolves);
+	}
+
 	/* Begin overrides */
 
-	@Override public Observable<BonjourEvent> start(Context context, final String type) {
+	@Override public Observable<BonjourEvent> start(Context context, String type) {
+		return start(context, type, DiscoveryOptions.defaults());
+	}
+
+	@Override public Observable<BonjourEvent> start(Context context, final String type, DiscoveryOptions options) {
+		final boolean lazy = options.isLazyResolution();
+
 		// Create a weak reference to the incoming Context
 		final WeakReference<Context> weakContext = new WeakReference<>(context);
 
@@ -105,6 +262,27 @@ public final class JBBonjourDiscovery implements BonjourDiscovery {
 					return;
 				}
 
+				// Obtain the NSD manager and hold on to the resolver shared among subscribers
+				final NsdManager nsdManager = getNsdManager(context);
+				final NsdResolver resolver = acquireResolver(nsdManager);
+
+				// Keep track of the services reported to this subscriber, in order to report changes to them as updates
+				final ServiceTracker tracker = new ServiceTracker();
+
+				// Create the callback waiting for resolve results, notifying the subscriber of the discovery that found the service
+				final ResolveCoalescer.Callback<NsdServiceInfo> resolveWaiter = new ResolveCoalescer.Callback<NsdServiceInfo>() {
+					@Override public void onResolved(NsdServiceInfo serviceInfo) {
+						// Repeated announcements may yield the same result, which is only reported if something changed
+						BonjourEvent resolved = tracker.resolved(newBonjourService(serviceInfo));
+						if (resolved != null && !subscriber.isUnsubscribed()) {
+							subscriber.onNext(resolved);
+						}
+					}
+
+					@Override public void onFailed() {
+					}
+				};
+
 				// Create the discovery listener
 				final NsdManager.DiscoveryListener discoveryListener = new NsdManager.DiscoveryListener() {
 					@Override public void onStartDiscoveryFailed(String serviceType, int errorCode) {
@@ -122,71 +300,128 @@ public final class JBBonjourDiscovery implements BonjourDiscovery {
 					}
 
 					@Override public void onServiceFound(NsdServiceInfo serviceInfo) {
-						// Add the found service to the resolve backlog (it will be processed once the backlog gets to it)
-						resolveBacklog.add(serviceInfo);
+						if (lazy) {
+							// Report the service right away, leaving its resolution to the subscriber
+							if (!subscriber.isUnsubscribed()) {
+								subscriber.onNext(newBonjourEvent(BonjourEvent.Type.FOUND, serviceInfo));
+							}
+
+						} else {
+							// Resolve the service, or join a resolve of it that's in flight or was completed recently
+							requestResolve(resolver, serviceInfo, resolveWaiter);
+						}
 					}
 
 					@Override public void onServiceLost(NsdServiceInfo serviceInfo) {
+						resolveCoalescer.forget(serviceInfo.getServiceName(), serviceInfo.getServiceType());
+						BonjourEvent removed = newBonjourEvent(BonjourEvent.Type.REMOVED, serviceInfo);
+						tracker.removed(removed.getService());
 						if (!subscriber.isUnsubscribed()) {
-							subscriber.onNext(newBonjourEvent(BonjourEvent.Type.REMOVED, serviceInfo));
+							subscriber.onNext(removed);
 						}
 					}
 				};
 
-				// Obtain the NSD manager
-				final NsdManager nsdManager = getNsdManager(context);
-
-				// Create the resolver backlog
-				if (resolveBacklog == null) {
-					resolveBacklog = new Backlog<NsdServiceInfo>() {
-						@Override public void onNext(Backlog<NsdServiceInfo> backlog, NsdServiceInfo info) {
-							// Resolve this service info using the corresponding listener
-							nsdManager.resolveService(info, new NsdManager.ResolveListener() {
-								@Override public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
-								}
-
-								@Override public void onServiceResolved(NsdServiceInfo serviceInfo) {
-									if (!subscriber.isUnsubscribed()) {
-										subscriber.onNext(newBonjourEvent(BonjourEvent.Type.ADDED, serviceInfo));
-									}
-
-									// Inform the backlog to continue processing
-									resolveBacklog.proceed();
-								}
-							});
-						}
-					};
-				}
-
 				// Add onUnsubscribe() hook
 				subscriber.add(new MainThreadSubscription() {
 					@Override protected void onUnsubscribe() {
 						try {
 							nsdManager.stopServiceDiscovery(discoveryListener);
-							subscriberCount--;
 
 						} catch (Exception ignored) {
 							// "Service discovery not active on discoveryListener", thrown if starting the service discovery was unsuccessful earlier
 
 						} finally {
-							synchronized (nsdManagerLock) {
-								if (subscriberCount <= 0) {
-									resolveBacklog.quit();
-									resolveBacklog = null;
-									nsdManagerInstance = null;
-								}
-							}
+							releaseResolver(0);
 						}
 					}
 				});
 
 				// Start discovery
 				nsdManager.discoverServices(type, NsdManager.PROTOCOL_DNS_SD, discoveryListener);
-				subscriberCount++;
 			}
 		});
 
+		// Hold back services that don't accept connections if asked to, and honor the requests of subscribers,
+		// applying the backpressure strategy to events they can't keep up with.
 		// Share the observable to have multiple subscribers receive the same results emitted by the single DiscoveryListener
-		return obs.share();
+		return obs
+				.compose(ReachabilityFilter.apply(options))
+				.compose(EventBackpressure.apply(options))
+				.share();
+	}
+
+	@Override public Observable<BonjourService> resolve(Context context, final BonjourService service) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.create(new Observable.OnSubscribe<BonjourService>() {
+			@Override public void call(final Subscriber<? super BonjourService> subscriber) {
+				Context context = weakContext.get();
+				if (context == null) {
+					subscriber.onError(new StaleContextException());
+					return;
+				}
+
+				// Describe the service to NsdManager by its name and type
+				NsdServiceInfo serviceInfo = new NsdServiceInfo();
+				serviceInfo.setServiceName(service.getName());
+				serviceInfo.setServiceType(service.getType());
+
+				// Hold on to the resolver until the resolve is over, just like a discovery does
+				NsdResolver resolver = acquireResolver(getNsdManager(context));
+				subscriber.add(Subscriptions.create(new Action0() {
+					@Override public void call() {
+						releaseResolver(0);
+					}
+				}));
+
+				// Resolve the service, or join a resolve of it that's in flight or was completed recently
+				requestResolve(resolver, serviceInfo, new ResolveCoalescer.Callback<NsdServiceInfo>() {
+					@Override public void onResolved(NsdServiceInfo resolvedInfo) {
+						if (!subscriber.isUnsubscribed()) {
+							subscriber.onNext(newBonjourService(resolvedInfo));
+							subscriber.onCompleted();
+						}
+					}
+
+					@Override public void onFailed() {
+						subscriber.onError(new ResolveFailed(JBBonjourDiscovery.class, service));
+					}
+				});
+			}
+		});
+	}
+
+	@Override public Observable<EngineStartup> prewarm(Context context) {
+		// Create a weak reference to the incoming Context
+		final WeakReference<Context> weakContext = new WeakReference<>(context);
+
+		return Observable.create(new Observable.OnSubscribe<EngineStartup>() {
+			@Override public void call(Subscriber<? super EngineStartup> subscriber) {
+				Context context = weakContext.get();
+				if (context == null) {
+					subscriber.onError(new StaleContextException());
+					return;
+				}
+
+				// Obtain the NsdManager and start the resolver pipeline, and keep it running for a while after releasing it
+				StartupTimer timer = new StartupTimer();
+				boolean reused;
+				synchronized (nsdManagerLock) {
+					reused = nsdManagerInstance != null && resolverInstance != null;
+					NsdManager nsdManager = getNsdManager(context);
+					if (!reused) timer.mark(PHASE_NSD_MANAGER);
+					acquireResolver(nsdManager);
+					if (!reused) timer.mark(PHASE_RESOLVER);
+				}
+				releaseResolver(PREWARM_LINGER_MILLIS);
+
+				if (!subscriber.isUnsubscribed()) {
+					subscriber.onNext(timer.finish(reused));
+					subscriber.onCompleted();
+				}
+			}
+		});
 	}
 }
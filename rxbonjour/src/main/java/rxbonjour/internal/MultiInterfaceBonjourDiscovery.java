@@ -0,0 +1,45 @@
+package rxbonjour.internal;
+
+import android.os.Build;
+
+/**
+ * Implementation for Bonjour service discovery on every network interface of the device at once, e.g. Wifi, Ethernet and USB tethering,
+ * over IPv4 as well as IPv6. Runs the native engine on each interface on devices that support it, and the JmDNS-based engine otherwise.
+ * The multicast lock of the device's WifiManager is held while discovering, since Android filters out multicast packets on Wifi otherwise;
+ * devices without a WifiManager discover on their other interfaces without it.
+ */
+public final class MultiInterfaceBonjourDiscovery extends EngineBonjourDiscovery {
+
+	/** Engine performing the discovery */
+	private final MultiInterfaceEngine multiEngine;
+
+	/**
+	 * Constructor
+	 */
+	public MultiInterfaceBonjourDiscovery() {
+		this(new MultiInterfaceEngine(MultiInterfaceBonjourDiscovery.class, new MultiInterfaceEngine.EngineFactory() {
+			@Override public DiscoveryEngine newEngine(Class<?> implClass) {
+				return Build.VERSION.SDK_INT >= NioBonjourDiscovery.MIN_SDK ? new NioEngine(implClass) : new JmdnsEngine(implClass);
+			}
+		}));
+	}
+
+	private MultiInterfaceBonjourDiscovery(MultiInterfaceEngine engine) {
+		super(engine, false);
+		this.multiEngine = engine;
+	}
+
+	/**
+	 * Resets the query backoff of the engines after a network change.
+	 */
+	void networkChanged() {
+		multiEngine.networkChanged();
+	}
+
+	/**
+	 * @return The number of known answers the engines of all interfaces listed in their browse queries
+	 */
+	long getKnownAnswerCount() {
+		return multiEngine.getKnownAnswerCount();
+	}
+}
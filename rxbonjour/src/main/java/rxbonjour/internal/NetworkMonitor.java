@@ -0,0 +1,120 @@
+package rxbonjour.internal;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Build;
+
+import rx.functions.Action0;
+
+import static android.os.Build.VERSION_CODES.N;
+
+/**
+ * Monitor of the device's connectivity, invoking an action whenever the device switches networks, for as long as it is held.
+ * The monitor registers with the system upon its first hold, and unregisters once its last hold is released.
+ * Uses a default network callback on Android N and up, and the connectivity broadcast on older versions.
+ * The network the device is connected to upon registration doesn't count as a change.
+ */
+final class NetworkMonitor {
+
+	/** Action invoked upon network changes */
+	private final Action0 onNetworkChanged;
+	/** Synchronization lock on the hold count and registration */
+	private final Object lock = new Object();
+	/** Number of holds on the monitor. Guarded by the lock */
+	private int holdCount = 0;
+	/** Application Context the monitor is registered with, or null if it isn't registered. Guarded by the lock */
+	private Context registeredContext;
+	/** Callback or receiver registered with the system, or null if it isn't registered. Guarded by the lock */
+	private Object registration;
+
+	/**
+	 * Constructor
+	 *
+	 * @param onNetworkChanged Action invoked upon network changes, on a thread of the system
+	 */
+	NetworkMonitor(Action0 onNetworkChanged) {
+		this.onNetworkChanged = onNetworkChanged;
+	}
+
+	/* Begin private */
+
+	@TargetApi(N) private Object registerCallback(Context context) {
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (connectivityManager == null) return null;
+
+		ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+			/** Whether or not the network available upon registration was reported yet. Only accessed from the callback's thread */
+			private boolean initial = true;
+
+			@Override public void onAvailable(Network network) {
+				if (initial) {
+					initial = false;
+				} else {
+					onNetworkChanged.call();
+				}
+			}
+		};
+		connectivityManager.registerDefaultNetworkCallback(callback);
+		return callback;
+	}
+
+	@SuppressWarnings("deprecation") private Object registerReceiver(Context context) {
+		BroadcastReceiver receiver = new BroadcastReceiver() {
+			@Override public void onReceive(Context context, Intent intent) {
+				// The sticky broadcast delivered upon registration reports the current network
+				if (!isInitialStickyBroadcast()) onNetworkChanged.call();
+			}
+		};
+		context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		return receiver;
+	}
+
+	@TargetApi(N) private void unregister(Context context, Object registration) {
+		if (registration instanceof BroadcastReceiver) {
+			context.unregisterReceiver((BroadcastReceiver) registration);
+		} else if (registration instanceof ConnectivityManager.NetworkCallback) {
+			ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			connectivityManager.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) registration);
+		}
+	}
+
+	/* Begin package */
+
+	/**
+	 * Acquires a hold on the monitor, registering it with the system if necessary.
+	 * Each call must be balanced by a call to {@link #release()}.
+	 *
+	 * @param context Context of the request, whose application Context the monitor is registered with
+	 */
+	void acquire(Context context) {
+		synchronized (lock) {
+			if (holdCount++ > 0) return;
+
+			Context appContext = context.getApplicationContext();
+			if (appContext == null) appContext = context;
+			registration = Build.VERSION.SDK_INT >= N ? registerCallback(appContext) : registerReceiver(appContext);
+			registeredContext = registration != null ? appContext : null;
+		}
+	}
+
+	/**
+	 * Releases a hold on the monitor, unregistering it from the system once no more holds remain.
+	 */
+	void release() {
+		synchronized (lock) {
+			if (--holdCount > 0) return;
+			holdCount = 0;
+
+			if (registration != null) {
+				unregister(registeredContext, registration);
+				registration = null;
+				registeredContext = null;
+			}
+		}
+	}
+}
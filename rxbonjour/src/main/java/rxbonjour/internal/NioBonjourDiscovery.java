@@ -0,0 +1,44 @@
+package rxbonjour.internal;
+
+/**
+ * Native implementation for Bonjour service discovery, utilizing Android's WifiManager and the NIO-based engine of the core module,
+ * which speaks multicast DNS on a single event loop thread instead of using JmDNS.
+ * Requires multicast support of {@link java.nio.channels.DatagramChannel}, which is available on Android N and up.
+ */
+public final class NioBonjourDiscovery extends EngineBonjourDiscovery {
+
+	/** Minimum API level supporting multicast on DatagramChannel, i.e. Android N */
+	public static final int MIN_SDK = 24;
+
+	/** Startup phase opening the multicast socket */
+	static final String PHASE_SOCKET = NioEngine.PHASE_SOCKET;
+
+	/** Engine performing the discovery */
+	private final NioEngine nioEngine;
+
+	/**
+	 * Constructor
+	 */
+	public NioBonjourDiscovery() {
+		this(new NioEngine(NioBonjourDiscovery.class));
+	}
+
+	private NioBonjourDiscovery(NioEngine engine) {
+		super(engine);
+		this.nioEngine = engine;
+	}
+
+	/**
+	 * Resets the query backoff of the engine after a network change.
+	 */
+	void networkChanged() {
+		nioEngine.networkChanged();
+	}
+
+	/**
+	 * @return The number of known answers the engine listed in its browse queries
+	 */
+	long getKnownAnswerCount() {
+		return nioEngine.getKnownAnswerCount();
+	}
+}
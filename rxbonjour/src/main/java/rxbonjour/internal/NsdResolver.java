@@ -0,0 +1,220 @@
+package rxbonjour.internal;
+
+import android.annotation.TargetApi;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+import static android.os.Build.VERSION_CODES.LOLLIPOP;
+
+/**
+ * Resolver pipeline for the NsdManager implementation. Runs up to a configurable number of resolves concurrently,
+ * aborts resolves that don't complete within a timeout, and retries resolves rejected with {@link NsdManager#FAILURE_ALREADY_ACTIVE}
+ * with exponential backoff. Every resolve attempt ends in exactly one of these outcomes, so that a failed or hung resolve
+ * never stalls the resolves queued after it.
+ */
+@TargetApi(JELLY_BEAN)
+final class NsdResolver {
+
+	/** Error code reported to callbacks if a resolve didn't complete in time */
+	static final int ERROR_TIMEOUT = -1;
+
+	/** Maximum number of services waiting to be resolved */
+	private static final int CAPACITY = 512;
+	/** Default time after which a resolve is aborted, in milliseconds */
+	private static final long DEFAULT_TIMEOUT_MILLIS = 5000L;
+	/** Number of times a resolve rejected as "already active" is retried */
+	private static final int MAX_RETRIES = 4;
+	/** Initial backoff before retrying a resolve, in milliseconds. Doubles for every retry */
+	private static final long BACKOFF_MILLIS = 100L;
+
+	/** NsdManager performing the resolves */
+	private final NsdManager nsdManager;
+	/** Time after which a resolve is aborted, in milliseconds */
+	private final long timeoutMillis;
+	/** Worker on which timeouts and retries are scheduled */
+	private final Scheduler.Worker worker;
+	/** Backlog of pending resolves, processing up to the configured number of them at once */
+	private final Backlog<Request> backlog;
+
+	/**
+	 * Constructor
+	 *
+	 * @param nsdManager  NsdManager performing the resolves
+	 * @param concurrency Maximum number of concurrent resolves
+	 */
+	NsdResolver(NsdManager nsdManager, int concurrency) {
+		this(nsdManager, concurrency, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param nsdManager    NsdManager performing the resolves
+	 * @param concurrency   Maximum number of concurrent resolves
+	 * @param timeoutMillis Time after which a resolve is aborted, in milliseconds
+	 */
+	NsdResolver(NsdManager nsdManager, int concurrency, long timeoutMillis) {
+		this.nsdManager = nsdManager;
+		this.timeoutMillis = timeoutMillis;
+		this.worker = Schedulers.computation().createWorker();
+
+		// Repeated announcements of a service that's still waiting to be resolved are coalesced
+		this.backlog = new Backlog<Request>(CAPACITY, Backlog.OverflowPolicy.COALESCE, concurrency) {
+			@Override public void onNext(Backlog<Request> backlog, Request request) {
+				attempt(request);
+			}
+		};
+	}
+
+	/**
+	 * Returns the default number of concurrent resolves for the device's API level. Before Lollipop,
+	 * NsdManager handles concurrent resolves badly, so they are performed one at a time.
+	 *
+	 * @return The default number of concurrent resolves
+	 */
+	static int defaultConcurrency() {
+		return Build.VERSION.SDK_INT >= LOLLIPOP ? 4 : 1;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Performs one attempt at resolving the provided request.
+	 *
+	 * @param request Request to resolve
+	 */
+	private void attempt(final Request request) {
+		final AtomicBoolean finished = new AtomicBoolean(false);
+
+		// Abort the attempt if it doesn't complete in time
+		final Subscription timeout = worker.schedule(new Action0() {
+			@Override public void call() {
+				if (finished.compareAndSet(false, true)) {
+					backlog.proceed();
+					request.callback.onResolveFailed(request.info, ERROR_TIMEOUT);
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		NsdManager.ResolveListener listener = new NsdManager.ResolveListener() {
+			@Override public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+				if (!finished.compareAndSet(false, true)) return;
+				timeout.unsubscribe();
+
+				// Free the slot in any case, and retry later if NsdManager was busy
+				backlog.proceed();
+				if (errorCode == NsdManager.FAILURE_ALREADY_ACTIVE && request.retries < MAX_RETRIES) {
+					retry(request);
+				} else {
+					request.callback.onResolveFailed(request.info, errorCode);
+				}
+			}
+
+			@Override public void onServiceResolved(NsdServiceInfo serviceInfo) {
+				if (!finished.compareAndSet(false, true)) return;
+				timeout.unsubscribe();
+
+				backlog.proceed();
+				request.callback.onServiceResolved(serviceInfo);
+			}
+		};
+
+		try {
+			nsdManager.resolveService(request.info, listener);
+		} catch (RuntimeException e) {
+			// NsdManager rejected the request outright, e.g. because of an invalid service info
+			listener.onResolveFailed(request.info, NsdManager.FAILURE_INTERNAL_ERROR);
+		}
+	}
+
+	/**
+	 * Re-adds the provided request to the backlog after an exponentially growing backoff.
+	 *
+	 * @param request Request to retry
+	 */
+	private void retry(final Request request) {
+		long delay = BACKOFF_MILLIS << request.retries;
+		request.retries++;
+		worker.schedule(new Action0() {
+			@Override public void call() {
+				backlog.add(request);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/* Begin public */
+
+	/**
+	 * Enqueues the provided service for resolution, notifying the callback of the outcome.
+	 *
+	 * @param info     Service to resolve
+	 * @param callback Callback notified of the outcome
+	 */
+	void resolve(NsdServiceInfo info, Callback callback) {
+		backlog.add(new Request(info, callback));
+	}
+
+	/**
+	 * Terminates the resolver, discarding pending resolves and retries
+	 */
+	void quit() {
+		backlog.quit();
+		worker.unsubscribe();
+	}
+
+	/* Begin static */
+
+	/**
+	 * Callback notified of the outcome of a resolve
+	 */
+	interface Callback {
+
+		void onServiceResolved(NsdServiceInfo serviceInfo);
+
+		void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode);
+	}
+
+	/**
+	 * Pending resolve of a found service, along with the callback notified of its outcome.
+	 * Requests for the same service and callback are considered equal, so that they can be coalesced.
+	 */
+	private static final class Request {
+
+		private final NsdServiceInfo info;
+		private final Callback callback;
+		private int retries;
+
+		private Request(NsdServiceInfo info, Callback callback) {
+			this.info = info;
+			this.callback = callback;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Request)) return false;
+
+			Request that = (Request) o;
+
+			if (callback != that.callback) return false;
+			if (info.getServiceName() != null ? !info.getServiceName().equals(that.info.getServiceName()) : that.info.getServiceName() != null) return false;
+			return !(info.getServiceType() != null ? !info.getServiceType().equals(that.info.getServiceType()) : that.info.getServiceType() != null);
+		}
+
+		@Override public int hashCode() {
+			int result = info.getServiceName() != null ? info.getServiceName().hashCode() : 0;
+			result = 31 * result + (info.getServiceType() != null ? info.getServiceType().hashCode() : 0);
+			result = 31 * result + callback.hashCode();
+			return result;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package rxbonjour.internal;
+
+import android.net.wifi.WifiManager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Binding to the device's Wifi connection. A multicast lock is held while the binding is acquired,
+ * since Android filters out multicast packets otherwise. Devices without a WifiManager hold no lock,
+ * and can only be bound to if the address of the Wifi connection isn't needed.
+ */
+final class WifiBinding implements NetworkBinding {
+
+	/** Tag to associate with the multicast lock */
+	private static final String LOCK_TAG = "RxBonjourDiscovery";
+
+	/** WifiManager to obtain the multicast lock and address from, or null if the device doesn't have one */
+	private final WifiManager wifiManager;
+	/** Whether or not acquiring the binding provides the address of the Wifi connection */
+	private final boolean bindsAddress;
+	/** Multicast lock held while the binding is acquired */
+	private WifiManager.MulticastLock multicastLock;
+
+	/**
+	 * Constructor, providing the address of the Wifi connection upon acquisition
+	 *
+	 * @param wifiManager WifiManager to obtain the multicast lock and address from, or null if the device doesn't have one
+	 */
+	WifiBinding(WifiManager wifiManager) {
+		this(wifiManager, true);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param wifiManager  WifiManager to obtain the multicast lock and address from, or null if the device doesn't have one
+	 * @param bindsAddress Whether or not acquiring the binding provides the address of the Wifi connection, or merely holds the lock
+	 */
+	WifiBinding(WifiManager wifiManager, boolean bindsAddress) {
+		this.wifiManager = wifiManager;
+		this.bindsAddress = bindsAddress;
+	}
+
+	/* Begin private */
+
+	/**
+	 * Returns the current connection's IP address.
+	 * This implementation is taken from http://stackoverflow.com/a/13677686/1143172
+	 * and takes note of a JmDNS issue with resolved IP addresses.
+	 *
+	 * @return The InetAddress of the current connection
+	 * @throws IOException In case the InetAddress can't be resolved
+	 */
+	private InetAddress getInetAddress() throws IOException {
+		if (wifiManager == null) throw new IOException("No WifiManager available");
+		int intaddr = wifiManager.getConnectionInfo().getIpAddress();
+
+		byte[] byteaddr = new byte[] { (byte) (intaddr & 0xff), (byte) (intaddr >> 8 & 0xff),
+				(byte) (intaddr >> 16 & 0xff), (byte) (intaddr >> 24 & 0xff) };
+		return InetAddress.getByAddress(byteaddr);
+	}
+
+	/* Begin overrides */
+
+	@Override public InetAddress acquire(StartupTimer timer) throws IOException {
+		// Obtain a multicast lock from the Wifi Manager and acquire it, if the device has one
+		WifiManager.MulticastLock lock = null;
+		if (wifiManager != null) {
+			lock = wifiManager.createMulticastLock(LOCK_TAG);
+			lock.setReferenceCounted(true);
+			lock.acquire();
+			timer.mark(SupportBonjourDiscovery.PHASE_MULTICAST_LOCK);
+		}
+
+		try {
+			InetAddress inetAddress = null;
+			if (bindsAddress) {
+				inetAddress = getInetAddress();
+				timer.mark(SupportBonjourDiscovery.PHASE_ADDRESS);
+			}
+			multicastLock = lock;
+			return inetAddress;
+		} catch (IOException e) {
+			if (lock != null) lock.release();
+			throw e;
+		}
+	}
+
+	@Override public void release() {
+		if (multicastLock != null) {
+			multicastLock.release();
+			multicastLock = null;
+		}
+	}
+}
@@ -2,7 +2,13 @@ package rxbonjour;
 
 import org.junit.Test;
 
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
 import rxbonjour.base.BaseTest;
+import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.ServiceSet;
 
 import static org.junit.Assert.assertEquals;
 
@@ -20,4 +26,32 @@ public class RxBonjourTest extends BaseTest {
 		assertEquals(false, RxBonjour.isBonjourType("_http._invalidprotocol"));
 		assertEquals(false, RxBonjour.isBonjourType("wrong._format"));
 	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPassiveWithNsdManager() {
+		DiscoveryOptions options = new DiscoveryOptions.Builder()
+				.setUseNsdManager(true)
+				.setScanProfile(DiscoveryOptions.ScanProfile.PASSIVE)
+				.build();
+
+		RxBonjour.startDiscovery(context, "_http._tcp", options);
+	}
+
+	@Test public void testServiceSetLateSubscriber() {
+		PublishSubject<BonjourEvent> events = PublishSubject.create();
+		Observable<ServiceSet> services = events.compose(RxBonjour.toServiceSet());
+		BonjourService service = new BonjourService.Builder("service", "_http._tcp").build();
+		TestSubscriber<ServiceSet> early = new TestSubscriber<>();
+		TestSubscriber<ServiceSet> late = new TestSubscriber<>();
+
+		services.subscribe(early);
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service));
+		events.onNext(new BonjourEvent(BonjourEvent.Type.ADDED, service));
+		services.subscribe(late);
+
+		// The duplicate event doesn't produce a snapshot, and the late subscriber receives the current one right away
+		early.assertValueCount(2);
+		late.assertValueCount(1);
+		assertEquals(1, late.getOnNextEvents().get(0).size());
+	}
 }
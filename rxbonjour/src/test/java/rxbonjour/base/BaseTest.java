@@ -8,14 +8,16 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import rxbonjour.internal.BonjourSchedulers;
+import rxbonjour.internal.EngineSchedulers;
 import rxbonjour.util.TestSchedulers;
 
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ BonjourSchedulers.class })
+@PrepareForTest({ BonjourSchedulers.class, EngineSchedulers.class })
 public abstract class BaseTest {
 
 	protected final Context context;
@@ -26,9 +28,10 @@ public abstract class BaseTest {
 
 	@Before public final void beforeTests() throws Exception {
 		mockStatic(BonjourSchedulers.class);
-		given(BonjourSchedulers.backlogSchedulers()).willReturn(TestSchedulers.backlogSchedulers());
-		given(BonjourSchedulers.cleanupSchedulers()).willReturn(TestSchedulers.immediateSchedulers());
+		mockStatic(EngineSchedulers.class);
 		given(BonjourSchedulers.startSchedulers()).willReturn(TestSchedulers.immediateSchedulers());
+		given(EngineSchedulers.cleanupSchedulers()).willReturn(TestSchedulers.immediateSchedulers());
+		given(EngineSchedulers.lingerSchedulers(anyLong())).willReturn(TestSchedulers.immediateSchedulers());
 
 		setupMocks();
 	}
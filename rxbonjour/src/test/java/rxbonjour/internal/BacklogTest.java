@@ -2,11 +2,16 @@ package rxbonjour.internal;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import rxbonjour.base.BaseTest;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 public class BacklogTest extends BaseTest {
 
@@ -27,4 +32,145 @@ public class BacklogTest extends BaseTest {
 
 		assertEquals(3, counter.get());
 	}
+
+	@Test public void testWaitsForProceed() throws Exception {
+		final List<String> processed = new ArrayList<>();
+		Backlog<String> backlog = new Backlog<String>() {
+			@Override public void onNext(Backlog<String> backlog, String item) {
+				processed.add(item);
+			}
+		};
+
+		backlog.add("1");
+		backlog.add("2");
+		assertEquals(1, processed.size());
+		backlog.proceed();
+		assertEquals(2, processed.size());
+		backlog.proceed();
+		assertEquals(2, processed.size());
+		backlog.quit();
+	}
+
+	@Test public void testConcurrency() throws Exception {
+		final List<String> processed = new ArrayList<>();
+		Backlog<String> backlog = new Backlog<String>(8, Backlog.OverflowPolicy.DROP_OLDEST, 2) {
+			@Override public void onNext(Backlog<String> backlog, String item) {
+				processed.add(item);
+			}
+		};
+
+		backlog.add("1");
+		backlog.add("2");
+		backlog.add("3");
+		assertEquals(2, processed.size());
+		backlog.proceed();
+		assertEquals(3, processed.size());
+
+		// Surplus calls don't raise the concurrency
+		backlog.proceed();
+		backlog.proceed();
+		backlog.proceed();
+		backlog.add("4");
+		backlog.add("5");
+		backlog.add("6");
+		assertEquals(5, processed.size());
+		backlog.quit();
+	}
+
+	@Test public void testDropOldestOnOverflow() throws Exception {
+		final List<Integer> processed = new ArrayList<>();
+		Backlog<Integer> backlog = new Backlog<Integer>(4, Backlog.OverflowPolicy.DROP_OLDEST) {
+			@Override public void onNext(Backlog<Integer> backlog, Integer item) {
+				processed.add(item);
+			}
+		};
+
+		// The first item is processed right away, keeping the backlog busy while the others overflow it
+		for (int i = 0; i < 100; i++) {
+			backlog.add(i);
+		}
+		for (int i = 0; i < 4; i++) {
+			backlog.proceed();
+		}
+		backlog.quit();
+
+		assertEquals(5, processed.size());
+		assertEquals(0, (int) processed.get(0));
+		assertEquals(96, (int) processed.get(1));
+		assertEquals(99, (int) processed.get(4));
+	}
+
+	@Test public void testCoalesce() throws Exception {
+		final List<String> processed = new ArrayList<>();
+		Backlog<String> backlog = new Backlog<String>(8, Backlog.OverflowPolicy.COALESCE) {
+			@Override public void onNext(Backlog<String> backlog, String item) {
+				processed.add(item);
+			}
+		};
+
+		backlog.add("busy");
+		backlog.add("a");
+		backlog.add("b");
+		backlog.add("a");
+		backlog.add("b");
+		for (int i = 0; i < 4; i++) {
+			backlog.proceed();
+		}
+		backlog.quit();
+
+		assertEquals(3, processed.size());
+	}
+
+	@Test public void testQuitDiscardsPendingItems() throws Exception {
+		final AtomicInteger counter = new AtomicInteger(0);
+		Backlog<String> backlog = new Backlog<String>() {
+			@Override public void onNext(Backlog<String> backlog, String item) {
+				counter.incrementAndGet();
+			}
+		};
+
+		backlog.add("1");
+		backlog.add("2");
+		backlog.quit();
+		backlog.proceed();
+		backlog.add("3");
+
+		assertEquals(1, counter.get());
+	}
+
+	@Test public void testThroughput() throws Exception {
+		final int producers = 4;
+		final int itemsPerProducer = 25000;
+		final AtomicInteger counter = new AtomicInteger(0);
+		final Backlog<Integer> backlog = new Backlog<Integer>(64, Backlog.OverflowPolicy.BLOCK) {
+			@Override public void onNext(Backlog<Integer> backlog, Integer item) {
+				counter.incrementAndGet();
+				backlog.proceed();
+			}
+		};
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(producers);
+		for (int p = 0; p < producers; p++) {
+			new Thread(new Runnable() {
+				@Override public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < itemsPerProducer; i++) {
+							backlog.add(i);
+						}
+					} catch (InterruptedException ignored) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		backlog.quit();
+
+		assertEquals(producers * itemsPerProducer, counter.get());
+	}
 }
@@ -0,0 +1,56 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import rxbonjour.base.BaseTest;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class BoundedQueueTest extends BaseTest {
+
+	@Test public void testCapacityRoundedUp() throws Exception {
+		assertEquals(1, new BoundedQueue<String>(1).capacity());
+		assertEquals(32, new BoundedQueue<String>(32).capacity());
+		assertEquals(64, new BoundedQueue<String>(33).capacity());
+	}
+
+	@Test public void testFifoAndBounds() throws Exception {
+		BoundedQueue<Integer> queue = new BoundedQueue<>(4);
+
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(4));
+		assertTrue(queue.contains(2));
+		assertFalse(queue.contains(4));
+
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, (int) queue.poll());
+		}
+		assertNull(queue.poll());
+	}
+
+	@Test public void testWrapAround() throws Exception {
+		BoundedQueue<Integer> queue = new BoundedQueue<>(2);
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(queue.offer(i));
+			assertEquals(i, (int) queue.poll());
+		}
+		assertNull(queue.poll());
+	}
+
+	@Test public void testClear() throws Exception {
+		BoundedQueue<Integer> queue = new BoundedQueue<>(4);
+
+		queue.offer(1);
+		queue.offer(2);
+		queue.clear();
+
+		assertNull(queue.poll());
+		assertTrue(queue.offer(3));
+	}
+}
@@ -0,0 +1,248 @@
+package rxbonjour.internal;
+
+import android.content.Context;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rxbonjour.DiscoveryOptions;
+import rxbonjour.base.BaseTest;
+import rxbonjour.exc.StaleContextException;
+import rxbonjour.model.BonjourEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+@PrepareForTest({ JmDNS.class })
+public class DiscoveryRegistryTest extends BaseTest {
+
+	private JmDNS jmdns;
+	private WifiManager.MulticastLock lock;
+
+	@Override protected void setupMocks() throws Exception {
+		WifiManager wifiManager = mock(WifiManager.class);
+		WifiInfo wifiInfo = mock(WifiInfo.class);
+		lock = mock(WifiManager.MulticastLock.class);
+		jmdns = mock(JmDNS.class);
+
+		// Wire default return values
+		when(context.getSystemService(Context.WIFI_SERVICE)).thenReturn(wifiManager);
+		when(wifiManager.createMulticastLock(anyString())).thenReturn(lock);
+		when(wifiInfo.getIpAddress()).thenReturn(0);
+		when(wifiManager.getConnectionInfo()).thenReturn(wifiInfo);
+
+		// Mock statics
+		mockStatic(JmDNS.class);
+
+		// Wire statics
+		given(JmDNS.create(any(InetAddress.class), anyString())).willReturn(jmdns);
+	}
+
+	@Test public void testSameTypeSharesSession() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_http._tcp").subscribe(subscriber1);
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_http._tcp").subscribe(subscriber2);
+
+		subscriber1.assertNoErrors();
+		subscriber2.assertNoErrors();
+		verifyStatic(times(1));
+		JmDNS.create(any(InetAddress.class), anyString());
+		verify(jmdns, times(1)).addServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		verify(lock, times(1)).acquire();
+		subscriber1.unsubscribe();
+		verify(jmdns, never()).removeServiceListener(anyString(), any(ServiceListener.class));
+		verify(jmdns, never()).close();
+		subscriber2.unsubscribe();
+		verify(jmdns, times(1)).removeServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		verify(lock, times(1)).release();
+		verify(jmdns, times(1)).close();
+	}
+
+	@Test public void testDifferentTypesShareEngine() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_http._tcp").subscribe(subscriber1);
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_ssh._tcp").subscribe(subscriber2);
+
+		verifyStatic(times(1));
+		JmDNS.create(any(InetAddress.class), anyString());
+		verify(jmdns, times(1)).addServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		verify(jmdns, times(1)).addServiceListener(eq("_ssh._tcp.local."), any(ServiceListener.class));
+		subscriber1.unsubscribe();
+		verify(jmdns, never()).close();
+		subscriber2.unsubscribe();
+		verify(jmdns, times(1)).close();
+	}
+
+	@Test public void testResubscribeStartsNewSession() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_http._tcp").subscribe(subscriber1);
+		subscriber1.unsubscribe();
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_http._tcp").subscribe(subscriber2);
+
+		subscriber2.assertNoErrors();
+		verify(jmdns, times(2)).addServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		subscriber2.unsubscribe();
+		verify(jmdns, times(2)).close();
+	}
+
+	@Test public void testMultipleTypesShareEngineAndLock() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, Arrays.asList("_http._tcp", "_ssh._tcp", "_http._tcp"))
+				.subscribe(subscriber);
+
+		subscriber.assertNoErrors();
+		verifyStatic(times(1));
+		JmDNS.create(any(InetAddress.class), anyString());
+		verify(lock, times(1)).acquire();
+		verify(jmdns, times(1)).addServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		verify(jmdns, times(1)).addServiceListener(eq("_ssh._tcp.local."), any(ServiceListener.class));
+		subscriber.unsubscribe();
+		verify(jmdns, times(1)).removeServiceListener(eq("_http._tcp.local."), any(ServiceListener.class));
+		verify(jmdns, times(1)).removeServiceListener(eq("_ssh._tcp.local."), any(ServiceListener.class));
+		verify(lock, times(1)).release();
+		verify(jmdns, times(1)).close();
+	}
+
+	@Test public void testResubscribeReplaysLingeringServices() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+		ServiceEvent event = resolvedEvent("_linger._tcp.local.");
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_linger._tcp").subscribe(subscriber1);
+		verify(jmdns).addServiceListener(eq("_linger._tcp.local."), captor.capture());
+		captor.getValue().serviceResolved(event);
+		subscriber1.unsubscribe();
+
+		// The remembered service is replayed right away, and confirmed by the new session
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_linger._tcp").subscribe(subscriber2);
+		subscriber2.assertValueCount(1);
+		assertEquals(BonjourEvent.Type.CACHED, subscriber2.getOnNextEvents().get(0).getType());
+		assertEquals("service", subscriber2.getOnNextEvents().get(0).getService().getName());
+		verify(jmdns, times(2)).addServiceListener(eq("_linger._tcp.local."), captor.capture());
+		captor.getValue().serviceResolved(event);
+		subscriber2.assertValueCount(2);
+		assertEquals(BonjourEvent.Type.ADDED, subscriber2.getOnNextEvents().get(1).getType());
+		subscriber2.unsubscribe();
+	}
+
+	@Test public void testLateSubscriberReceivesKnownServices() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+		ServiceEvent event = resolvedEvent("_late._tcp.local.");
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_late._tcp").subscribe(subscriber1);
+		verify(jmdns).addServiceListener(eq("_late._tcp.local."), captor.capture());
+		captor.getValue().serviceResolved(event);
+
+		// The service was reported before the second subscriber joined, and isn't reported by the engine again
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_late._tcp").subscribe(subscriber2);
+		subscriber2.assertValueCount(1);
+		assertEquals(BonjourEvent.Type.ADDED, subscriber2.getOnNextEvents().get(0).getType());
+		assertEquals("service", subscriber2.getOnNextEvents().get(0).getService().getName());
+		verify(jmdns, times(1)).addServiceListener(eq("_late._tcp.local."), any(ServiceListener.class));
+
+		// Live events continue to reach both subscribers, without repeating the known service
+		captor.getValue().serviceResolved(event);
+		subscriber1.assertValueCount(1);
+		subscriber2.assertValueCount(1);
+		captor.getValue().serviceRemoved(event);
+		subscriber1.assertValueCount(2);
+		subscriber2.assertValueCount(2);
+		assertEquals(BonjourEvent.Type.REMOVED, subscriber2.getOnNextEvents().get(1).getType());
+		subscriber1.unsubscribe();
+		subscriber2.unsubscribe();
+	}
+
+	@Test public void testSlowSubscriberHoldsBackEvents() throws Exception {
+		TestScheduler scheduler = new TestScheduler();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+
+		// A burst of services arrives while the subscriber's thread is busy, exceeding what observeOn() buffers
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_burst._tcp").observeOn(scheduler).subscribe(subscriber);
+		verify(jmdns).addServiceListener(eq("_burst._tcp.local."), captor.capture());
+		for (int i = 0; i < 300; i++) {
+			captor.getValue().serviceResolved(resolvedEvent("_burst._tcp.local.", "service" + i));
+		}
+		scheduler.triggerActions();
+
+		// The events beyond the buffer size are held back for the subscriber, rather than failing it
+		subscriber.assertNoErrors();
+		subscriber.assertValueCount(DiscoveryOptions.DEFAULT_BUFFER_SIZE + 128);
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testNoLinger() throws Exception {
+		DiscoveryOptions options = new DiscoveryOptions.Builder().setLinger(0, TimeUnit.SECONDS).build();
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_nolinger._tcp", options).subscribe(subscriber1);
+		verify(jmdns).addServiceListener(eq("_nolinger._tcp.local."), captor.capture());
+		captor.getValue().serviceResolved(resolvedEvent("_nolinger._tcp.local."));
+		subscriber1.unsubscribe();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, context, "_nolinger._tcp", options).subscribe(subscriber2);
+		subscriber2.assertNoValues();
+		subscriber2.unsubscribe();
+	}
+
+	@Test public void testStaleContext() throws Exception {
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+
+		DiscoveryRegistry.start(SupportBonjourDiscovery.class, null, "_http._tcp").subscribe(subscriber);
+
+		subscriber.assertError(StaleContextException.class);
+	}
+
+	private static ServiceEvent resolvedEvent(String type) throws Exception {
+		return resolvedEvent(type, "service");
+	}
+
+	private static ServiceEvent resolvedEvent(String type, String name) throws Exception {
+		ServiceInfo info = mock(ServiceInfo.class);
+		when(info.getPropertyNames()).thenReturn(Collections.enumeration(Collections.<String>emptyList()));
+		when(info.getInetAddresses()).thenReturn(new InetAddress[] { InetAddress.getByName("127.0.0.1") });
+		when(info.getPort()).thenReturn(80);
+		ServiceEvent event = mock(ServiceEvent.class);
+		when(event.getName()).thenReturn(name);
+		when(event.getType()).thenReturn(type);
+		when(event.getInfo()).thenReturn(info);
+		return event;
+	}
+}
@@ -3,18 +3,34 @@ package rxbonjour.internal;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
 import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rxbonjour.DiscoveryOptions;
 import rxbonjour.base.BaseTest;
+import rxbonjour.exc.ResolveFailed;
 import rxbonjour.exc.StaleContextException;
 import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -87,5 +103,114 @@ public class JBBonjourDiscoveryTest extends BaseTest {
 		subscriber.assertError(StaleContextException.class);
 	}
 
+	@Test public void testDuplicateAnnouncementsResolveOnce() throws Exception {
+		BonjourDiscovery discovery = new JBBonjourDiscovery();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<NsdManager.DiscoveryListener> captor = ArgumentCaptor.forClass(NsdManager.DiscoveryListener.class);
+		NsdServiceInfo info = mock(NsdServiceInfo.class);
+		when(info.getServiceName()).thenReturn("service");
+		when(info.getServiceType()).thenReturn("_http._tcp.");
+
+		discovery.start(context, "_http._tcp").subscribe(subscriber);
+		verify(nsdManager).discoverServices(eq("_http._tcp"), anyInt(), captor.capture());
+		captor.getValue().onServiceFound(info);
+		captor.getValue().onServiceFound(info);
+		captor.getValue().onServiceFound(info);
+
+		verify(nsdManager, times(1)).resolveService(any(NsdServiceInfo.class), any(NsdManager.ResolveListener.class));
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testLazyResolution() throws Exception {
+		BonjourDiscovery discovery = new JBBonjourDiscovery();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<NsdManager.DiscoveryListener> captor = ArgumentCaptor.forClass(NsdManager.DiscoveryListener.class);
+		NsdServiceInfo info = mock(NsdServiceInfo.class);
+		when(info.getServiceName()).thenReturn("service");
+		when(info.getServiceType()).thenReturn("_http._tcp.");
+
+		discovery.start(context, "_http._tcp", new DiscoveryOptions.Builder().setLazyResolution(true).build()).subscribe(subscriber);
+		verify(nsdManager).discoverServices(eq("_http._tcp"), anyInt(), captor.capture());
+		captor.getValue().onServiceFound(info);
+
+		// Found services are reported without being resolved
+		verify(nsdManager, never()).resolveService(any(NsdServiceInfo.class), any(NsdManager.ResolveListener.class));
+		subscriber.assertValueCount(1);
+		BonjourEvent event = subscriber.getOnNextEvents().get(0);
+		assertEquals(BonjourEvent.Type.FOUND, event.getType());
+		assertEquals("service", event.getService().getName());
+		assertFalse(event.getService().isResolved());
+
+		// Resolve on demand
+		TestSubscriber<BonjourService> resolveSubscriber = new TestSubscriber<>();
+		ArgumentCaptor<NsdManager.ResolveListener> resolveCaptor = ArgumentCaptor.forClass(NsdManager.ResolveListener.class);
+		discovery.resolve(context, event.getService()).subscribe(resolveSubscriber);
+		verify(nsdManager).resolveService(any(NsdServiceInfo.class), resolveCaptor.capture());
+		resolveCaptor.getValue().onServiceResolved(info);
+
+		resolveSubscriber.assertNoErrors();
+		resolveSubscriber.assertValueCount(1);
+		resolveSubscriber.assertCompleted();
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testResolveFailed() throws Exception {
+		BonjourDiscovery discovery = new JBBonjourDiscovery();
+		TestSubscriber<BonjourService> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<NsdManager.ResolveListener> captor = ArgumentCaptor.forClass(NsdManager.ResolveListener.class);
+
+		discovery.resolve(context, new BonjourService.Builder("service", "_http._tcp.").build()).subscribe(subscriber);
+		verify(nsdManager).resolveService(any(NsdServiceInfo.class), captor.capture());
+		captor.getValue().onResolveFailed(mock(NsdServiceInfo.class), NsdManager.FAILURE_INTERNAL_ERROR);
+
+		subscriber.assertError(ResolveFailed.class);
+	}
+
+	@Test public void testResolveReleasesResolver() throws Exception {
+		BonjourDiscovery discovery = new JBBonjourDiscovery();
+		TestSubscriber<BonjourService> subscriber = new TestSubscriber<>();
+		TestSubscriber<EngineStartup> prewarmSubscriber = new TestSubscriber<>();
+		ArgumentCaptor<NsdManager.ResolveListener> captor = ArgumentCaptor.forClass(NsdManager.ResolveListener.class);
+		NsdServiceInfo info = mock(NsdServiceInfo.class);
+		when(info.getServiceName()).thenReturn("service");
+		when(info.getServiceType()).thenReturn("_http._tcp.");
+
+		discovery.resolve(context, new BonjourService.Builder("service", "_http._tcp.").build()).subscribe(subscriber);
+		verify(nsdManager).resolveService(any(NsdServiceInfo.class), captor.capture());
+		captor.getValue().onServiceResolved(info);
+		subscriber.assertCompleted();
+
+		// Without any discovery holding on to it, the resolver was quit once the resolve was over
+		discovery.prewarm(context).subscribe(prewarmSubscriber);
+		assertFalse(prewarmSubscriber.getOnNextEvents().get(0).isReused());
+	}
+
 	// TODO Fill with more tests
+
+	@Test public void testPrewarm() throws Exception {
+		final TestScheduler scheduler = new TestScheduler();
+		given(EngineSchedulers.lingerSchedulers(anyLong())).willReturn(new Observable.Transformer<Object, Object>() {
+			@Override public Observable<Object> call(Observable<Object> obs) {
+				return obs.delaySubscription(30, TimeUnit.SECONDS, scheduler);
+			}
+		});
+		BonjourDiscovery discovery = new JBBonjourDiscovery();
+		TestSubscriber<EngineStartup> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<EngineStartup> subscriber2 = new TestSubscriber<>();
+		TestSubscriber<EngineStartup> subscriber3 = new TestSubscriber<>();
+
+		discovery.prewarm(context).subscribe(subscriber1);
+		discovery.prewarm(context).subscribe(subscriber2);
+
+		subscriber1.assertNoErrors();
+		subscriber1.assertCompleted();
+		assertFalse(subscriber1.getOnNextEvents().get(0).isReused());
+		assertEquals(2, subscriber1.getOnNextEvents().get(0).getPhaseNanos().size());
+		assertTrue(subscriber2.getOnNextEvents().get(0).isReused());
+
+		// The prewarmed resolver is quit once nobody picked it up for a while
+		scheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+		discovery.prewarm(context).subscribe(subscriber3);
+		assertFalse(subscriber3.getOnNextEvents().get(0).isReused());
+	}
 }
@@ -0,0 +1,55 @@
+package rxbonjour.internal;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import rx.functions.Action0;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class NetworkMonitorTest {
+
+	private Context context;
+	private Action0 action;
+	private NetworkMonitor monitor;
+
+	@Before public void setUp() throws Exception {
+		context = mock(Context.class);
+		action = mock(Action0.class);
+		monitor = new NetworkMonitor(action);
+	}
+
+	@Test public void testRegisteredWhileHeld() throws Exception {
+		ArgumentCaptor<BroadcastReceiver> captor = ArgumentCaptor.forClass(BroadcastReceiver.class);
+
+		monitor.acquire(context);
+		monitor.acquire(context);
+		verify(context, times(1)).registerReceiver(captor.capture(), any(IntentFilter.class));
+
+		monitor.release();
+		verify(context, never()).unregisterReceiver(any(BroadcastReceiver.class));
+		monitor.release();
+		verify(context, times(1)).unregisterReceiver(captor.getValue());
+	}
+
+	@Test public void testChangeInvokesAction() throws Exception {
+		ArgumentCaptor<BroadcastReceiver> captor = ArgumentCaptor.forClass(BroadcastReceiver.class);
+
+		monitor.acquire(context);
+		verify(context).registerReceiver(captor.capture(), any(IntentFilter.class));
+		captor.getValue().onReceive(context, mock(Intent.class));
+
+		verify(action, times(1)).call();
+		monitor.release();
+	}
+}
@@ -0,0 +1,145 @@
+package rxbonjour.internal;
+
+import android.annotation.SuppressLint;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rxbonjour.base.BaseTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SuppressLint("NewApi")
+public class NsdResolverTest extends BaseTest {
+
+	private NsdManager nsdManager;
+	private final List<NsdServiceInfo> requested = Collections.synchronizedList(new ArrayList<NsdServiceInfo>());
+	private final List<NsdManager.ResolveListener> listeners = Collections.synchronizedList(new ArrayList<NsdManager.ResolveListener>());
+	private final List<NsdServiceInfo> resolved = Collections.synchronizedList(new ArrayList<NsdServiceInfo>());
+	private final List<Integer> errors = Collections.synchronizedList(new ArrayList<Integer>());
+
+	private final NsdResolver.Callback callback = new NsdResolver.Callback() {
+		@Override public void onServiceResolved(NsdServiceInfo serviceInfo) {
+			resolved.add(serviceInfo);
+		}
+
+		@Override public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+			errors.add(errorCode);
+		}
+	};
+
+	@Override protected void setupMocks() throws Exception {
+		nsdManager = mock(NsdManager.class);
+
+		// Record each resolve request along with its listener
+		doAnswer(new Answer<Void>() {
+			@Override public Void answer(InvocationOnMock invocation) throws Throwable {
+				requested.add((NsdServiceInfo) invocation.getArguments()[0]);
+				listeners.add((NsdManager.ResolveListener) invocation.getArguments()[1]);
+				return null;
+			}
+		}).when(nsdManager).resolveService(any(NsdServiceInfo.class), any(NsdManager.ResolveListener.class));
+	}
+
+	private NsdServiceInfo serviceInfo(String name) {
+		NsdServiceInfo info = mock(NsdServiceInfo.class);
+		when(info.getServiceName()).thenReturn(name);
+		when(info.getServiceType()).thenReturn("_http._tcp.");
+		return info;
+	}
+
+	@Test public void testConcurrencyLimit() throws Exception {
+		NsdResolver resolver = new NsdResolver(nsdManager, 2);
+		NsdServiceInfo info1 = serviceInfo("1");
+		NsdServiceInfo info2 = serviceInfo("2");
+		NsdServiceInfo info3 = serviceInfo("3");
+
+		resolver.resolve(info1, callback);
+		resolver.resolve(info2, callback);
+		resolver.resolve(info3, callback);
+		assertEquals(2, requested.size());
+
+		listeners.get(0).onServiceResolved(info1);
+		assertEquals(3, requested.size());
+		assertEquals(info3, requested.get(2));
+		assertEquals(1, resolved.size());
+		resolver.quit();
+	}
+
+	@Test public void testFailureDoesNotStall() throws Exception {
+		NsdResolver resolver = new NsdResolver(nsdManager, 1);
+		NsdServiceInfo info1 = serviceInfo("1");
+		NsdServiceInfo info2 = serviceInfo("2");
+
+		resolver.resolve(info1, callback);
+		resolver.resolve(info2, callback);
+		listeners.get(0).onResolveFailed(info1, NsdManager.FAILURE_INTERNAL_ERROR);
+
+		assertEquals(2, requested.size());
+		assertEquals(info2, requested.get(1));
+		assertEquals(Collections.singletonList(NsdManager.FAILURE_INTERNAL_ERROR), errors);
+		resolver.quit();
+	}
+
+	@Test public void testTimeoutDoesNotStall() throws Exception {
+		NsdResolver resolver = new NsdResolver(nsdManager, 1, 100);
+		NsdServiceInfo info1 = serviceInfo("1");
+		NsdServiceInfo info2 = serviceInfo("2");
+
+		resolver.resolve(info1, callback);
+		resolver.resolve(info2, callback);
+		Thread.sleep(300);
+
+		assertTrue(requested.size() >= 2);
+		assertEquals(info2, requested.get(1));
+		assertEquals(NsdResolver.ERROR_TIMEOUT, (int) errors.get(0));
+
+		// Late results of aborted resolves are ignored
+		listeners.get(0).onServiceResolved(info1);
+		assertTrue(resolved.isEmpty());
+		resolver.quit();
+	}
+
+	@Test public void testRetryWhenAlreadyActive() throws Exception {
+		NsdResolver resolver = new NsdResolver(nsdManager, 1);
+		NsdServiceInfo info = serviceInfo("1");
+
+		resolver.resolve(info, callback);
+		listeners.get(0).onResolveFailed(info, NsdManager.FAILURE_ALREADY_ACTIVE);
+		assertEquals(1, requested.size());
+		Thread.sleep(300);
+
+		assertEquals(2, requested.size());
+		assertEquals(info, requested.get(1));
+		assertTrue(errors.isEmpty());
+		listeners.get(1).onServiceResolved(info);
+		assertEquals(1, resolved.size());
+		resolver.quit();
+	}
+
+	@Test public void testCoalesceDuplicates() throws Exception {
+		NsdResolver resolver = new NsdResolver(nsdManager, 1);
+		NsdServiceInfo info1 = serviceInfo("1");
+
+		resolver.resolve(serviceInfo("busy"), callback);
+		resolver.resolve(info1, callback);
+		resolver.resolve(serviceInfo("1"), callback);
+		listeners.get(0).onServiceResolved(info1);
+		listeners.get(1).onServiceResolved(info1);
+
+		assertEquals(2, requested.size());
+		resolver.quit();
+	}
+}
@@ -5,20 +5,37 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceListener;
 
+import rx.Observable;
 import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rxbonjour.DiscoveryOptions;
 import rxbonjour.base.BaseTest;
+import rxbonjour.exc.ResolveFailed;
 import rxbonjour.exc.StaleContextException;
 import rxbonjour.model.BonjourEvent;
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.EngineStartup;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -27,6 +44,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 @PrepareForTest({ JmDNS.class })
 public class SupportBonjourDiscoveryTest extends BaseTest {
@@ -84,6 +102,81 @@ public class SupportBonjourDiscoveryTest extends BaseTest {
 		verify(jmdns, times(1)).close();
 	}
 
+	@Test public void testIdleInstanceLingers() throws Exception {
+		final TestScheduler scheduler = new TestScheduler();
+		given(EngineSchedulers.lingerSchedulers(anyLong())).willReturn(new Observable.Transformer<Object, Object>() {
+			@Override public Observable<Object> call(Observable<Object> obs) {
+				return obs.delaySubscription(3, TimeUnit.SECONDS, scheduler);
+			}
+		});
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber2 = new TestSubscriber<>();
+
+		// A subscriber arriving while the idle instance lingers reuses it
+		discovery.start(context, "_http._tcp").subscribe(subscriber1);
+		subscriber1.unsubscribe();
+		scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+		verify(jmdns, never()).close();
+		discovery.start(context, "_http._tcp").subscribe(subscriber2);
+		scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+		verify(jmdns, never()).close();
+		verifyStatic(times(1));
+		JmDNS.create(any(InetAddress.class), anyString());
+
+		// Once idle for long enough, the instance is closed
+		subscriber2.unsubscribe();
+		scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+		verify(jmdns, never()).close();
+		scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+		verify(jmdns, times(1)).close();
+	}
+
+	@Test public void testPrewarm() throws Exception {
+		final TestScheduler scheduler = new TestScheduler();
+		given(EngineSchedulers.lingerSchedulers(anyLong())).willReturn(new Observable.Transformer<Object, Object>() {
+			@Override public Observable<Object> call(Observable<Object> obs) {
+				return obs.delaySubscription(30, TimeUnit.SECONDS, scheduler);
+			}
+		});
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<EngineStartup> prewarmSubscriber = new TestSubscriber<>();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+
+		// The prewarmed instance reports its startup phases, and is picked up by a later discovery
+		discovery.prewarm(context).subscribe(prewarmSubscriber);
+		prewarmSubscriber.assertNoErrors();
+		prewarmSubscriber.assertCompleted();
+		EngineStartup startup = prewarmSubscriber.getOnNextEvents().get(0);
+		assertFalse(startup.isReused());
+		assertEquals(Arrays.asList(SupportBonjourDiscovery.PHASE_MULTICAST_LOCK, SupportBonjourDiscovery.PHASE_ADDRESS, SupportBonjourDiscovery.PHASE_JMDNS),
+				new ArrayList<>(startup.getPhaseNanos().keySet()));
+		scheduler.advanceTimeBy(20, TimeUnit.SECONDS);
+		discovery.start(context, "_http._tcp").subscribe(subscriber);
+		verifyStatic(times(1));
+		JmDNS.create(any(InetAddress.class), anyString());
+
+		// Prewarming a running instance reuses it
+		TestSubscriber<EngineStartup> reusedSubscriber = new TestSubscriber<>();
+		discovery.prewarm(context).subscribe(reusedSubscriber);
+		assertTrue(reusedSubscriber.getOnNextEvents().get(0).isReused());
+		assertTrue(reusedSubscriber.getOnNextEvents().get(0).getPhaseNanos().isEmpty());
+		scheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+		verify(jmdns, never()).close();
+		subscriber.unsubscribe();
+		scheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+		verify(jmdns, times(1)).close();
+	}
+
+	@Test public void testPrewarmStaleContext() throws Exception {
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<EngineStartup> subscriber = new TestSubscriber<>();
+
+		discovery.prewarm(null).subscribe(subscriber);
+
+		subscriber.assertError(StaleContextException.class);
+	}
+
 	@Test public void testAddAndRemoveTwoDifferentTypesCycle() throws Exception {
 		BonjourDiscovery discovery = new SupportBonjourDiscovery();
 		TestSubscriber<BonjourEvent> subscriber1 = new TestSubscriber<>();
@@ -113,5 +206,87 @@ public class SupportBonjourDiscoveryTest extends BaseTest {
 		subscriber.assertError(StaleContextException.class);
 	}
 
+	@Test public void testLazyResolution() throws Exception {
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+		ServiceEvent event = mock(ServiceEvent.class);
+		when(event.getName()).thenReturn("service");
+		when(event.getType()).thenReturn("_http._tcp.local.");
+		when(event.getDNS()).thenReturn(jmdns);
+
+		discovery.start(context, "_http._tcp", new DiscoveryOptions.Builder().setLazyResolution(true).build()).subscribe(subscriber);
+		verify(jmdns).addServiceListener(eq("_http._tcp.local."), captor.capture());
+		captor.getValue().serviceAdded(event);
+
+		// Found services are reported without being resolved
+		verify(jmdns, never()).requestServiceInfo(anyString(), anyString());
+		subscriber.assertValueCount(1);
+		BonjourEvent found = subscriber.getOnNextEvents().get(0);
+		assertEquals(BonjourEvent.Type.FOUND, found.getType());
+		assertEquals("service", found.getService().getName());
+		assertFalse(found.getService().isResolved());
+
+		// Resolve on demand
+		ServiceInfo info = mock(ServiceInfo.class);
+		when(info.hasData()).thenReturn(true);
+		when(info.getPropertyNames()).thenReturn(Collections.enumeration(Collections.<String>emptyList()));
+		when(info.getInetAddresses()).thenReturn(new InetAddress[] { InetAddress.getByName("127.0.0.1") });
+		when(info.getPort()).thenReturn(80);
+		when(jmdns.getServiceInfo(eq("_http._tcp.local."), eq("service"), anyLong())).thenReturn(info);
+		TestSubscriber<BonjourService> resolveSubscriber = new TestSubscriber<>();
+
+		discovery.resolve(context, found.getService()).subscribe(resolveSubscriber);
+
+		resolveSubscriber.assertNoErrors();
+		resolveSubscriber.assertValueCount(1);
+		resolveSubscriber.assertCompleted();
+		BonjourService resolved = resolveSubscriber.getOnNextEvents().get(0);
+		assertTrue(resolved.isResolved());
+		assertEquals(80, resolved.getPort());
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testRepeatedResolvesReportUpdates() throws Exception {
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<BonjourEvent> subscriber = new TestSubscriber<>();
+		ArgumentCaptor<ServiceListener> captor = ArgumentCaptor.forClass(ServiceListener.class);
+		ServiceInfo info = mock(ServiceInfo.class);
+		when(info.getPropertyNames()).thenReturn(Collections.enumeration(Collections.<String>emptyList()));
+		when(info.getInetAddresses()).thenReturn(new InetAddress[] { InetAddress.getByName("127.0.0.1") });
+		when(info.getPort()).thenReturn(80);
+		ServiceEvent event = mock(ServiceEvent.class);
+		when(event.getName()).thenReturn("service");
+		when(event.getType()).thenReturn("_http._tcp.local.");
+		when(event.getInfo()).thenReturn(info);
+
+		discovery.start(context, "_http._tcp").subscribe(subscriber);
+		verify(jmdns).addServiceListener(eq("_http._tcp.local."), captor.capture());
+
+		// Identical refreshes are suppressed, changes are reported as updates
+		captor.getValue().serviceResolved(event);
+		captor.getValue().serviceResolved(event);
+		when(info.getPort()).thenReturn(8080);
+		captor.getValue().serviceResolved(event);
+
+		subscriber.assertValueCount(2);
+		assertEquals(BonjourEvent.Type.ADDED, subscriber.getOnNextEvents().get(0).getType());
+		BonjourEvent updated = subscriber.getOnNextEvents().get(1);
+		assertEquals(BonjourEvent.Type.UPDATED, updated.getType());
+		assertTrue(updated.getDiff().hasPortChanged());
+		assertFalse(updated.getDiff().hasAddressesChanged());
+		subscriber.unsubscribe();
+	}
+
+	@Test public void testResolveFailed() throws Exception {
+		BonjourDiscovery discovery = new SupportBonjourDiscovery();
+		TestSubscriber<BonjourService> subscriber = new TestSubscriber<>();
+
+		discovery.resolve(context, new BonjourService.Builder("service", "_http._tcp.local.").build()).subscribe(subscriber);
+
+		subscriber.assertError(ResolveFailed.class);
+		verify(jmdns, times(1)).close();
+	}
+
 	// TODO Fill with more tests
 }
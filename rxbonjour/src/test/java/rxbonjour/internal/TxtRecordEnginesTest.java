@@ -0,0 +1,68 @@
+package rxbonjour.internal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jmdns.ServiceInfo;
+
+import rxbonjour.model.BonjourService;
+import rxbonjour.model.TxtRecords;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TxtRecordEnginesTest {
+
+	/** TXT record holding an attribute without a value, one with an empty value and one with a value */
+	private static final byte[] TXT = { 4, 'f', 'l', 'a', 'g', 6, 'e', 'm', 'p', 't', 'y', '=', 3, 'k', '=', 'v' };
+
+	private static BonjourService.Builder builder() {
+		return new BonjourService.Builder("service", "_http._tcp");
+	}
+
+	private static TxtRecords nativeTxt() {
+		// Response holding nothing but the TXT record, named "s.local."
+		ByteBuffer packet = ByteBuffer.allocate(512);
+		packet.putShort((short) 0).putShort((short) 0x8400).putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0);
+		packet.put((byte) 1).put((byte) 's').put((byte) 5).put("local".getBytes()).put((byte) 0);
+		packet.putShort((short) DnsMessage.TYPE_TXT).putShort((short) 1).putInt(4500).putShort((short) TXT.length).put(TXT);
+		packet.flip();
+
+		DnsReader reader = new DnsReader();
+		assertTrue(reader.reset(packet));
+		assertTrue(reader.next());
+		return reader.readTxt();
+	}
+
+	private static TxtRecords jmdnsTxt() {
+		return JmdnsEngine.txtRecords(ServiceInfo.create("_http._tcp.local.", "service", 80, 0, 0, TXT));
+	}
+
+	private static TxtRecords nsdTxt() {
+		// NsdServiceInfo reports attributes the way Android parses them
+		Map<String, byte[]> attributes = new HashMap<>();
+		attributes.put("flag", null);
+		attributes.put("empty", new byte[0]);
+		attributes.put("k", new byte[] { 'v' });
+
+		BonjourService.Builder builder = builder();
+		JBBonjourDiscovery.addTxtRecords(builder, attributes);
+		return builder.build().getTxtRecords();
+	}
+
+	@Test public void testEnginesAgree() throws Exception {
+		TxtRecords txt = nativeTxt();
+		assertEquals(3, txt.size());
+		assertTrue(txt.containsKey("flag"));
+		assertNull(txt.get("flag"));
+		assertEquals("", txt.get("empty"));
+		assertEquals("v", txt.get("k"));
+
+		assertEquals(txt, jmdnsTxt());
+		assertEquals(txt, nsdTxt());
+	}
+}
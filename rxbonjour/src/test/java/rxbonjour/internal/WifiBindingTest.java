@@ -0,0 +1,41 @@
+package rxbonjour.internal;
+
+import android.net.wifi.WifiManager;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WifiBindingTest {
+
+	@Test public void testLockOnlyWithoutWifiManager() throws Exception {
+		NetworkBinding binding = new WifiBinding(null, false);
+
+		assertNull(binding.acquire(new StartupTimer()));
+		binding.release();
+	}
+
+	@Test(expected = IOException.class) public void testAddressWithoutWifiManager() throws Exception {
+		NetworkBinding binding = new WifiBinding(null);
+
+		binding.acquire(new StartupTimer());
+	}
+
+	@Test public void testLockOnlyHoldsLock() throws Exception {
+		WifiManager wifiManager = mock(WifiManager.class);
+		WifiManager.MulticastLock lock = mock(WifiManager.MulticastLock.class);
+		when(wifiManager.createMulticastLock(anyString())).thenReturn(lock);
+		NetworkBinding binding = new WifiBinding(wifiManager, false);
+
+		assertNull(binding.acquire(new StartupTimer()));
+		verify(lock).acquire();
+		binding.release();
+		verify(lock).release();
+	}
+}